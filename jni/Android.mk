@@ -32,6 +32,8 @@ LOCAL_SRC_FILES += \
 	kissfft_floatingpoint/kiss_fft.c \
 	kissfft_floatingpoint/kiss_fftr.c \
 	kissfft_floatingpoint/kiss_fastfir.c \
+	kissfft_floatingpoint/partconv.c \
+	kissfft_floatingpoint/nupconv.c \
 	kissfft_floatingpoint/kissfftFloatWrapper.cpp
 LOCAL_MODULE    := firfilter
 LOCAL_CFLAGS = -O3
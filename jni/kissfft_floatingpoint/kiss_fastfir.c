@@ -80,6 +80,9 @@ kiss_fastfir_cfg kiss_fastfir_alloc(
     st->nfft = nfft;
     st->ngood = nfft - num_imp_resp_frames + 1;
     st->n_freq_bins = n_freq_bins;
+    st->current_fir_freq_resp = 0;
+    st->fir_freq_resp_owner = NULL;
+    st->refcount = 1;
     ptr=(char*)(st+1);
 
     st->fftcfg = (kfcfg_t)ptr;
@@ -130,6 +133,70 @@ kiss_fastfir_cfg kiss_fastfir_alloc(
     return st;
 }
 
+kiss_fastfir_cfg kiss_fastfir_alloc_shared(kiss_fastfir_cfg shared)
+{
+    kiss_fastfir_cfg st = NULL;
+    kiss_fastfir_cfg owner;
+    size_t len_fftcfg,len_ifftcfg;
+    size_t memneeded = sizeof(struct kiss_fastfir_state);
+    size_t nfft = shared->nfft;
+    char * ptr;
+
+    /* same layout as in kiss_fastfir_alloc(), but without fir_freq_resp */
+    FFT_ALLOC (nfft, 0, NULL, &len_fftcfg);
+    memneeded += len_fftcfg;
+    FFT_ALLOC (nfft, 1, NULL, &len_ifftcfg);
+    memneeded += len_ifftcfg;
+    memneeded += sizeof(kffsamp_t) * nfft;
+    memneeded += sizeof(kiss_fft_cpx) * shared->n_freq_bins;
+
+    st = (kiss_fastfir_cfg) malloc (memneeded);
+    if (!st)
+        return NULL;
+
+    owner = shared->fir_freq_resp_owner ? shared->fir_freq_resp_owner : shared;
+    __sync_add_and_fetch(&owner->refcount, 1);
+
+    st->nfft = nfft;
+    st->ngood = shared->ngood;
+    st->n_freq_bins = shared->n_freq_bins;
+    st->current_fir_freq_resp = 0;
+    st->fir_freq_resp = owner->fir_freq_resp;
+    st->fir_freq_resp_owner = owner;
+    st->refcount = 1;
+    ptr=(char*)(st+1);
+
+    st->fftcfg = (kfcfg_t)ptr;
+    ptr += len_fftcfg;
+
+    st->ifftcfg = (kfcfg_t)ptr;
+    ptr += len_ifftcfg;
+
+    st->tmpbuf = (kffsamp_t*)ptr;
+    ptr += sizeof(kffsamp_t) * nfft;
+
+    st->freqbuf = (kiss_fft_cpx*)ptr;
+
+    FFT_ALLOC (nfft,0,st->fftcfg , &len_fftcfg);
+    FFT_ALLOC (nfft,1,st->ifftcfg , &len_ifftcfg);
+    return st;
+}
+
+void kiss_fastfir_free(kiss_fastfir_cfg st)
+{
+    kiss_fastfir_cfg owner;
+
+    if (!st)
+        return;
+    owner = st->fir_freq_resp_owner;
+    if (owner) {
+        free(st);
+        st = owner;
+    }
+    if (__sync_sub_and_fetch(&st->refcount, 1) == 0)
+        free(st);
+}
+
 void fastconv1buf(const kiss_fastfir_cfg st,const kffsamp_t * in,kffsamp_t * out)
 {
     size_t i;
@@ -147,6 +214,64 @@ void fastconv1buf(const kiss_fastfir_cfg st,const kffsamp_t * in,kffsamp_t * out
     FFTINV(st->ifftcfg,st->freqbuf,out);
 }
 
+/* like calling fastconv1buf() for both channels, but the forward fft of the
+   input is only done once. both configs must have the same nfft. */
+void fastconv1buf_stereo(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,const kffsamp_t * in,
+        kffsamp_t * outL,kffsamp_t * outR)
+{
+    size_t i;
+    /* transform input once, left freqbuf holds the input spectrum */
+    FFTFWD( stL->fftcfg, in , stL->freqbuf );
+    kiss_fft_cpx* fir_freq_resp_l = &(stL->fir_freq_resp[stL->current_fir_freq_resp * stL->n_freq_bins]);
+    kiss_fft_cpx* fir_freq_resp_r = &(stR->fir_freq_resp[stR->current_fir_freq_resp * stR->n_freq_bins]);
+    for ( i=0; i<stL->n_freq_bins; ++i ) {
+        kiss_fft_cpx tmpsamp;
+        C_MUL(tmpsamp,stL->freqbuf[i],fir_freq_resp_r[i]);
+        stR->freqbuf[i] = tmpsamp;
+        C_MUL(tmpsamp,stL->freqbuf[i],fir_freq_resp_l[i]);
+        stL->freqbuf[i] = tmpsamp;
+    }
+
+    /* perform the inverse ffts*/
+    FFTINV(stL->ifftcfg,stL->freqbuf,outL);
+    FFTINV(stR->ifftcfg,stR->freqbuf,outR);
+}
+
+/* like fastconv1buf_stereo(), but the output spectra are scaled by gain and added to
+   accL/accR instead of being transformed back. this way many inputs can be mixed in
+   the frequency domain and need only one inverse fft per channel (fastconv_inverse()). */
+void fastconv1buf_stereo_accumulate(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,const kffsamp_t * in,
+        kiss_fft_scalar gain,kiss_fft_cpx * accL,kiss_fft_cpx * accR)
+{
+    FFTFWD( stL->fftcfg, in , stL->freqbuf );
+    fastconv_stereo_accumulate_shared(stL,stR,gain,accL,accR);
+}
+
+/* like fastconv1buf_stereo_accumulate(), with the input spectrum of the last call of it (left freqbuf), for
+   the same input filtered with other frequency responses */
+void fastconv_stereo_accumulate_shared(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,
+        kiss_fft_scalar gain,kiss_fft_cpx * accL,kiss_fft_cpx * accR)
+{
+    size_t i;
+    kiss_fft_cpx* fir_freq_resp_l = &(stL->fir_freq_resp[stL->current_fir_freq_resp * stL->n_freq_bins]);
+    kiss_fft_cpx* fir_freq_resp_r = &(stR->fir_freq_resp[stR->current_fir_freq_resp * stR->n_freq_bins]);
+    for ( i=0; i<stL->n_freq_bins; ++i ) {
+        kiss_fft_cpx insamp, tmpsamp;
+        insamp = stL->freqbuf[i];	/* kept unscaled for the next shared call */
+        C_MULBYSCALAR(insamp,gain);
+        C_MUL(tmpsamp,insamp,fir_freq_resp_l[i]);
+        C_ADDTO(accL[i],tmpsamp);
+        C_MUL(tmpsamp,insamp,fir_freq_resp_r[i]);
+        C_ADDTO(accR[i],tmpsamp);
+    }
+}
+
+/* transforms an accumulated output spectrum back */
+void fastconv_inverse(const kiss_fastfir_cfg st,kiss_fft_cpx * acc,kffsamp_t * out)
+{
+    FFTINV(st->ifftcfg,acc,out);
+}
+
 /* n : the size of inbuf and outbuf in samples
    return value: the number of samples completely processed
    n-retval samples should be copied to the front of the next input buffer */
@@ -41,6 +41,8 @@ struct kiss_fastfir_state{
     kiss_fft_cpx * freqbuf;
     size_t n_freq_bins;
     kffsamp_t * tmpbuf;
+    struct kiss_fastfir_state * fir_freq_resp_owner;  /* state holding fir_freq_resp, NULL if this one */
+    int refcount;                                     /* of the owner: number of states using its fir_freq_resp */
 };
 
 typedef struct kiss_fastfir_state *kiss_fastfir_cfg;
@@ -50,8 +52,26 @@ kiss_fastfir_cfg kiss_fastfir_alloc(
         size_t *pnfft, /* if <= 0, an appropriate size will be chosen */
         void * mem,size_t *lenmem);
 
+/* allocates a filter using the impulse response spectra of shared (read-only), with its own fft configs
+   and buffers. the spectra's owner is freed with the last filter using them (see kiss_fastfir_free()). */
+kiss_fastfir_cfg kiss_fastfir_alloc_shared(kiss_fastfir_cfg shared);
+
+/* frees a filter allocated by kiss_fastfir_alloc() without mem, or by kiss_fastfir_alloc_shared() */
+void kiss_fastfir_free(kiss_fastfir_cfg st);
+
 void fastconv1buf(const kiss_fastfir_cfg st,const kffsamp_t * in,kffsamp_t * out);
 
+void fastconv1buf_stereo(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,const kffsamp_t * in,
+        kffsamp_t * outL,kffsamp_t * outR);
+
+void fastconv1buf_stereo_accumulate(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,const kffsamp_t * in,
+        kiss_fft_scalar gain,kiss_fft_cpx * accL,kiss_fft_cpx * accR);
+
+void fastconv_stereo_accumulate_shared(const kiss_fastfir_cfg stL,const kiss_fastfir_cfg stR,
+        kiss_fft_scalar gain,kiss_fft_cpx * accL,kiss_fft_cpx * accR);
+
+void fastconv_inverse(const kiss_fastfir_cfg st,kiss_fft_cpx * acc,kffsamp_t * out);
+
 
 #ifdef __cplusplus
 }
@@ -21,6 +21,7 @@ SOFTWARE.
 */
 
 #include <time.h>	// for clock()
+#include <stdint.h>	// for intptr_t
 #include "kissfftFloatWrapper.h"
 #include <limits.h>
 
@@ -35,99 +36,129 @@ SOFTWARE.
 #define SHRT_MIN_FLOAT ((float) SHRT_MIN)
 #define SHRT_MAX_FLOAT ((float) SHRT_MAX)
 
-kiss_fastfir_cfg cfgL = NULL;
-kiss_fastfir_cfg cfgR = NULL;
-jfloat *outArrFloatL = NULL;
-jfloat *outArrFloatR = NULL;
-jfloat *inArrFloat = NULL;
-jfloat *audioMixAndFadeBufferL = NULL;
-jfloat *audioMixAndFadeBufferR = NULL;
-jfloat *crossfadeSaveBufferL = NULL;
-jfloat *crossfadeSaveBufferR = NULL;
-jfloat *crossfadeInTable = NULL;
-jfloat *crossfadeOutTable = NULL;
-bool filterInitialized = false;
-jint filterOverlapInSamples = 0;
-jint filterOverlapInBytes = 0;
-jint fftPaddingInSamples = 0;
-jint fftPaddingInBytes = 0;
-jint fftSizeInSamples = 0;
-jint fftSizeInBytes = 0;
-jint crossfadeOverlapInSamples = 0;
-jint crossfadeOverlapInBytes = 0;
-jint audioMixAndFadeBufferSizeInSamples = 0;
-jint audioMixAndFadeBufferSizeInBytes = 0;
-
-void freeMem() {
-	if (inArrFloat != NULL) free(inArrFloat);
-	if (outArrFloatL != NULL) free(outArrFloatL);
-	if (outArrFloatR != NULL) free(outArrFloatR);
-	if (cfgL != NULL) free(cfgL);
-	if (cfgR != NULL) free(cfgR);
-	if (audioMixAndFadeBufferL != NULL) free(audioMixAndFadeBufferL);
-	if (audioMixAndFadeBufferR != NULL) free(audioMixAndFadeBufferR);
-	if (crossfadeSaveBufferL != NULL) free(crossfadeSaveBufferL);
-	if (crossfadeSaveBufferR != NULL) free(crossfadeSaveBufferR);
-	if (crossfadeInTable != NULL) free(crossfadeInTable);
-	if (crossfadeOutTable != NULL) free(crossfadeOutTable);
-
-	cfgL = NULL;
-	cfgR = NULL;
-	outArrFloatL = NULL;
-	outArrFloatR = NULL;
-	inArrFloat = NULL;
-	audioMixAndFadeBufferL = NULL;
-	audioMixAndFadeBufferR = NULL;
-	crossfadeSaveBufferL = NULL;
-	crossfadeSaveBufferR = NULL;
-	crossfadeInTable = NULL;
-	crossfadeOutTable = NULL;
-}
-
-JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftCreate(JNIEnv *env, jobject thiz, jobjectArray hrirsL, jobjectArray hrirsR, jint fftSize, jint crossfadeOverlapSize, jint fftPaddingSize) {
-	jfloatArray hrirCoeffsL, hrirCoeffsR;
-	jint numCoeffFrames;
-	jfloat *coeffsArrL = NULL;
-	jfloat *coeffsArrR = NULL;
+// convolution engines, see AudioScene.ConvolutionEngine
+#define ENGINE_SINGLE_FFT 0
+#define ENGINE_UNIFORM_PARTITIONED 1
+#define ENGINE_NON_UNIFORM_PARTITIONED 2
+
+// all state of one filter instance, the java side keeps a pointer to it (see FirFilter.java)
+struct FirFilterContext {
+	jint convolutionEngine;
+	kiss_fastfir_cfg cfgL;
+	kiss_fastfir_cfg cfgR;
+	partconv_cfg partCfg;
+	nupconv_cfg nupCfg;
+	jint numSources;
+	jfloat *outArrFloatL;
+	jfloat *outArrFloatR;
+	jfloat *inArrFloat;
+	jfloat *audioMixAndFadeBufferL;
+	jfloat *audioMixAndFadeBufferR;
+	jfloat *crossfadeSaveBufferL;
+	jfloat *crossfadeSaveBufferR;
+	jfloat *crossfadeInTable;
+	jfloat *crossfadeOutTable;
+	kiss_fft_cpx *mixSpectrumL;
+	kiss_fft_cpx *mixSpectrumR;
+	bool sharedInputFft;	// transform input once for both ears
+	bool spectralMixing;	// mix sources in the frequency domain, one inverse fft per ear and block
+	bool mixSpectrumUsed;
+	bool mixFinished;	// spectral mix and tail are in the mixing buffers already
+	jint filterOverlapInSamples;
+	jint filterOverlapInBytes;
+	jint fftPaddingInSamples;
+	jint fftPaddingInBytes;
+	jint fftSizeInSamples;
+	jint fftSizeInBytes;
+	jint crossfadeOverlapInSamples;
+	jint crossfadeOverlapInBytes;
+	jint audioMixAndFadeBufferSizeInSamples;
+	jint audioMixAndFadeBufferSizeInBytes;
+	jobject *sourceBuffers;	// registered direct input buffers (global references), see nativeRegisterSourceBuffers()
+	jfloat **sourceBufferAddresses;	// their memory, read in place
+	jint *sourceBufferSizes;	// in samples, at least one input window
+	jint *sourceBufferIndices;	// [registered buffer] -> index into per block parameter arrays
+	jint *sourceRenderOrder;	// registered buffers, those with the same memory one after another (see renderSources())
+	jint numSourceBuffers;
+	jint *blockHrtfIndices;	// per block parameters, copied from java in one go
+	jint *blockInputStarts;
+	jfloat *blockSampleScalings;
+	jint numBlockParams;
+};
+
+static inline FirFilterContext * getContext(jlong handle) {
+	return (FirFilterContext*) (intptr_t) handle;
+}
 
-	filterInitialized = false;
+FirFilterContext * newContext(jint convolutionEngine, jint numSources) {
+	// calloc: all pointers NULL, all sizes 0
+	FirFilterContext *ctx = (FirFilterContext*) calloc(1, sizeof(FirFilterContext));
+	if (ctx == NULL) return NULL;
 
-	// free memory if any allocated already
-	freeMem();
+	ctx->convolutionEngine = convolutionEngine;
+	ctx->numSources = numSources;
+	ctx->sharedInputFft = true;
+	ctx->spectralMixing = true;
+	return ctx;
+}
+
+void freeContext(FirFilterContext *ctx) {
+	if (ctx == NULL) return;
+
+	if (ctx->inArrFloat != NULL) free(ctx->inArrFloat);
+	if (ctx->outArrFloatL != NULL) free(ctx->outArrFloatL);
+	if (ctx->outArrFloatR != NULL) free(ctx->outArrFloatR);
+	if (ctx->cfgL != NULL) kiss_fastfir_free(ctx->cfgL);
+	if (ctx->cfgR != NULL) kiss_fastfir_free(ctx->cfgR);
+	if (ctx->partCfg != NULL) partconv_free(ctx->partCfg);
+	if (ctx->nupCfg != NULL) nupconv_free(ctx->nupCfg);
+	if (ctx->audioMixAndFadeBufferL != NULL) free(ctx->audioMixAndFadeBufferL);
+	if (ctx->audioMixAndFadeBufferR != NULL) free(ctx->audioMixAndFadeBufferR);
+	if (ctx->crossfadeSaveBufferL != NULL) free(ctx->crossfadeSaveBufferL);
+	if (ctx->crossfadeSaveBufferR != NULL) free(ctx->crossfadeSaveBufferR);
+	if (ctx->crossfadeInTable != NULL) free(ctx->crossfadeInTable);
+	if (ctx->crossfadeOutTable != NULL) free(ctx->crossfadeOutTable);
+	if (ctx->mixSpectrumL != NULL) free(ctx->mixSpectrumL);
+	if (ctx->mixSpectrumR != NULL) free(ctx->mixSpectrumR);
+	if (ctx->sourceBufferIndices != NULL) free(ctx->sourceBufferIndices);
+	if (ctx->blockHrtfIndices != NULL) free(ctx->blockHrtfIndices);
+	if (ctx->blockInputStarts != NULL) free(ctx->blockInputStarts);
+	if (ctx->blockSampleScalings != NULL) free(ctx->blockSampleScalings);
+
+	free(ctx);
+}
+
+// copies hrirs to newly allocated native arrays, all hrirs of one channel one after another
+bool copyHrirs(JNIEnv *env, jobjectArray hrirsL, jobjectArray hrirsR, jfloat **coeffsArrL, jfloat **coeffsArrR,
+		jint *numHrirs, jint *numCoeffFrames) {
+	jfloatArray hrirCoeffsL, hrirCoeffsR;
 
 	// get hrir array sizes
-	int numHrirs = env->GetArrayLength(hrirsL);
-	if (numHrirs == 0) return -1;
+	*numHrirs = env->GetArrayLength(hrirsL);
+	if (*numHrirs == 0) return false;
 	hrirCoeffsL = (jfloatArray) env->GetObjectArrayElement(hrirsL, 0);
-	numCoeffFrames = env->GetArrayLength(hrirCoeffsL);
-	if (numCoeffFrames == 0) return -1;
-
-	// init sizes
-	fftPaddingInSamples = fftPaddingSize;
-	fftPaddingInBytes = fftPaddingSize * sizeof(jfloat);
-	fftSizeInSamples = fftSize;
-	fftSizeInBytes = fftSize * sizeof(jfloat);
-	filterOverlapInSamples = numCoeffFrames - 1;
-	filterOverlapInBytes = filterOverlapInBytes * sizeof(jfloat);
-	crossfadeOverlapInSamples = crossfadeOverlapSize;
-	crossfadeOverlapInBytes = crossfadeOverlapInSamples * sizeof(jfloat);
-	audioMixAndFadeBufferSizeInSamples = fftSizeInSamples - filterOverlapInSamples - fftPaddingInSamples;
-	audioMixAndFadeBufferSizeInBytes = audioMixAndFadeBufferSizeInSamples * sizeof(jfloat);
+	*numCoeffFrames = env->GetArrayLength(hrirCoeffsL);
+	env->DeleteLocalRef(hrirCoeffsL);
+	if (*numCoeffFrames == 0) return false;
 
 	// allocate temporary native memory to hold hrirs
-	coeffsArrL = (jfloat*) malloc(numCoeffFrames * numHrirs * sizeof(jfloat));
-	coeffsArrR = (jfloat*) malloc(numCoeffFrames * numHrirs * sizeof(jfloat));
-	if (coeffsArrL == NULL || coeffsArrR == NULL) return -1;
+	*coeffsArrL = (jfloat*) malloc(*numCoeffFrames * *numHrirs * sizeof(jfloat));
+	*coeffsArrR = (jfloat*) malloc(*numCoeffFrames * *numHrirs * sizeof(jfloat));
+	if (*coeffsArrL == NULL || *coeffsArrR == NULL) {
+		free(*coeffsArrL);
+		free(*coeffsArrR);
+		return false;
+	}
 
 	// copy and reorder hrirs to native arrays
-	for (int i = 0; i < numHrirs; i++) {
+	for (int i = 0; i < *numHrirs; i++) {
 		hrirCoeffsL = (jfloatArray) env->GetObjectArrayElement(hrirsL, i);
 		hrirCoeffsR = (jfloatArray) env->GetObjectArrayElement(hrirsR, i);
 		jfloat *hrirCoeffsElementsL = env->GetFloatArrayElements(hrirCoeffsL, 0);
 		jfloat *hrirCoeffsElementsR = env->GetFloatArrayElements(hrirCoeffsR, 0);
-		for (int j = 0; j < numCoeffFrames; j++) {
-			coeffsArrL[i*numCoeffFrames + j] = hrirCoeffsElementsL[j];
-			coeffsArrR[i*numCoeffFrames + j] = hrirCoeffsElementsR[j];
+		for (int j = 0; j < *numCoeffFrames; j++) {
+			(*coeffsArrL)[i * *numCoeffFrames + j] = hrirCoeffsElementsL[j];
+			(*coeffsArrR)[i * *numCoeffFrames + j] = hrirCoeffsElementsR[j];
 		}
 		env->ReleaseFloatArrayElements(hrirCoeffsL, hrirCoeffsElementsL, 0);
 		env->ReleaseFloatArrayElements(hrirCoeffsR, hrirCoeffsElementsR, 0);
@@ -135,150 +166,645 @@ JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftCreate(JNIEnv *env
 		env->DeleteLocalRef(hrirCoeffsR);
 	}
 
-	// init kissfft fastfir
-	size_t kissFftSize = fftSize;
-	cfgL = kiss_fastfir_alloc(coeffsArrL, numHrirs, numCoeffFrames, &kissFftSize, 0, 0);
-	if (kissFftSize != fftSize) return -1;
-	kissFftSize = fftSize;
-	cfgR = kiss_fastfir_alloc(coeffsArrR, numHrirs, numCoeffFrames, &kissFftSize, 0, 0);
-	if (kissFftSize != fftSize) return -1;
-	if (cfgL == NULL || cfgR == NULL) return -1;
+	return true;
+}
 
-	// free temporary native hrir arrays
-	free(coeffsArrL);
-	free(coeffsArrR);
+// init sizes and allocate fft input/output, mixing and crossfade buffers
+bool setupBuffers(FirFilterContext *ctx, jint fftSize, jint filterOverlapSize, jint crossfadeOverlapSize, jint fftPaddingSize) {
+	// init sizes
+	ctx->fftPaddingInSamples = fftPaddingSize;
+	ctx->fftPaddingInBytes = fftPaddingSize * sizeof(jfloat);
+	ctx->fftSizeInSamples = fftSize;
+	ctx->fftSizeInBytes = fftSize * sizeof(jfloat);
+	ctx->filterOverlapInSamples = filterOverlapSize;
+	ctx->filterOverlapInBytes = filterOverlapSize * sizeof(jfloat);
+	ctx->crossfadeOverlapInSamples = crossfadeOverlapSize;
+	ctx->crossfadeOverlapInBytes = ctx->crossfadeOverlapInSamples * sizeof(jfloat);
+	ctx->audioMixAndFadeBufferSizeInSamples = ctx->fftSizeInSamples - ctx->filterOverlapInSamples - ctx->fftPaddingInSamples;
+	ctx->audioMixAndFadeBufferSizeInBytes = ctx->audioMixAndFadeBufferSizeInSamples * sizeof(jfloat);
 
 	// alloc float fft input/output arrays
-	inArrFloat = (jfloat*) malloc(fftSizeInBytes);
-	outArrFloatL = (jfloat*) malloc(fftSizeInBytes);
-	outArrFloatR = (jfloat*) malloc(fftSizeInBytes);
-	if (inArrFloat == NULL || outArrFloatL == NULL || outArrFloatR == NULL) return -1;
+	ctx->inArrFloat = (jfloat*) malloc(ctx->fftSizeInBytes);
+	ctx->outArrFloatL = (jfloat*) malloc(ctx->fftSizeInBytes);
+	ctx->outArrFloatR = (jfloat*) malloc(ctx->fftSizeInBytes);
+	if (ctx->inArrFloat == NULL || ctx->outArrFloatL == NULL || ctx->outArrFloatR == NULL) return false;
 
 	// set input array to zeros, so that the untouched part at the end (fft padding) is all zeros
 	// (just to be sure...)
-	memset(inArrFloat, 0, fftSizeInBytes);
+	memset(ctx->inArrFloat, 0, ctx->fftSizeInBytes);
 
 	// alloc audio mixing and crossfade save buffer
-	audioMixAndFadeBufferL = (jfloat*) malloc(audioMixAndFadeBufferSizeInBytes);
-	audioMixAndFadeBufferR = (jfloat*) malloc(audioMixAndFadeBufferSizeInBytes);
-	if (audioMixAndFadeBufferL == NULL || audioMixAndFadeBufferR == NULL) return -1;
-	crossfadeSaveBufferL = (jfloat*) malloc(crossfadeOverlapInBytes);
-	crossfadeSaveBufferR = (jfloat*) malloc(crossfadeOverlapInBytes);
-	if (crossfadeSaveBufferL == NULL || crossfadeSaveBufferR == NULL) return -1;
+	ctx->audioMixAndFadeBufferL = (jfloat*) malloc(ctx->audioMixAndFadeBufferSizeInBytes);
+	ctx->audioMixAndFadeBufferR = (jfloat*) malloc(ctx->audioMixAndFadeBufferSizeInBytes);
+	if (ctx->audioMixAndFadeBufferL == NULL || ctx->audioMixAndFadeBufferR == NULL) return false;
+	ctx->crossfadeSaveBufferL = (jfloat*) malloc(ctx->crossfadeOverlapInBytes);
+	ctx->crossfadeSaveBufferR = (jfloat*) malloc(ctx->crossfadeOverlapInBytes);
+	if (ctx->crossfadeSaveBufferL == NULL || ctx->crossfadeSaveBufferR == NULL) return false;
 
 	// set audio mix buffers to zeros
 	// (they are reset each run, but before that the crossfade save
 	// buffers are copied from there - run 0 would be undefinded)
-	memset(audioMixAndFadeBufferL, 0, audioMixAndFadeBufferSizeInBytes);
-	memset(audioMixAndFadeBufferR, 0, audioMixAndFadeBufferSizeInBytes);
+	memset(ctx->audioMixAndFadeBufferL, 0, ctx->audioMixAndFadeBufferSizeInBytes);
+	memset(ctx->audioMixAndFadeBufferR, 0, ctx->audioMixAndFadeBufferSizeInBytes);
+
+	// alloc spectral mixing buffers (real fft, so only half of the bins)
+	ctx->mixSpectrumL = (kiss_fft_cpx*) calloc(ctx->fftSizeInSamples / 2 + 1, sizeof(kiss_fft_cpx));
+	ctx->mixSpectrumR = (kiss_fft_cpx*) calloc(ctx->fftSizeInSamples / 2 + 1, sizeof(kiss_fft_cpx));
+	if (ctx->mixSpectrumL == NULL || ctx->mixSpectrumR == NULL) return false;
+	ctx->mixSpectrumUsed = false;
 
 	// alloc and init crossfade lookup tables
-	crossfadeInTable = (jfloat*) malloc(crossfadeOverlapInBytes);
-	crossfadeOutTable = (jfloat*) malloc(crossfadeOverlapInBytes);
-	if (crossfadeInTable == NULL || crossfadeOutTable == NULL) return -1;
-	for (int i = 0; i < crossfadeOverlapInSamples; ++i) { // cosine
-		crossfadeOutTable[i] = cos((float) i / (float) (crossfadeOverlapInSamples - 1) * M_PI) / 2.0f + 0.5f;
-		crossfadeInTable[i] = 1.0f - crossfadeOutTable[i];
+	ctx->crossfadeInTable = (jfloat*) malloc(ctx->crossfadeOverlapInBytes);
+	ctx->crossfadeOutTable = (jfloat*) malloc(ctx->crossfadeOverlapInBytes);
+	if (ctx->crossfadeInTable == NULL || ctx->crossfadeOutTable == NULL) return false;
+	for (int i = 0; i < ctx->crossfadeOverlapInSamples; ++i) { // cosine
+		ctx->crossfadeOutTable[i] = cos((float) i / (float) (ctx->crossfadeOverlapInSamples - 1) * M_PI) / 2.0f + 0.5f;
+		ctx->crossfadeInTable[i] = 1.0f - ctx->crossfadeOutTable[i];
 	}
 	// TODO remove
-	/*for (int i = 0; i < crossfadeOverlapInSamples; ++i) {	//linear
-		crossfadeOutTable[i] = 1.0f - ((float) i / (float) (crossfadeOverlapInSamples - 1));
-		crossfadeInTable[i] = 1.0f - crossfadeOutTable[i];
+	/*for (int i = 0; i < ctx->crossfadeOverlapInSamples; ++i) {	//linear
+		ctx->crossfadeOutTable[i] = 1.0f - ((float) i / (float) (ctx->crossfadeOverlapInSamples - 1));
+		ctx->crossfadeInTable[i] = 1.0f - ctx->crossfadeOutTable[i];
 	}*/
 
+	return true;
+}
+
+JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeKissfftCreate(JNIEnv *env, jobject thiz, jobjectArray hrirsL,
+		jobjectArray hrirsR, jint fftSize, jint crossfadeOverlapSize, jint fftPaddingSize) {
+	jint numHrirs, numCoeffFrames;
+	jfloat *coeffsArrL = NULL;
+	jfloat *coeffsArrR = NULL;
+	FirFilterContext *ctx;
+
+	// get hrirs
+	if (!copyHrirs(env, hrirsL, hrirsR, &coeffsArrL, &coeffsArrR, &numHrirs, &numCoeffFrames)) return 0;
+
+	ctx = newContext(ENGINE_SINGLE_FFT, 0);
+	if (ctx == NULL) {
+		free(coeffsArrL);
+		free(coeffsArrR);
+		return 0;
+	}
+
+	// init kissfft fastfir
+	size_t kissFftSizeL = fftSize;
+	size_t kissFftSizeR = fftSize;
+	ctx->cfgL = kiss_fastfir_alloc(coeffsArrL, numHrirs, numCoeffFrames, &kissFftSizeL, 0, 0);
+	ctx->cfgR = kiss_fastfir_alloc(coeffsArrR, numHrirs, numCoeffFrames, &kissFftSizeR, 0, 0);
+
+	// free temporary native hrir arrays
+	free(coeffsArrL);
+	free(coeffsArrR);
+
+	if (ctx->cfgL == NULL || ctx->cfgR == NULL || kissFftSizeL != fftSize || kissFftSizeR != fftSize
+			|| !setupBuffers(ctx, fftSize, numCoeffFrames - 1, crossfadeOverlapSize, fftPaddingSize)) {
+		freeContext(ctx);
+		return 0;
+	}
+
 	// ready to go
-	filterInitialized = true;
-	return 0;
+	return (jlong) (intptr_t) ctx;
 }
 
-JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftDestroy(JNIEnv *env, jobject thiz) {
-	freeMem();
-	filterInitialized = false;
-	return 0;
+JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativePartitionedCreate(JNIEnv *env, jobject thiz, jobjectArray hrirsL,
+		jobjectArray hrirsR, jint fftSize, jint partitionSize, jint crossfadeOverlapSize, jint fftPaddingSize, jint numSources) {
+	jint numHrirs, numCoeffFrames;
+	jfloat *coeffsArrL = NULL;
+	jfloat *coeffsArrR = NULL;
+	FirFilterContext *ctx;
+
+	// get hrirs
+	if (!copyHrirs(env, hrirsL, hrirsR, &coeffsArrL, &coeffsArrR, &numHrirs, &numCoeffFrames)) return 0;
+
+	ctx = newContext(ENGINE_UNIFORM_PARTITIONED, numSources);
+	if (ctx == NULL) {
+		free(coeffsArrL);
+		free(coeffsArrR);
+		return 0;
+	}
+
+	// init partitioned convolution, every source gets its own frequency-domain delay line
+	ctx->partCfg = partconv_alloc(coeffsArrL, coeffsArrR, numHrirs, numCoeffFrames, fftSize, partitionSize,
+			numSources > 0 ? numSources : 1);
+
+	// free temporary native hrir arrays
+	free(coeffsArrL);
+	free(coeffsArrR);
+
+	// the input overlap is just one partition, not the whole filter
+	if (ctx->partCfg == NULL || !setupBuffers(ctx, fftSize, partitionSize - 1, crossfadeOverlapSize, fftPaddingSize)) {
+		freeContext(ctx);
+		return 0;
+	}
+	LOGD("uniformly partitioned convolution: %d partitions of %d taps, fft size %d", ctx->partCfg->num_partitions,
+			partitionSize, fftSize);
+
+	// ready to go
+	return (jlong) (intptr_t) ctx;
+}
+
+JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeNonUniformPartitionedCreate(JNIEnv *env, jobject thiz,
+		jobjectArray hrirsL, jobjectArray hrirsR, jint fftSize, jint partitionSize, jint crossfadeOverlapSize,
+		jint fftPaddingSize, jint numSources) {
+	jint numHrirs, numCoeffFrames;
+	jfloat *coeffsArrL = NULL;
+	jfloat *coeffsArrR = NULL;
+	FirFilterContext *ctx;
+
+	// get hrirs
+	if (!copyHrirs(env, hrirsL, hrirsR, &coeffsArrL, &coeffsArrR, &numHrirs, &numCoeffFrames)) return 0;
+
+	ctx = newContext(ENGINE_NON_UNIFORM_PARTITIONED, numSources);
+	if (ctx == NULL) {
+		free(coeffsArrL);
+		free(coeffsArrR);
+		return 0;
+	}
+
+	// init non-uniformly partitioned convolution, head partitions are one processing block long
+	// (partitionSize), input window is the same as with uniform partitioning
+	ctx->nupCfg = nupconv_alloc(coeffsArrL, coeffsArrR, numHrirs, numCoeffFrames, fftSize, partitionSize,
+			fftSize - fftPaddingSize, crossfadeOverlapSize, numSources > 0 ? numSources : 1);
+
+	// free temporary native hrir arrays
+	free(coeffsArrL);
+	free(coeffsArrR);
+
+	if (ctx->nupCfg == NULL || !setupBuffers(ctx, fftSize, partitionSize - 1, crossfadeOverlapSize, fftPaddingSize)) {
+		freeContext(ctx);
+		return 0;
+	}
+	LOGD("non-uniformly partitioned convolution: head of %d partitions of %d taps, fft size %d",
+			ctx->nupCfg->head->num_partitions, partitionSize, fftSize);
+	for (int i = 0; i < ctx->nupCfg->num_tiers; i++) {
+		LOGD("tail tier %d: taps from %d, %d partitions of %d taps, fft size %d", i, ctx->nupCfg->tiers[i].first_frame,
+				ctx->nupCfg->tiers[i].conv->num_partitions, ctx->nupCfg->tiers[i].partition_size, ctx->nupCfg->tiers[i].nfft);
+	}
+
+	// ready to go
+	return (jlong) (intptr_t) ctx;
 }
 
-JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_beginRenderingBlock(JNIEnv *env, jobject thiz) {
+JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeCreateShared(JNIEnv *env, jobject thiz, jlong donorHandle,
+		jint numSources) {
+	FirFilterContext *donor = getContext(donorHandle);
+	FirFilterContext *ctx;
+
+	if (donor == NULL) return 0;
+	ctx = newContext(donor->convolutionEngine, donor->convolutionEngine == ENGINE_SINGLE_FFT ? 0 : numSources);
+	if (ctx == NULL) return 0;
+
+	// same engine and hrtf spectra as the donor (read-only), own input history and buffers
+	if (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED) {
+		ctx->partCfg = partconv_alloc_shared(donor->partCfg, numSources > 0 ? numSources : 1);
+	} else if (ctx->convolutionEngine == ENGINE_NON_UNIFORM_PARTITIONED) {
+		ctx->nupCfg = nupconv_alloc_shared(donor->nupCfg, numSources > 0 ? numSources : 1);
+	} else {
+		ctx->cfgL = kiss_fastfir_alloc_shared(donor->cfgL);
+		ctx->cfgR = kiss_fastfir_alloc_shared(donor->cfgR);
+	}
+
+	if ((ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED && ctx->partCfg == NULL)
+			|| (ctx->convolutionEngine == ENGINE_NON_UNIFORM_PARTITIONED && ctx->nupCfg == NULL)
+			|| (ctx->convolutionEngine == ENGINE_SINGLE_FFT && (ctx->cfgL == NULL || ctx->cfgR == NULL))
+			|| !setupBuffers(ctx, donor->fftSizeInSamples, donor->filterOverlapInSamples,
+					donor->crossfadeOverlapInSamples, donor->fftPaddingInSamples)) {
+		freeContext(ctx);
+		return 0;
+	}
+
+	// ready to go
+	return (jlong) (intptr_t) ctx;
+}
+
+// deletes the global references to registered input arrays, freeContext() can't (no JNIEnv)
+void unregisterSourceBuffers(JNIEnv *env, FirFilterContext *ctx) {
+	if (ctx->sourceBuffers == NULL) return;
+	for (int i = 0; i < ctx->numSourceBuffers; i++) {
+		if (ctx->sourceBuffers[i] != NULL) env->DeleteGlobalRef(ctx->sourceBuffers[i]);
+	}
+	free(ctx->sourceBuffers);
+	free(ctx->sourceBufferAddresses);
+	free(ctx->sourceBufferSizes);
+	free(ctx->sourceRenderOrder);
+	ctx->sourceBuffers = NULL;
+	ctx->sourceBufferAddresses = NULL;
+	ctx->sourceBufferSizes = NULL;
+	ctx->sourceRenderOrder = NULL;
+	ctx->numSourceBuffers = 0;
+}
+
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeDestroy(JNIEnv *env, jobject thiz, jlong handle) {
+	FirFilterContext *ctx = getContext(handle);
+	if (ctx == NULL) return;
+	unregisterSourceBuffers(env, ctx);
+	freeContext(ctx);
+}
+
+void beginRenderingBlock(FirFilterContext *ctx) {
 	// save crossfade samples
-	memcpy(crossfadeSaveBufferL, audioMixAndFadeBufferL + (audioMixAndFadeBufferSizeInSamples - crossfadeOverlapInSamples), crossfadeOverlapInBytes);
-	memcpy(crossfadeSaveBufferR, audioMixAndFadeBufferR + (audioMixAndFadeBufferSizeInSamples - crossfadeOverlapInSamples), crossfadeOverlapInBytes);
+	memcpy(ctx->crossfadeSaveBufferL, ctx->audioMixAndFadeBufferL + (ctx->audioMixAndFadeBufferSizeInSamples - ctx->crossfadeOverlapInSamples), ctx->crossfadeOverlapInBytes);
+	memcpy(ctx->crossfadeSaveBufferR, ctx->audioMixAndFadeBufferR + (ctx->audioMixAndFadeBufferSizeInSamples - ctx->crossfadeOverlapInSamples), ctx->crossfadeOverlapInBytes);
 
 	// clear audio mixing buffers
-	memset(audioMixAndFadeBufferL, 0, audioMixAndFadeBufferSizeInBytes);
-	memset(audioMixAndFadeBufferR, 0, audioMixAndFadeBufferSizeInBytes);
+	memset(ctx->audioMixAndFadeBufferL, 0, ctx->audioMixAndFadeBufferSizeInBytes);
+	memset(ctx->audioMixAndFadeBufferR, 0, ctx->audioMixAndFadeBufferSizeInBytes);
+	if (ctx->mixSpectrumUsed) {
+		memset(ctx->mixSpectrumL, 0, (ctx->fftSizeInSamples / 2 + 1) * sizeof(kiss_fft_cpx));
+		memset(ctx->mixSpectrumR, 0, (ctx->fftSizeInSamples / 2 + 1) * sizeof(kiss_fft_cpx));
+		ctx->mixSpectrumUsed = false;
+	}
+	ctx->mixFinished = false;
+}
 
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeBeginRenderingBlock(JNIEnv *env, jobject thiz, jlong handle) {
+	beginRenderingBlock(getContext(handle));
 	return 0;
 }
 
-JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_endRenderingBlock(JNIEnv *env, jobject thiz, jboolean crossfade, jbyteArray out) {
+// scale filtered samples and add to mixing buffer
+void mixOutput(FirFilterContext *ctx, int numGoodSamples, jfloat sampleScaling) {
+	for (int i = 0; i < numGoodSamples; i++) {
+		ctx->audioMixAndFadeBufferL[i] += ctx->outArrFloatL[i] * sampleScaling;
+		ctx->audioMixAndFadeBufferR[i] += ctx->outArrFloatR[i] * sampleScaling;
+	}
+}
+
+// transform spectrally mixed sources back and add them to mixing buffer
+void mixSpectrumToOutput(FirFilterContext *ctx) {
+	if (ctx->convolutionEngine == ENGINE_SINGLE_FFT) {
+		fastconv_inverse(ctx->cfgL, ctx->mixSpectrumL, (kffsamp_t*)ctx->outArrFloatL);
+		fastconv_inverse(ctx->cfgR, ctx->mixSpectrumR, (kffsamp_t*)ctx->outArrFloatR);
+	} else {
+		partconv_cfg cfg = (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED) ? ctx->partCfg : ctx->nupCfg->head;
+		partconv_inverse(cfg, ctx->mixSpectrumL, ctx->outArrFloatL);
+		partconv_inverse(cfg, ctx->mixSpectrumR, ctx->outArrFloatR);
+	}
+	mixOutput(ctx, ctx->audioMixAndFadeBufferSizeInSamples, 1.0f);
+}
+
+// completes the block's mix in the mixing buffers, only once per block
+void finishMix(FirFilterContext *ctx) {
+	if (ctx->mixFinished) return;
+
+	// one inverse fft per ear for all sources
+	if (ctx->mixSpectrumUsed)
+		mixSpectrumToOutput(ctx);
+
+	// add tail of non-uniformly partitioned convolution (before crossfade, the tail is continuous
+	// over blocks, so crossfading it with itself leaves it untouched)
+	if (ctx->convolutionEngine == ENGINE_NON_UNIFORM_PARTITIONED)
+		nupconv_end_block(ctx->nupCfg, ctx->audioMixAndFadeBufferL, ctx->audioMixAndFadeBufferR);
+
+	ctx->mixFinished = true;
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeFinishMix(JNIEnv *env, jobject thiz, jlong handle) {
+	finishMix(getContext(handle));
+	return 0;
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeAddMix(JNIEnv *env, jobject thiz, jlong handle, jlong otherHandle) {
+	FirFilterContext *ctx = getContext(handle);
+	FirFilterContext *other = getContext(otherHandle);
+
+	if (ctx->audioMixAndFadeBufferSizeInSamples != other->audioMixAndFadeBufferSizeInSamples) return -1;
+
+	// other context's sources are mixed completely, its crossfade and output are never used
+	finishMix(other);
+	for (int i = 0; i < ctx->audioMixAndFadeBufferSizeInSamples; i++) {
+		ctx->audioMixAndFadeBufferL[i] += other->audioMixAndFadeBufferL[i];
+		ctx->audioMixAndFadeBufferR[i] += other->audioMixAndFadeBufferR[i];
+	}
+	return 0;
+}
+
+// memory of a direct buffer of at least minSizeInBytes, NULL if it is no direct buffer or too small
+void * getDirectBuffer(JNIEnv *env, jobject buffer, jlong minSizeInBytes) {
+	if (buffer == NULL) return NULL;
+	void *address = env->GetDirectBufferAddress(buffer);
+	if (address == NULL || env->GetDirectBufferCapacity(buffer) < minSizeInBytes) return NULL;
+	return address;
+}
+
+// one input window of float samples
+static inline jlong getInputSizeInBytes(FirFilterContext *ctx) {
+	return (ctx->fftSizeInSamples - ctx->fftPaddingInSamples) * sizeof(jfloat);
+}
+
+jint endRenderingBlock(JNIEnv *env, FirFilterContext *ctx, jboolean crossfade, jobject out) {
+	jfloat *mixL = ctx->audioMixAndFadeBufferL;
+	jfloat *mixR = ctx->audioMixAndFadeBufferR;
 	jshort *outArr;
 
+	finishMix(ctx);
+
 	// TODO delete
 	// duplicate L channel to R for x-fade testing
-	//memcpy(audioMixAndFadeBufferR, audioMixAndFadeBufferL, audioMixAndFadeBufferSizeInBytes);
+	//memcpy(mixR, mixL, ctx->audioMixAndFadeBufferSizeInBytes);
 
 	// do crossfade
 	if (crossfade) {
-		for (int i = 0; i < crossfadeOverlapInSamples; ++i) {
-			audioMixAndFadeBufferL[i] = crossfadeInTable[i] * audioMixAndFadeBufferL[i] + crossfadeOutTable[i] * crossfadeSaveBufferL[i];
-			audioMixAndFadeBufferR[i] = crossfadeInTable[i] * audioMixAndFadeBufferR[i] + crossfadeOutTable[i] * crossfadeSaveBufferR[i];
+		for (int i = 0; i < ctx->crossfadeOverlapInSamples; ++i) {
+			mixL[i] = ctx->crossfadeInTable[i] * mixL[i] + ctx->crossfadeOutTable[i] * ctx->crossfadeSaveBufferL[i];
+			mixR[i] = ctx->crossfadeInTable[i] * mixR[i] + ctx->crossfadeOutTable[i] * ctx->crossfadeSaveBufferR[i];
 		}
 	}
 
-	// mount output array
-	outArr = (jshort*) env->GetPrimitiveArrayCritical(out, NULL);
+	// output is written straight into the direct buffer (stereo)
+	outArr = (jshort*) getDirectBuffer(env, out, (ctx->audioMixAndFadeBufferSizeInSamples - ctx->crossfadeOverlapInSamples) * 4);
 	if (outArr == NULL) return -1;
 
 	// convert final mixed and crossfaded output to short
-	for (int i = 0, j = 0; i < audioMixAndFadeBufferSizeInSamples - crossfadeOverlapInSamples; i++, j += 2) {
+	for (int i = 0, j = 0; i < ctx->audioMixAndFadeBufferSizeInSamples - ctx->crossfadeOverlapInSamples; i++, j += 2) {
 		// using min/max check instead of just converting like this:
-		//outArr[j] = (jshort) (audioMixAndFadeBufferL[i]);
-		//outArr[j+1] = (jshort) (audioMixAndFadeBufferR[i]);
-		outArr[j] = (audioMixAndFadeBufferL[i] > SHRT_MAX_FLOAT) ? SHRT_MAX : ((audioMixAndFadeBufferL[i] < SHRT_MIN_FLOAT) ? SHRT_MIN : (jshort) audioMixAndFadeBufferL[i]);
-		outArr[j+1] = (audioMixAndFadeBufferR[i] > SHRT_MAX_FLOAT) ? SHRT_MAX : ((audioMixAndFadeBufferR[i] < SHRT_MIN_FLOAT) ? SHRT_MIN : (jshort) audioMixAndFadeBufferR[i]);
+		//outArr[j] = (jshort) (mixL[i]);
+		//outArr[j+1] = (jshort) (mixR[i]);
+		outArr[j] = (mixL[i] > SHRT_MAX_FLOAT) ? SHRT_MAX : ((mixL[i] < SHRT_MIN_FLOAT) ? SHRT_MIN : (jshort) mixL[i]);
+		outArr[j+1] = (mixR[i] > SHRT_MAX_FLOAT) ? SHRT_MAX : ((mixR[i] < SHRT_MIN_FLOAT) ? SHRT_MIN : (jshort) mixR[i]);
 	}
 
-	// unmount output array
-	env->ReleasePrimitiveArrayCritical(out, outArr, 0);
-
 	return 0;
 }
 
-JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftFilter(JNIEnv *env, jobject thiz, jbyteArray in, jint hrtfIndex, jfloat sampleScaling) {
-	jshort *inArr;
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeEndRenderingBlock(JNIEnv *env, jobject thiz, jlong handle,
+		jboolean crossfade, jobject out) {
+	return endRenderingBlock(env, getContext(handle), crossfade, out);
+}
+
+// copies the input window (already converted to float by the java side), fft padding at the end of the float array
+// stays untouched. the input buffer is circular: the window starts at sample inStart and wraps around at the buffer's end
+// (inSize samples, at least one window).
+void readInput(FirFilterContext *ctx, const jfloat *inArr, jint inStart, jint inSize) {
+	jint windowSize = ctx->fftSizeInSamples - ctx->fftPaddingInSamples;
+	jint firstSegmentSize = (inSize - inStart < windowSize) ? inSize - inStart : windowSize;
+
+	memcpy(ctx->inArrFloat, inArr + inStart, firstSegmentSize * sizeof(jfloat));
+	memcpy(ctx->inArrFloat + firstSegmentSize, inArr, (windowSize - firstSegmentSize) * sizeof(jfloat));
+}
+
+// sharedInput: the input spectrum of the previous accumulated source is reused (only with spectral mixing)
+jint filterSingleFft(FirFilterContext *ctx, jint hrtfIndex, jfloat sampleScaling, bool sharedInput) {
+	// set hrtfs to be used by convolution
+	ctx->cfgL->current_fir_freq_resp = hrtfIndex;
+	ctx->cfgR->current_fir_freq_resp = hrtfIndex;
+
+	int numGoodSamples = ctx->cfgL->ngood - ctx->fftPaddingInSamples;
 
-	// check if setup was done
-	if (!filterInitialized) return -1;
+	// do convolution
+	// input and output arrays have to have same size (although last samples of output are garbage)
+	if (ctx->spectralMixing) {
+		// output is transformed back in endRenderingBlock()
+		if (sharedInput)
+			fastconv_stereo_accumulate_shared(ctx->cfgL, ctx->cfgR, sampleScaling, ctx->mixSpectrumL, ctx->mixSpectrumR);
+		else
+			fastconv1buf_stereo_accumulate(ctx->cfgL, ctx->cfgR, (kffsamp_t*)ctx->inArrFloat, sampleScaling,
+					ctx->mixSpectrumL, ctx->mixSpectrumR);
+		ctx->mixSpectrumUsed = true;
+		return (numGoodSamples != ctx->audioMixAndFadeBufferSizeInSamples) ? -1 : numGoodSamples;
+	} else if (ctx->sharedInputFft) {
+		fastconv1buf_stereo(ctx->cfgL, ctx->cfgR, (kffsamp_t*)ctx->inArrFloat, (kffsamp_t*)ctx->outArrFloatL,
+				(kffsamp_t*)ctx->outArrFloatR);
+	} else {
+		fastconv1buf(ctx->cfgL, (kffsamp_t*)ctx->inArrFloat, (kffsamp_t*)ctx->outArrFloatL);	// left
+		fastconv1buf(ctx->cfgR, (kffsamp_t*)ctx->inArrFloat, (kffsamp_t*)ctx->outArrFloatR);	// right
+	}
+
+	mixOutput(ctx, numGoodSamples, sampleScaling);
+
+	if (numGoodSamples != ctx->audioMixAndFadeBufferSizeInSamples) return -1;
+	else return numGoodSamples;
+}
+
+// shareFrom: source whose input spectrum is reused (see filterSource()), -1: none
+jint filterPartitioned(FirFilterContext *ctx, jint sourceIndex, jint hrtfIndex, jfloat sampleScaling, jint shareFrom) {
+	if (sourceIndex < 0 || sourceIndex >= ctx->numSources || shareFrom >= ctx->numSources) return -1;
+
+	if (ctx->spectralMixing) {
+		// output is transformed back in endRenderingBlock()
+		if (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED) {
+			if (shareFrom >= 0)
+				partconv_accumulate_shared(ctx->partCfg, sourceIndex, shareFrom, hrtfIndex, sampleScaling, ctx->mixSpectrumL, ctx->mixSpectrumR);
+			else
+				partconv_accumulate(ctx->partCfg, sourceIndex, ctx->inArrFloat, hrtfIndex, sampleScaling, ctx->mixSpectrumL, ctx->mixSpectrumR);
+		} else {
+			if (shareFrom >= 0)
+				nupconv_accumulate_shared(ctx->nupCfg, sourceIndex, shareFrom, ctx->inArrFloat, hrtfIndex, sampleScaling, ctx->mixSpectrumL, ctx->mixSpectrumR);
+			else
+				nupconv_accumulate(ctx->nupCfg, sourceIndex, ctx->inArrFloat, hrtfIndex, sampleScaling, ctx->mixSpectrumL, ctx->mixSpectrumR);
+		}
+		ctx->mixSpectrumUsed = true;
+		return ctx->audioMixAndFadeBufferSizeInSamples;
+	}
 
-	// mount input array
-	inArr = (jshort*) env->GetPrimitiveArrayCritical(in, NULL);
+	if (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED) {
+		if (shareFrom >= 0)
+			partconv_process_shared(ctx->partCfg, sourceIndex, shareFrom, hrtfIndex, ctx->outArrFloatL, ctx->outArrFloatR);
+		else
+			partconv_process(ctx->partCfg, sourceIndex, ctx->inArrFloat, hrtfIndex, ctx->outArrFloatL, ctx->outArrFloatR);
+	} else {
+		if (shareFrom >= 0)
+			nupconv_process_shared(ctx->nupCfg, sourceIndex, shareFrom, ctx->inArrFloat, hrtfIndex, sampleScaling, ctx->outArrFloatL, ctx->outArrFloatR);
+		else
+			nupconv_process(ctx->nupCfg, sourceIndex, ctx->inArrFloat, hrtfIndex, sampleScaling, ctx->outArrFloatL, ctx->outArrFloatR);
+	}
+	mixOutput(ctx, ctx->audioMixAndFadeBufferSizeInSamples, sampleScaling);
+	return ctx->audioMixAndFadeBufferSizeInSamples;
+}
+
+// shareFrom: source filtered right before this one with the same input window, its input is not read and transformed
+// again (the input window is still in inArrFloat). -1: none.
+jint filterSource(FirFilterContext *ctx, const jfloat *in, jint inStart, jint inSize, jint sourceIndex, jint hrtfIndex,
+		jfloat sampleScaling, jint shareFrom) {
+	if (inStart < 0 || inStart >= inSize) return -1;
+	if (shareFrom < 0) readInput(ctx, in, inStart, inSize);
+
+	if (ctx->convolutionEngine == ENGINE_SINGLE_FFT)
+		return filterSingleFft(ctx, hrtfIndex, sampleScaling, shareFrom >= 0);
+	else
+		return filterPartitioned(ctx, sourceIndex, hrtfIndex, sampleScaling, shareFrom);
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeFilter(JNIEnv *env, jobject thiz, jlong handle, jobject in,
+		jint inStart, jint sourceIndex, jint hrtfIndex, jfloat sampleScaling) {
+	FirFilterContext *ctx = getContext(handle);
+	jfloat *inArr = (jfloat*) getDirectBuffer(env, in, getInputSizeInBytes(ctx));
 	if (inArr == NULL) return -1;
+	jint inSize = (jint) (env->GetDirectBufferCapacity(in) / sizeof(jfloat));
+	return filterSource(ctx, inArr, inStart, inSize, sourceIndex, hrtfIndex, sampleScaling, -1);
+}
+
+jint skipSource(FirFilterContext *ctx, jint sourceIndex) {
+	// partitioned convolution has to keep the source's delay line in sync
+	if (ctx->convolutionEngine != ENGINE_SINGLE_FFT && (sourceIndex < 0 || sourceIndex >= ctx->numSources)) return -1;
+	if (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED)
+		partconv_skip(ctx->partCfg, sourceIndex);
+	else if (ctx->convolutionEngine == ENGINE_NON_UNIFORM_PARTITIONED)
+		nupconv_skip(ctx->nupCfg, sourceIndex);
+	return 0;
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSkipSource(JNIEnv *env, jobject thiz, jlong handle, jint sourceIndex) {
+	return skipSource(getContext(handle), sourceIndex);
+}
 
-	// convert input to float
-	for (int i = 0; i < fftSizeInSamples - fftPaddingInSamples; i++) {
-		inArrFloat[i] = (jfloat) inArr[i];
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRegisterSourceBuffers(JNIEnv *env, jobject thiz, jlong handle,
+		jobjectArray inputs, jintArray sourceIndices) {
+	FirFilterContext *ctx = getContext(handle);
+	jint numBuffers = env->GetArrayLength(sourceIndices);
+	jint numInputs = env->GetArrayLength(inputs);
+	jint numParams = 0;
+
+	unregisterSourceBuffers(env, ctx);
+	if (ctx->convolutionEngine != ENGINE_SINGLE_FFT && numBuffers > ctx->numSources) return -1;
+
+	// registered buffer i is rendered as source i of this context
+	// (one element more than needed, so nothing is allocated with size 0)
+	free(ctx->sourceBufferIndices);
+	ctx->sourceBufferIndices = (jint*) calloc(numBuffers + 1, sizeof(jint));
+	ctx->sourceBuffers = (jobject*) calloc(numBuffers + 1, sizeof(jobject));
+	ctx->sourceBufferAddresses = (jfloat**) calloc(numBuffers + 1, sizeof(jfloat*));
+	ctx->sourceBufferSizes = (jint*) calloc(numBuffers + 1, sizeof(jint));
+	ctx->sourceRenderOrder = (jint*) calloc(numBuffers + 1, sizeof(jint));
+	if (ctx->sourceBufferIndices == NULL || ctx->sourceBuffers == NULL || ctx->sourceBufferAddresses == NULL
+			|| ctx->sourceBufferSizes == NULL || ctx->sourceRenderOrder == NULL) {
+		unregisterSourceBuffers(env, ctx);
+		return -1;
+	}
+	env->GetIntArrayRegion(sourceIndices, 0, numBuffers, ctx->sourceBufferIndices);
+	ctx->numSourceBuffers = numBuffers;
+	for (int i = 0; i < numBuffers; i++) {
+		jint index = ctx->sourceBufferIndices[i];
+		jobject buffer = (index >= 0 && index < numInputs) ? env->GetObjectArrayElement(inputs, index) : NULL;
+		jfloat *address = (jfloat*) getDirectBuffer(env, buffer, getInputSizeInBytes(ctx));
+		if (address == NULL) {
+			if (buffer != NULL) env->DeleteLocalRef(buffer);
+			unregisterSourceBuffers(env, ctx);
+			return -1;
+		}
+		// the global reference keeps the buffer's memory alive while it is registered
+		ctx->sourceBuffers[i] = env->NewGlobalRef(buffer);
+		ctx->sourceBufferAddresses[i] = address;
+		ctx->sourceBufferSizes[i] = (jint) (env->GetDirectBufferCapacity(buffer) / sizeof(jfloat));
+		env->DeleteLocalRef(buffer);
+		if (index >= numParams) numParams = index + 1;
 	}
 
-	// unmount input array
-	env->ReleasePrimitiveArrayCritical(in, inArr, JNI_ABORT);
+	// sources playing from the same buffer are rendered one after another, so they can share their input's transform.
+	// others keep their order (and so the order of mixing).
+	jint numOrdered = 0;
+	for (int i = 0; i < numBuffers; i++) {
+		bool ordered = false;
+		for (int j = 0; j < i && !ordered; j++)
+			ordered = (ctx->sourceBufferAddresses[j] == ctx->sourceBufferAddresses[i]);
+		if (ordered) continue;
+		for (int j = i; j < numBuffers; j++) {
+			if (ctx->sourceBufferAddresses[j] == ctx->sourceBufferAddresses[i])
+				ctx->sourceRenderOrder[numOrdered++] = j;
+		}
+	}
 
-	// set hrtfs to be used by convolution
-	cfgL->current_fir_freq_resp = hrtfIndex;
-	cfgR->current_fir_freq_resp = hrtfIndex;
+	// room to copy the per block parameters
+	free(ctx->blockHrtfIndices);
+	free(ctx->blockInputStarts);
+	free(ctx->blockSampleScalings);
+	ctx->blockHrtfIndices = (jint*) calloc(numParams + 1, sizeof(jint));
+	ctx->blockInputStarts = (jint*) calloc(numParams + 1, sizeof(jint));
+	ctx->blockSampleScalings = (jfloat*) calloc(numParams + 1, sizeof(jfloat));
+	ctx->numBlockParams = numParams;
+	if (ctx->blockHrtfIndices == NULL || ctx->blockInputStarts == NULL || ctx->blockSampleScalings == NULL) {
+		unregisterSourceBuffers(env, ctx);
+		return -1;
+	}
 
-	// do convolution
-	// input and output arrays have to have same size (although last samples of output are garbage)
-	fastconv1buf(cfgL, (kffsamp_t*)inArrFloat, (kffsamp_t*)outArrFloatL);	// left
-	fastconv1buf(cfgR, (kffsamp_t*)inArrFloat, (kffsamp_t*)outArrFloatR);	// right
+	return 0;
+}
 
-	int numGoodSamples = cfgL->ngood - fftPaddingInSamples;
-	// scale samples and add to mixing buffer
-	for (int i = 0; i < numGoodSamples; i++) {
-		audioMixAndFadeBufferL[i] += outArrFloatL[i] * sampleScaling;
-		audioMixAndFadeBufferR[i] += outArrFloatR[i] * sampleScaling;
+// renders all registered sources, a negative hrtf index marks a muted source
+jint renderSources(JNIEnv *env, FirFilterContext *ctx, jintArray hrtfIndices, jintArray inputStarts,
+		jfloatArray sampleScalings) {
+	jint result = 0;
+
+	if (ctx->sourceBuffers == NULL || env->GetArrayLength(hrtfIndices) < ctx->numBlockParams
+			|| env->GetArrayLength(inputStarts) < ctx->numBlockParams
+			|| env->GetArrayLength(sampleScalings) < ctx->numBlockParams) return -1;
+	env->GetIntArrayRegion(hrtfIndices, 0, ctx->numBlockParams, ctx->blockHrtfIndices);
+	env->GetIntArrayRegion(inputStarts, 0, ctx->numBlockParams, ctx->blockInputStarts);
+	env->GetFloatArrayRegion(sampleScalings, 0, ctx->numBlockParams, ctx->blockSampleScalings);
+
+	// the single fft engine only keeps the input spectrum when mixing spectrally
+	bool canShareInput = (ctx->convolutionEngine != ENGINE_SINGLE_FFT || ctx->spectralMixing);
+	jint previous = -1;	// source filtered right before
+	beginRenderingBlock(ctx);
+	for (int k = 0; k < ctx->numSourceBuffers; k++) {
+		jint i = ctx->sourceRenderOrder[k];
+		jint index = ctx->sourceBufferIndices[i];
+		jint hrtfIndex = ctx->blockHrtfIndices[index];
+		if (hrtfIndex < 0) {
+			skipSource(ctx, i);
+			previous = -1;
+			continue;
+		}
+
+		// same buffer and window as the previous source (several sources playing the same file): reuse its input fft
+		jint shareFrom = (canShareInput && previous >= 0
+				&& ctx->sourceBufferAddresses[previous] == ctx->sourceBufferAddresses[i]
+				&& ctx->blockInputStarts[ctx->sourceBufferIndices[previous]] == ctx->blockInputStarts[index]) ? previous : -1;
+		if (filterSource(ctx, ctx->sourceBufferAddresses[i], ctx->blockInputStarts[index], ctx->sourceBufferSizes[i],
+				i, hrtfIndex, ctx->blockSampleScalings[index], shareFrom) == -1) {
+			result = -1;
+		}
+		previous = i;
 	}
+	return result;
+}
 
-	if (numGoodSamples != audioMixAndFadeBufferSizeInSamples) return -1;
-	else return numGoodSamples;
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRenderSources(JNIEnv *env, jobject thiz, jlong handle,
+		jintArray hrtfIndices, jintArray inputStarts, jfloatArray sampleScalings) {
+	FirFilterContext *ctx = getContext(handle);
+	jint result = renderSources(env, ctx, hrtfIndices, inputStarts, sampleScalings);
+	finishMix(ctx);
+	return result;
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRenderBlock(JNIEnv *env, jobject thiz, jlong handle,
+		jintArray hrtfIndices, jintArray inputStarts, jfloatArray sampleScalings, jboolean crossfade, jobject out) {
+	FirFilterContext *ctx = getContext(handle);
+	jint result = renderSources(env, ctx, hrtfIndices, inputStarts, sampleScalings);
+	if (endRenderingBlock(env, ctx, crossfade, out) == -1) return -1;
+	return result;
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeResetSources(JNIEnv *env, jobject thiz, jlong handle) {
+	FirFilterContext *ctx = getContext(handle);
+
+	// forget all past input (only partitioned convolution keeps any)
+	if (ctx->convolutionEngine == ENGINE_UNIFORM_PARTITIONED)
+		partconv_reset(ctx->partCfg);
+	else if (ctx->convolutionEngine == ENGINE_NON_UNIFORM_PARTITIONED)
+		nupconv_reset(ctx->nupCfg);
+	return 0;
+}
+
+JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeGetBackgroundCpuTime(JNIEnv *env, jobject thiz, jlong handle) {
+	FirFilterContext *ctx = getContext(handle);
+	if (ctx->convolutionEngine != ENGINE_NON_UNIFORM_PARTITIONED) return 0;
+	return nupconv_get_worker_cpu_time(ctx->nupCfg);
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeGetNumDeadlineMisses(JNIEnv *env, jobject thiz, jlong handle) {
+	FirFilterContext *ctx = getContext(handle);
+	if (ctx->convolutionEngine != ENGINE_NON_UNIFORM_PARTITIONED) return 0;
+	return nupconv_get_num_deadline_misses(ctx->nupCfg);
+}
+
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSetSharedInputFft(JNIEnv *env, jobject thiz, jlong handle, jboolean enable) {
+	getContext(handle)->sharedInputFft = enable;
+}
+
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSetSpectralMixing(JNIEnv *env, jobject thiz, jlong handle, jboolean enable) {
+	getContext(handle)->spectralMixing = enable;
 }
 
 JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_jniNanoTime(JNIEnv *env, jobject thiz) {
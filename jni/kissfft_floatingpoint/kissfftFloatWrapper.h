@@ -22,6 +22,8 @@ SOFTWARE.
 
 #include <jni.h>
 #include "kiss_fastfir.h"
+#include "partconv.h"
+#include "nupconv.h"
 
 #ifndef __KISSFFT_WRAPPER_H__
 #define __KISSFFT_WRAPPER_H__
@@ -32,13 +34,39 @@ SOFTWARE.
 extern "C" { 
 #endif
 	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_getCpuId(JNIEnv *env, jobject thiz);
-	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftCreate(JNIEnv *env, jobject thiz,
+	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeKissfftCreate(JNIEnv *env, jobject thiz,
 			jobjectArray hrirsL, jobjectArray hrirsR, jint fftSize,	jint crossfadeOverlapSize, jint fftPaddingSize);
-	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftDestroy(JNIEnv *env, jobject thiz);
-	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_beginRenderingBlock(JNIEnv *env, jobject thiz);
-	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_endRenderingBlock(JNIEnv *env, jobject thiz, jboolean crossfade, jbyteArray out);
-	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_kissfftFilter(JNIEnv *env, jobject thiz, jbyteArray in,
-			jint hrtfIndex, jfloat sampleScaling);
+	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativePartitionedCreate(JNIEnv *env, jobject thiz,
+			jobjectArray hrirsL, jobjectArray hrirsR, jint fftSize, jint partitionSize, jint crossfadeOverlapSize,
+			jint fftPaddingSize, jint numSources);
+	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeNonUniformPartitionedCreate(JNIEnv *env, jobject thiz,
+			jobjectArray hrirsL, jobjectArray hrirsR, jint fftSize, jint partitionSize, jint crossfadeOverlapSize,
+			jint fftPaddingSize, jint numSources);
+	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeCreateShared(JNIEnv *env, jobject thiz, jlong donorHandle,
+			jint numSources);
+	JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeDestroy(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeBeginRenderingBlock(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeFinishMix(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeAddMix(JNIEnv *env, jobject thiz, jlong handle,
+			jlong otherHandle);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeEndRenderingBlock(JNIEnv *env, jobject thiz, jlong handle,
+			jboolean crossfade, jobject out);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeFilter(JNIEnv *env, jobject thiz, jlong handle, jobject in,
+			jint inStart, jint sourceIndex, jint hrtfIndex, jfloat sampleScaling);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSkipSource(JNIEnv *env, jobject thiz, jlong handle, jint sourceIndex);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRegisterSourceBuffers(JNIEnv *env, jobject thiz, jlong handle,
+			jobjectArray inputs, jintArray sourceIndices);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRenderSources(JNIEnv *env, jobject thiz, jlong handle,
+			jintArray hrtfIndices, jintArray inputStarts, jfloatArray sampleScalings);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeRenderBlock(JNIEnv *env, jobject thiz, jlong handle,
+			jintArray hrtfIndices, jintArray inputStarts, jfloatArray sampleScalings, jboolean crossfade, jobject out);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeResetSources(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeGetBackgroundCpuTime(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeGetNumDeadlineMisses(JNIEnv *env, jobject thiz, jlong handle);
+	JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSetSharedInputFft(JNIEnv *env, jobject thiz, jlong handle,
+			jboolean enable);
+	JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_FirFilter_nativeSetSpectralMixing(JNIEnv *env, jobject thiz, jlong handle,
+			jboolean enable);
 	JNIEXPORT jlong JNICALL Java_net_ptrbrtz_adbs_FirFilter_jniNanoTime(JNIEnv *env, jobject thiz);
 #ifdef __cplusplus 
 } 
@@ -0,0 +1,437 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+#include <time.h>
+#include "nupconv.h"
+#include "_kiss_fft_guts.h"
+
+static long long nupconv_thread_cpu_time(void)
+{
+    struct timespec res;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &res);
+    return 1000000000LL * res.tv_sec + res.tv_nsec;
+}
+
+/* maps a (possibly negative) stream position to a ring index */
+static int nupconv_ring_index(long long pos, int len)
+{
+    int i = (int) (pos % len);
+    return i < 0 ? i + len : i;
+}
+
+static void nupconv_run_job(nupconv_cfg st, struct nupconv_tier *tier, const struct nupconv_job *job)
+{
+    int c, j, r;
+    const int len = tier->partition_size;
+    const int first_good = tier->nfft - 2 * len + 1;	/* result for the last len input samples */
+
+    for (c = 0; c < st->num_channels; c++) {
+        const float gain = job->gain[c];
+        partconv_process(tier->conv, c, job->in + c * tier->nfft, job->imp_resp_index[c], tier->out_l, tier->out_r);
+        r = nupconv_ring_index(job->out_pos, st->out_ring_len);
+        for (j = 0; j < len; j++) {
+            st->out_ring_l[r] += tier->out_l[first_good + j] * gain;
+            st->out_ring_r[r] += tier->out_r[first_good + j] * gain;
+            if (++r == st->out_ring_len) r = 0;
+        }
+    }
+}
+
+static void * nupconv_worker(void *arg)
+{
+    nupconv_cfg st = (nupconv_cfg) arg;
+    struct nupconv_tier *tier;
+    const struct nupconv_job *job;
+    long long t;
+    int i;
+
+    pthread_mutex_lock(&st->mutex);
+    while (!st->quit) {
+        /* earliest deadline first */
+        tier = NULL;
+        for (i = 0; i < st->num_tiers; i++) {
+            struct nupconv_tier *candidate = st->tiers + i;
+            if (candidate->num_started == candidate->num_submitted) continue;
+            if (tier == NULL || candidate->jobs[candidate->num_started % NUPCONV_JOB_SLOTS].deadline_block
+                    < tier->jobs[tier->num_started % NUPCONV_JOB_SLOTS].deadline_block)
+                tier = candidate;
+        }
+        if (tier == NULL) {
+            pthread_cond_wait(&st->work_cond, &st->mutex);
+            continue;
+        }
+
+        job = tier->jobs + (tier->num_started % NUPCONV_JOB_SLOTS);
+        tier->num_started++;
+        pthread_mutex_unlock(&st->mutex);
+
+        t = nupconv_thread_cpu_time();
+        nupconv_run_job(st, tier, job);
+        t = nupconv_thread_cpu_time() - t;
+
+        pthread_mutex_lock(&st->mutex);
+        tier->num_completed++;
+        st->worker_cpu_time += t;
+        pthread_cond_broadcast(&st->done_cond);
+    }
+    pthread_mutex_unlock(&st->mutex);
+
+    return NULL;
+}
+
+/* transforms the impulse responses, or takes the spectra from shared if not NULL */
+static nupconv_cfg nupconv_alloc_internal(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int head_nfft, int block_size, int window_len,
+        int lookahead, int num_channels, const nupconv_cfg shared)
+{
+    nupconv_cfg st;
+    struct nupconv_tier *tier;
+    int s, len, first, next_first, max_len, max_nfft, ok;
+
+    len = 4 * block_size;
+    if (block_size < 1 || num_channels < 1 || window_len < block_size || lookahead < 0
+            || num_imp_resp_frames <= 2 * len)
+        return NULL;
+
+    st = (nupconv_cfg) calloc(1, sizeof(struct nupconv_state));
+    if (!st)
+        return NULL;
+
+    st->block_size = block_size;
+    st->window_len = window_len;
+    st->lookahead = lookahead;
+    st->num_channels = num_channels;
+    st->num_imp_resp_frames = num_imp_resp_frames;
+    ok = 1;
+
+    /* head: uniformly partitioned with one block per partition */
+    if (shared)
+        st->head = partconv_alloc_shared(shared->head, num_channels);
+    else
+        st->head = partconv_alloc_segment(imp_resp_l, imp_resp_r, num_imp_resp, num_imp_resp_frames, 0, 2 * len,
+                head_nfft, block_size, num_channels);
+    if (!st->head) ok = 0;
+
+    /* tail tiers, each partition 4 times as long as the one before */
+    first = 2 * len;
+    max_len = 0;
+    max_nfft = 0;
+    while (ok && first < num_imp_resp_frames && st->num_tiers < NUPCONV_MAX_TIERS) {
+        next_first = 2 * 4 * len;
+        if (next_first >= num_imp_resp_frames || st->num_tiers == NUPCONV_MAX_TIERS - 1)
+            next_first = num_imp_resp_frames;
+
+        tier = st->tiers + st->num_tiers++;
+        tier->partition_size = len;
+        tier->nfft = kiss_fftr_next_fast_size_real(2 * len);
+        tier->first_frame = first;
+        tier->blocks_per_period = len / block_size;
+        if (shared)
+            tier->conv = partconv_alloc_shared(shared->tiers[st->num_tiers - 1].conv, num_channels);
+        else
+            tier->conv = partconv_alloc_segment(imp_resp_l, imp_resp_r, num_imp_resp, num_imp_resp_frames, first,
+                    next_first - first, tier->nfft, len, num_channels);
+        tier->out_l = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * tier->nfft);
+        tier->out_r = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * tier->nfft);
+        if (!tier->conv || !tier->out_l || !tier->out_r) ok = 0;
+        for (s = 0; ok && s < NUPCONV_JOB_SLOTS; s++) {
+            tier->jobs[s].in = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * tier->nfft * num_channels);
+            tier->jobs[s].imp_resp_index = (int*) malloc(sizeof(int) * num_channels);
+            tier->jobs[s].gain = (float*) malloc(sizeof(float) * num_channels);
+            if (!tier->jobs[s].in || !tier->jobs[s].imp_resp_index || !tier->jobs[s].gain) ok = 0;
+        }
+
+        if (len > max_len) max_len = len;
+        if (tier->nfft > max_nfft) max_nfft = tier->nfft;
+        first = next_first;
+        len *= 4;
+    }
+
+    /* input history has to hold the largest tier window plus one block (see nupconv_end_block()),
+       output ring everything between the block being rendered and the end of the latest tier result */
+    st->history_len = (max_nfft > window_len ? max_nfft : window_len) + block_size;
+    st->out_ring_len = 3 * max_len + 2 * block_size + lookahead;
+    if (ok) {
+        st->history = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * st->history_len * num_channels);
+        st->imp_resp_index = (int*) calloc(num_channels, sizeof(int));
+        st->gain = (float*) calloc(num_channels, sizeof(float));
+        st->out_ring_l = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * st->out_ring_len);
+        st->out_ring_r = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * st->out_ring_len);
+        if (!st->history || !st->imp_resp_index || !st->gain || !st->out_ring_l || !st->out_ring_r) ok = 0;
+    }
+
+    pthread_mutex_init(&st->mutex, NULL);
+    pthread_cond_init(&st->work_cond, NULL);
+    pthread_cond_init(&st->done_cond, NULL);
+    if (!ok) {
+        nupconv_free(st);
+        return NULL;
+    }
+
+    nupconv_reset(st);
+
+    if (pthread_create(&st->worker, NULL, nupconv_worker, st) != 0) {
+        nupconv_free(st);
+        return NULL;
+    }
+    st->worker_running = 1;
+
+    return st;
+}
+
+nupconv_cfg nupconv_alloc(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int head_nfft, int block_size, int window_len,
+        int lookahead, int num_channels)
+{
+    return nupconv_alloc_internal(imp_resp_l, imp_resp_r, num_imp_resp, num_imp_resp_frames, head_nfft, block_size,
+            window_len, lookahead, num_channels, NULL);
+}
+
+nupconv_cfg nupconv_alloc_shared(const nupconv_cfg shared, int num_channels)
+{
+    if (!shared)
+        return NULL;
+
+    /* same tier geometry, as it only depends on filter length and block size */
+    return nupconv_alloc_internal(NULL, NULL, shared->head->num_imp_resp, shared->num_imp_resp_frames,
+            shared->head->nfft, shared->block_size, shared->window_len, shared->lookahead, num_channels, shared);
+}
+
+void nupconv_free(nupconv_cfg st)
+{
+    int i, s;
+
+    if (!st)
+        return;
+
+    if (st->worker_running) {
+        pthread_mutex_lock(&st->mutex);
+        st->quit = 1;
+        pthread_cond_signal(&st->work_cond);
+        pthread_mutex_unlock(&st->mutex);
+        pthread_join(st->worker, NULL);
+    }
+    pthread_mutex_destroy(&st->mutex);
+    pthread_cond_destroy(&st->work_cond);
+    pthread_cond_destroy(&st->done_cond);
+
+    partconv_free(st->head);
+    for (i = 0; i < st->num_tiers; i++) {
+        partconv_free(st->tiers[i].conv);
+        free(st->tiers[i].out_l);
+        free(st->tiers[i].out_r);
+        for (s = 0; s < NUPCONV_JOB_SLOTS; s++) {
+            free(st->tiers[i].jobs[s].in);
+            free(st->tiers[i].jobs[s].imp_resp_index);
+            free(st->tiers[i].jobs[s].gain);
+        }
+    }
+    free(st->history);
+    free(st->imp_resp_index);
+    free(st->gain);
+    free(st->out_ring_l);
+    free(st->out_ring_r);
+    free(st);
+}
+
+void nupconv_reset(nupconv_cfg st)
+{
+    int i;
+
+    /* let the worker finish, its results are dropped below */
+    pthread_mutex_lock(&st->mutex);
+    for (i = 0; i < st->num_tiers; i++) {
+        while (st->tiers[i].num_completed < st->tiers[i].num_submitted)
+            pthread_cond_wait(&st->done_cond, &st->mutex);
+    }
+    for (i = 0; i < st->num_tiers; i++) {
+        st->tiers[i].num_submitted = 0;
+        st->tiers[i].num_started = 0;
+        st->tiers[i].num_completed = 0;
+        partconv_reset(st->tiers[i].conv);
+    }
+    pthread_mutex_unlock(&st->mutex);
+
+    partconv_reset(st->head);
+    memset(st->history, 0, sizeof(kiss_fft_scalar) * st->history_len * st->num_channels);
+    memset(st->out_ring_l, 0, sizeof(kiss_fft_scalar) * st->out_ring_len);
+    memset(st->out_ring_r, 0, sizeof(kiss_fft_scalar) * st->out_ring_len);
+    st->block_num = 0;
+}
+
+/* writes input samples from..to-1 (stream positions, new samples end at (block_num + 1) * block_size) */
+static void nupconv_push_history(nupconv_cfg st, int channel, const kiss_fft_scalar * samples, long long from,
+        long long to)
+{
+    kiss_fft_scalar *history = st->history + channel * st->history_len;
+    int r = nupconv_ring_index(from, st->history_len);
+    long long i;
+
+    for (i = from; i < to; i++) {
+        history[r] = samples ? *samples++ : 0;
+        if (++r == st->history_len) r = 0;
+    }
+}
+
+/* keeps what the tail needs from a processed block */
+static void nupconv_store_input(nupconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index, float gain)
+{
+    const long long end = (st->block_num + 1) * st->block_size;
+
+    /* after a reset, the whole window is new to the tail, afterwards just the last block */
+    if (st->block_num == 0)
+        nupconv_push_history(st, channel, in, end - st->window_len, end);
+    else
+        nupconv_push_history(st, channel, in + st->window_len - st->block_size, end - st->block_size, end);
+
+    st->imp_resp_index[channel] = imp_resp_index;
+    st->gain[channel] = gain;
+}
+
+void nupconv_process(nupconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index, float gain,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r)
+{
+    partconv_process(st->head, channel, in, imp_resp_index, out_l, out_r);
+    nupconv_store_input(st, channel, in, imp_resp_index, gain);
+}
+
+void nupconv_accumulate(nupconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index, float gain,
+        kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r)
+{
+    partconv_accumulate(st->head, channel, in, imp_resp_index, gain, acc_l, acc_r);
+    nupconv_store_input(st, channel, in, imp_resp_index, gain);
+}
+
+void nupconv_process_shared(nupconv_cfg st, int channel, int from_channel, const kiss_fft_scalar * in,
+        int imp_resp_index, float gain, kiss_fft_scalar * out_l, kiss_fft_scalar * out_r)
+{
+    partconv_process_shared(st->head, channel, from_channel, imp_resp_index, out_l, out_r);
+    nupconv_store_input(st, channel, in, imp_resp_index, gain);
+}
+
+void nupconv_accumulate_shared(nupconv_cfg st, int channel, int from_channel, const kiss_fft_scalar * in,
+        int imp_resp_index, float gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r)
+{
+    partconv_accumulate_shared(st->head, channel, from_channel, imp_resp_index, gain, acc_l, acc_r);
+    nupconv_store_input(st, channel, in, imp_resp_index, gain);
+}
+
+void nupconv_skip(nupconv_cfg st, int channel)
+{
+    const long long end = (st->block_num + 1) * st->block_size;
+
+    partconv_skip(st->head, channel);
+    nupconv_push_history(st, channel, NULL, end - (st->block_num == 0 ? st->window_len : st->block_size), end);
+}
+
+/* copies a tier's input windows and starts the job */
+static void nupconv_submit(nupconv_cfg st, struct nupconv_tier *tier, long long job_num, long long input_end)
+{
+    struct nupconv_job *job = tier->jobs + (job_num % NUPCONV_JOB_SLOTS);
+    int c, j, r;
+
+    for (c = 0; c < st->num_channels; c++) {
+        const kiss_fft_scalar *history = st->history + c * st->history_len;
+        kiss_fft_scalar *in = job->in + c * tier->nfft;
+        r = nupconv_ring_index(input_end - tier->nfft, st->history_len);
+        for (j = 0; j < tier->nfft; j++) {
+            in[j] = history[r];
+            if (++r == st->history_len) r = 0;
+        }
+    }
+    memcpy(job->imp_resp_index, st->imp_resp_index, sizeof(int) * st->num_channels);
+    memcpy(job->gain, st->gain, sizeof(float) * st->num_channels);
+
+    /* result for input position p lands on output position p + lookahead + first tap of tier,
+       first block reading it is the job's deadline */
+    job->out_pos = input_end - tier->partition_size + st->lookahead + tier->first_frame;
+    job->deadline_block = (job_num + 1) * tier->blocks_per_period;
+
+    pthread_mutex_lock(&st->mutex);
+    tier->num_submitted++;
+    pthread_cond_signal(&st->work_cond);
+    pthread_mutex_unlock(&st->mutex);
+}
+
+void nupconv_end_block(nupconv_cfg st, kiss_fft_scalar * mix_l, kiss_fft_scalar * mix_r)
+{
+    const long long block = st->block_num;
+    const long long out_start = block * st->block_size;
+    struct nupconv_tier *tier;
+    int i, r, missed;
+
+    /* wait for jobs whose results overlap this block (job n is due at block (n + 1) * blocks_per_period) */
+    missed = 0;
+    pthread_mutex_lock(&st->mutex);
+    for (i = 0; i < st->num_tiers; i++) {
+        tier = st->tiers + i;
+        while (tier->num_completed < block / tier->blocks_per_period) {
+            missed = 1;
+            pthread_cond_wait(&st->done_cond, &st->mutex);
+        }
+    }
+    st->num_deadline_misses += missed;
+    pthread_mutex_unlock(&st->mutex);
+
+    /* add tail, then clear what no later block reads anymore */
+    r = nupconv_ring_index(out_start, st->out_ring_len);
+    for (i = 0; i < st->block_size + st->lookahead; i++) {
+        mix_l[i] += st->out_ring_l[r];
+        mix_r[i] += st->out_ring_r[r];
+        if (i < st->block_size) {
+            st->out_ring_l[r] = 0;
+            st->out_ring_r[r] = 0;
+        }
+        if (++r == st->out_ring_len) r = 0;
+    }
+
+    /* start due jobs: job 0 after the first block, covering the input before it
+       (this is why history holds one block more than the largest tier window),
+       job n after block n * blocks_per_period - 1 */
+    for (i = 0; i < st->num_tiers; i++) {
+        tier = st->tiers + i;
+        if (block == 0)
+            nupconv_submit(st, tier, 0, 0);
+        else if ((block + 1) % tier->blocks_per_period == 0)
+            nupconv_submit(st, tier, (block + 1) / tier->blocks_per_period, (block + 1) * st->block_size);
+    }
+
+    st->block_num++;
+}
+
+long long nupconv_get_worker_cpu_time(nupconv_cfg st)
+{
+    long long t;
+    pthread_mutex_lock(&st->mutex);
+    t = st->worker_cpu_time;
+    pthread_mutex_unlock(&st->mutex);
+    return t;
+}
+
+int nupconv_get_num_deadline_misses(nupconv_cfg st)
+{
+    int n;
+    pthread_mutex_lock(&st->mutex);
+    n = st->num_deadline_misses;
+    pthread_mutex_unlock(&st->mutex);
+    return n;
+}
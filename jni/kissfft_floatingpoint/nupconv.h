@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/*
+ Non-uniformly partitioned convolution.
+
+ The head of each impulse response (first 2 * L1 taps) is convolved by a uniformly
+ partitioned convolver (partconv) with partitions of one processing block B, right
+ in the calling (audio) thread. The tail is split into tiers with growing partition
+ sizes L1 = 4 * B, L2 = 4 * L1, ... Tier i covers taps 2 * Li .. 2 * Li+1 - 1 (the
+ last tier takes the rest of the filter) and runs on a background worker thread.
+
+ A tier job is started every Li / B blocks and transforms the last Li input samples.
+ Because the tier's first tap lies 2 * Li samples in the past, its output is not
+ needed before another Li / B blocks have been rendered. That is the job's deadline,
+ the worker runs the pending job with the earliest deadline first. If a job is late,
+ the audio thread waits for it (and counts a deadline miss).
+
+ Tail output of all tiers and channels is summed into one stereo ring, which is
+ added to the caller's mixing buffer in nupconv_end_block(). Per channel gain and
+ impulse response index are sampled when a tier job is started, so the tail
+ switches impulse responses at partition boundaries without a crossfade (its
+ energy is low compared to the head, which is crossfaded by the caller).
+
+ Input layout is the same as with partconv: each block's window holds window_len
+ samples, the last B of them are new. lookahead is the number of output samples
+ per block beyond B (crossfade overlap), which are rendered again by the next block.
+*/
+
+#ifndef NUPCONV_H
+#define NUPCONV_H
+
+#include <pthread.h>
+#include "partconv.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#define NUPCONV_MAX_TIERS 8
+#define NUPCONV_JOB_SLOTS 2	/* one job running late, one just started */
+
+struct nupconv_job {
+    kiss_fft_scalar * in;            /* [channel][nfft] input windows */
+    int * imp_resp_index;            /* [channel] */
+    float * gain;                    /* [channel] */
+    long long out_pos;               /* output ring position of first result sample */
+    long long deadline_block;
+};
+
+struct nupconv_tier {
+    int partition_size;
+    int nfft;
+    int first_frame;                 /* first filter tap covered by this tier */
+    int blocks_per_period;           /* partition_size / block_size */
+    partconv_cfg conv;
+    struct nupconv_job jobs[NUPCONV_JOB_SLOTS];
+    long long num_submitted;         /* job counters, guarded by mutex */
+    long long num_started;
+    long long num_completed;
+    kiss_fft_scalar * out_l;         /* used by worker only */
+    kiss_fft_scalar * out_r;
+};
+
+struct nupconv_state {
+    int block_size;
+    int window_len;
+    int lookahead;
+    int num_channels;
+    int num_imp_resp_frames;
+    partconv_cfg head;
+    int num_tiers;
+    struct nupconv_tier tiers[NUPCONV_MAX_TIERS];
+    kiss_fft_scalar * history;       /* [channel][history_len] input ring, indexed by input position */
+    int history_len;
+    int * imp_resp_index;            /* [channel] current values, sampled by tier jobs */
+    float * gain;
+    kiss_fft_scalar * out_ring_l;    /* summed tail output, indexed by output position */
+    kiss_fft_scalar * out_ring_r;
+    int out_ring_len;
+    long long block_num;             /* blocks rendered since last reset */
+    pthread_t worker;
+    int worker_running;
+    pthread_mutex_t mutex;
+    pthread_cond_t work_cond;        /* signals worker: new job or quit */
+    pthread_cond_t done_cond;        /* signals audio thread: job completed */
+    int quit;
+    long long worker_cpu_time;       /* ns, guarded by mutex */
+    int num_deadline_misses;         /* guarded by mutex */
+};
+
+typedef struct nupconv_state *nupconv_cfg;
+
+/* num_imp_resp_frames has to be longer than the head (8 * block_size), otherwise use partconv */
+nupconv_cfg nupconv_alloc(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int head_nfft, int block_size, int window_len,
+        int lookahead, int num_channels);
+
+/* same geometry and filter spectra as shared (read-only, see partconv_alloc_shared()), but own input
+   history, tail output and worker thread for num_channels channels */
+nupconv_cfg nupconv_alloc_shared(const nupconv_cfg shared, int num_channels);
+
+void nupconv_free(nupconv_cfg st);
+
+/* convolves one block of a channel with the head (like partconv_process) and stores
+   the new input samples, imp_resp_index and gain for the tail */
+void nupconv_process(nupconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index, float gain,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r);
+
+/* like nupconv_process(), but the head output is scaled and mixed in the frequency domain
+   (see partconv_accumulate(), transform back with partconv_inverse() on st->head) */
+void nupconv_accumulate(nupconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index, float gain,
+        kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r);
+
+/* like nupconv_process() and nupconv_accumulate(), but the head reuses the input spectrum of from_channel
+   (see partconv_process_shared()). in is still needed for the tail. */
+void nupconv_process_shared(nupconv_cfg st, int channel, int from_channel, const kiss_fft_scalar * in,
+        int imp_resp_index, float gain, kiss_fft_scalar * out_l, kiss_fft_scalar * out_r);
+void nupconv_accumulate_shared(nupconv_cfg st, int channel, int from_channel, const kiss_fft_scalar * in,
+        int imp_resp_index, float gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r);
+
+/* feeds a block of silence for a channel */
+void nupconv_skip(nupconv_cfg st, int channel);
+
+/* call once per block after all channels were processed or skipped: adds tail output for
+   block_size + lookahead samples to mix_l/mix_r and starts due tier jobs */
+void nupconv_end_block(nupconv_cfg st, kiss_fft_scalar * mix_l, kiss_fft_scalar * mix_r);
+
+/* waits for running tier jobs and clears all input history and tail output */
+void nupconv_reset(nupconv_cfg st);
+
+/* cpu time spent in the worker thread in ns */
+long long nupconv_get_worker_cpu_time(nupconv_cfg st);
+
+int nupconv_get_num_deadline_misses(nupconv_cfg st);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
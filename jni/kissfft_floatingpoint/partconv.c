@@ -0,0 +1,293 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+#include "partconv.h"
+#include "_kiss_fft_guts.h"
+
+static void partconv_transform_partitions(partconv_cfg st, const kiss_fft_scalar *imp_resp, int num_imp_resp_frames,
+        int first_frame, int num_frames, kiss_fft_scalar *tmpbuf, kiss_fft_cpx *fir_freq_resp)
+{
+    int j, p, i, num_taps;
+    const int nfft = st->nfft;
+    const int psize = st->partition_size;
+    const float scale = 1.0f / nfft;
+
+    for (j = 0; j < st->num_imp_resp; j++) {
+        for (p = 0; p < st->num_partitions; p++) {
+            const kiss_fft_scalar *taps = imp_resp + j * num_imp_resp_frames + first_frame + p * psize;
+            kiss_fft_cpx *part_freq_resp = fir_freq_resp + (j * st->num_partitions + p) * st->n_freq_bins;
+
+            /* last partition might be shorter, it is zero padded */
+            num_taps = num_frames - p * psize;
+            if (num_taps > psize) num_taps = psize;
+
+            /* zero pad in the middle to left-rotate the partition (same as kiss_fastfir),
+               this puts the scrap samples at the end of the inverse fft'd buffer */
+            memset(tmpbuf, 0, sizeof(kiss_fft_scalar) * nfft);
+            if (num_taps == psize) tmpbuf[0] = taps[psize - 1];
+            for (i = 0; i < psize - 1 && i < num_taps; ++i) {
+                tmpbuf[nfft - psize + 1 + i] = taps[i];
+            }
+
+            kiss_fftr(st->fftcfg, tmpbuf, part_freq_resp);
+            for (i = 0; i < st->n_freq_bins; ++i) {
+                part_freq_resp[i].r *= scale;
+                part_freq_resp[i].i *= scale;
+            }
+        }
+    }
+}
+
+partconv_cfg partconv_alloc(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int nfft, int partition_size, int num_channels)
+{
+    return partconv_alloc_segment(imp_resp_l, imp_resp_r, num_imp_resp, num_imp_resp_frames, 0, num_imp_resp_frames,
+            nfft, partition_size, num_channels);
+}
+
+partconv_cfg partconv_alloc_segment(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int first_frame, int num_frames, int nfft, int partition_size,
+        int num_channels)
+{
+    partconv_cfg st;
+    kiss_fft_scalar *tmpbuf;
+    size_t fir_freq_resp_len, fdl_len;
+
+    if (nfft & 1 || partition_size < 1 || partition_size > nfft / 2 || num_channels < 1
+            || first_frame < 0 || num_frames < 1 || first_frame + num_frames > num_imp_resp_frames)
+        return NULL;
+
+    st = (partconv_cfg) calloc(1, sizeof(struct partconv_state));
+    if (!st)
+        return NULL;
+
+    st->nfft = nfft;
+    st->n_freq_bins = nfft / 2 + 1;
+    st->partition_size = partition_size;
+    st->num_partitions = (num_frames + partition_size - 1) / partition_size;
+    st->num_imp_resp = num_imp_resp;
+    st->num_channels = num_channels;
+
+    fir_freq_resp_len = sizeof(kiss_fft_cpx) * st->n_freq_bins * st->num_partitions * num_imp_resp;
+    fdl_len = sizeof(kiss_fft_cpx) * st->n_freq_bins * st->num_partitions * num_channels;
+    st->fftcfg = kiss_fftr_alloc(nfft, 0, NULL, NULL);
+    st->ifftcfg = kiss_fftr_alloc(nfft, 1, NULL, NULL);
+    st->fir_freq_resp_l = (kiss_fft_cpx*) malloc(fir_freq_resp_len);
+    st->fir_freq_resp_r = (kiss_fft_cpx*) malloc(fir_freq_resp_len);
+    st->fir_freq_resp_refcount = (int*) malloc(sizeof(int));
+    st->fdl = (kiss_fft_cpx*) malloc(fdl_len);
+    st->fdl_head = (int*) malloc(sizeof(int) * num_channels);
+    st->accbuf_l = (kiss_fft_cpx*) malloc(sizeof(kiss_fft_cpx) * st->n_freq_bins);
+    st->accbuf_r = (kiss_fft_cpx*) malloc(sizeof(kiss_fft_cpx) * st->n_freq_bins);
+    tmpbuf = (kiss_fft_scalar*) malloc(sizeof(kiss_fft_scalar) * nfft);
+    if (st->fir_freq_resp_refcount) *st->fir_freq_resp_refcount = 1;
+    if (!st->fftcfg || !st->ifftcfg || !st->fir_freq_resp_l || !st->fir_freq_resp_r || !st->fir_freq_resp_refcount
+            || !st->fdl || !st->fdl_head || !st->accbuf_l || !st->accbuf_r || !tmpbuf) {
+        free(tmpbuf);
+        partconv_free(st);
+        return NULL;
+    }
+
+    partconv_transform_partitions(st, imp_resp_l, num_imp_resp_frames, first_frame, num_frames, tmpbuf, st->fir_freq_resp_l);
+    partconv_transform_partitions(st, imp_resp_r, num_imp_resp_frames, first_frame, num_frames, tmpbuf, st->fir_freq_resp_r);
+    free(tmpbuf);
+
+    partconv_reset(st);
+    return st;
+}
+
+partconv_cfg partconv_alloc_shared(const partconv_cfg shared, int num_channels)
+{
+    partconv_cfg st;
+
+    if (!shared || num_channels < 1)
+        return NULL;
+
+    st = (partconv_cfg) calloc(1, sizeof(struct partconv_state));
+    if (!st)
+        return NULL;
+
+    st->nfft = shared->nfft;
+    st->n_freq_bins = shared->n_freq_bins;
+    st->partition_size = shared->partition_size;
+    st->num_partitions = shared->num_partitions;
+    st->num_imp_resp = shared->num_imp_resp;
+    st->num_channels = num_channels;
+
+    /* spectra are only read while rendering, so taking a reference is all it needs */
+    __sync_add_and_fetch(shared->fir_freq_resp_refcount, 1);
+    st->fir_freq_resp_l = shared->fir_freq_resp_l;
+    st->fir_freq_resp_r = shared->fir_freq_resp_r;
+    st->fir_freq_resp_refcount = shared->fir_freq_resp_refcount;
+
+    /* fft configs hold scratch buffers, they can't be shared between threads */
+    st->fftcfg = kiss_fftr_alloc(st->nfft, 0, NULL, NULL);
+    st->ifftcfg = kiss_fftr_alloc(st->nfft, 1, NULL, NULL);
+    st->fdl = (kiss_fft_cpx*) malloc(sizeof(kiss_fft_cpx) * st->n_freq_bins * st->num_partitions * num_channels);
+    st->fdl_head = (int*) malloc(sizeof(int) * num_channels);
+    st->accbuf_l = (kiss_fft_cpx*) malloc(sizeof(kiss_fft_cpx) * st->n_freq_bins);
+    st->accbuf_r = (kiss_fft_cpx*) malloc(sizeof(kiss_fft_cpx) * st->n_freq_bins);
+    if (!st->fftcfg || !st->ifftcfg || !st->fdl || !st->fdl_head || !st->accbuf_l || !st->accbuf_r) {
+        partconv_free(st);
+        return NULL;
+    }
+
+    partconv_reset(st);
+    return st;
+}
+
+void partconv_free(partconv_cfg st)
+{
+    if (!st)
+        return;
+    free(st->fftcfg);
+    free(st->ifftcfg);
+    /* spectra go with the last state using them */
+    if (!st->fir_freq_resp_refcount || __sync_sub_and_fetch(st->fir_freq_resp_refcount, 1) == 0) {
+        free(st->fir_freq_resp_l);
+        free(st->fir_freq_resp_r);
+        free(st->fir_freq_resp_refcount);
+    }
+    free(st->fdl);
+    free(st->fdl_head);
+    free(st->accbuf_l);
+    free(st->accbuf_r);
+    free(st);
+}
+
+void partconv_reset(partconv_cfg st)
+{
+    int c;
+    memset(st->fdl, 0, sizeof(kiss_fft_cpx) * st->n_freq_bins * st->num_partitions * st->num_channels);
+    for (c = 0; c < st->num_channels; c++)
+        st->fdl_head[c] = 0;
+}
+
+static kiss_fft_cpx * partconv_push_slot(partconv_cfg st, int channel)
+{
+    /* advance head, the oldest spectrum gets overwritten */
+    int head = st->fdl_head[channel] + 1;
+    if (head == st->num_partitions) head = 0;
+    st->fdl_head[channel] = head;
+    return st->fdl + (channel * st->num_partitions + head) * st->n_freq_bins;
+}
+
+void partconv_skip(partconv_cfg st, int channel)
+{
+    memset(partconv_push_slot(st, channel), 0, sizeof(kiss_fft_cpx) * st->n_freq_bins);
+}
+
+/* output spectra of the newest input block end up in accbuf_l/accbuf_r. in == NULL: the input is the same as
+   from_channel's newest block, its spectrum is copied instead of transforming the input again */
+static void partconv_convolve(partconv_cfg st, int channel, const kiss_fft_scalar * in, int from_channel,
+        int imp_resp_index)
+{
+    int p, i, slot;
+    const int n_freq_bins = st->n_freq_bins;
+    kiss_fft_cpx *fdl_channel = st->fdl + channel * st->num_partitions * n_freq_bins;
+    kiss_fft_cpx *fir_freq_resp_l = st->fir_freq_resp_l + imp_resp_index * st->num_partitions * n_freq_bins;
+    kiss_fft_cpx *fir_freq_resp_r = st->fir_freq_resp_r + imp_resp_index * st->num_partitions * n_freq_bins;
+    kiss_fft_cpx *accbuf_l = st->accbuf_l;
+    kiss_fft_cpx *accbuf_r = st->accbuf_r;
+
+    /* transform new input block once, store it in the FDL */
+    if (in) {
+        kiss_fftr(st->fftcfg, in, partconv_push_slot(st, channel));
+    } else if (from_channel != channel) {
+        const kiss_fft_cpx *from = st->fdl + (from_channel * st->num_partitions + st->fdl_head[from_channel]) * n_freq_bins;
+        memcpy(partconv_push_slot(st, channel), from, sizeof(kiss_fft_cpx) * n_freq_bins);
+    }
+
+    /* multiply and accumulate: newest input spectrum with first partition,
+       next older one with second partition, and so on */
+    memset(accbuf_l, 0, sizeof(kiss_fft_cpx) * n_freq_bins);
+    memset(accbuf_r, 0, sizeof(kiss_fft_cpx) * n_freq_bins);
+    slot = st->fdl_head[channel];
+    for (p = 0; p < st->num_partitions; p++) {
+        const kiss_fft_cpx *x = fdl_channel + slot * n_freq_bins;
+        const kiss_fft_cpx *hl = fir_freq_resp_l + p * n_freq_bins;
+        const kiss_fft_cpx *hr = fir_freq_resp_r + p * n_freq_bins;
+        for (i = 0; i < n_freq_bins; i++) {
+            accbuf_l[i].r += x[i].r * hl[i].r - x[i].i * hl[i].i;
+            accbuf_l[i].i += x[i].r * hl[i].i + x[i].i * hl[i].r;
+            accbuf_r[i].r += x[i].r * hr[i].r - x[i].i * hr[i].i;
+            accbuf_r[i].i += x[i].r * hr[i].i + x[i].i * hr[i].r;
+        }
+        if (--slot < 0) slot = st->num_partitions - 1;
+    }
+}
+
+static void partconv_process_input(partconv_cfg st, int channel, const kiss_fft_scalar * in, int from_channel,
+        int imp_resp_index, kiss_fft_scalar * out_l, kiss_fft_scalar * out_r)
+{
+    partconv_convolve(st, channel, in, from_channel, imp_resp_index);
+
+    /* back to time domain */
+    kiss_fftri(st->ifftcfg, st->accbuf_l, out_l);
+    kiss_fftri(st->ifftcfg, st->accbuf_r, out_r);
+}
+
+void partconv_process(partconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r)
+{
+    partconv_process_input(st, channel, in, channel, imp_resp_index, out_l, out_r);
+}
+
+void partconv_process_shared(partconv_cfg st, int channel, int from_channel, int imp_resp_index,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r)
+{
+    partconv_process_input(st, channel, NULL, from_channel, imp_resp_index, out_l, out_r);
+}
+
+static void partconv_accumulate_input(partconv_cfg st, int channel, const kiss_fft_scalar * in, int from_channel,
+        int imp_resp_index, kiss_fft_scalar gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r)
+{
+    int i;
+    const kiss_fft_cpx *accbuf_l = st->accbuf_l;
+    const kiss_fft_cpx *accbuf_r = st->accbuf_r;
+
+    partconv_convolve(st, channel, in, from_channel, imp_resp_index);
+
+    for (i = 0; i < st->n_freq_bins; i++) {
+        acc_l[i].r += accbuf_l[i].r * gain;
+        acc_l[i].i += accbuf_l[i].i * gain;
+        acc_r[i].r += accbuf_r[i].r * gain;
+        acc_r[i].i += accbuf_r[i].i * gain;
+    }
+}
+
+void partconv_accumulate(partconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index,
+        kiss_fft_scalar gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r)
+{
+    partconv_accumulate_input(st, channel, in, channel, imp_resp_index, gain, acc_l, acc_r);
+}
+
+void partconv_accumulate_shared(partconv_cfg st, int channel, int from_channel, int imp_resp_index,
+        kiss_fft_scalar gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r)
+{
+    partconv_accumulate_input(st, channel, NULL, from_channel, imp_resp_index, gain, acc_l, acc_r);
+}
+
+void partconv_inverse(partconv_cfg st, kiss_fft_cpx * acc, kiss_fft_scalar * out)
+{
+    kiss_fftri(st->ifftcfg, acc, out);
+}
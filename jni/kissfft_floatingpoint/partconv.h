@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/*
+ Uniformly partitioned overlap-save convolution (UPOLS).
+
+ The impulse responses are split into partitions of partition_size taps each.
+ Every processed block of input is transformed once and stored in a frequency-
+ domain delay line (FDL). The output spectrum of a block is the sum of the last
+ num_partitions input spectra, each multiplied with the matching filter partition.
+ This way the fft size depends on the block size, not on the filter length.
+
+ Hop size (number of new input samples per block) must equal partition_size,
+ so the FDL is shifted by exactly one partition per block.
+
+ Input and output layout is the same as with kiss_fastfir: the input buffer holds
+ nfft samples (filter overlap of partition_size - 1 samples at the front), output
+ samples 0 .. nfft - partition_size are valid, the rest is garbage.
+*/
+
+#ifndef PARTCONV_H
+#define PARTCONV_H
+
+#include "kiss_fftr.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct partconv_state {
+    int nfft;
+    int n_freq_bins;
+    int partition_size;
+    int num_partitions;
+    int num_imp_resp;
+    int num_channels;
+    kiss_fftr_cfg fftcfg;
+    kiss_fftr_cfg ifftcfg;
+    kiss_fft_cpx * fir_freq_resp_l;  /* [imp_resp][partition][bin] */
+    kiss_fft_cpx * fir_freq_resp_r;
+    int * fir_freq_resp_refcount;    /* number of states using the spectra above, see partconv_alloc_shared() */
+    kiss_fft_cpx * fdl;              /* [channel][partition][bin] */
+    int * fdl_head;                  /* per channel: fdl slot of newest input spectrum */
+    kiss_fft_cpx * accbuf_l;
+    kiss_fft_cpx * accbuf_r;
+};
+
+typedef struct partconv_state *partconv_cfg;
+
+/* num_channels is the number of independent input signals (sound sources), each gets its own FDL */
+partconv_cfg partconv_alloc(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int nfft, int partition_size, int num_channels);
+
+/* same, but only uses frames first_frame .. first_frame + num_frames - 1 of each impulse response
+   (a segment of a longer filter, see nupconv) */
+partconv_cfg partconv_alloc_segment(const kiss_fft_scalar *imp_resp_l, const kiss_fft_scalar *imp_resp_r,
+        int num_imp_resp, int num_imp_resp_frames, int first_frame, int num_frames, int nfft, int partition_size,
+        int num_channels);
+
+/* allocates a convolver that uses the filter spectra of shared (read-only) with its own fft configs, FDLs and
+   buffers, e.g. for rendering several scenes with the same impulse responses at the same time. the spectra
+   are freed with the last state using them, so shared can be freed before this one. */
+partconv_cfg partconv_alloc_shared(const partconv_cfg shared, int num_channels);
+
+void partconv_free(partconv_cfg st);
+
+/* transforms one block of input, pushes it into the channel's FDL and convolves
+   it with impulse response pair imp_resp_index */
+void partconv_process(partconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r);
+
+/* like partconv_process(), but adds the output spectra, scaled by gain, to acc_l/acc_r
+   (n_freq_bins each) instead of transforming them back. mixing many channels this way
+   needs only one inverse fft per ear (partconv_inverse()). */
+void partconv_accumulate(partconv_cfg st, int channel, const kiss_fft_scalar * in, int imp_resp_index,
+        kiss_fft_scalar gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r);
+
+/* like partconv_process() and partconv_accumulate(), for a channel whose input block is the same as that of
+   from_channel, which was processed or accumulated right before in this block: its input spectrum is copied
+   into the channel's FDL instead of transforming the same input again */
+void partconv_process_shared(partconv_cfg st, int channel, int from_channel, int imp_resp_index,
+        kiss_fft_scalar * out_l, kiss_fft_scalar * out_r);
+void partconv_accumulate_shared(partconv_cfg st, int channel, int from_channel, int imp_resp_index,
+        kiss_fft_scalar gain, kiss_fft_cpx * acc_l, kiss_fft_cpx * acc_r);
+
+/* transforms an accumulated output spectrum back, output layout as with partconv_process() */
+void partconv_inverse(partconv_cfg st, kiss_fft_cpx * acc, kiss_fft_scalar * out);
+
+/* pushes a block of silence into the channel's FDL without producing output */
+void partconv_skip(partconv_cfg st, int channel);
+
+/* clears the FDLs of all channels */
+void partconv_reset(partconv_cfg st);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -22,6 +22,7 @@ SOFTWARE.
 
 #include "nativeCPUInfo.h"
 
+#include <unistd.h>
 #include <sys/syscall.h>
 JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_NativeCPUInfo_getCpuId(JNIEnv *env, jobject thiz) {
     unsigned cpu;
@@ -31,3 +32,14 @@ JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_NativeCPUInfo_getCpuId(JNIEnv *env,
         return (int) cpu;
     }
 }
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_NativeCPUInfo_setThreadAffinity(JNIEnv *env, jobject thiz, jint cpu) {
+    unsigned long mask;
+    if (cpu < 0 || cpu >= (int) (8 * sizeof(mask))) return -1;
+    mask = 1UL << cpu;
+    if (syscall(__NR_sched_setaffinity, (pid_t) syscall(__NR_gettid), sizeof(mask), &mask) < 0) {
+        return -1;
+    } else {
+        return 0;
+    }
+}
@@ -29,6 +29,7 @@ SOFTWARE.
 extern "C" { 
 #endif
 	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_NativeCPUInfo_getCpuId(JNIEnv *env, jobject thiz);
+	JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_NativeCPUInfo_setThreadAffinity(JNIEnv *env, jobject thiz, jint cpu);
 #ifdef __cplusplus 
 } 
 #endif
@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+#ifndef __OUTPUTFRAMEQUEUE_H__
+#define __OUTPUTFRAMEQUEUE_H__
+
+#include <string.h>
+#include <semaphore.h>
+#include "SpscFrameRing.h"
+
+/*
+ * Output buffers on their way from the writing thread to the audio callback. The writer enqueues runs of any length,
+ * they are collected in a partially filled slot of a SpscFrameRing and handed over once the slot is full. The
+ * callback side never blocks or locks. Only the writer waits, on a semaphore the callback posts after freeing a slot.
+ * Frames are 4 bytes (16 bit stereo).
+ */
+class OutputFrameQueue {
+public:
+	static const int BYTES_PER_FRAME = 4;
+
+	OutputFrameQueue(int numSlots, int slotSizeInFrames) : ring(numSlots, slotSizeInFrames * BYTES_PER_FRAME) {
+		this->slotSizeInFrames = slotSizeInFrames;
+		this->partialBuf = NULL;
+		this->partialBufMarkInFrames = 0;
+		this->writerWaiting = false;
+		sem_init(&freeBufSem, 0, 0);
+	}
+
+	~OutputFrameQueue() {
+		sem_destroy(&freeBufSem);
+	}
+
+	bool isValid() {
+		return ring.isValid();
+	}
+
+	// writer: appends frames, hands each slot to the callback when it is full. waits while all slots are full.
+	void enqueue(const char *frames, int numFrames) {
+		int numCopiedFrames = 0;
+		while (numCopiedFrames < numFrames) {
+			if (partialBuf == NULL) partialBuf = waitForFreeBuf();	// might block
+			int copyFrames = slotSizeInFrames - partialBufMarkInFrames;
+			if (copyFrames > numFrames - numCopiedFrames) copyFrames = numFrames - numCopiedFrames;
+			memcpy(partialBuf + partialBufMarkInFrames * BYTES_PER_FRAME, frames + numCopiedFrames * BYTES_PER_FRAME,
+					copyFrames * BYTES_PER_FRAME);
+			partialBufMarkInFrames += copyFrames;
+			if (partialBufMarkInFrames == slotSizeInFrames) {	// slot is full now
+				ring.endWrite();
+				partialBuf = NULL;
+				partialBufMarkInFrames = 0;
+			}
+			numCopiedFrames += copyFrames;
+		}
+	}
+
+	// writer: pads a partially filled slot with silence and hands it to the callback
+	void flush() {
+		if (partialBufMarkInFrames == 0) return;
+		memset(partialBuf + partialBufMarkInFrames * BYTES_PER_FRAME, 0,
+				(slotSizeInFrames - partialBufMarkInFrames) * BYTES_PER_FRAME);
+		ring.endWrite();
+		partialBuf = NULL;
+		partialBufMarkInFrames = 0;
+	}
+
+	// writer: the partially filled slot is refilled from its start, clearRing drops all filled slots too.
+	// only while the callback does not access the queue.
+	void restart(bool clearRing) {
+		if (clearRing) ring.clear();
+		partialBufMarkInFrames = 0;
+	}
+
+	// writer: waits until less than maxNumBufferedFrames frames are written but not played, or until *playing is
+	// false. pull rendering: the writer renders once the callback has taken enough slots.
+	void waitForRenderRequest(int maxNumBufferedFrames, volatile bool *playing) {
+		while (*playing && getNumBufferedFrames() >= maxNumBufferedFrames) {
+			writerWaiting = true;
+			__sync_synchronize();	// flag before checking again, so a slot played in between is not missed
+			if (*playing && getNumBufferedFrames() >= maxNumBufferedFrames) sem_wait(&freeBufSem);
+			writerWaiting = false;
+		}
+	}
+
+	// writer: frames written but not played yet (the full slots and the partially filled one)
+	int getNumBufferedFrames() {
+		return ring.getNumFilled() * slotSizeInFrames + partialBufMarkInFrames;
+	}
+
+	// callback: copies the oldest full slot to dest and wakes a waiting writer. false if there is none, never blocks.
+	bool dequeue(char *dest) {
+		char *buf = ring.beginRead();
+		if (buf == NULL) return false;
+		memcpy(dest, buf, slotSizeInFrames * BYTES_PER_FRAME);
+		ring.endRead();
+		__sync_synchronize();	// slot freed before looking for a waiting writer
+		if (writerWaiting) sem_post(&freeBufSem);
+		return true;
+	}
+
+	// callback: wakes the writer if it is waiting, after anything it waits for has changed
+	void wakeWriter() {
+		__sync_synchronize();
+		if (writerWaiting) sem_post(&freeBufSem);
+	}
+
+	int getNumFilledSlots() {
+		return ring.getNumFilled();
+	}
+
+private:
+	SpscFrameRing ring;
+	int slotSizeInFrames;
+	char *partialBuf;	// slot being filled by the writer, NULL if none
+	int partialBufMarkInFrames;
+	sem_t freeBufSem;	// posted by the callback when it freed a slot the writer is waiting for
+	volatile bool writerWaiting;
+
+	// free slot of the ring, waits until the callback has played one if all are full
+	char *waitForFreeBuf() {
+		char *buf;
+		while ((buf = ring.beginWrite()) == NULL) {
+			writerWaiting = true;
+			__sync_synchronize();	// flag before checking again, so a slot freed in between is not missed
+			if (ring.getNumFilled() == ring.getNumSlots()) sem_wait(&freeBufSem);
+			writerWaiting = false;
+		}
+		return buf;
+	}
+};
+
+#endif /* __OUTPUTFRAMEQUEUE_H__ */
@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+#ifndef __SPSCFRAMERING_H__
+#define __SPSCFRAMERING_H__
+
+#include <stdlib.h>
+
+/*
+ * Ring of preallocated frame buffers for exactly one producer thread and one consumer thread (the audio callback).
+ * Wait-free: both sides only read the other side's counter and write their own, nothing ever blocks or locks, so
+ * the consumer can run in the device's real-time callback. A side that finds the ring full (or empty) gets NULL
+ * and decides itself whether to wait or to do without.
+ *
+ * Producer: fill the slot returned by beginWrite(), then publish it with endWrite().
+ * Consumer: read the slot returned by beginRead(), then hand it back with endRead().
+ */
+class SpscFrameRing {
+public:
+	SpscFrameRing(int numSlots, int slotSizeInBytes) {
+		this->numSlots = numSlots;
+		this->slotSizeInBytes = slotSizeInBytes;
+		this->slots = (char*) calloc(numSlots, slotSizeInBytes);
+		this->head = 0;
+		this->tail = 0;
+	}
+
+	~SpscFrameRing() {
+		free(slots);
+	}
+
+	bool isValid() {
+		return slots != NULL;
+	}
+
+	// producer: free slot to fill next, NULL if all slots are full. returns the same slot until endWrite().
+	char* beginWrite() {
+		if (getNumFilled() == numSlots) return NULL;
+		return slots + (tail % numSlots) * slotSizeInBytes;
+	}
+
+	// producer: the slot returned by beginWrite() is filled, hand it to the consumer
+	void endWrite() {
+		__sync_synchronize();	// slot contents before counting it
+		tail = (tail + 1) % (2 * numSlots);
+	}
+
+	// consumer: oldest filled slot, NULL if there is none. returns the same slot until endRead().
+	char* beginRead() {
+		if (tail == head) return NULL;
+		__sync_synchronize();	// slot contents after seeing it counted
+		return slots + (head % numSlots) * slotSizeInBytes;
+	}
+
+	// consumer: done reading the slot returned by beginRead(), the producer may fill it again
+	void endRead() {
+		__sync_synchronize();	// reading the slot before freeing it
+		head = (head + 1) % (2 * numSlots);
+	}
+
+	// drops all filled slots. only while the consumer does not access the ring.
+	void clear() {
+		head = tail;
+		__sync_synchronize();
+	}
+
+	int getNumFilled() {
+		return (tail - head + 2 * numSlots) % (2 * numSlots);
+	}
+
+	int getNumSlots() {
+		return numSlots;
+	}
+
+private:
+	char *slots;	// numSlots * slotSizeInBytes, allocated once
+	int numSlots;
+	int slotSizeInBytes;
+	// counted modulo 2 * numSlots, so a full ring can be told from an empty one
+	volatile int head;	// slots read, only written by the consumer
+	volatile int tail;	// slots written, only written by the producer
+};
+
+#endif /* __SPSCFRAMERING_H__ */
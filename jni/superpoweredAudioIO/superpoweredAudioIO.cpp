@@ -23,8 +23,7 @@ SOFTWARE.
 #include "superpoweredAudioIO.h"
 
 #include <stdlib.h>
-#include <queue>
-#include <pthread.h>
+#include <semaphore.h>
 #include <stdio.h>
 #include <android/log.h>
 #include <SLES/OpenSLES.h>
@@ -32,7 +31,7 @@ SOFTWARE.
 
 #include "../SuperpoweredSDK/Superpowered/SuperpoweredAndroidAudioIO.h"
 #include "../SuperpoweredSDK/Superpowered/SuperpoweredResampler.h"
-#include "BlockingByteBufferQueue.h"
+#include "OutputFrameQueue.h"
 
 #define LOG_TAG "superpoweredAudioIO"
 #define LOGI(fmt, args...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, fmt, ##args)
@@ -44,6 +43,10 @@ using namespace std;
 /*
  * This whole code should only be used as a single audio sink by one thread.
  * Thread safety is not checked for multiple threads.
+ *
+ * The writing thread hands full output buffers to the audio callback through a wait-free ring (see OutputFrameQueue).
+ * The callback never blocks or locks: if the ring has run dry, it plays silence and counts an underrun. Only the
+ * writing thread waits, for a free buffer or for a pause to take effect, on semaphores the callback posts.
  */
 
 int internalBufSizeInFrames;
@@ -54,74 +57,53 @@ SuperpoweredAndroidAudioIO *audioSystem;
 SuperpoweredResampler *resampler;
 short *resampleInBuf;
 float *resampleTmpBuf;
-pthread_mutex_t pauseMutex;
-pthread_cond_t pauseCond;
-bool pauseMutexInitialized = false;
+sem_t pausedSem;	// posted by the callback when it has paused
+bool semsInitialized = false;
 volatile bool playing;
 
-BlockingByteBufferQueue *emptyBufsQueue;
-char *partialBuf;
-int partialBufMarkInFrames;
-BlockingByteBufferQueue *fullBufsQueue;
-queue<char *> allBufsQueue;	// holds sum of both queues (makes it easier to free all buffers)
+#define PAUSE_REQUEST_NONE 0
+#define PAUSE_REQUEST_NOW 1	// pause without playing the filled buffers
+#define PAUSE_REQUEST_FLUSHED 2	// pause once all filled buffers are played
+volatile int pauseRequest;
+volatile int numUnderruns;
+
+OutputFrameQueue *queue;
 
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_enqueueSamples(JNIEnv *env, jobject thiz,
-		jbyteArray buf, jint numFrames) {
-
-	// mount java array
-	char *inputBuf = (char*) env->GetPrimitiveArrayCritical(buf, NULL);
-
-	// enqueue
-	int remainingFramesToCopy = numFrames;
-	int alreadyCopiedFrames;
-	while (remainingFramesToCopy > 0) {
-		alreadyCopiedFrames = numFrames - remainingFramesToCopy;
-
-		if (partialBufMarkInFrames > 0) {	// continue to fill partial buffer?
-			int copyFrames = min(outputBufSizeInFrames - partialBufMarkInFrames, remainingFramesToCopy);
-			memcpy(partialBuf + partialBufMarkInFrames * 4, inputBuf + alreadyCopiedFrames * 4, copyFrames * 4);
-			partialBufMarkInFrames += copyFrames;
-			if (partialBufMarkInFrames == outputBufSizeInFrames) {	// partial buffer is full now
-				fullBufsQueue->put(partialBuf);	// might block
-				partialBufMarkInFrames = 0;
-			}
-			remainingFramesToCopy -= copyFrames;
-		} else if (remainingFramesToCopy >= outputBufSizeInFrames) {	// fill whole new buffer?
-			// get empty buffer
-			char *outBuf = emptyBufsQueue->take(); // might block
-			memcpy(outBuf, inputBuf + alreadyCopiedFrames * 4, outputBufSizeInFrames * 4);
-			fullBufsQueue->put(outBuf);	// might block
-			remainingFramesToCopy -= outputBufSizeInFrames;
-		} else {	// start to partially fill new bufffer?
-			partialBuf = emptyBufsQueue->take(); // might block
-			memcpy(partialBuf, inputBuf + alreadyCopiedFrames * 4, remainingFramesToCopy * 4);
-			partialBufMarkInFrames = remainingFramesToCopy;
-			remainingFramesToCopy = 0;
-		}
-	}
+		jobject buf, jint numFrames) {
+
+	// direct buffer, read in place
+	char *inputBuf = (char*) env->GetDirectBufferAddress(buf);
+	if (inputBuf == NULL || env->GetDirectBufferCapacity(buf) < numFrames * 4) return;
 
-	env->ReleasePrimitiveArrayCritical(buf, inputBuf, JNI_ABORT);
+	// enqueue, output buffers are filled one after the other and handed to the callback when full
+	queue->enqueue(inputBuf, numFrames);	// might block
 }
 
+// the callback has paused, wake up the thread waiting for that (and the writer, which waits in vain now)
+static bool acknowledgePause() {
+	pauseRequest = PAUSE_REQUEST_NONE;
+	__sync_synchronize();
+	playing = false;
+	sem_post(&pausedSem);
+	queue->wakeWriter();
+	return false;
+}
+
+// runs in the device's real-time thread: never blocks and never locks
 static bool audioCallback(void *clientdata, short int *audioIO, int numberOfSamples, int samplerate) {
 	if (!playing) return false;
+	if (pauseRequest == PAUSE_REQUEST_NOW) return acknowledgePause();
 
-	// take() might block
-	char *outBuf = fullBufsQueue->take();
+	// copy to audio system buffer and hand buffer back to the writer
+	if (!queue->dequeue((char*) audioIO)) {
+		if (pauseRequest == PAUSE_REQUEST_FLUSHED) return acknowledgePause();
 
-	// check if we received "synchronized pause" signal aka NULL
-	if (outBuf == NULL) {
-		pthread_mutex_lock(&pauseMutex);
-		playing = false;
-		pthread_cond_signal(&pauseCond);
-		pthread_mutex_unlock(&pauseMutex);
-		return false;
+		// ring ran dry: play silence rather than wait for the writer
+		memset(audioIO, 0, numberOfSamples * 4);
+		numUnderruns = numUnderruns + 1;
 	}
 
-	// copy to audio system buffer and save empty buffer
-	memcpy(audioIO, outBuf, outputBufSizeInFrames * 4);
-	emptyBufsQueue->put(outBuf);
-
 	return true;
 }
 
@@ -133,14 +115,13 @@ JNIEXPORT jboolean JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_setupSuperp
 	resampledInternalBufSizeInFrames = (int) _resampledInternalBufSizeInFrames;
 	outputBufSizeInFrames = (int) _outputBufSizeInFrames;
 	ringBufSizeMultiplier = (int) _ringBufSizeMultiplier;
-	emptyBufsQueue = new BlockingByteBufferQueue(_ringBufSizeMultiplier);
-	partialBufMarkInFrames = 0;
-	fullBufsQueue = new BlockingByteBufferQueue(_ringBufSizeMultiplier);
-	for (int i = 0; i < ringBufSizeMultiplier; i++) {
-		char *newBuf = (char*) malloc(outputBufSizeInFrames * 4);
-		emptyBufsQueue->put(newBuf);
-		allBufsQueue.push(newBuf);
+	queue = new OutputFrameQueue(ringBufSizeMultiplier, outputBufSizeInFrames);
+	if (!queue->isValid()) {
+		delete queue;
+		return false;
 	}
+	pauseRequest = PAUSE_REQUEST_NONE;
+	numUnderruns = 0;
 
 	// setup resampler
 	resampler = new SuperpoweredResampler();
@@ -149,10 +130,9 @@ JNIEXPORT jboolean JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_setupSuperp
 	resampler->rate = (double) internalSamplerate / (double) outputSamplerate;
 
 	// init synch stuff
-	if (!pauseMutexInitialized) {
-		pthread_mutex_init(&pauseMutex, NULL);
-		pthread_cond_init(&pauseCond, NULL);
-		pauseMutexInitialized = true;
+	if (!semsInitialized) {
+		sem_init(&pausedSem, 0, 0);
+		semsInitialized = true;
 	}
 
 	audioSystem = new SuperpoweredAndroidAudioIO(outputSamplerate, outputBufSizeInFrames, false, true, audioCallback, 0, -1, SL_ANDROID_STREAM_MEDIA, 0);
@@ -161,33 +141,24 @@ JNIEXPORT jboolean JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_setupSuperp
 	return true;
 }
 
+// asks the callback to pause and waits until it has
+void waitForPause(int request) {
+	pauseRequest = request;
+	while (playing)
+		sem_wait(&pausedSem);
+}
+
 void synchPause() {
-	if (playing) {
-		pthread_mutex_lock(&pauseMutex);
-		// signal synchronized pause
-		fullBufsQueue->putSpecialFront(NULL); // put marker in front of queue
-		while (playing)
-			pthread_cond_wait(&pauseCond, &pauseMutex);
-		pthread_mutex_unlock(&pauseMutex);
-	}
+	if (playing) waitForPause(PAUSE_REQUEST_NOW);
 }
 
 void synchFlushAndPause() {
 	if (!playing) return;
 
-	// flush partial buffer?
-	if (partialBufMarkInFrames > 0) {	// continue to fill partial buffer?
-		memset(partialBuf + partialBufMarkInFrames * 4, 0, (outputBufSizeInFrames - partialBufMarkInFrames) * 4);
-		fullBufsQueue->put(partialBuf);	// might block
-		partialBufMarkInFrames = 0;
-	}
+	// flush partial buffer
+	queue->flush();
 
-	pthread_mutex_lock(&pauseMutex);
-	// signal synchronized pause
-	fullBufsQueue->putSpecial(NULL); // put marker at the end of queue
-	while (playing)
-		pthread_cond_wait(&pauseCond, &pauseMutex);
-	pthread_mutex_unlock(&pauseMutex);
+	waitForPause(PAUSE_REQUEST_FLUSHED);
 }
 
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_shutdownSuperpowered(JNIEnv *env, jobject thiz) {
@@ -198,39 +169,42 @@ JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_shutdownSuperpo
 	audioSystem->stop();
     delete audioSystem;
 	delete resampler;
-	delete fullBufsQueue;
-	delete emptyBufsQueue;
+	delete queue;
     free(resampleInBuf);
     free(resampleTmpBuf);
-	while (allBufsQueue.size() > 0) {
-		free(allBufsQueue.front());
-		allBufsQueue.pop();
-	}
 }
 
-JNIEXPORT int JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_resample(JNIEnv *env, jobject thiz, jbyteArray input, jbyteArray output) {
-	jshort *inputArr = (jshort*) env->GetPrimitiveArrayCritical(input, NULL);
+JNIEXPORT int JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_resample(JNIEnv *env, jobject thiz, jobject input, jobject output) {
+	// direct buffers, output is written in place. input is still copied, the resampler wants 64 samples of
+	// room behind it (see Superpowered docs)
+	jshort *inputArr = (jshort*) env->GetDirectBufferAddress(input);
+	jshort *outputArr = (jshort*) env->GetDirectBufferAddress(output);
+	if (inputArr == NULL || outputArr == NULL || env->GetDirectBufferCapacity(input) < internalBufSizeInFrames * 4
+			|| env->GetDirectBufferCapacity(output) < resampledInternalBufSizeInFrames * 4) return 0;
 	memcpy(resampleInBuf, inputArr, internalBufSizeInFrames * 4);
-	env->ReleasePrimitiveArrayCritical(input, inputArr, JNI_ABORT);
 
-	jshort *outputArr = (jshort*) env->GetPrimitiveArrayCritical(output, NULL);
-	int numResampledSamples = resampler->process(resampleInBuf, resampleTmpBuf, outputArr, internalBufSizeInFrames);
-	env->ReleasePrimitiveArrayCritical(output, (jbyte*)outputArr, 0);
-	return numResampledSamples;
+	return resampler->process(resampleInBuf, resampleTmpBuf, outputArr, internalBufSizeInFrames);
 }
 
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativePlay(JNIEnv *env, jobject thiz, jboolean clearRingBuf) {
-	if (clearRingBuf) {
-		for (int i; i < fullBufsQueue->getNumElems(); i++)
-			emptyBufsQueue->put(fullBufsQueue->take());
-	}
-	if (partialBufMarkInFrames > 0) { // partial buffer is in use
-		emptyBufsQueue->put(partialBuf);
-		partialBufMarkInFrames = 0;
-	}
+	// the callback does not touch the ring while paused
+	queue->restart(clearRingBuf);	// partial buffer is refilled from its start
+	pauseRequest = PAUSE_REQUEST_NONE;
+	__sync_synchronize();
 	playing = true;
 }
 
+// pull rendering: the writer renders once the callback has taken enough buffers, so it renders with the freshest
+// parameters instead of far ahead. returns right away while paused.
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativeWaitForRenderRequest(JNIEnv *env, jobject thiz,
+		jint maxNumBufferedFrames) {
+	queue->waitForRenderRequest(maxNumBufferedFrames, &playing);
+}
+
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_getNumUnderruns(JNIEnv *env, jobject thiz) {
+	return numUnderruns;
+}
+
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativePause(JNIEnv *env, jobject thiz) {
 	synchPause();
 }
@@ -239,9 +213,10 @@ JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativeFlushAndP
 	synchFlushAndPause();
 }
 
-JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_linearFade(JNIEnv *env, jobject thiz, jbyteArray buf,
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_linearFade(JNIEnv *env, jobject thiz, jobject buf,
 		jint numFrames, int sign) {
-	jshort *bufArr = (jshort*) env->GetPrimitiveArrayCritical(buf, NULL);
+	jshort *bufArr = (jshort*) env->GetDirectBufferAddress(buf);
+	if (bufArr == NULL || env->GetDirectBufferCapacity(buf) < numFrames * 4) return;
 
 	float currentScaling = 0.0f;
 	float scalingIncrement = 1.0f / (float) numFrames;
@@ -254,7 +229,5 @@ JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_linearFade(JNIE
 		bufArr[i+1] = round((float) bufArr[i+1] * currentScaling);
 		currentScaling += scalingIncrement;
 	}
-
-	env->ReleasePrimitiveArrayCritical(buf, bufArr, 0);
 }
 
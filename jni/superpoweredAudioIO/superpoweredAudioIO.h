@@ -32,15 +32,18 @@ JNIEXPORT jboolean JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_setupSuperp
 		jint _internalBufSizeInFrames, jint _resampledInternalBufSizeInFrames, jint _outputBufSizeInFrames,
 		jint internalSamplerate, jint outputSamplerate, jint _ringBufSizeMultiplier);
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_shutdownSuperpowered(JNIEnv *env, jobject thiz);
-JNIEXPORT int JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_resample(JNIEnv *env, jobject thiz, jbyteArray input,
-		jbyteArray output);
+JNIEXPORT int JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_resample(JNIEnv *env, jobject thiz, jobject input,
+		jobject output);
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativePlay(JNIEnv *env, jobject thiz, jboolean clearRingBuf);
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativePause(JNIEnv *env, jobject thiz);
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativeFlushAndPause(JNIEnv *env, jobject thiz);
-JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_linearFade(JNIEnv *env, jobject thiz, jbyteArray buf,
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_linearFade(JNIEnv *env, jobject thiz, jobject buf,
 		jint numFrames, jint sign);
 JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_enqueueSamples(JNIEnv *env, jobject thiz,
-		jbyteArray jBuf, jint numFrames);
+		jobject jBuf, jint numFrames);
+JNIEXPORT void JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_nativeWaitForRenderRequest(JNIEnv *env, jobject thiz,
+		jint maxNumBufferedFrames);
+JNIEXPORT jint JNICALL Java_net_ptrbrtz_adbs_SuperpoweredAudioIO_getNumUnderruns(JNIEnv *env, jobject thiz);
 
 #ifdef __cplusplus 
 } 
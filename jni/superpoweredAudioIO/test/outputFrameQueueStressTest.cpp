@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+
+/*
+ * Host stress test of OutputFrameQueue, the writer and callback sides superpoweredAudioIO uses: a writer thread
+ * enqueues runs of random length and waits while the ring is full, a simulated audio callback dequeues one buffer
+ * at a time with irregular timing, never blocks and plays silence (an underrun) when the ring is empty. The samples
+ * are a running counter, so any lost, repeated or torn buffer shows up as an error.
+ * With "pull", the writer renders short blocks only when the callback asks for them (see
+ * nativeWaitForRenderRequest()): less than one buffer may be waiting when it starts rendering.
+ * Not part of the android build. On Linux:
+ *
+ * g++ -O2 -pthread -I.. outputFrameQueueStressTest.cpp -o /tmp/queuetest && /tmp/queuetest [numSlots] [numSamples] [pull]
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include <stdlib.h>
+#include <pthread.h>
+#include <sched.h>
+#include <unistd.h>
+#include "OutputFrameQueue.h"
+
+static const int NUM_FRAMES = 64;	// per buffer, one int sample per frame
+
+static OutputFrameQueue *queue;
+static volatile bool writerDone = false;
+static volatile bool playing = true;
+
+// writer only
+static int maxNumBufferedSeen = 0;	// when starting to render, pull rendering
+
+// callback only
+static long long numCallbacks = 0;
+static long long numPlayed = 0;
+static long long numUnderruns = 0;
+static long long numErrors = 0;
+
+static void *callbackThread(void *) {
+	int out[NUM_FRAMES];
+	int expected = 0;
+	unsigned int seed = 7;
+	while (!writerDone || queue->getNumFilledSlots() > 0) {
+		numCallbacks++;
+		if (!queue->dequeue((char*) out)) {
+			memset(out, 0, sizeof(out));
+			numUnderruns++;
+		} else {
+			for (int i = 0; i < NUM_FRAMES; i++) {
+				if (out[i] != expected) {
+					numErrors++;
+					expected = out[i];
+				}
+				expected++;
+			}
+			numPlayed++;
+		}
+
+		// irregular callback timing
+		int r = rand_r(&seed) % 4;
+		if (r == 1) usleep(rand_r(&seed) % 50);
+		else if (r == 2) sched_yield();
+	}
+	return NULL;
+}
+
+int main(int argc, char **argv) {
+	int numSlots = (argc > 1) ? atoi(argv[1]) : 3;
+	int numSamples = (argc > 2) ? atoi(argv[2]) : 20000000;
+	bool pull = (argc > 3) && strcmp(argv[3], "pull") == 0;
+	queue = new OutputFrameQueue(numSlots, NUM_FRAMES);
+	if (!queue->isValid()) return 1;
+	pthread_t thread;
+	pthread_create(&thread, NULL, callbackThread, NULL);
+
+	int samples[300];
+	int counter = 0;
+	unsigned int seed = 3;
+	while (counter < numSamples) {
+		if (pull) {
+			queue->waitForRenderRequest(NUM_FRAMES, &playing);	// one output buffer
+			int numBuffered = queue->getNumBufferedFrames();
+			if (numBuffered > maxNumBufferedSeen) maxNumBufferedSeen = numBuffered;
+		}
+		int n = 1 + rand_r(&seed) % (pull ? 50 : 300);
+		for (int i = 0; i < n; i++) samples[i] = counter++;
+		queue->enqueue((char*) samples, n);
+		if (rand_r(&seed) % 8 == 0) usleep(rand_r(&seed) % 30);
+	}
+
+	// complete the last buffer with the counter rather than flush()'s silence, so it is checked too
+	while (counter % NUM_FRAMES != 0) {
+		int sample = counter++;
+		queue->enqueue((char*) &sample, 1);
+	}
+	writerDone = true;
+	pthread_join(thread, NULL);
+
+	long long numBuffers = counter / NUM_FRAMES;
+	printf("%d slots: %lld of %lld buffers played, %lld callbacks, %lld underruns, %lld errors\n", numSlots, numPlayed,
+			numBuffers, numCallbacks, numUnderruns, numErrors);
+	if (pull) printf("at most %d frames buffered when rendering (less than %d)\n", maxNumBufferedSeen, NUM_FRAMES);
+	delete queue;
+	return (numErrors == 0 && numPlayed == numBuffers && maxNumBufferedSeen < NUM_FRAMES) ? 0 : 1;
+}
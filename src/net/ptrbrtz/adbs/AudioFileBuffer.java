@@ -24,16 +24,39 @@ package net.ptrbrtz.adbs;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import android.util.Log;
+import net.ptrbrtz.adbs.android.utils.Log;
+import net.ptrbrtz.adbs.android.utils.WaveFileInfo;
 
 /**
  * Class that reads and buffers data from an audio file.
- * Buffering takes place in background using extra thread.
+ * Buffering takes place in background, in the thread of the AudioIOScheduler shared by all buffers.
+ * The buffer is a direct buffer (see FirFilter.allocateBuffer()) of float samples: the buffering thread reads 16 bit
+ * pcm and converts it to float with the source's gain applied, so the audio thread only has to filter.
+ * It is circular: the current window starts at getWindowStart() and wraps around the end of the buffer. Advancing the
+ * window by one chunk frees the chunk at its old start, which is refilled next, so the overlap is never moved.
+ * The buffer holds the window plus further chunks read ahead. They are handed from the buffering thread (producer) to
+ * the audio thread (consumer) without locks: the producer only writes chunks that are not part of the current window
+ * and publishes them by counting them. If the chunk of the current window is late, pollChunk() returns false right
+ * away (the source is silent for this block) instead of blocking. The chunk still arrives in order, so the source
+ * stays in sync and its overlap is complete again once the producer has caught up.
+ * Audio data in memory or mapped from the file (see mapAudioData()) is converted in place, without being copied first,
+ * and seeking or looping is just setting a position. Pages of mapped data are touched a few chunks ahead, so the
+ * conversion does not wait for the disk (also not at the loop point).
+ * Audio data in memory (not mapped) can not keep the audio thread waiting, so it is converted by the thread calling
+ * bufferNextChunk() right away, without going through the AudioIOScheduler.
+ * The peak of each chunk is noted while converting it, so the audio thread can skip filtering silent windows (see
+ * isSilent()). With a LoudnessIndex of the file, silent stretches are not even read, only zeroed.
+ * A file at another sample rate than the buffer is converted while buffering, by a Resampler. Then audio data in
+ * memory is converted in background too, not to keep the audio thread busy.
  *  
  * @author Peter Bartz
  */
-public class AudioFileBuffer extends Thread {
+public class AudioFileBuffer {
 	private static final String TAG = "AudioFileBuffer";
 	
 	public static final int STATUS_OK_RUNNING = 0;
@@ -41,33 +64,137 @@ public class AudioFileBuffer extends Thread {
 	public static final int STATUS_OK_QUIT = 2;
 	public static final int STATUS_ERROR_QUIT = 3;
 	
-	private byte[] buffer;
-	private int bufferOffset;
+	private static final int SAMPLE_SIZE = FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES;
+	private static final int PREFETCH_NUM_CHUNKS = 8;
+	private static final int PAGE_SIZE = 4096;
+	private static final int SILENCE_THRESHOLD = GlobalData.SILENCE_THRESHOLD;
+	
+	private ByteBuffer buffer;	// float samples, only accessed absolutely
+	private ByteBuffer windowView;	// duplicate of buffer for copyWindow(), used by the consumer only
+	private ByteBuffer pcmBuffer;	// streaming only: one chunk of 16 bit samples as read from the file, before conversion
+	private Resampler resampler;	// null: the file has the sample rate of the buffer
+	private int numFlushedSamples;	// of silence after the end of the stream, pushed through the resampler
+	private int bufferOffset;	// overlap in bytes
+	private int chunkSize;	// in bytes
+	private int numChunks;	// number of chunks buffered, including the one of the current window
+	private volatile float gain;
 	private FileInputStream inStream;
+	private ByteBuffer audioData;	// instead of inStream: audio data in memory or mapped, only read
+	private boolean fillInCallingThread = false;	// audio data in memory, see bufferNextChunk()
+	private int audioDataPosition;
+	private byte prefetchSink;	// keeps the prefetching reads from being optimized away
 	private int streamStart;
+	private long streamPosition;	// streaming: position of the next read in the file
 	private int totalNumBytesRead;
-	private boolean bufferReady = false;
-	private boolean loop;
+	private volatile boolean loop;
+	private volatile LoudnessIndex loudnessIndex = null;
+	private int chunkPeak;	// of the chunk being filled, producer only
+	
+	// chunk k (counted from the start of the stream) completes window k. written only by the producer, read only by the
+	// consumer (and both reset by rewind(), which waits for the producer)
+	private volatile long numChunksWritten = 0;
+	private volatile long numChunksRead = 0;	// index of the current window
+	private volatile long endOfStreamChunk = Long.MAX_VALUE;	// first chunk not completely read from the stream
+	private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+	private final AudioIOScheduler scheduler = AudioIOScheduler.getInstance();
+	long scheduledDeadline;	// of the refill queued at the scheduler, see AudioIOScheduler.schedule()
+	AudioFileBuffer nextScheduled;	// next buffer in the scheduler's queue
+	private volatile int numUnderruns = 0;
+	private int[] chunkPeaks;	// highest absolute 16 bit sample of chunk k at k % numChunks, written before publishing it
+	
+	// consumer only, see isSilent(): number of silent samples up to the end of chunk silentRunChunk
+	private long silentRunChunk;
+	private int numSilentSamples;
 	
-	private boolean quit = false;
-	private int status;
+	private volatile boolean quit = false;
+	private volatile int status;	// of the producer, see getStatus()
 	
 	/**
-	 * Initializes this audio file buffer and starts buffering first chunk of data
+	 * Initializes this audio file buffer and starts buffering first chunk of data. The buffer holds the overlap
+	 * (bufferOffset bytes) and a whole number of chunks (chunkSize bytes), one window is the overlap and one chunk.
 	 * @param buffer
 	 * @param bufferOffset
+	 * @param chunkSize
 	 * @param inStream
 	 * @param streamLength
+	 * @param gain
 	 * @throws IOException 
 	 */
-	public AudioFileBuffer(byte[] buffer, int bufferOffset, FileInputStream inStream, int streamStart) throws IOException {
+	public AudioFileBuffer(ByteBuffer buffer, int bufferOffset, int chunkSize, FileInputStream inStream, int streamStart,
+			float gain) throws IOException {
+		this(buffer, bufferOffset, chunkSize, inStream, streamStart, gain, null);
+	}
+	
+	/**
+	 * Same as above, but converts the file's samples to the sample rate of the buffer with resampler (used by this
+	 * buffer only). null: no conversion.
+	 */
+	public AudioFileBuffer(ByteBuffer buffer, int bufferOffset, int chunkSize, FileInputStream inStream, int streamStart,
+			float gain, Resampler resampler) throws IOException {
+		init(buffer, bufferOffset, chunkSize, gain, resampler);
+		this.pcmBuffer = FirFilter.allocateBuffer(chunkSize / SAMPLE_SIZE * 2);
+		pcmBuffer.limit(0);	// nothing left for the resampler
+		setStream(inStream, streamStart);
+		bufferNextChunk();
+	}
+	
+	/**
+	 * Same as above, but reads from little endian audio data in memory instead of streaming a file, e.g. the data of a
+	 * SharedAudioFile used by several buffers at the same time or a mapped file (see mapAudioData()). audioData is
+	 * never written to, only its absolute contents up to its limit are used.
+	 * @param buffer
+	 * @param bufferOffset
+	 * @param chunkSize
+	 * @param audioData
+	 * @param gain
+	 */
+	public AudioFileBuffer(ByteBuffer buffer, int bufferOffset, int chunkSize, ByteBuffer audioData, float gain) {
+		this(buffer, bufferOffset, chunkSize, audioData, gain, null);
+	}
+	
+	/**
+	 * Same as above, with sample rate conversion (see above)
+	 */
+	public AudioFileBuffer(ByteBuffer buffer, int bufferOffset, int chunkSize, ByteBuffer audioData, float gain,
+			Resampler resampler) {
+		init(buffer, bufferOffset, chunkSize, gain, resampler);
+		this.audioData = audioData;
+		this.fillInCallingThread = !audioData.isDirect() && resampler == null;
+		audioDataPosition = 0;
+		totalNumBytesRead = 0;
+		status = STATUS_OK_RUNNING;
+		bufferNextChunk();
+	}
+	
+	private void init(ByteBuffer buffer, int bufferOffset, int chunkSize, float gain, Resampler resampler) {
 		this.buffer = buffer;
+		this.windowView = buffer.duplicate();
 		this.bufferOffset = bufferOffset;
+		this.chunkSize = chunkSize;
+		this.numChunks = (buffer.capacity() - bufferOffset) / chunkSize;
+		this.chunkPeaks = new int[numChunks];
+		this.gain = gain;
 		this.loop = false;
-		setStream(inStream, streamStart);
-		clearBuffer(0);
-		inStream.getChannel().position(streamStart);
-		this.start();
+		this.resampler = resampler;
+		resetResampler();
+		clearBuffer(0, buffer.capacity());
+		resetSilentRun();
+	}
+	
+	/**
+	 * Maps the data chunk of a wave file read only, in is positioned anywhere after the header (see WaveFileInfo).
+	 * Returns null if it can not be mapped (e.g. out of address space), the file can be streamed then.
+	 */
+	public static ByteBuffer mapAudioData(FileInputStream in, WaveFileInfo info) {
+		try {
+			FileChannel channel = in.getChannel();
+			long length = SharedAudioFile.getDataLength(channel, info);
+			return channel.map(FileChannel.MapMode.READ_ONLY, info.getFirstAudioByteIndex(), length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not map audio data, streaming it instead");
+			return null;
+		}
 	}
 	
 	/**
@@ -78,6 +205,7 @@ public class AudioFileBuffer extends Thread {
 	public synchronized void setStream(FileInputStream inStream, int streamStart) {
 		this.inStream = inStream;
 		this.streamStart = streamStart;
+		streamPosition = streamStart;
 		totalNumBytesRead = 0;
 		status = STATUS_OK_RUNNING;
 	}
@@ -85,8 +213,31 @@ public class AudioFileBuffer extends Thread {
 	public synchronized void rewind() throws IOException {
 		totalNumBytesRead = 0;
 		status = STATUS_OK_RUNNING;
-		clearBuffer(0);
-		inStream.getChannel().position(streamStart);
+		numChunksRead = 0;
+		numChunksWritten = 0;
+		endOfStreamChunk = Long.MAX_VALUE;
+		clearBuffer(0, buffer.capacity());
+		resetSilentRun();
+		seekToStreamStart();
+		resetResampler();
+	}
+	
+	private void resetResampler() {
+		if (resampler == null) return;
+		resampler.reset();
+		numFlushedSamples = 0;
+		if (pcmBuffer != null) pcmBuffer.limit(0);
+	}
+	
+	/**
+	 * Linear gain applied while converting to float, takes effect with the next chunk buffered
+	 */
+	public void setGain(float gain) {
+		this.gain = gain;
+	}
+	
+	public float getGain() {
+		return gain;
 	}
 	
 	public void setLoop(boolean loop) {
@@ -98,112 +249,407 @@ public class AudioFileBuffer extends Thread {
 	}
 	
 	/**
-	 * Wakes up underlying thread to load next chunk in background
+	 * Loudness of the audio file, silent stretches of it are zeroed instead of read and converted from the next chunk
+	 * buffered on. null: read everything.
 	 */
-	public synchronized void bufferNextChunk() {
-		bufferReady = false;
-		this.notify();
+	public void setLoudnessIndex(LoudnessIndex loudnessIndex) {
+		this.loudnessIndex = loudnessIndex;
 	}
 	
 	/**
-	 * Returns one of the STATUS_ constants
+	 * Has the chunks freed by advanceWindow() loaded in background, as soon as possible
 	 */
-	public synchronized int getStatus() {
-		return status;
+	public void bufferNextChunk() {
+		bufferNextChunk(System.nanoTime());
 	}
 	
-	public void clearBuffer(int offset) {
-		for (int i = offset; i < buffer.length; i++) {
-			buffer[i] = 0;
+	/**
+	 * Same as above, but the next chunk is needed by deadline (System.nanoTime()), chunks of other buffers with earlier
+	 * deadlines are loaded first (see AudioIOScheduler). Does not block, unless audio data in memory is converted in
+	 * the calling thread.
+	 */
+	public void bufferNextChunk(long deadline) {
+		if (fillInCallingThread) {
+			fillChunks();
+			return;
+		}
+		if (refillScheduled.compareAndSet(false, true))	// not loaded yet otherwise, one refill is enough
+			scheduler.schedule(this, deadline);
+	}
+	
+	/**
+	 * Returns one of the STATUS_ constants, end of stream once the current window has reached it
+	 */
+	public int getStatus() {
+		int status = this.status;
+		if (status != STATUS_OK_END_OF_STREAM) return status;
+		return (numChunksRead >= endOfStreamChunk) ? STATUS_OK_END_OF_STREAM : STATUS_OK_RUNNING;
+	}
+	
+	/**
+	 * Number of times pollChunk() found the chunk of the current window not buffered yet
+	 */
+	public int getNumUnderruns() {
+		return numUnderruns;
+	}
+	
+	/**
+	 * Zeroes length bytes from offset on, wrapping around the end of the buffer
+	 */
+	public void clearBuffer(int offset, int length) {
+		int capacity = buffer.capacity();
+		for (int i = 0; i < length; i++) {
+			buffer.put((offset + i) % capacity, (byte) 0);
 		}
 	}
+	
+	/**
+	 * Overlap-save + cross-fade overlap save: moves the window one chunk on, the last bufferOffset
+	 * bytes, which the next block still needs, stay where they are. Call before bufferNextChunk().
+	 * Also if the chunk of the current window was late, so the source keeps its position in time.
+	 */
+	public void advanceWindow() {
+		numChunksRead = numChunksRead + 1;	// only written by the consumer
+	}
+	
+	/**
+	 * Sample at which the current window starts in the circular buffer
+	 */
+	public int getWindowStart() {
+		return (int) (numChunksRead * chunkSize % buffer.capacity()) / SAMPLE_SIZE;
+	}
+	
+	/**
+	 * Copies the current window to dest, unwrapped (starting at sample 0)
+	 */
+	public void copyWindow(ByteBuffer dest) {
+		int windowStart = getWindowStart() * SAMPLE_SIZE;
+		int windowSize = bufferOffset + chunkSize;
+		int firstSegmentSize = Math.min(windowSize, buffer.capacity() - windowStart);
+		dest.clear();
+		windowView.limit(windowStart + firstSegmentSize);
+		windowView.position(windowStart);
+		dest.put(windowView);
+		windowView.limit(windowSize - firstSegmentSize);
+		windowView.position(0);
+		dest.put(windowView);
+	}
 
 	/**
-	 * Stops underlying thread responsible for filling buffer in background
+	 * Stops filling buffer in background
 	 */
 	public synchronized void dispose() {
 		quit = true;
-		this.notify();
+		status = STATUS_OK_QUIT;
+		this.notifyAll();
+	}
+	
+	// the chunk of the current window is buffered (or there is nothing to wait for)
+	private boolean isChunkReady() {
+		return numChunksWritten > numChunksRead || quit || status == STATUS_ERROR_QUIT;
+	}
+	
+	/**
+	 * Lock-free check for the audio thread: true if the current window can be read (see getBuffer()), false and
+	 * counted as underrun if its chunk is not buffered yet
+	 */
+	public boolean pollChunk() {
+		if (isChunkReady()) return true;
+		numUnderruns++;	// only written by the consumer
+		return false;
+	}
+	
+	/**
+	 * True if no sample of the numSamples samples up to the end of the current window is above the silence threshold
+	 * (see GlobalData.SILENCE_THRESHOLD). Filtering the source can be skipped then, if numSamples covers all input the
+	 * filter still remembers (see AudioScene.getSilenceSpanInSamples()). Audio before the start of the stream counts
+	 * as silent. For the consumer, once the chunk of the current window is buffered (false otherwise).
+	 */
+	public boolean isSilent(int numSamples) {
+		long chunk = numChunksRead;
+		if (numChunksWritten <= chunk) return false;
+		if (silentRunChunk != chunk) {
+			if (silentRunChunk != chunk - 1) numSilentSamples = 0;	// chunks in between were not looked at (late)
+			if (chunkPeaks[(int) (chunk % numChunks)] <= SILENCE_THRESHOLD)
+				numSilentSamples = (int) Math.min((long) numSilentSamples + chunkSize / SAMPLE_SIZE, Integer.MAX_VALUE);
+			else
+				numSilentSamples = 0;
+			silentRunChunk = chunk;
+		}
+		return numSilentSamples >= numSamples;
+	}
+	
+	private void resetSilentRun() {
+		silentRunChunk = -1;
+		numSilentSamples = Integer.MAX_VALUE;
 	}
 	
 	/**
 	 * Should be used instead of holding reference to buffer, as it will
-	 * block if buffer not fully filled again
+	 * block if buffer not fully filled again (only takes a lock then)
 	 * 
 	 * @return Buffer
 	 */
-	public synchronized byte[] getBuffer() {
-		while (!bufferReady) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
-				Log.e(TAG, "InterruptedException");
-				status = STATUS_ERROR_QUIT;
-				break;
-
+	public ByteBuffer getBuffer() {
+		if (isChunkReady()) return buffer;
+		synchronized (this) {
+			while (!isChunkReady()) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Log.e(TAG, "InterruptedException");
+					status = STATUS_ERROR_QUIT;
+					break;
+				}
 			}
 		}
 		return buffer;
 	}
 	
-	@Override
-	public synchronized void run() {
-		int read, numRead;
-		int bytesToRead;
-		
-		status = STATUS_OK_RUNNING;
-		
+	/**
+	 * Loads all free chunks, called by the AudioIOScheduler's thread (or in bufferNextChunk(), see there)
+	 */
+	void fillChunks() {
+		refillScheduled.set(false);	// before looking for free chunks, so no request gets lost
 		while (true) {
-			// stop thread?
-			if (quit) break;
-			
-			try {
-				// buffer one chunk of data
-				if (status == STATUS_OK_END_OF_STREAM) {
-					clearBuffer(bufferOffset);
+			synchronized (this) {
+				// a chunk may be written as soon as it is not part of the current window any more
+				if (quit || status == STATUS_ERROR_QUIT || numChunksWritten - numChunksRead >= numChunks) return;
+				fillChunk(numChunksWritten);
+				numChunksWritten = numChunksWritten + 1;	// publishes the chunk, only written by the producer
+				
+				// wake up possibly waiting consumer thread (also on error, it has to see the status)
+				this.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Refilling failed unexpectedly (see AudioIOScheduler): the buffer is not filled any more and a consumer waiting
+	 * in getBuffer() sees the error status
+	 */
+	synchronized void failFill() {
+		status = STATUS_ERROR_QUIT;
+		this.notifyAll();
+	}
+	
+	private void fillChunk(long chunk) {
+		// chunk k follows the overlap of window k and may wrap around
+		int fillStart = (int) ((chunk * chunkSize + bufferOffset) % buffer.capacity());
+		int numSamples = 0;
+		chunkPeak = 0;
+		try {
+			if (status == STATUS_OK_RUNNING) {
+				if (resampler != null) {
+					numSamples = resample(fillStart);
+				} else if (audioData != null) {
+					numSamples = convertAudioData(fillStart);
 				} else {
-					// determine how many bytes to read
-					bytesToRead = buffer.length - bufferOffset;
-					
-					// read data from stream
-					numRead = 0;
-					while (numRead < bytesToRead) {
-						read = inStream.read(buffer, bufferOffset + numRead, bytesToRead - numRead);
-						
-						// end of stream reached? loop?
-						if (read == -1) {
-							if (!loop) {
-								status = STATUS_OK_END_OF_STREAM;
-								
-								// fill remaining buffer with zeros
-								clearBuffer(bufferOffset + numRead);
-								break;
-							} else { // loop
-								inStream.getChannel().position(streamStart);
-							}
-						} else  {
-							numRead += read;
-						}
-					}
-					totalNumBytesRead += numRead;
+					numSamples = readStream(fillStart);
 				}
+				if (audioData != null) prefetchAudioData();
+				if (status == STATUS_OK_END_OF_STREAM) endOfStreamChunk = chunk;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "IOException");
+			status = STATUS_ERROR_QUIT;
+		}
+		
+		// fill remaining chunk with zeros
+		clearBuffer((fillStart + numSamples * SAMPLE_SIZE) % buffer.capacity(), chunkSize - numSamples * SAMPLE_SIZE);
+		chunkPeaks[(int) (chunk % numChunks)] = chunkPeak;
+	}
 
-				// wait until someone asks us to buffer more data
-				bufferReady = true;
-				this.notify();	// wake up possibly waiting consumer thread
-				this.wait();
-			} catch (InterruptedException e) {
-				Log.e(TAG, "InterruptedException");
-				status = STATUS_ERROR_QUIT;
-				break;
-			} catch (IOException e) {
-				Log.e(TAG, "IOException");
-				status = STATUS_ERROR_QUIT;
-				break;
+	// reads one chunk from the stream and converts it into buffer from byte offset fillStart on, returns the number of
+	// samples read (less than a chunk at the end of the stream)
+	private int readStream(int fillStart) throws IOException {
+		int read;
+		int bytesToRead = pcmBuffer.capacity();
+		int numRead = 0;
+		
+		// silent according to the index: skip reading it
+		LoudnessIndex index = loudnessIndex;
+		int position = (int) ((streamPosition - streamStart) / 2);
+		if (index != null && position + bytesToRead / 2 <= index.getNumSamples()
+				&& index.getPeak(position, bytesToRead / 2) <= SILENCE_THRESHOLD) {
+			streamPosition += bytesToRead;
+			totalNumBytesRead += bytesToRead;
+			clearSamples(fillStart, bytesToRead / 2);
+			return bytesToRead / 2;
+		}
+		
+		while (numRead < bytesToRead) {
+			pcmBuffer.limit(bytesToRead);
+			pcmBuffer.position(numRead);
+			read = inStream.getChannel().read(pcmBuffer, streamPosition);	// positional, the channel is not moved
+			
+			// end of stream reached? loop?
+			if (read == -1) {
+				if (!loop) {
+					status = STATUS_OK_END_OF_STREAM;
+					break;
+				} else { // loop
+					seekToStreamStart();
+				}
+			} else  {
+				numRead += read;
+				streamPosition += read;
 			}
 		}
+		totalNumBytesRead += numRead;
 		
-		status = STATUS_OK_QUIT;
+		chunkPeak = Math.max(chunkPeak, convert(pcmBuffer, 0, fillStart, numRead / 2));
+		return numRead / 2;
+	}
+	
+	// same as above, but converts straight from the audio data in memory
+	private int convertAudioData(int fillStart) {
+		LoudnessIndex index = loudnessIndex;
+		int chunkNumSamples = chunkSize / SAMPLE_SIZE;
+		int numSamples = 0;
+		while (numSamples < chunkNumSamples) {
+			int n = Math.min(chunkNumSamples - numSamples, (audioData.limit() - audioDataPosition) / 2);
+			
+			// end of data reached? loop?
+			if (n == 0) {
+				if (!loop || audioData.limit() < 2) {
+					status = STATUS_OK_END_OF_STREAM;
+					break;
+				}
+				audioDataPosition = 0;
+				continue;
+			}
+			
+			int offset = (fillStart + numSamples * SAMPLE_SIZE) % buffer.capacity();
+			if (index != null && index.getPeak(audioDataPosition / 2, n) <= SILENCE_THRESHOLD)
+				clearSamples(offset, n);	// silent according to the index, not read at all
+			else
+				chunkPeak = Math.max(chunkPeak, convert(audioData, audioDataPosition, offset, n));
+			audioDataPosition += n * 2;
+			numSamples += n;
+		}
+		totalNumBytesRead += numSamples * 2;
+		return numSamples;
+	}
+	
+	// same as above, but converts the sample rate on the way: input is taken piece by piece as the resampler needs it,
+	// what it did not take of a piece is taken by the next chunk. after the end of the stream, the input the filter
+	// still looks ahead to is flushed with silence.
+	private int resample(int fillStart) throws IOException {
+		LoudnessIndex index = loudnessIndex;
+		int chunkNumSamples = chunkSize / SAMPLE_SIZE;
+		int numSamples = 0;
+		float peak = 0.0f;
+		while (numSamples < chunkNumSamples) {
+			int offset = (fillStart + numSamples * SAMPLE_SIZE) % buffer.capacity();
+			ByteBuffer input;
+			int inputOffset;
+			int n;
+			if (audioData != null) {
+				if (audioDataPosition == audioData.limit() && loop && audioData.limit() >= 2) audioDataPosition = 0;
+				input = audioData;
+				inputOffset = audioDataPosition;
+				n = (audioData.limit() - audioDataPosition) / 2;
+				if (index != null && n > 0) {
+					n = Math.min(n, chunkNumSamples);
+					if (index.getPeak(audioDataPosition / 2, n) <= SILENCE_THRESHOLD)
+						input = null;	// silent according to the index, not read at all
+				}
+			} else {
+				if (pcmBuffer.position() == pcmBuffer.limit()) readStreamPiece();
+				input = pcmBuffer;
+				inputOffset = pcmBuffer.position();
+				n = pcmBuffer.remaining() / 2;
+			}
+			
+			// end of data reached: flush, then end
+			boolean endOfData = (n == 0);
+			if (endOfData) {
+				n = resampler.getLookahead() - numFlushedSamples;
+				if (n == 0) {
+					status = STATUS_OK_END_OF_STREAM;
+					break;
+				}
+				input = null;
+			}
+			
+			numSamples += resampler.process(input, inputOffset, n, buffer, offset, chunkNumSamples - numSamples, gain);
+			peak = Math.max(peak, resampler.getPeak());
+			int numConsumed = resampler.getNumConsumed();
+			if (endOfData) {
+				numFlushedSamples += numConsumed;
+				continue;
+			}
+			if (audioData != null) audioDataPosition += numConsumed * 2;
+			else pcmBuffer.position(pcmBuffer.position() + numConsumed * 2);
+			totalNumBytesRead += numConsumed * 2;
+		}
+		chunkPeak = (int) Math.ceil(peak);
+		return numSamples;
+	}
+	
+	// reads the next piece of the stream into pcmBuffer (between its position and limit), nothing at its end
+	private void readStreamPiece() throws IOException {
+		pcmBuffer.clear();
+		int read = inStream.getChannel().read(pcmBuffer, streamPosition);	// positional, the channel is not moved
+		if (read == -1 && loop) {
+			seekToStreamStart();
+			read = inStream.getChannel().read(pcmBuffer, streamPosition);
+		}
+		read = Math.max(read, 0) & ~1;	// whole samples only, a single byte at the end is dropped
+		streamPosition += read;
+		pcmBuffer.position(0);
+		pcmBuffer.limit(read);
+	}
+	
+	// converts numSamples 16 bit samples from source to float with gain, into buffer from byte offset on (wrapping),
+	// returns their highest absolute value
+	private int convert(ByteBuffer source, int sourceOffset, int offset, int numSamples) {
+		float gain = this.gain;
+		int capacity = buffer.capacity();
+		int peak = 0;
+		for (int i = 0, j = offset; i < numSamples; i++) {
+			int sample = source.getShort(sourceOffset + 2 * i);
+			buffer.putFloat(j, sample * gain);
+			if (sample > peak) peak = sample;
+			else if (-sample > peak) peak = -sample;
+			j += SAMPLE_SIZE;
+			if (j == capacity) j = 0;
+		}
+		return peak;
+	}
+	
+	// zeroes numSamples float samples from byte offset on (wrapping)
+	private void clearSamples(int offset, int numSamples) {
+		int capacity = buffer.capacity();
+		for (int i = 0, j = offset; i < numSamples; i++) {
+			buffer.putFloat(j, 0.0f);
+			j += SAMPLE_SIZE;
+			if (j == capacity) j = 0;
+		}
+	}
+	
+	// touches one byte per page of the next chunks of mapped audio data, so they are read from disk now, a few chunks
+	// before they are needed. pages already in memory cost next to nothing.
+	private void prefetchAudioData() {
+		int limit = audioData.limit();
+		if (!audioData.isDirect() || limit == 0) return;
+		LoudnessIndex index = loudnessIndex;
+		int prefetchSize = PREFETCH_NUM_CHUNKS * chunkSize / SAMPLE_SIZE * 2;
+		for (int i = 0; i < prefetchSize; i += PAGE_SIZE) {
+			int position = audioDataPosition + i;
+			if (position >= limit) {
+				if (!loop) break;
+				position %= limit;
+			}
+			if (index != null && index.getPeak(position / 2, PAGE_SIZE / 2) <= SILENCE_THRESHOLD) continue;	// not read
+			prefetchSink += audioData.get(position);
+		}
+	}
+	
+	private void seekToStreamStart() {
+		streamPosition = streamStart;
+		audioDataPosition = 0;
 	}
 
 	@Override
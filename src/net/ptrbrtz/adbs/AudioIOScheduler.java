@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.ptrbrtz.adbs.android.utils.Log;
+
+/**
+ * Single background thread that refills all AudioFileBuffers, instead of one thread per buffer (and sound source).
+ * Refills are served earliest deadline first, in order of request for equal deadlines, so the sources of a block are
+ * loaded together and a live scene is not held up by buffers that are needed later. A buffer is queued at most once
+ * (see AudioFileBuffer.bufferNextChunk()) and all refills pending at a wake up are served in one go.
+ * Requesting a refill is wait-free for the audio thread and allocates nothing: the buffer itself is the queue node
+ * (its deadline and next fields), pushed onto a lock-free stack. The scheduler thread takes the whole stack at once,
+ * sorts it into its own list by deadline and is woken by unpark() instead of a monitor.
+ * A refill that throws fails only its own buffer (see AudioFileBuffer.failFill()), the thread goes on with the others.
+ * 
+ * @author Peter Bartz
+ */
+class AudioIOScheduler extends Thread {
+	private static final String TAG = "AudioIOScheduler";
+
+	private static AudioIOScheduler instance = null;
+
+	private final AtomicReference<AudioFileBuffer> requests = new AtomicReference<AudioFileBuffer>(null);	// newest first
+	private AudioFileBuffer pending = null;	// scheduler thread only, earliest deadline first
+
+	private AudioIOScheduler() {
+		super(TAG);
+		setDaemon(true);	// idles while no audio is played, does not keep the process alive
+	}
+
+	// started with the first buffer
+	static synchronized AudioIOScheduler getInstance() {
+		if (instance == null) {
+			instance = new AudioIOScheduler();
+			instance.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Queues buffer for a refill by deadline (System.nanoTime()). buffer must not be queued already.
+	 */
+	void schedule(AudioFileBuffer buffer, long deadline) {
+		buffer.scheduledDeadline = deadline;
+		AudioFileBuffer head;
+		do {
+			head = requests.get();
+			buffer.nextScheduled = head;
+		} while (!requests.compareAndSet(head, buffer));
+		LockSupport.unpark(this);
+	}
+
+	// moves the requests made since the last call into the pending list, keeping their order for equal deadlines
+	private void takeRequests() {
+		AudioFileBuffer buffer = requests.getAndSet(null);
+		
+		// the stack holds the newest first
+		AudioFileBuffer reversed = null;
+		while (buffer != null) {
+			AudioFileBuffer next = buffer.nextScheduled;
+			buffer.nextScheduled = reversed;
+			reversed = buffer;
+			buffer = next;
+		}
+		
+		while (reversed != null) {
+			AudioFileBuffer next = reversed.nextScheduled;
+			insertPending(reversed);
+			reversed = next;
+		}
+	}
+
+	// behind all pending buffers with the same or an earlier deadline
+	private void insertPending(AudioFileBuffer buffer) {
+		AudioFileBuffer previous = null;
+		AudioFileBuffer current = pending;
+		while (current != null && !isEarlier(buffer.scheduledDeadline, current.scheduledDeadline)) {
+			previous = current;
+			current = current.nextScheduled;
+		}
+		buffer.nextScheduled = current;
+		if (previous == null) pending = buffer;
+		else previous.nextScheduled = buffer;
+	}
+
+	// nanoTime() values are compared by their difference, they may overflow
+	private static boolean isEarlier(long deadline, long other) {
+		return deadline - other < 0;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			takeRequests();
+			if (pending == null) {
+				LockSupport.park(this);	// until the next request (returns right away if it came in meanwhile)
+				continue;
+			}
+			
+			// unlinked before filling, the buffer may be queued again as soon as fillChunks() has started
+			AudioFileBuffer buffer = pending;
+			pending = buffer.nextScheduled;
+			buffer.nextScheduled = null;
+			try {
+				buffer.fillChunks();
+			} catch (Throwable e) {
+				Log.e(TAG, "Refilling buffer failed", e);
+				buffer.failFill();
+			}
+		}
+	}
+}
@@ -23,8 +23,10 @@ SOFTWARE.
 package net.ptrbrtz.adbs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -33,7 +35,7 @@ import android.graphics.Paint;
 import android.media.AudioManager;
 import android.os.Process;
 import android.util.FloatMath;
-import android.util.Log;
+import net.ptrbrtz.adbs.android.utils.Log;
 import net.ptrbrtz.adbs.android.utils.MathUtils;
 import net.ptrbrtz.adbs.android.utils.WaveFileInfo;
 
@@ -41,6 +43,7 @@ public class AudioScene {
 	private static final String TAG = "AudioScene";
 	private ArrayList<SoundSource> soundSources;
 	private ArrayList<SoundSource> selectedSoundSources;
+	private int[] soundSourceIOOwners = new int[0];	// [source] -> source whose audio file buffer it plays from
 	private Listener listener = null;
 	private float volume;	// in %
 	private AtomicBoolean volumeFlag = new AtomicBoolean(false);
@@ -48,10 +51,21 @@ public class AudioScene {
 	private AtomicBoolean transportStateFlag = new AtomicBoolean(false);
 	
 	private SuperpoweredAudioIO superpoweredAudioIO;
+	private FirFilter firFilter = new FirFilter();
+	private ParallelRenderer parallelRenderer = null;	// only used with more than one render worker
+	private PipelinedRenderer pipelinedRenderer = null;	// only used with pipeline stages
+	private JitterBufferController jitterBufferController = null;	// only used with adaptive ring buffer size
+	private volatile float outputLatencyBudget = 0.0f;	// in ms, see getOutputLatencyBudget()
 	private AudioThread audioThread;
 	private int sampleRate;
 	private int bitsPerSample;
 	private float[][][] hrirs = null;
+	private AudioBufferSettings bufSettings = null;
+	
+	// hrirs converted to another sample rate (see getHrirs()), kept for the next setupIO() with the same ones
+	private static float[][][] convertedHrirsSource = null;
+	private static float[][][] convertedHrirs = null;
+	private static int convertedHrirsSampleRate = 0;
 	private InternalAudioBufferSettings internalBufSettings = new InternalAudioBufferSettings();
 
 	private String sceneDescriptionFilePath;
@@ -64,14 +78,39 @@ public class AudioScene {
 		PLAYING, PAUSED
 	}
 	
+	public enum ConvolutionEngine {
+		SINGLE_FFT,				// whole filter in one fft, fft size grows with filter length
+		UNIFORM_PARTITIONED,	// filter split into partitions of one processing block, for long (room) hrirs
+		NON_UNIFORM_PARTITIONED,// short partitions for the head, growing ones for the tail (background thread), very long hrirs
+		AUTO					// chosen from filter length and processing block size
+	}
+	
+	// engine selection thresholds for ConvolutionEngine.AUTO, in filter partitions of one processing block
+	private static final int MAX_PARTITIONS_SINGLE_FFT = 2;
+	private static final int MAX_PARTITIONS_UNIFORM = 16;
+	// non-uniform partitioning handles the first 8 processing blocks of the filter (head) like uniform partitioning
+	private static final int NUM_HEAD_PARTITIONS_NON_UNIFORM = 8;
+	
+	// source attenuation before distance and scene volume are applied
+	public static final float DEFAULT_SAMPLE_SCALING = 2.0f;
+	
 	public static class AudioBufferSettings {
 		// float values are in ms, not samples
 		public float crossfadeOverlapSize;
 		public float processingBlockSize;
 		public int ringBufSizeMultiplier;
+		public ConvolutionEngine convolutionEngine = GlobalData.DEFAULT_CONVOLUTION_ENGINE;
+		public FirFilter.Backend firFilterBackend = GlobalData.DEFAULT_FIR_FILTER_BACKEND;
+		public int numRenderWorkers = GlobalData.DEFAULT_NUM_RENDER_WORKERS;
+		public int numPipelineStages = GlobalData.DEFAULT_NUM_PIPELINE_STAGES;	// 0: no pipelining, else added latency in blocks
+		public boolean pullRendering = GlobalData.DEFAULT_PULL_RENDERING;	// rendered on demand of the audio callback, ring buffer size and pipelining are ignored
+		public boolean adaptiveRingBufSize = GlobalData.DEFAULT_ADAPTIVE_RING_BUFFER;	// ringBufSizeMultiplier is the maximum, no pipelining
+		public int numReadAheadBlocks = GlobalData.DEFAULT_NUM_READ_AHEAD_BLOCKS;	// source audio buffered ahead, at least 1
+		public boolean renderAtNativeSampleRate = GlobalData.DEFAULT_RENDER_AT_NATIVE_SAMPLERATE;	// hrirs and sources are converted instead of the output
 	}
 
 	public static class InternalAudioBufferSettings {
+		public int sampleRate;	// rendering sample rate, sources are converted to it while buffering
 		public int monoAudioOutBlockSizeInBytes;
 		public int monoAudioOutBlockSizeInSamples;
 		public int minMonoFftBlockSizeInSamples;
@@ -80,10 +119,14 @@ public class AudioScene {
 		public int monoFftPaddingInBytes;
 		public int monoFftPaddingInSamples;
 		public int monoNumFilterCoeffFrames;
+		public ConvolutionEngine convolutionEngine;
+		public int monoFilterPartitionSizeInSamples;	// equals filter length if not partitioned
+		public int numFilterPartitions;
 		public int monoFilterOverlapInBytes;
 		public int monoFilterOverlapInSamples;
 		public int monoCrossfadeOverlapInBytes;
 		public int monoCrossfadeOverlapInSamples;
+		public int numReadAheadBlocks;
 	}
 	
 	public AudioScene() {
@@ -115,6 +158,14 @@ public class AudioScene {
 		return sampleRate;
 	}
 	
+	/**
+	 * Output latency added by buffering while playing, in ms: output buffers rendered ahead and played, and one
+	 * processing block. Changes at runtime with adaptive ring buffer size. The device's own latency comes on top.
+	 */
+	public float getOutputLatencyBudget() {
+		return outputLatencyBudget;
+	}
+	
 	public void setSampleRate(int sampleRate) {
 		this.sampleRate = sampleRate;
 	}
@@ -281,6 +332,18 @@ public class AudioScene {
 		selectedSoundSources.clear();
 	}
 	
+	/**
+	 * Number of blocks in which a source was silent because its audio was not buffered in time, summed over all sources
+	 */
+	public int getNumSourceUnderruns() {
+		int numUnderruns = 0;
+		for (int i = 0; i < soundSources.size(); i++) {
+			if (soundSources.get(i).ownsAudioFileBuffer())
+				numUnderruns += soundSources.get(i).getAudioFileBuffer().getNumUnderruns();
+		}
+		return numUnderruns;
+	}
+	
 	public int getNumSoundSources() {
 		return soundSources.size();
 	}
@@ -321,17 +384,136 @@ public class AudioScene {
 		return cachedNativeSamplerate;
 	}
 
+	/**
+	 * Returns angle with respect to x-axis in counterclockwise sense in radians
+	 * Uses x-is-north/y-is-east coordinate system
+	 * (1/0) is 0°
+	 * (0/-1) is 90°
+	 * (-1/0) is 180°
+	 * (0/1) is 270°
+	 * 
+	 * @param x x component of 2D vector
+	 * @return Angle in radians
+	 */
+	public static float angleX2Rad(float x, float y) {
+		float angle;
+		
+		if (x < 0.0f) {
+			angle = (float) (Math.PI - Math.atan(y/x));
+		} else if (x > 0.0f ) {
+			if (y > 0.0f) {
+				angle = (float) (2.0 * Math.PI - Math.atan(y/x));
+			} else {
+				angle = (float) (-Math.atan(y/x));
+			}
+		} else {
+			if (y > 0.0f) {
+				angle = (float) (1.5 * Math.PI);
+			} else if (y < 0.0f) {
+				angle = (float) (0.5 * Math.PI);
+			} else {
+				angle = 0.0f;
+			}
+		}
+		
+		return angle;
+	}
+
+	/**
+	 * Returns angle with respect x-axis in counterclockwise sense in degrees
+	 * Uses x-is-north/y-is-east coordinate system
+	 * (1/0) is 0
+	 * (0/-1) is Pi/2
+	 * (-1/0) is Pi
+	 * (0/1) is 3Pi/2
+	 * 
+	 * @param x x component of 2D vector
+	 * @return Angle in degrees
+	 */
+	public static float angleX2Deg(float x, float y) {
+		return (float) (angleX2Rad(x, y) * 180.0 / Math.PI);
+	}
+
+	/**
+	 * Returns hrtf index (0..359) of a source at sourceXY, as heard by the listener at 0/0 with the given azimuth
+	 */
+	public static int getHrtfIndex(float[] sourceXY, float listenerAzimuth) {
+		int angle = Math.round(angleX2Deg(-sourceXY[1], sourceXY[0]) + listenerAzimuth);
+		angle %= 360;
+		if (angle < 0) angle += 360;
+		return angle;
+	}
+	
+	/**
+	 * Returns sample scaling of a source at sourceXY, i.e. the given scaling attenuated by distance to the listener
+	 */
+	public static float getSampleScaling(float[] sourceXY, float scaling) {
+		// calculate distance of sound source (listener is at 0/0 always)
+		float distance = (float) Math.sqrt(sourceXY[0] * sourceXY[0] + sourceXY[1] * sourceXY[1]);
+		
+		// calculate sound source attenuation
+		// TODO different scaling for near field?
+		if (distance < 0.2f) {
+			distance = 0.2f;
+		}
+		return scaling / (float) Math.sqrt(distance);
+	}
+
+	/**
+	 * Resolves ConvolutionEngine.AUTO: short filters (compared to the processing block) are cheapest in one fft,
+	 * longer ones with uniform partitioning and very long ones with non-uniform partitioning. Also falls back to
+	 * uniform partitioning if the filter is too short for a non-uniform tail.
+	 */
+	public static ConvolutionEngine getConvolutionEngine(ConvolutionEngine engine, int filterLength, int blockSizeInSamples) {
+		int numPartitions = (filterLength + blockSizeInSamples - 1) / blockSizeInSamples;
+		
+		if (engine == ConvolutionEngine.AUTO) {
+			if (numPartitions <= MAX_PARTITIONS_SINGLE_FFT) return ConvolutionEngine.SINGLE_FFT;
+			else if (numPartitions <= MAX_PARTITIONS_UNIFORM) return ConvolutionEngine.UNIFORM_PARTITIONED;
+			else return ConvolutionEngine.NON_UNIFORM_PARTITIONED;
+		} else if (engine == ConvolutionEngine.NON_UNIFORM_PARTITIONED && numPartitions <= NUM_HEAD_PARTITIONS_NON_UNIFORM) {
+			return ConvolutionEngine.UNIFORM_PARTITIONED;
+		}
+		
+		return engine;
+	}
+
 	public void getInternalAudioBufferSettings(AudioBufferSettings in, int filterLength, InternalAudioBufferSettings out) {
-		out.monoAudioOutBlockSizeInSamples = Math.round(millisToSamples(in.processingBlockSize, sampleRate));
+		getInternalAudioBufferSettings(in, filterLength, sampleRate, out);
+	}
+	
+	/**
+	 * Same as above, but for rendering at renderSampleRate instead of the scene's sample rate (filterLength at that rate)
+	 */
+	public void getInternalAudioBufferSettings(AudioBufferSettings in, int filterLength, int renderSampleRate,
+			InternalAudioBufferSettings out) {
+		out.sampleRate = renderSampleRate;
+		out.monoAudioOutBlockSizeInSamples = Math.round(millisToSamples(in.processingBlockSize, renderSampleRate));
 		out.monoAudioOutBlockSizeInBytes = out.monoAudioOutBlockSizeInSamples * 2;
 
-		// calculate filter overlap
+		// calculate filter partitioning
 		out.monoNumFilterCoeffFrames =  filterLength;
-		out.monoFilterOverlapInSamples =out. monoNumFilterCoeffFrames - 1;	// for FIR filter
+		out.convolutionEngine = getConvolutionEngine(in.convolutionEngine, filterLength, out.monoAudioOutBlockSizeInSamples);
+		if (out.convolutionEngine == ConvolutionEngine.SINGLE_FFT) {
+			out.monoFilterPartitionSizeInSamples = out.monoNumFilterCoeffFrames;
+		} else {
+			// one partition per processing block, older partitions are applied to older input spectra
+			// (with non-uniform partitioning only for the head, the tail is partitioned natively)
+			out.monoFilterPartitionSizeInSamples = out.monoAudioOutBlockSizeInSamples;
+		}
+		if (out.convolutionEngine == ConvolutionEngine.NON_UNIFORM_PARTITIONED) {
+			out.numFilterPartitions = NUM_HEAD_PARTITIONS_NON_UNIFORM;
+		} else {
+			out.numFilterPartitions = (out.monoNumFilterCoeffFrames + out.monoFilterPartitionSizeInSamples - 1)
+					/ out.monoFilterPartitionSizeInSamples;
+		}
+		
+		// calculate filter overlap (only one partition has to be kept as input history)
+		out.monoFilterOverlapInSamples = out.monoFilterPartitionSizeInSamples - 1;	// for FIR filter
 		out.monoFilterOverlapInBytes = out.monoFilterOverlapInSamples * 2;	// samples are in short, one short has two bytes
 		
 		// crossfade block overlap
-		out.monoCrossfadeOverlapInSamples = Math.round(millisToSamples(in.crossfadeOverlapSize, sampleRate));
+		out.monoCrossfadeOverlapInSamples = Math.round(millisToSamples(in.crossfadeOverlapSize, renderSampleRate));
 		out.monoCrossfadeOverlapInBytes = out.monoCrossfadeOverlapInSamples * 2;
 		
 		// calculate fft block size
@@ -348,6 +530,9 @@ public class AudioScene {
 		out.monoFftBlockSizeInBytes = out.monoFftBlockSizeInSamples * 2;
 		out.monoFftPaddingInSamples = out.monoFftBlockSizeInSamples - out.minMonoFftBlockSizeInSamples;
 		out.monoFftPaddingInBytes = out.monoFftPaddingInSamples * 2;
+		
+		// source input buffers hold the current window and the following blocks
+		out.numReadAheadBlocks = Math.max(in.numReadAheadBlocks, 1);
 	}
 	
 	public void setupIO(AudioBufferSettings bufferSettings) throws Exception {
@@ -362,63 +547,208 @@ public class AudioScene {
 		}
 		
 		// init HRIR stuff
-		this.hrirs = GlobalData.hrirs;
-		if (hrirs == null) {
+		if (GlobalData.hrirs == null) {
 			throw new Exception("No HRIRs loaded");
-		} else if (hrirs.length != 2 || hrirs[0].length != 360) {
+		} else if (GlobalData.hrirs.length != 2 || GlobalData.hrirs[0].length != 360) {
 			throw new Exception("Number of HRIR pairs does not equal 360");
 		}
 		
-		getInternalAudioBufferSettings(bufferSettings, hrirs[0][0].length, internalBufSettings);
+		// rendering at the device's sample rate: the hrirs are converted once and sources while buffering, so the
+		// output needs no resampling
+		int renderSampleRate = bufferSettings.renderAtNativeSampleRate ? getNativeSamplerate(GlobalData.applicationContext)
+				: sampleRate;
+		this.hrirs = getHrirs(GlobalData.hrirs, renderSampleRate);
+		
+		bufSettings = bufferSettings;
+		getInternalAudioBufferSettings(bufferSettings, hrirs[0][0].length, renderSampleRate, internalBufSettings);
 		superpoweredAudioIO = new SuperpoweredAudioIO();
+		
+		// output buffers rendered ahead of the audio callback (the ring buffer holds one more with pull rendering or
+		// adaptive size, which is filled while the others wait)
+		long outputBufferDurationInNanos = getNativeBufferSize(GlobalData.applicationContext) * 1000000000L
+				/ getNativeSamplerate(GlobalData.applicationContext);
+		long blockDurationInNanos = internalBufSettings.monoAudioOutBlockSizeInSamples * 1000000000L / renderSampleRate;
+		int numBuffersAhead = bufferSettings.ringBufSizeMultiplier;
+		int ringBufSizeMultiplier = bufferSettings.ringBufSizeMultiplier;
+		jitterBufferController = null;
+		if (bufferSettings.pullRendering) {
+			numBuffersAhead = 1;
+			ringBufSizeMultiplier = SuperpoweredAudioIO.PULL_RENDERING_RING_BUFFER_SIZE_MULTIPLIER;
+		} else if (bufferSettings.adaptiveRingBufSize) {
+			jitterBufferController = new JitterBufferController(bufferSettings.ringBufSizeMultiplier,
+					outputBufferDurationInNanos, blockDurationInNanos);
+			numBuffersAhead = jitterBufferController.getDepth();
+			ringBufSizeMultiplier = bufferSettings.ringBufSizeMultiplier + 1;
+		}
 		if (!superpoweredAudioIO.setup(internalBufSettings.monoAudioOutBlockSizeInSamples, getNativeBufferSize(GlobalData.applicationContext),
-				sampleRate, getNativeSamplerate(GlobalData.applicationContext), bufferSettings.ringBufSizeMultiplier))
+				renderSampleRate, getNativeSamplerate(GlobalData.applicationContext), ringBufSizeMultiplier))
 			throw new Exception("Could not setup() superpoweredAudioIO");
+		outputLatencyBudget = JitterBufferController.getLatencyBudgetMillis(numBuffersAhead, outputBufferDurationInNanos,
+				blockDurationInNanos);
 
 		// debug output
 		if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) {
 			Log.d(TAG, "***************************************");
 			Log.d(TAG, "nativeMonoBufSizeInSamples = " + getNativeBufferSize(GlobalData.applicationContext));
 			Log.d(TAG, "nativeSamplerate = " + getNativeSamplerate(GlobalData.applicationContext));
+			Log.d(TAG, "renderSampleRate = " + renderSampleRate);
 			Log.d(TAG, "monoAudioOutBlockSizeInSamples = " + internalBufSettings.monoAudioOutBlockSizeInSamples);
+			Log.d(TAG, "convolutionEngine = " + internalBufSettings.convolutionEngine);
+			Log.d(TAG, "firFilterBackend = " + bufferSettings.firFilterBackend);
+			Log.d(TAG, "numRenderWorkers = " + bufferSettings.numRenderWorkers);
+			Log.d(TAG, "numPipelineStages = " + bufferSettings.numPipelineStages);
+			Log.d(TAG, "pullRendering = " + bufferSettings.pullRendering);
+			Log.d(TAG, "adaptiveRingBufSize = " + bufferSettings.adaptiveRingBufSize);
+			Log.d(TAG, "outputLatencyBudget = " + outputLatencyBudget + " ms");
+			Log.d(TAG, "numReadAheadBlocks = " + internalBufSettings.numReadAheadBlocks);
+			Log.d(TAG, "numFilterPartitions = " + internalBufSettings.numFilterPartitions);
 			Log.d(TAG, "monoFilterOverlapInSamples = " + internalBufSettings.monoFilterOverlapInSamples);
 			Log.d(TAG, "monoCrossfadeOverlapInSamples = " + internalBufSettings.monoCrossfadeOverlapInSamples);
 			Log.d(TAG, "minMonoFftBlockSizeInSamples = " + internalBufSettings.minMonoFftBlockSizeInSamples);
 			Log.d(TAG, "monoFftBlockSizeInSamples = " + internalBufSettings.monoFftBlockSizeInSamples);
 			Log.d(TAG, "monoFftPaddingInSamples = " + internalBufSettings.monoFftPaddingInSamples);
-			Log.d(TAG, "monoRingBufferSizeInSamples = " + getNativeBufferSize(GlobalData.applicationContext) * bufferSettings.ringBufSizeMultiplier
-					+ " (multiplier = " + bufferSettings.ringBufSizeMultiplier + ")");
+			Log.d(TAG, "monoRingBufferSizeInSamples = " + getNativeBufferSize(GlobalData.applicationContext) * ringBufSizeMultiplier
+					+ " (multiplier = " + ringBufSizeMultiplier + ")");
 			Log.d(TAG, "***************************************");
 		}
 		
 		// setup sound sources
 		int numSources = soundSources.size();
+		setupSoundSourcesIO(internalBufSettings, true);
+		
+		// init fir filter
+		parallelRenderer = null;
+		pipelinedRenderer = null;
+		if (bufferSettings.numPipelineStages > 0 && !bufferSettings.pullRendering && jitterBufferController == null
+				&& !(GlobalData.DO_OUTPUT_LATENCY_TEST || GlobalData.DO_TOTAL_SYSTEM_LATENCY_TEST)) {
+			// latency tests write their test samples in the audio thread and pull rendering (also with adaptive ring
+			// buffer size) renders right when the output needs it, so they always run unpipelined
+			pipelinedRenderer = new PipelinedRenderer(bufferSettings.numPipelineStages);
+			if (pipelinedRenderer.create(hrirs, internalBufSettings, numSources, bufferSettings.firFilterBackend,
+					bufferSettings.numRenderWorkers, superpoweredAudioIO) == -1) {
+				throw new Exception("Could not init FFT.");
+			}
+		} else if (bufferSettings.numRenderWorkers > 1) {
+			parallelRenderer = new ParallelRenderer(bufferSettings.numRenderWorkers);
+			if (parallelRenderer.create(hrirs, internalBufSettings, numSources, bufferSettings.firFilterBackend) == -1) {
+				throw new Exception("Could not init FFT.");
+			}
+		} else {
+			firFilter.setBackend(bufferSettings.firFilterBackend);
+			if (firFilter.create(hrirs, internalBufSettings, numSources) == -1) {
+				throw new Exception("Could not init FFT.");
+			}
+		}
+		
+		// create and start audio thread
+		audioThread = new AudioThread();
+		audioThread.start();
+	}
+	
+	/**
+	 * Returns hrirs (measured at the scene's sample rate) at sampleRate, converted if it differs. The conversion of the
+	 * last hrirs is kept, so it is done only once per hrir set and rate.
+	 */
+	private float[][][] getHrirs(float[][][] hrirs, int sampleRate) {
+		if (sampleRate == this.sampleRate) return hrirs;
+		synchronized (AudioScene.class) {
+			if (convertedHrirsSource != hrirs || convertedHrirsSampleRate != sampleRate) {
+				Resampler resampler = new Resampler(this.sampleRate, sampleRate);
+				float scale = (float) this.sampleRate / sampleRate;	// same gain with more (or fewer) coefficients
+				float[][][] converted = new float[hrirs.length][hrirs[0].length][];
+				for (int i = 0; i < hrirs.length; i++) {
+					for (int j = 0; j < hrirs[i].length; j++) {
+						converted[i][j] = resampler.convert(hrirs[i][j], scale);
+					}
+				}
+				convertedHrirs = converted;
+				convertedHrirsSource = hrirs;
+				convertedHrirsSampleRate = sampleRate;
+			}
+			return convertedHrirs;
+		}
+	}
+	
+	/**
+	 * Size of a source's circular input buffer: one input window and the blocks read ahead after it
+	 */
+	static int getSourceBufferSizeInBytes(InternalAudioBufferSettings bufSettings) {
+		return FirFilter.getInputSizeInBytes(bufSettings) + (bufSettings.numReadAheadBlocks - 1)
+				* bufSettings.monoAudioOutBlockSizeInSamples * FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES;
+	}
+	
+	/**
+	 * Number of input samples up to the end of the current window a source has to be silent for, so that skipping it
+	 * (see AudioFileBuffer.isSilent()) does not change the output: the window and, with partitioned convolution, the
+	 * input of the older partitions. The non-uniform tail is computed from even older input in background.
+	 */
+	static int getSilenceSpanInSamples(InternalAudioBufferSettings bufSettings) {
+		int windowSize = FirFilter.getInputSizeInBytes(bufSettings) / FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES;
+		if (bufSettings.convolutionEngine == ConvolutionEngine.NON_UNIFORM_PARTITIONED)
+			return windowSize + bufSettings.monoNumFilterCoeffFrames;
+		return windowSize + (bufSettings.numFilterPartitions - 1) * bufSettings.monoAudioOutBlockSizeInSamples;
+	}
+	
+	/**
+	 * Opens the audio files of all sound sources and starts buffering them into input windows matching bufSettings.
+	 * Undone by shutdownIO().
+	 */
+	void setupSoundSourcesIO(InternalAudioBufferSettings bufSettings, boolean loop) throws Exception {
+		setupSoundSourcesIO(bufSettings, loop, null);
+	}
+	
+	/**
+	 * Same as above, but sources whose audio file name is a key of sharedFiles buffer from that file's data in memory.
+	 * Small files are buffered from memory anyway (see SourceCache). Sources of the same audio file share one buffer,
+	 * all sources start at the beginning of their file, so the file is read once and its input fft is shared.
+	 */
+	void setupSoundSourcesIO(InternalAudioBufferSettings bufSettings, boolean loop, Map<String, SharedAudioFile> sharedFiles)
+			throws Exception {
+		int numSources = soundSources.size();
+		HashMap<String, Integer> owners = new HashMap<String, Integer>();	// audio file name -> first source playing it
+		soundSourceIOOwners = new int[numSources];
+		for (int i = 0; i < numSources; i++) {
+			Integer owner = owners.get(soundSources.get(i).getAudioFileName());
+			if (owner == null) owners.put(soundSources.get(i).getAudioFileName(), i);
+			soundSourceIOOwners[i] = (owner != null) ? owner : i;
+			if (owner != null) soundSources.get(owner).setAudioFileBufferShared();
+		}
+		
 		for (int i = 0; i < numSources; i++) {
-			soundSources.get(i).setupIO(new byte[internalBufSettings.monoFftBlockSizeInBytes - internalBufSettings.monoFftPaddingInBytes],
-					internalBufSettings.monoFilterOverlapInBytes + internalBufSettings.monoCrossfadeOverlapInBytes);
+			if (soundSourceIOOwners[i] != i) {
+				soundSources.get(i).shareIO(soundSources.get(soundSourceIOOwners[i]));	// owner is set up already
+				continue;
+			}
+			
+			// audio files at other sample rates are converted while buffering
+			SharedAudioFile sharedFile = (sharedFiles != null) ? sharedFiles.get(soundSources.get(i).getAudioFileName()) : null;
+			if (sharedFile == null) sharedFile = SourceCache.getInstance().get(soundSources.get(i).getAudioFileName());
+			try {
+				soundSources.get(i).setupIO(FirFilter.allocateBuffer(getSourceBufferSizeInBytes(bufSettings)),
+						(bufSettings.monoFilterOverlapInSamples + bufSettings.monoCrossfadeOverlapInSamples)
+								* FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES,
+						bufSettings.monoAudioOutBlockSizeInSamples * FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES, loop, sharedFile,
+						bufSettings.sampleRate);
+			} catch (IllegalArgumentException e) {
+				throw new Exception("Sample rate of audio file '" + soundSources.get(i).getAudioFileName()
+						+ "' can not be converted (" + e.getMessage() + ")");
+			}
 			
 			// check audio file properties
 			WaveFileInfo wfi = soundSources.get(i).getAudioFileInfo();
 			if (wfi.getFormat() != WaveFileInfo.FORMAT_PCM) {
 				throw new Exception("Only 16bit pcm wav files are supported currently, no u-law/a-law/etc.");
 			}
-			if (wfi.getSampleRate() != sampleRate) {
-				throw new Exception("Sample rate of audio file '" + soundSources.get(i).getAudioFileName() + "' does not match scene sample rate of " + this.sampleRate + "Hz (Real-time resampling is not supported yet)");
-			}
 			if (wfi.getBitsPerSample() != bitsPerSample) {
 				throw new Exception("Bit depth of audio file '" + soundSources.get(i).getAudioFileName() + "' does not match scene bit depth of " + this.bitsPerSample + " bits/sample (Real-time conversion is not supported yet)");
 			}
 		}
-		
-		// init native fir filter
-		if (FirFilter.kissfftCreate(hrirs[0], hrirs[1], internalBufSettings.monoFftBlockSizeInSamples,
-				internalBufSettings.monoCrossfadeOverlapInSamples, internalBufSettings.monoFftPaddingInSamples) == -1) {
-			throw new Exception("Could not init FFT.");
-		}
-		
-		// create and start audio thread
-		audioThread = new AudioThread();
-		audioThread.start();
+	}
+	
+	// index of the source that owns the audio file buffer source i plays from (i itself if it is its own), set up by
+	// setupSoundSourcesIO(). only the owner advances and refills the buffer.
+	int getSoundSourceIOOwner(int i) {
+		return soundSourceIOOwners[i];
 	}
 	
 	public void shutdownIO() {
@@ -500,56 +830,6 @@ public class AudioScene {
 			}
 		}
 		
-		/**
-		 * Returns angle with respect to x-axis in counterclockwise sense in radians
-		 * Uses x-is-north/y-is-east coordinate system
-		 * (1/0) is 0°
-		 * (0/-1) is 90°
-		 * (-1/0) is 180°
-		 * (0/1) is 270°
-		 * 
-		 * @param x x component of 2D vector
-		 * @return Angle in radians
-		 */
-		public  float angleX2Rad(float x, float y) {
-			float angle;
-			
-			if (x < 0.0f) {
-				angle = (float) (Math.PI - Math.atan(y/x));
-			} else if (x > 0.0f ) {
-				if (y > 0.0f) {
-					angle = (float) (2.0 * Math.PI - Math.atan(y/x));
-				} else {
-					angle = (float) (-Math.atan(y/x));
-				}
-			} else {
-				if (y > 0.0f) {
-					angle = (float) (1.5 * Math.PI);
-				} else if (y < 0.0f) {
-					angle = (float) (0.5 * Math.PI);
-				} else {
-					angle = 0.0f;
-				}
-			}
-			
-			return angle;
-		}
-
-		/**
-		 * Returns angle with respect x-axis in counterclockwise sense in degrees
-		 * Uses x-is-north/y-is-east coordinate system
-		 * (1/0) is 0
-		 * (0/-1) is Pi/2
-		 * (-1/0) is Pi
-		 * (0/1) is 3Pi/2
-		 * 
-		 * @param x x component of 2D vector
-		 * @return Angle in degrees
-		 */
-		public float angleX2Deg(float x, float y) {
-			return (float) (angleX2Rad(x, y) * 180.0 / Math.PI);
-		}
-
 		@Override
 		public void run() {
 			// set up high thread priority
@@ -569,7 +849,6 @@ public class AudioScene {
 			float sampleScaling;
 			float defaultSampleScaling;
 			float sceneSampleScaling;
-			float distance;
 			boolean allEndOfStream;
 			boolean sourceMuted;
 			float sourceXY[] = new float[2];
@@ -584,7 +863,6 @@ public class AudioScene {
 //			RuntimeStatsBenchmark renderBlockBenchmark = new RuntimeStatsBenchmark(TAG, "RENDER BLOCK", numSkips, maxNumRuns);
 			RuntimeStatsBenchmark renderBlockBenchmark = new RuntimeStatsBenchmark(TAG, "RENDER BLOCK", numSkips, maxNumRuns, true, true);
 			RuntimeStatsBenchmark wholeLoopBenchmark = new RuntimeStatsBenchmark(TAG, "WHOLE LOOP", numSkips, maxNumRuns, false, false);
-			RuntimeStatsBenchmark renderSourceBenchmark = new RuntimeStatsBenchmark(TAG, "RENDER SOURCE", numSkips * numSources, maxNumRuns * numSources);
 //			RuntimeStatsBenchmark zeroBenchmark = new RuntimeStatsBenchmark(TAG, "ZERO", numSkips, maxNumRuns, false, false);
 //			RuntimeStatsBenchmark metaZeroBenchmark = new RuntimeStatsBenchmark(TAG, "META-ZERO", numSkips, maxNumRuns);
 //			RuntimeStatsBenchmark writeToTrackBenchmark = new RuntimeStatsBenchmark(TAG, "WRITE", numSkips, maxNumRuns);
@@ -598,11 +876,49 @@ public class AudioScene {
 			RuntimeStatsBenchmark latencyData = new RuntimeStatsBenchmark(TAG, "latency data", 0, 20, true, false);
 			
 			// buffers
-			byte[] input;
-			byte[] outgoingData = new byte[internalBufSettings.monoAudioOutBlockSizeInBytes * 2];	// *2 because output is stereo
+			ByteBuffer input;
+			ByteBuffer outgoingData = FirFilter.allocateBuffer(internalBufSettings.monoAudioOutBlockSizeInBytes * 2);	// *2 because output is stereo
+			
+			// next chunks of audio files are needed one block later (deadline for the i/o scheduler)
+			long blockDurationInNanos = internalBufSettings.monoAudioOutBlockSizeInSamples * 1000000000L
+					/ internalBufSettings.sampleRate;
+			
+			// adaptive ring buffer size: render times are measured from the render request on, underruns caused by
+			// starting or resuming output are not counted
+			long renderStartTime = 0;
+			boolean ignoreOutputUnderruns = true;
+			
+			// per block source parameters, all sources are rendered at once after collecting them (hrtf index -1 means muted)
+			ByteBuffer[] blockInputs = new ByteBuffer[numSources];
+			int[] blockInputStarts = new int[numSources];
+			int[] blockHrtfIndices = new int[numSources];
+			float[] blockSampleScalings = new float[numSources];
+			
+			// sources whose next chunk is late are rendered from silence instead of waiting for it (except for the
+			// first block after start or rewind, which is worth waiting for)
+			ByteBuffer silentInput = FirFilter.allocateBuffer(FirFilter.getInputSizeInBytes(internalBufSettings));
+			boolean waitForSources = true;
+			boolean sourceReady;
+			boolean[] blockSourcesReady = new boolean[numSources];
+			
+			// sources whose input has been silent for as long as the filter remembers are skipped like muted ones
+			int silenceSpan = getSilenceSpanInSamples(internalBufSettings);
+			boolean sourceSilent;
+			boolean[] blockSourcesSilent = new boolean[numSources];
+			int numSilentSourceBlocks = 0;
+			
+			// sources playing from another source's audio file buffer (same file) only read it, see setupSoundSourcesIO()
+			boolean[] ownsBuffer = new boolean[numSources];
+			for (int i = 0; i < numSources; i++)
+				ownsBuffer[i] = (getSoundSourceIOOwner(i) == i);
+			
+			// pipelined rendering: block on its way to the render stage, filter reset to be done before rendering it
+			boolean sequentialRendering = (parallelRenderer == null && pipelinedRenderer == null);
+			PipelinedRenderer.Block block = null;
+			boolean doResetSources = false;
 			
 			// default attenuation depends on number of sound sources
-			defaultSampleScaling = 2.0f;
+			defaultSampleScaling = DEFAULT_SAMPLE_SCALING;
 			if (numSources > 1) {
 //				defaultSampleScaling /= (float) numSources * 0.5f;	// TODO is 0.5 good weighting? 
 			}
@@ -613,6 +929,28 @@ public class AudioScene {
 			// try to invoke gc before starting playback
 			System.gc();
 			
+			// benchmark: compare fir filter code paths without audio output
+			if (GlobalData.DO_FIR_FILTER_BENCHMARK) {
+				FirFilterBenchmark firFilterBenchmark = new FirFilterBenchmark(firFilter, numSources, 100, 2000);
+				String result = firFilterBenchmark.runSharedInputFftBenchmark(internalBufSettings);
+				result += firFilterBenchmark.runSpectralMixingBenchmark(internalBufSettings, hrirs, 64);
+				result += firFilterBenchmark.runBatchedRenderingBenchmark(internalBufSettings, hrirs, 64);
+				result += firFilterBenchmark.runConvolutionEngineBenchmark(AudioScene.this, hrirs, bufSettings);
+				result += firFilterBenchmark.runConvolutionEngineBenchmark(AudioScene.this,
+						FirFilterBenchmark.resizeHrirs(hrirs, GlobalData.FIR_FILTER_BENCHMARK_LONG_FILTER_LENGTH), bufSettings);
+				result += firFilterBenchmark.runBackendBenchmark(AudioScene.this, hrirs, bufSettings);
+				result += firFilterBenchmark.runBackendBenchmark(AudioScene.this,
+						FirFilterBenchmark.resizeHrirs(hrirs, GlobalData.FIR_FILTER_BENCHMARK_LONG_FILTER_LENGTH), bufSettings);
+				result += firFilterBenchmark.runParallelRenderingBenchmark(AudioScene.this,
+						FirFilterBenchmark.resizeHrirs(hrirs, GlobalData.FIR_FILTER_BENCHMARK_LONG_FILTER_LENGTH), bufSettings,
+						Runtime.getRuntime().availableProcessors());
+				result += firFilterBenchmark.runPipelinedRenderingBenchmark(AudioScene.this,
+						FirFilterBenchmark.resizeHrirs(hrirs, GlobalData.FIR_FILTER_BENCHMARK_LONG_FILTER_LENGTH), bufSettings);
+				Log.d(TAG, result);
+				RuntimeStatsBenchmark.sendTextPerMail(GlobalData.playActivity, GlobalData.TEST_RESULTS_MAIL_ADDRESSES, "FIR FILTER BENCHMARK", result);
+				doQuit = true;
+			}
+			
 			// start audio io
 			if (!superpoweredAudioIO.start())
 				Log.e(TAG, "Could not start() superpoweredAudiIO");
@@ -625,6 +963,15 @@ public class AudioScene {
 			// b) contents of soundSource and sub-objects accessed here are either also not altered while this 
 			//    AudioThread is running - or they are accessed in an atomic way
 			while (!doQuit) {
+				// pull rendering: wait for the audio callback to take the last buffer, then render the next one right
+				// away, so it is made from the freshest listener and source parameters (adaptive ring buffer size: wait
+				// until the callback has taken enough buffers)
+				if (bufSettings.pullRendering)
+					superpoweredAudioIO.waitForRenderRequest(1);
+				else if (jitterBufferController != null)
+					superpoweredAudioIO.waitForRenderRequest(jitterBufferController.getDepth());
+				renderStartTime = System.nanoTime();
+				
 				if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) {
 					wholeLoopBenchmark.startTimer();
 					renderBlockBenchmark.startTimer();
@@ -635,17 +982,29 @@ public class AudioScene {
 					sceneSampleScaling = volume / 100.0f; // atomic read of volume
 				}
 
-				FirFilter.beginRenderingBlock();
+				// get a free block to fill (waits while all blocks are in the pipeline)
+				if (pipelinedRenderer != null) {
+					block = pipelinedRenderer.acquireBlock();
+					if (block == null) break;
+					blockHrtfIndices = block.hrtfIndices;
+					blockSampleScalings = block.sampleScalings;
+				}
 
 				// process all sound sources
 				allEndOfStream = true;
 				for (int i = 0; i < numSources; i++) {
 					soundSource = soundSources.get(i);
 					
-					// get buffered samples. this blocks if background buffering not ready yet.
+					// get buffered samples. this only blocks if waiting for sources, otherwise a source whose
+					// background buffering is not ready yet is silent for this block (and counted as underrun).
 					// no locking required, since next buffer refill will explicitly be triggered by this thread
 					/**if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) waitFileBenchmark.startTimer();**/
-					input = soundSource.getAudioFileBuffer().getBuffer();
+					if (ownsBuffer[i])
+						sourceReady = waitForSources || soundSource.getAudioFileBuffer().pollChunk();
+					else
+						sourceReady = blockSourcesReady[getSoundSourceIOOwner(i)];	// same buffer, already polled
+					blockSourcesReady[i] = sourceReady;
+					input = sourceReady ? soundSource.getAudioFileBuffer().getBuffer() : silentInput;
 					/**if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) waitFileBenchmark.stopTimer();**/
 					
 					// do stuff that would normally require synchronization, because UI thread accesses this too
@@ -653,32 +1012,29 @@ public class AudioScene {
 					sourceMuted = soundSource.isMuted();
 					soundSource.getXY(sourceXY);	// TODO this is just "nearly atomic", since x and y could be "out of sync"
 					
-					// do not render source if muted  :)
-					if (!sourceMuted) {
-						// calculate angle/hrtf index of sound source
-						angle = Math.round(angleX2Deg(-sourceXY[1], sourceXY[0]) + listener.azimuth);
-						angle %= 360;
-						if (angle < 0) angle += 360;
+					// do not render source if muted  :)  or silent
+					// (a source sharing a buffer takes the owner's result, which was checked before the owner advanced it)
+					if (ownsBuffer[i])
+						sourceSilent = sourceReady && soundSource.getAudioFileBuffer().isSilent(silenceSpan);
+					else
+						sourceSilent = blockSourcesSilent[getSoundSourceIOOwner(i)];
+					blockSourcesSilent[i] = sourceSilent;
+					if (sourceSilent && !sourceMuted) numSilentSourceBlocks++;
+					if (!sourceMuted && sourceReady && !sourceSilent) {
+						// calculate angle/hrtf index and distance attenuation of sound source
+						angle = getHrtfIndex(sourceXY, listener.azimuth);
+						sampleScaling = getSampleScaling(sourceXY, defaultSampleScaling * sceneSampleScaling)
+								* soundSource.getFilterGain();
 						
-						// calculate distance of sound source (listener is at 0/0 always)
-						distance = (float) Math.sqrt(sourceXY[0] * sourceXY[0] + sourceXY[1] * sourceXY[1]);
-						
-						// calculate sound source attenuation
-						// TODO different scaling for near field?
-						if (distance < 0.2f) {
-							distance = 0.2f;
-						}
-						sampleScaling = defaultSampleScaling * sceneSampleScaling / (float) Math.sqrt(distance);
-						
-						// do filtering
-						if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) renderSourceBenchmark.startTimer();
-						if (FirFilter.kissfftFilter(input, angle, sampleScaling) == -1) {
-							// tell sources mover activity an error occured and quit this audio thread
-							GlobalData.playActivityMsgHandler.sendEmptyMessage(PlayActivity.AUDIOTHREAD_FIR_FILTER_ERROR_MSG);
-							quit();
-						}
-						if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) renderSourceBenchmark.stopTimer();
+						// remember parameters, sources are filtered below
+						blockHrtfIndices[i] = angle;
+						blockSampleScalings[i] = sampleScaling;
+					} else {
+						// skipped, but filter state of source is kept in sync (partitioned convolution remembers past input)
+						blockHrtfIndices[i] = -1;
 					}
+					blockInputs[i] = input;
+					blockInputStarts[i] = sourceReady ? soundSource.getAudioFileBuffer().getWindowStart() : 0;
 					
 					// benchmarking: defined cpu load (without any i/o)
 					/**if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) {
@@ -693,19 +1049,36 @@ public class AudioScene {
 					bufferStatus = soundSource.getAudioFileBuffer().getStatus();
 					if (bufferStatus == AudioFileBuffer.STATUS_ERROR_QUIT) { // buffer encountered an error and quit thread
 						// tell sources mover activity an error occured and quit this audio thread
-						GlobalData.playActivityMsgHandler.sendEmptyMessage(PlayActivity.AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG);
+						GlobalData.playActivityMsgHandler.sendEmptyMessage(GlobalData.AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG);
 						quit();
 					} else if (bufferStatus != AudioFileBuffer.STATUS_OK_END_OF_STREAM) { 
 						allEndOfStream = false; // not all sources have finished playing yet (only if not looping)
 					}
 					
-					// overlap-save + cross-fade overlap save
-					System.arraycopy(input, internalBufSettings.monoAudioOutBlockSizeInBytes, input, 0,
-							internalBufSettings.monoFilterOverlapInBytes + internalBufSettings.monoCrossfadeOverlapInBytes);
-					
-					// buffer next chunk of audio file in background
-					soundSources.get(i).getAudioFileBuffer().bufferNextChunk();
+					// input is still needed until the whole block is rendered, except for pipelined
+					// rendering, which works on a copy, so input can be refilled right away
+					if (pipelinedRenderer != null && !ownsBuffer[i]) {
+						// owner's copy of the same window (rendered from the same buffer, so the input fft is shared)
+						block.inputs[i] = block.inputs[getSoundSourceIOOwner(i)];
+						block.inputStarts[i] = 0;
+					} else if (pipelinedRenderer != null) {
+						if (sourceReady) {
+							soundSource.getAudioFileBuffer().copyWindow(block.inputs[i]);
+						} else {
+							silentInput.clear();
+							block.inputs[i].clear();
+							block.inputs[i].put(silentInput);
+						}
+						block.inputStarts[i] = 0;
+						
+						// overlap-save + cross-fade overlap save
+						soundSource.getAudioFileBuffer().advanceWindow();
+						
+						// buffer next chunk of audio file in background
+						soundSources.get(i).getAudioFileBuffer().bufferNextChunk(System.nanoTime() + blockDurationInNanos);
+					}
 				} // end sound sources loop
+				waitForSources = false;
 
 				// benchmarks
 				/**if (GlobalData.DO_AUDIO_ENGINE_BENCHMARK) {
@@ -722,8 +1095,34 @@ public class AudioScene {
 					metaZeroBenchmark.stopTimer();
 				}**/
 
-				// finish filtered audio block
-				FirFilter.endRenderingBlock(doFirCrossfade, outgoingData);
+				// finish filtered audio block (pipelined: rendered later by render stage)
+				if (pipelinedRenderer != null) {
+					block.crossfade = doFirCrossfade;
+					block.resetSources = doResetSources;
+					doResetSources = false;
+				} else {
+					// all sources in one go (a single native call if rendered sequentially)
+					int result;
+					if (sequentialRendering)
+						result = firFilter.renderBlock(blockInputs, blockInputStarts, blockHrtfIndices, blockSampleScalings, doFirCrossfade, outgoingData);
+					else
+						result = parallelRenderer.renderBlock(blockInputs, blockInputStarts, blockHrtfIndices, blockSampleScalings,
+								doFirCrossfade, outgoingData);
+					if (result == -1) {
+						// tell sources mover activity an error occured and quit this audio thread
+						GlobalData.playActivityMsgHandler.sendEmptyMessage(GlobalData.AUDIOTHREAD_FIR_FILTER_ERROR_MSG);
+						quit();
+					}
+					for (int i = 0; i < numSources; i++) {
+						if (!ownsBuffer[i]) continue;
+						
+						// overlap-save + cross-fade overlap save
+						soundSources.get(i).getAudioFileBuffer().advanceWindow();
+						
+						// buffer next chunk of audio file in background
+						soundSources.get(i).getAudioFileBuffer().bufferNextChunk(System.nanoTime() + blockDurationInNanos);
+					}
+				}
 				doFirCrossfade = true; // reset flag
 
 				// quit(), rewind(), play() and pause() can not interfere with this block
@@ -732,6 +1131,7 @@ public class AudioScene {
 					if (resumeRequest) {	// resuming from pause -> exclusive audio block
 						resumeRequest = false;
 						doResume = true;
+						ignoreOutputUnderruns = true;
 						doFade = true;
 						fadeDirection = 1;
 					} else {	// normal operation -> other requests
@@ -757,7 +1157,10 @@ public class AudioScene {
 						}
 					}
 					if (doFade) {
-						superpoweredAudioIO.linearFade(outgoingData, internalBufSettings.monoAudioOutBlockSizeInSamples, fadeDirection);
+						if (pipelinedRenderer != null)
+							block.fadeDirection = fadeDirection;
+						else
+							superpoweredAudioIO.linearFade(outgoingData, internalBufSettings.monoAudioOutBlockSizeInSamples, fadeDirection);
 						doFade = false;
 					}
 					if (doResume) {
@@ -771,12 +1174,13 @@ public class AudioScene {
 					
 					// benchmark: latency tests
 					if (GlobalData.DO_OUTPUT_LATENCY_TEST || GlobalData.DO_TOTAL_SYSTEM_LATENCY_TEST) {
-						Arrays.fill(outgoingData, (byte)0);
+						for (int i = 0; i < outgoingData.capacity(); i++)
+							outgoingData.put(i, (byte)0);
 						if (GlobalData.latencyTestTriggered) {
-							outgoingData[0] = Byte.MAX_VALUE;
-							outgoingData[1] = Byte.MAX_VALUE;
-							outgoingData[2] = Byte.MAX_VALUE;
-							outgoingData[3] = Byte.MAX_VALUE;
+							outgoingData.put(0, Byte.MAX_VALUE);
+							outgoingData.put(1, Byte.MAX_VALUE);
+							outgoingData.put(2, Byte.MAX_VALUE);
+							outgoingData.put(3, Byte.MAX_VALUE);
 							Log.d(TAG, "Outputting latency test sample");
 							GlobalData.latencyTestTriggered = false;
 							localLatencyTestRunning = true;
@@ -790,7 +1194,14 @@ public class AudioScene {
 	
 					// blocking audio write (already faded if needed)
 					try {
-						if (!superpoweredAudioIO.write(outgoingData)) {
+						if (pipelinedRenderer != null) {
+							// rendered and written by pipeline stages
+							pipelinedRenderer.submitBlock(block);
+							if (pipelinedRenderer.hasError()) {
+								Log.d(TAG, "Error in render pipeline");
+								doQuit = true;
+							}
+						} else if (!superpoweredAudioIO.write(outgoingData)) {
 							Log.d(TAG, "Error during write()");
 							doQuit = true;	// TODO send error message via handler? shutdown io?
 						}
@@ -798,6 +1209,20 @@ public class AudioScene {
 						Log.e(TAG, "InterruptedException during write()");
 					}
 					
+					// adaptive ring buffer size: adapt to output underruns and the time this block took
+					if (jitterBufferController != null) {
+						long now = System.nanoTime();
+						int numOutputUnderruns = superpoweredAudioIO.getNumUnderruns();
+						if (ignoreOutputUnderruns) {
+							jitterBufferController.resetUnderruns(numOutputUnderruns);
+							ignoreOutputUnderruns = false;
+						} else if (jitterBufferController.update(now - renderStartTime, numOutputUnderruns, now)) {
+							outputLatencyBudget = jitterBufferController.getLatencyBudgetMillis();
+							Log.i(TAG, "ring buffer depth " + jitterBufferController.getDepth() + ", output latency budget "
+									+ outputLatencyBudget + " ms");
+						}
+					}
+					
 					// benchmark: output latency test
 					if (GlobalData.DO_OUTPUT_LATENCY_TEST) {
 						if (localLatencyTestRunning) {
@@ -827,6 +1252,7 @@ public class AudioScene {
 
 					// flush if upcoming quit or pause
 					if (doQuit || doPause) {
+						if (pipelinedRenderer != null) pipelinedRenderer.drain();	// write faded block first
 						superpoweredAudioIO.flushAndPause();
 					}
 					if (doPause && !doQuit) {
@@ -850,6 +1276,7 @@ public class AudioScene {
 						// loop over all sound sources
 						for (int i = 0; i < numSources; i++) {
 							soundSource = soundSources.get(i);
+							if (!ownsBuffer[i]) continue;
 							
 							// rewind stream
 							try {
@@ -858,13 +1285,21 @@ public class AudioScene {
 								soundSource.getAudioFileBuffer().bufferNextChunk();
 							} catch (IOException e) {
 								// tell sources mover activity an error occured and quit this audio thread
-								GlobalData.playActivityMsgHandler.sendEmptyMessage(PlayActivity.AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG);
+								GlobalData.playActivityMsgHandler.sendEmptyMessage(GlobalData.AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG);
 								quit();
 							}
 							
 							// prevent next fir filter crossfade
 							doFirCrossfade = false;
 						}
+						
+						// first chunks of the new stream position are waited for
+						waitForSources = true;
+						
+						// forget filter input history of old stream position
+						if (pipelinedRenderer != null) doResetSources = true;
+						else if (parallelRenderer != null) parallelRenderer.resetSources();
+						else firFilter.resetSources();
 					}
 
 					// benchmarks
@@ -892,9 +1327,12 @@ public class AudioScene {
 							float missedBlocks = Math.round(
 									((float) (renderBlockBenchmark.lastStartTimestamp - renderBlockBenchmark.firstStartTimestamp)
 											/ 1e6f / samplesToMillis((float)internalBufSettings.monoAudioOutBlockSizeInSamples,
-													GlobalData.DEFAULT_SAMPLERATE)) - (float) (renderBlockBenchmark.numRuns - 1)
+													internalBufSettings.sampleRate)) - (float) (renderBlockBenchmark.numRuns - 1)
 									);
 							Log.d(TAG, "missed output blocks: " + missedBlocks);
+							Log.d(TAG, "output underruns: " + superpoweredAudioIO.getNumUnderruns());
+							Log.d(TAG, "source underruns: " + getNumSourceUnderruns());
+							Log.d(TAG, "silent source blocks skipped: " + numSilentSourceBlocks);
 						}
 	
 						wholeLoopBenchmark.stopTimer();
@@ -937,9 +1375,11 @@ public class AudioScene {
 			} // end "while (!quit)" loop
 
 			// stop and shutdown audio
+			if (pipelinedRenderer != null) pipelinedRenderer.destroy();
 			superpoweredAudioIO.pause();
 			superpoweredAudioIO.shutdown();
-			FirFilter.kissfftDestroy();
+			firFilter.destroy();
+			if (parallelRenderer != null) parallelRenderer.destroy();
 		}
 
 	}
@@ -37,7 +37,7 @@ import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.util.Log;
+import net.ptrbrtz.adbs.android.utils.Log;
 
 public class AudioSceneLoader {
 	private static final String TAG = "AudioSceneLoader";
@@ -49,6 +49,7 @@ public class AudioSceneLoader {
 		try {
 			// create sax parser
 			SAXParserFactory spf = SAXParserFactory.newInstance(); 
+			spf.setNamespaceAware(true);	// handlers use localName, which other parsers than android's only set when namespace aware
 			SAXParser sp = spf.newSAXParser(); 
 
 			// get an xml reader 
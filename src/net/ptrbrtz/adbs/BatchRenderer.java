@@ -0,0 +1,294 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders many offline jobs (scene x hrir set x head trajectory, see OfflineRenderer) in parallel, one job per worker
+ * thread at a time. Workers take the next job from a shared atomic index whenever they are done with one, so long
+ * and short jobs spread over the cores by themselves. Every job has its own scene, renderer and filters.
+ * 
+ * What jobs have in common is loaded once and then only read: hrir sets, their hrtf spectra (a donor filter per hrir
+ * set and sample rate, see FirFilter.createShared()) and the audio files of the sources (see SharedAudioFile).
+ * 
+ * The job manifest is a text file with one job per line: "scene.asd HRIRs.dat trajectory.txt out.wav [duration in s]",
+ * separated by whitespace. Relative paths are relative to the manifest's directory, empty lines and lines starting
+ * with '#' are skipped. Runs on a desktop jvm, built as described for OfflineRenderer (the javac line there
+ * compiles both):
+ * 
+ * java -cp /tmp/adbs:$ANDROID_HOME/platforms/android-19/android.jar net.ptrbrtz.adbs.BatchRenderer
+ *     manifest.txt [stats.csv] [number of workers]
+ * 
+ * @author Peter Bartz
+ */
+public class BatchRenderer {
+	private static final String TAG = "BatchRenderer";
+
+	public static class Job {
+		public String sceneFileName;
+		public String hrirFileName;
+		public String trajectoryFileName;
+		public String outputFileName;
+		public float duration;	// 0: until all sources have ended
+
+		// results
+		public int worker = -1;
+		public double setupSeconds;		// loading scene and trajectory, waiting for shared data
+		public OfflineRenderer.Stats stats = null;
+		public Exception error = null;
+	}
+
+	private final AudioScene.AudioBufferSettings bufSettings;
+	private final int numWorkers;
+	private List<Job> jobs;
+	private final AtomicInteger nextJob = new AtomicInteger(0);
+
+	// shared read-only data, loaded on first use, guarded by the maps
+	private final HashMap<String, float[][][]> hrirSets = new HashMap<String, float[][][]>();
+	private final HashMap<String, FirFilter> spectraDonors = new HashMap<String, FirFilter>();	// hrir file and sample rate
+	private final HashMap<String, SharedAudioFile> audioFiles = new HashMap<String, SharedAudioFile>();
+
+	/**
+	 * @param bufSettings used for all jobs, numRenderWorkers is per job (usually 1, as jobs already run in parallel)
+	 */
+	public BatchRenderer(AudioScene.AudioBufferSettings bufSettings, int numWorkers) {
+		this.bufSettings = bufSettings;
+		this.numWorkers = Math.max(numWorkers, 1);
+	}
+
+	public static List<Job> loadManifest(String fileName) throws IOException {
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		File baseDir = new File(fileName).getAbsoluteFile().getParentFile();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+
+				String[] values = line.split("\\s+");
+				if (values.length < 4)
+					throw new IOException(fileName + ":" + lineNumber + ": scene, hrirs, trajectory and output file expected");
+				Job job = new Job();
+				job.sceneFileName = resolve(baseDir, values[0]);
+				job.hrirFileName = resolve(baseDir, values[1]);
+				job.trajectoryFileName = resolve(baseDir, values[2]);
+				job.outputFileName = resolve(baseDir, values[3]);
+				try {
+					job.duration = values.length > 4 ? Float.parseFloat(values[4]) : 0.0f;
+				} catch (NumberFormatException e) {
+					throw new IOException(fileName + ":" + lineNumber + ": " + e.getMessage());
+				}
+				jobs.add(job);
+			}
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	private static String resolve(File baseDir, String fileName) {
+		File file = new File(fileName);
+		if (!file.isAbsolute()) file = new File(baseDir, fileName);
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Renders all jobs and returns when they are done. Failed jobs keep their exception in Job.error, the others are
+	 * rendered anyway.
+	 */
+	public void render(List<Job> jobs) throws InterruptedException {
+		this.jobs = jobs;
+		nextJob.set(0);
+
+		Worker[] workers = new Worker[Math.min(numWorkers, jobs.size())];
+		try {
+			for (int w = 0; w < workers.length; w++) {
+				workers[w] = new Worker(w);
+				workers[w].start();
+			}
+			for (int w = 0; w < workers.length; w++)
+				workers[w].join();
+		} finally {
+			// filters using the spectra keep them alive until they are destroyed themselves
+			synchronized (spectraDonors) {
+				for (FirFilter donor : spectraDonors.values())
+					donor.destroy();
+				spectraDonors.clear();
+			}
+		}
+	}
+
+	private void renderJob(Job job) throws Exception {
+		long startTime = System.nanoTime();
+
+		AudioScene scene = new AudioScene();
+		if (!new AudioSceneLoader().loadScene(job.sceneFileName, scene))
+			throw new Exception("Could not load scene '" + job.sceneFileName + "'");
+		HeadTrajectory trajectory = HeadTrajectory.load(job.trajectoryFileName);
+		float[][][] hrirs = getHrirs(job.hrirFileName);
+
+		OfflineRenderer renderer = new OfflineRenderer(scene, hrirs, bufSettings);
+		renderer.setSpectraDonor(getSpectraDonor(job.hrirFileName, hrirs, scene));
+		// a map of its own per job, so the renderer reads it without locking
+		HashMap<String, SharedAudioFile> sceneFiles = new HashMap<String, SharedAudioFile>();
+		for (int i = 0; i < scene.getNumSoundSources(); i++) {
+			String fileName = scene.getSoundSource(i).getAudioFileName();
+			sceneFiles.put(fileName, getAudioFile(fileName));
+		}
+		renderer.setSharedAudioFiles(sceneFiles);
+		job.setupSeconds = (System.nanoTime() - startTime) / 1e9;
+
+		job.stats = renderer.render(trajectory, job.outputFileName, job.duration);
+	}
+
+	private float[][][] getHrirs(String fileName) throws Exception {
+		synchronized (hrirSets) {
+			float[][][] hrirs = hrirSets.get(fileName);
+			if (hrirs == null) {
+				hrirs = HrirReader.readHrirs(fileName);
+				hrirSets.put(fileName, hrirs);
+			}
+			return hrirs;
+		}
+	}
+
+	// internal buffer settings depend on the scene's sample rate, so do the spectra
+	private FirFilter getSpectraDonor(String hrirFileName, float[][][] hrirs, AudioScene scene) throws Exception {
+		String key = hrirFileName + "@" + scene.getSampleRate();
+		synchronized (spectraDonors) {
+			FirFilter donor = spectraDonors.get(key);
+			if (donor == null) {
+				AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+				scene.getInternalAudioBufferSettings(bufSettings, hrirs[0][0].length, internalSettings);
+				donor = new FirFilter();
+				donor.setBackend(OfflineRenderer.getAvailableBackend(bufSettings.firFilterBackend));
+				if (donor.create(hrirs, internalSettings, 1) == -1)
+					throw new Exception("Could not init FFT.");
+				spectraDonors.put(key, donor);
+			}
+			return donor;
+		}
+	}
+
+	private SharedAudioFile getAudioFile(String fileName) throws IOException {
+		synchronized (audioFiles) {
+			SharedAudioFile file = audioFiles.get(fileName);
+			if (file == null) {
+				file = SharedAudioFile.load(fileName);
+				audioFiles.put(fileName, file);
+			}
+			return file;
+		}
+	}
+
+	/**
+	 * Writes one line per job: output file, worker, setup and render time, rendered audio, real-time factor and
+	 * status, separated by commas.
+	 */
+	public static void writeStats(List<Job> jobs, String fileName) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+		try {
+			writer.println("output,worker,setup_s,render_s,blocks,audio_s,realtime_factor,status");
+			for (Job job : jobs) {
+				OfflineRenderer.Stats stats = job.stats;
+				writer.println(String.format(Locale.US, "%s,%d,%.3f,%.3f,%d,%.3f,%.2f,%s", job.outputFileName, job.worker,
+						job.setupSeconds, stats != null ? stats.wallSeconds : 0.0, stats != null ? stats.numBlocks : 0,
+						stats != null ? stats.renderedSeconds : 0.0, stats != null ? stats.realtimeFactor : 0.0,
+						job.error != null ? "\"" + job.error.toString().replace("\"", "'") + "\"" : "ok"));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private class Worker extends Thread {
+		private final int index;
+
+		public Worker(int index) {
+			super(TAG + "-" + index);
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			int i;
+			while ((i = nextJob.getAndIncrement()) < jobs.size()) {
+				Job job = jobs.get(i);
+				job.worker = index;
+				try {
+					renderJob(job);
+				} catch (Exception e) {
+					job.error = e;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: BatchRenderer manifest.txt [stats.csv] [number of workers]");
+			System.exit(1);
+		}
+
+		List<Job> jobs = loadManifest(args[0]);
+		int numWorkers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		AudioScene.AudioBufferSettings bufSettings = new AudioScene.AudioBufferSettings();
+		bufSettings.processingBlockSize = GlobalData.DEFAULT_PROCESSING_BLOCK_SIZE;
+		bufSettings.crossfadeOverlapSize = GlobalData.DEFAULT_CROSSFADE_OVERLAP_SIZE;
+		bufSettings.numRenderWorkers = 1;	// jobs are the unit of parallelism
+
+		long startTime = System.nanoTime();
+		new BatchRenderer(bufSettings, numWorkers).render(jobs);
+		double wallSeconds = (System.nanoTime() - startTime) / 1e9;
+
+		double renderedSeconds = 0.0;
+		int numFailed = 0;
+		for (Job job : jobs) {
+			if (job.stats != null) {
+				System.out.println(TAG + ": " + job.outputFileName + ": " + job.stats);
+				renderedSeconds += job.stats.renderedSeconds;
+			} else {
+				System.err.println(TAG + ": " + job.outputFileName + ": " + job.error);
+				numFailed++;
+			}
+		}
+		System.out.println(String.format("%s: %d jobs (%d failed) on %d workers, %.2f s audio in %.2f s, real-time factor %.1f",
+				TAG, jobs.size(), numFailed, numWorkers, renderedSeconds, wallSeconds, renderedSeconds / wallSeconds));
+		if (args.length > 1) writeStats(jobs, args[1]);
+	}
+}
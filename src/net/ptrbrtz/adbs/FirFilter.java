@@ -22,26 +22,386 @@ SOFTWARE.
 
 package net.ptrbrtz.adbs;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+import net.ptrbrtz.adbs.android.utils.Log;
+
+/**
+ * Wraps one filter context: hrtf spectra, input history of all sources and the mixing buffers. Instances are
+ * independent of each other, so several scenes can be rendered at the same time, but a single instance must only be
+ * used by one thread at a time.
+ * The context is either native (kiss fft in libfirfilter.so) or pure java (JavaFirFilter), see setBackend().
+ * 
+ * Input windows and output blocks are direct buffers (see allocateBuffer()), so the native backend reads and writes
+ * them in place. Their positions and limits are ignored. Output blocks hold 16 bit samples starting at index 0. Input
+ * windows hold float samples, already converted (and scaled by the source's gain) by AudioFileBuffer. Input buffers are
+ * circular and at least one window long: the window starts at sample inputStart and wraps around at the buffer's end,
+ * so the history kept for the next block never has to be moved and chunks can be read ahead (see AudioFileBuffer).
+ */
 public class FirFilter {
 	private static final String TAG = "FirFilter";
 
+	private static boolean nativeLibraryLoaded = false;
+
 	// load shared lib
 	static {
 		try {
 			System.loadLibrary("firfilter");
+			nativeLibraryLoaded = true;
 			Log.d(TAG, "library loaded...");
-		} catch (Exception e) {
+		} catch (Throwable e) {	// UnsatisfiedLinkError, the java backend still works
 			Log.e(TAG, "could not load library...");
 		}
 	}
+
+	public enum Backend {
+		NATIVE,	// kiss fft in libfirfilter.so
+		JAVA	// pure java, no native library needed
+	}
+
+	private Backend backend = Backend.NATIVE;
+	private long nativeHandle = 0;	// pointer to native context, 0 if not created
+	private JavaFirFilter javaFilter = null;	// java context, null if not created
+	private boolean sharedInputFft = true;
+	private boolean spectralMixing = true;
+	private ByteBuffer[] registeredInputs = null;	// [registered buffer] input buffers known to the native context
+	private int[] registeredSourceIndices = null;
+	private int[] renderOrder = null;	// [j] -> registered buffer, those with the same input buffer one after another
+	private int[] allSourceIndices = new int[0];	// 0, 1, 2, ...
+	
+	/**
+	 * Sets up the filter with the selected backend and the convolution engine chosen in bufSettings. A previously created context of
+	 * this instance is destroyed first.
+	 * 
+	 * @return -1 on error
+	 */
+	public int create(float[][][] hrirs, AudioScene.InternalAudioBufferSettings bufSettings, int numSources) {
+		destroy();
+		
+		if (backend == Backend.JAVA) {
+			javaFilter = new JavaFirFilter();
+			if (javaFilter.create(hrirs, bufSettings, numSources) == -1) {
+				javaFilter = null;
+				return -1;
+			}
+			javaFilter.setSpectralMixing(spectralMixing);
+			return 0;
+		}
+
+		if (bufSettings.convolutionEngine == AudioScene.ConvolutionEngine.UNIFORM_PARTITIONED) {
+			nativeHandle = nativePartitionedCreate(hrirs[0], hrirs[1], bufSettings.monoFftBlockSizeInSamples,
+					bufSettings.monoFilterPartitionSizeInSamples, bufSettings.monoCrossfadeOverlapInSamples,
+					bufSettings.monoFftPaddingInSamples, numSources);
+		} else if (bufSettings.convolutionEngine == AudioScene.ConvolutionEngine.NON_UNIFORM_PARTITIONED) {
+			nativeHandle = nativeNonUniformPartitionedCreate(hrirs[0], hrirs[1], bufSettings.monoFftBlockSizeInSamples,
+					bufSettings.monoFilterPartitionSizeInSamples, bufSettings.monoCrossfadeOverlapInSamples,
+					bufSettings.monoFftPaddingInSamples, numSources);
+		} else {
+			nativeHandle = nativeKissfftCreate(hrirs[0], hrirs[1], bufSettings.monoFftBlockSizeInSamples,
+					bufSettings.monoCrossfadeOverlapInSamples, bufSettings.monoFftPaddingInSamples);
+		}
+		if (nativeHandle == 0) return -1;
+
+		// settings survive re-creation
+		nativeSetSharedInputFft(nativeHandle, sharedInputFft);
+		nativeSetSpectralMixing(nativeHandle, spectralMixing);
+		return 0;
+	}
+	
+	/**
+	 * Sets up the filter with the backend, convolution engine, buffer settings and hrtf spectra of donor, e.g. for
+	 * several render workers or offline jobs using the same hrirs. The spectra are only read while rendering, so
+	 * both filters can be used by different threads, and they stay valid if donor is destroyed first. Input history
+	 * and mixing buffers are this filter's own. A previously created context of this instance is destroyed first.
+	 * 
+	 * @return -1 on error
+	 */
+	public int createShared(FirFilter donor, int numSources) {
+		destroy();
+		backend = donor.backend;
+
+		if (donor.javaFilter != null) {
+			javaFilter = new JavaFirFilter();
+			if (javaFilter.createShared(donor.javaFilter, numSources) == -1) {
+				javaFilter = null;
+				return -1;
+			}
+			javaFilter.setSpectralMixing(spectralMixing);
+			return 0;
+		}
+
+		if (donor.nativeHandle == 0) return -1;
+		nativeHandle = nativeCreateShared(donor.nativeHandle, numSources);
+		if (nativeHandle == 0) return -1;
+
+		nativeSetSharedInputFft(nativeHandle, sharedInputFft);
+		nativeSetSpectralMixing(nativeHandle, spectralMixing);
+		return 0;
+	}
+	
+	/**
+	 * Frees the native context. Safe to call more than once.
+	 */
+	public void destroy() {
+		javaFilter = null;
+		registeredInputs = null;
+		registeredSourceIndices = null;
+		if (nativeHandle == 0) return;
+		nativeDestroy(nativeHandle);
+		nativeHandle = 0;
+	}
+	
+	public boolean isCreated() {
+		return nativeHandle != 0 || javaFilter != null;
+	}
+	
+	/**
+	 * Selects the backend used by the next create(), destroys the current context.
+	 */
+	public void setBackend(Backend backend) {
+		destroy();
+		this.backend = backend;
+	}
+	
+	public Backend getBackend() {
+		return backend;
+	}
+	
+	// false e.g. on a desktop jvm, where only the java backend can be used
+	public static boolean isNativeLibraryLoaded() {
+		return nativeLibraryLoaded;
+	}
+	
+	public static final int INPUT_SAMPLE_SIZE_IN_BYTES = 4;	// float
+	
+	/**
+	 * Allocates a buffer for input windows or output blocks: direct, so it is shared with native code without
+	 * copying or pinning, and little endian like the audio files (and the native byte order of all supported abis).
+	 */
+	public static ByteBuffer allocateBuffer(int sizeInBytes) {
+		return ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	// size of one (circular) input window of float samples
+	public static int getInputSizeInBytes(AudioScene.InternalAudioBufferSettings bufSettings) {
+		return (bufSettings.monoFftBlockSizeInSamples - bufSettings.monoFftPaddingInSamples) * INPUT_SAMPLE_SIZE_IN_BYTES;
+	}
+	
+	public int beginRenderingBlock() {
+		if (javaFilter != null) return javaFilter.beginRenderingBlock();
+		if (nativeHandle == 0) return -1;
+		return nativeBeginRenderingBlock(nativeHandle);
+	}
+	
+	public int endRenderingBlock(boolean crossfade, ByteBuffer audioOutput) {
+		if (javaFilter != null) return javaFilter.endRenderingBlock(crossfade, audioOutput);
+		if (nativeHandle == 0) return -1;
+		return nativeEndRenderingBlock(nativeHandle, crossfade, audioOutput);
+	}
+	
+	/**
+	 * Completes this block's mix (inverse fft of spectrally mixed sources, non-uniform tail) without crossfading
+	 * or output, e.g. on a render worker before its mix is added to another filter with addMix().
+	 * endRenderingBlock() does this itself if needed.
+	 */
+	public int finishMix() {
+		if (javaFilter != null) return javaFilter.finishMix();
+		if (nativeHandle == 0) return -1;
+		return nativeFinishMix(nativeHandle);
+	}
+	
+	/**
+	 * Adds the finished mix of other's current block to this filter's mix. Both filters have to use the same backend
+	 * and buffer settings. Call between filter() and endRenderingBlock().
+	 */
+	public int addMix(FirFilter other) {
+		if (javaFilter != null && other.javaFilter != null) return javaFilter.addMix(other.javaFilter);
+		if (nativeHandle == 0 || other.nativeHandle == 0) return -1;
+		return nativeAddMix(nativeHandle, other.nativeHandle);
+	}
+	
+	/**
+	 * Renders a whole block: filters source i's input window inputs[i] (starting at sample inputStarts[i]) with hrtf
+	 * hrtfIndices[i] (negative: muted, skipped) and sampleScalings[i], then crossfades and writes the output like
+	 * endRenderingBlock().
+	 * 
+	 * The native backend does this in a single JNI call. The input buffers are registered with the native context the
+	 * first time they are seen and stay registered as long as the sources keep their buffers, which they do while
+	 * playing (they are refilled in place).
+	 * Sources playing from the same input buffer (same audio file, see AudioScene.setupSoundSourcesIO()) are rendered
+	 * one after another and, if their windows start at the same sample, share one forward fft of their input.
+	 * 
+	 * @return -1 on error
+	 */
+	public int renderBlock(ByteBuffer[] inputs, int[] inputStarts, int[] hrtfIndices, float[] sampleScalings,
+			boolean crossfade, ByteBuffer audioOutput) {
+		if (javaFilter != null) {
+			registerSourceBuffers(inputs, getAllSourceIndices(inputs.length));
+			int result = renderJavaSources(inputs, inputStarts, getAllSourceIndices(inputs.length), hrtfIndices,
+					sampleScalings);
+			if (javaFilter.endRenderingBlock(crossfade, audioOutput) == -1) return -1;
+			return result;
+		}
+		if (nativeHandle == 0) return -1;
+		if (registerSourceBuffers(inputs, getAllSourceIndices(inputs.length)) == -1) return -1;
+		return nativeRenderBlock(nativeHandle, hrtfIndices, inputStarts, sampleScalings, crossfade, audioOutput);
+	}
+	
+	/**
+	 * Renders sources sourceIndices[j] as this filter's source j (parameters as above, indexed by source) and
+	 * finishes the mix without output, e.g. on a render worker before its mix is added to another filter with addMix().
+	 * 
+	 * @return -1 on error
+	 */
+	public int renderSources(ByteBuffer[] inputs, int[] inputStarts, int[] sourceIndices, int[] hrtfIndices,
+			float[] sampleScalings) {
+		if (javaFilter != null) {
+			registerSourceBuffers(inputs, sourceIndices);
+			int result = renderJavaSources(inputs, inputStarts, sourceIndices, hrtfIndices, sampleScalings);
+			javaFilter.finishMix();
+			return result;
+		}
+		if (nativeHandle == 0) return -1;
+		if (registerSourceBuffers(inputs, sourceIndices) == -1) return -1;
+		return nativeRenderSources(nativeHandle, hrtfIndices, inputStarts, sampleScalings);
+	}
+	
+	private int renderJavaSources(ByteBuffer[] inputs, int[] inputStarts, int[] sourceIndices, int[] hrtfIndices,
+			float[] sampleScalings) {
+		int result = 0;
+		int previous = -1;	// source filtered right before, same order as in the native backend
+		javaFilter.beginRenderingBlock();
+		for (int k = 0; k < renderOrder.length; k++) {
+			int j = renderOrder[k];
+			int i = sourceIndices[j];
+			if (hrtfIndices[i] < 0) {
+				javaFilter.skipSource(j);
+				previous = -1;
+				continue;
+			}
+			int filterResult;
+			boolean sharedInput = previous >= 0 && inputs[sourceIndices[previous]] == inputs[i]
+					&& inputStarts[sourceIndices[previous]] == inputStarts[i];
+			if (sharedInput)
+				filterResult = javaFilter.filterShared(j, previous, hrtfIndices[i], sampleScalings[i]);
+			else
+				filterResult = javaFilter.filter(inputs[i], inputStarts[i], j, hrtfIndices[i], sampleScalings[i]);
+			if (filterResult == -1) result = -1;
+			previous = j;
+		}
+		return result;
+	}
+	
+	// registers input buffers with the native context (java backend: just remembers them), unless they already are
+	private int registerSourceBuffers(ByteBuffer[] inputs, int[] sourceIndices) {
+		boolean registered = registeredInputs != null && registeredInputs.length == sourceIndices.length;
+		for (int j = 0; j < sourceIndices.length && registered; j++) {
+			registered = (registeredSourceIndices[j] == sourceIndices[j])
+					&& (registeredInputs[j] == inputs[sourceIndices[j]]);
+		}
+		if (registered) return 0;
+		
+		registeredInputs = null;
+		if (javaFilter == null && nativeRegisterSourceBuffers(nativeHandle, inputs, sourceIndices) == -1) return -1;
+		registeredSourceIndices = sourceIndices.clone();
+		registeredInputs = new ByteBuffer[sourceIndices.length];
+		for (int j = 0; j < sourceIndices.length; j++)
+			registeredInputs[j] = inputs[sourceIndices[j]];
+		
+		// sources of the same buffer one after another, others in their order (the native context does the same)
+		renderOrder = new int[sourceIndices.length];
+		int numOrdered = 0;
+		for (int j = 0; j < sourceIndices.length; j++) {
+			boolean ordered = false;
+			for (int k = 0; k < j && !ordered; k++)
+				ordered = (registeredInputs[k] == registeredInputs[j]);
+			if (ordered) continue;
+			for (int k = j; k < sourceIndices.length; k++) {
+				if (registeredInputs[k] == registeredInputs[j]) renderOrder[numOrdered++] = k;
+			}
+		}
+		return 0;
+	}
+	
+	private int[] getAllSourceIndices(int numSources) {
+		if (allSourceIndices.length != numSources) {
+			allSourceIndices = new int[numSources];
+			for (int i = 0; i < numSources; i++)
+				allSourceIndices[i] = i;
+		}
+		return allSourceIndices;
+	}
+	
+	public int filter(ByteBuffer audioInput, int inputStart, int sourceIndex, int hrtfIndex, float sampleScaling) {
+		if (javaFilter != null) return javaFilter.filter(audioInput, inputStart, sourceIndex, hrtfIndex, sampleScaling);
+		if (nativeHandle == 0) return -1;
+		return nativeFilter(nativeHandle, audioInput, inputStart, sourceIndex, hrtfIndex, sampleScaling);
+	}
+	
+	// call instead of filter() for muted sources
+	public int skipSource(int sourceIndex) {
+		if (javaFilter != null) return javaFilter.skipSource(sourceIndex);
+		if (nativeHandle == 0) return -1;
+		return nativeSkipSource(nativeHandle, sourceIndex);
+	}
+	
+	// clears input history, e.g. after rewind
+	public int resetSources() {
+		if (javaFilter != null) return javaFilter.resetSources();
+		if (nativeHandle == 0) return -1;
+		return nativeResetSources(nativeHandle);
+	}
+	
+	// ns spent in tail worker thread (non-uniform partitioning)
+	public long getBackgroundCpuTime() {
+		if (nativeHandle == 0) return 0;
+		return nativeGetBackgroundCpuTime(nativeHandle);
+	}
+	
+	// blocks that had to wait for the tail worker
+	public int getNumDeadlineMisses() {
+		if (nativeHandle == 0) return 0;
+		return nativeGetNumDeadlineMisses(nativeHandle);
+	}
+	
+	// one forward fft per source for both ears (default)
+	public void setSharedInputFft(boolean enable) {
+		sharedInputFft = enable;
+		if (nativeHandle != 0) nativeSetSharedInputFft(nativeHandle, enable);
+	}
+	
+	// one inverse fft per ear for all sources (default)
+	public void setSpectralMixing(boolean enable) {
+		spectralMixing = enable;
+		if (javaFilter != null) javaFilter.setSpectralMixing(enable);
+		if (nativeHandle != 0) nativeSetSpectralMixing(nativeHandle, enable);
+	}
 	
 	// native methods
-	public static native int kissfftCreate(float[][] hrirsL, float[][] hrirsR, int fftSize, int crossfadeSize, int paddingSize);
-	public static native int kissfftDestroy();
-	public static native int beginRenderingBlock();
-	public static native int endRenderingBlock(boolean crossfade, byte[] audioOutput);
-	public static native int kissfftFilter(byte[] audioInput, int hrtfIndex, float sampleScaling);
+	private native long nativeKissfftCreate(float[][] hrirsL, float[][] hrirsR, int fftSize, int crossfadeSize,
+			int paddingSize);
+	private native long nativePartitionedCreate(float[][] hrirsL, float[][] hrirsR, int fftSize, int partitionSize,
+			int crossfadeSize, int paddingSize, int numSources);
+	private native long nativeNonUniformPartitionedCreate(float[][] hrirsL, float[][] hrirsR, int fftSize,
+			int partitionSize, int crossfadeSize, int paddingSize, int numSources);
+	private native long nativeCreateShared(long donorHandle, int numSources);
+	private native void nativeDestroy(long handle);
+	private native int nativeBeginRenderingBlock(long handle);
+	private native int nativeFinishMix(long handle);
+	private native int nativeAddMix(long handle, long otherHandle);
+	private native int nativeEndRenderingBlock(long handle, boolean crossfade, ByteBuffer audioOutput);
+	private native int nativeFilter(long handle, ByteBuffer audioInput, int inputStart, int sourceIndex, int hrtfIndex,
+			float sampleScaling);
+	private native int nativeSkipSource(long handle, int sourceIndex);
+	private native int nativeRegisterSourceBuffers(long handle, ByteBuffer[] inputs, int[] sourceIndices);
+	private native int nativeRenderSources(long handle, int[] hrtfIndices, int[] inputStarts, float[] sampleScalings);
+	private native int nativeRenderBlock(long handle, int[] hrtfIndices, int[] inputStarts, float[] sampleScalings,
+			boolean crossfade, ByteBuffer audioOutput);
+	private native int nativeResetSources(long handle);
+	private native long nativeGetBackgroundCpuTime(long handle);
+	private native int nativeGetNumDeadlineMisses(long handle);
+	private native void nativeSetSharedInputFft(long handle, boolean enable);
+	private native void nativeSetSpectralMixing(long handle, boolean enable);
 	public static native long jniNanoTime();
 }
@@ -0,0 +1,472 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Offline benchmark of the fir filter, running without any audio i/o.
+ * Renders blocks of noise for a fixed number of sources as fast as possible,
+ * so different filter code paths can be compared on the same device.
+ *
+ * @author Peter Bartz
+ */
+public class FirFilterBenchmark {
+	private static final String TAG = "FirFilterBenchmark";
+
+	private FirFilter firFilter;
+	private int numSources;
+	private int numSkips;
+	private int numRuns;
+	private ByteBuffer[] inputs;
+	private int[] inputStarts;	// all 0, windows do not wrap
+	private ByteBuffer output;
+
+	public FirFilterBenchmark(FirFilter firFilter, int numSources, int numSkips, int numRuns) {
+		this.firFilter = firFilter;
+		this.numSources = numSources;
+		this.numSkips = numSkips;
+		this.numRuns = numRuns;
+	}
+
+	// (re)allocates input buffers filled with (quiet) noise and output buffer, if sizes changed
+	private void setupBuffers(AudioScene.InternalAudioBufferSettings bufSettings, int numInputs) {
+		int inputLength = FirFilter.getInputSizeInBytes(bufSettings);
+		if (inputs != null && inputs.length >= numInputs && inputs[0].capacity() == inputLength
+				&& output.capacity() == bufSettings.monoAudioOutBlockSizeInBytes * 2)
+			return;
+
+		Random random = new Random(0);
+		inputs = new ByteBuffer[numInputs];
+		inputStarts = new int[numInputs];
+		for (int i = 0; i < numInputs; i++) {
+			inputs[i] = FirFilter.allocateBuffer(inputLength);
+			for (int j = 0; j < inputLength; j += FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES)
+				inputs[i].putFloat(j, (float) (short) (random.nextGaussian() * 1000.0));
+		}
+		output = FirFilter.allocateBuffer(bufSettings.monoAudioOutBlockSizeInBytes * 2);
+	}
+
+	private boolean renderBlocks(AudioScene.InternalAudioBufferSettings bufSettings, RuntimeStatsBenchmark benchmark) {
+		return renderBlocks(bufSettings, benchmark, numSources);
+	}
+
+	/**
+	 * Renders numSkips + numRuns blocks with the first numRenderedSources sources and measures each block.
+	 * The native filter has to be set up for bufSettings (and at least numRenderedSources sources) already.
+	 *
+	 * @return false if the filter reported an error
+	 */
+	private boolean renderBlocks(AudioScene.InternalAudioBufferSettings bufSettings, RuntimeStatsBenchmark benchmark,
+			int numRenderedSources) {
+		setupBuffers(bufSettings, numRenderedSources);
+		for (int run = 0; run < numSkips + numRuns; run++) {
+			benchmark.startTimer();
+			firFilter.beginRenderingBlock();
+			for (int i = 0; i < numRenderedSources; i++) {
+				// let sources move around, so all hrtfs get used
+				if (firFilter.filter(inputs[i], 0, i, (run + i * 360 / numRenderedSources) % 360, 0.5f) == -1)
+					return false;
+			}
+			firFilter.endRenderingBlock(true, output);
+			benchmark.stopTimer();
+		}
+		return true;
+	}
+
+	/**
+	 * Same as above, but renders each block with a single call into the filter (see FirFilter.renderBlock()).
+	 */
+	private boolean renderBlocksBatched(AudioScene.InternalAudioBufferSettings bufSettings, RuntimeStatsBenchmark benchmark,
+			int numRenderedSources) {
+		setupBuffers(bufSettings, numRenderedSources);
+		ByteBuffer[] blockInputs = new ByteBuffer[numRenderedSources];
+		int[] hrtfIndices = new int[numRenderedSources];
+		float[] sampleScalings = new float[numRenderedSources];
+		System.arraycopy(inputs, 0, blockInputs, 0, numRenderedSources);
+		Arrays.fill(sampleScalings, 0.5f);
+		for (int run = 0; run < numSkips + numRuns; run++) {
+			benchmark.startTimer();
+			for (int i = 0; i < numRenderedSources; i++)
+				hrtfIndices[i] = (run + i * 360 / numRenderedSources) % 360;
+			if (firFilter.renderBlock(blockInputs, inputStarts, hrtfIndices, sampleScalings, true, output) == -1)
+				return false;
+			benchmark.stopTimer();
+		}
+		return true;
+	}
+
+	/**
+	 * Real-time factor is the duration of the rendered audio divided by the time it took to render it.
+	 */
+	private float getRealtimeFactor(AudioScene.InternalAudioBufferSettings bufSettings, RuntimeStatsBenchmark benchmark) {
+		return getRealtimeFactor(bufSettings, benchmark.avgTimeNonSleep);
+	}
+
+	private float getRealtimeFactor(AudioScene.InternalAudioBufferSettings bufSettings, double cpuTimePerBlock) {
+		return AudioScene.samplesToMillis((float) bufSettings.monoAudioOutBlockSizeInSamples, GlobalData.DEFAULT_SAMPLERATE)
+				/ (float) (cpuTimePerBlock / 1e6);
+	}
+
+	/**
+	 * Returns hrirs zero padded (or cut) to numFrames, to benchmark long filters with any hrir set.
+	 */
+	public static float[][][] resizeHrirs(float[][][] hrirs, int numFrames) {
+		float[][][] result = new float[hrirs.length][hrirs[0].length][numFrames];
+		for (int i = 0; i < hrirs.length; i++) {
+			for (int j = 0; j < hrirs[i].length; j++) {
+				System.arraycopy(hrirs[i][j], 0, result[i][j], 0, Math.min(numFrames, hrirs[i][j].length));
+			}
+		}
+		return result;
+	}
+
+	private String getSettingsString(AudioScene.InternalAudioBufferSettings bufSettings) {
+		return bufSettings.convolutionEngine + ": fft size: " + bufSettings.monoFftBlockSizeInSamples
+				+ ", filter length: " + bufSettings.monoNumFilterCoeffFrames
+				+ ", partitions: " + bufSettings.numFilterPartitions + ", sources: " + numSources + "\n";
+	}
+
+	/**
+	 * Compares rendering a block with one filter call per source with rendering it in a single call on registered
+	 * input buffers, for 1 up to maxNumSources sources.
+	 * 
+	 * @return Stats for both paths, ready to be logged or mailed
+	 */
+	public String runBatchedRenderingBenchmark(AudioScene.InternalAudioBufferSettings bufSettings, float[][][] hrirs,
+			int maxNumSources) {
+		String result = getSettingsString(bufSettings);
+		if (firFilter.create(hrirs, bufSettings, maxNumSources) == -1)
+			return result + "FILTER SETUP ERROR\n";
+
+		result += "sources\tper source calls (ms)\tsingle call (ms)\tspeedup\treal-time factor\n";
+		for (int n = 1; n <= maxNumSources; n *= 2) {
+			RuntimeStatsBenchmark perSourceBenchmark = new RuntimeStatsBenchmark(TAG, "PER SOURCE CALLS", numSkips, numRuns);
+			RuntimeStatsBenchmark batchedBenchmark = new RuntimeStatsBenchmark(TAG, "SINGLE CALL", numSkips, numRuns);
+			boolean ok;
+
+			firFilter.resetSources();
+			ok = renderBlocks(bufSettings, perSourceBenchmark, n);
+			firFilter.resetSources();
+			ok = ok && renderBlocksBatched(bufSettings, batchedBenchmark, n);
+			if (!ok) return result + "FILTER ERROR\n";
+
+			result += n + "\t" + perSourceBenchmark.nf.format(perSourceBenchmark.avgTimeNonSleep / 1e6)
+					+ "\t" + batchedBenchmark.nf.format(batchedBenchmark.avgTimeNonSleep / 1e6)
+					+ "\t" + batchedBenchmark.nf.format(perSourceBenchmark.avgTimeNonSleep / batchedBenchmark.avgTimeNonSleep)
+					+ "\t" + batchedBenchmark.nf.format(getRealtimeFactor(bufSettings, batchedBenchmark)) + "\n";
+		}
+
+		return result;
+	}
+
+	/**
+	 * Compares the old path, where each ear does its own forward fft of the input, with
+	 * the path that transforms each source's input once and reuses it for both ears.
+	 * Both paths mix in the time domain (spectral mixing always shares the input fft).
+	 * The native filter has to be set up for bufSettings (single fft engine) already.
+	 *
+	 * @return Stats for both paths, ready to be logged or mailed
+	 */
+	public String runSharedInputFftBenchmark(AudioScene.InternalAudioBufferSettings bufSettings) {
+		RuntimeStatsBenchmark separateFftsBenchmark = new RuntimeStatsBenchmark(TAG, "SEPARATE INPUT FFTS", numSkips, numRuns);
+		RuntimeStatsBenchmark sharedFftBenchmark = new RuntimeStatsBenchmark(TAG, "SHARED INPUT FFT", numSkips, numRuns);
+
+		String result = getSettingsString(bufSettings);
+		boolean ok;
+
+		firFilter.setSpectralMixing(false);
+		firFilter.setSharedInputFft(false);
+		ok = renderBlocks(bufSettings, separateFftsBenchmark);
+		firFilter.setSharedInputFft(true);
+		ok = ok && renderBlocks(bufSettings, sharedFftBenchmark);
+		firFilter.setSpectralMixing(true);
+		if (!ok) return result + "FILTER ERROR\n";
+
+		result += separateFftsBenchmark.getStats();
+		result += "real-time factor: " + separateFftsBenchmark.nf.format(getRealtimeFactor(bufSettings, separateFftsBenchmark)) + "\n";
+		result += sharedFftBenchmark.getStats();
+		result += "real-time factor: " + sharedFftBenchmark.nf.format(getRealtimeFactor(bufSettings, sharedFftBenchmark)) + "\n";
+		result += "speedup: " + sharedFftBenchmark.nf.format(separateFftsBenchmark.avgTimeNonSleep / sharedFftBenchmark.avgTimeNonSleep) + "\n";
+
+		return result;
+	}
+
+	/**
+	 * Compares mixing sources in the time domain (one inverse fft per source and ear) with mixing them
+	 * in the frequency domain (one inverse fft per ear), for 1, 2, 4, ... up to maxNumSources sources.
+	 * Sets up the native filter for maxNumSources, so it has to be set up again before normal use.
+	 *
+	 * @return Stats for all source counts, ready to be logged or mailed
+	 */
+	public String runSpectralMixingBenchmark(AudioScene.InternalAudioBufferSettings bufSettings, float[][][] hrirs,
+			int maxNumSources) {
+		String result = getSettingsString(bufSettings);
+		if (firFilter.create(hrirs, bufSettings, maxNumSources) == -1)
+			return result + "FILTER SETUP ERROR\n";
+
+		result += "sources\ttime domain (ms)\tfrequency domain (ms)\tspeedup\treal-time factor\n";
+		for (int n = 1; n <= maxNumSources; n *= 2) {
+			RuntimeStatsBenchmark timeDomainBenchmark = new RuntimeStatsBenchmark(TAG, "TIME DOMAIN MIXING", numSkips, numRuns);
+			RuntimeStatsBenchmark spectralBenchmark = new RuntimeStatsBenchmark(TAG, "SPECTRAL MIXING", numSkips, numRuns);
+			boolean ok;
+
+			firFilter.resetSources();
+			firFilter.setSpectralMixing(false);
+			ok = renderBlocks(bufSettings, timeDomainBenchmark, n);
+			firFilter.resetSources();
+			firFilter.setSpectralMixing(true);
+			ok = ok && renderBlocks(bufSettings, spectralBenchmark, n);
+			if (!ok) return result + "FILTER ERROR\n";
+
+			result += n + "\t" + timeDomainBenchmark.nf.format(timeDomainBenchmark.avgTimeNonSleep / 1e6)
+					+ "\t" + spectralBenchmark.nf.format(spectralBenchmark.avgTimeNonSleep / 1e6)
+					+ "\t" + spectralBenchmark.nf.format(timeDomainBenchmark.avgTimeNonSleep / spectralBenchmark.avgTimeNonSleep)
+					+ "\t" + spectralBenchmark.nf.format(getRealtimeFactor(bufSettings, spectralBenchmark)) + "\n";
+		}
+
+		return result;
+	}
+
+	/**
+	 * Sets up the native filter with each convolution engine in turn and renders the same
+	 * blocks with it. Leaves the native filter set up with the last engine, so it has to be
+	 * set up again before normal use.
+	 * Block times are those of the rendering thread, cpu time of the non-uniform engine's
+	 * tail worker is reported separately and included in its real-time factor.
+	 *
+	 * @return Stats for all engines, ready to be logged or mailed
+	 */
+	public String runConvolutionEngineBenchmark(AudioScene scene, float[][][] hrirs, AudioScene.AudioBufferSettings bufferSettings) {
+		AudioScene.AudioBufferSettings engineSettings = new AudioScene.AudioBufferSettings();
+		AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+		String result = "";
+
+		engineSettings.crossfadeOverlapSize = bufferSettings.crossfadeOverlapSize;
+		engineSettings.processingBlockSize = bufferSettings.processingBlockSize;
+		engineSettings.ringBufSizeMultiplier = bufferSettings.ringBufSizeMultiplier;
+		engineSettings.firFilterBackend = bufferSettings.firFilterBackend;
+
+		for (AudioScene.ConvolutionEngine engine : AudioScene.ConvolutionEngine.values()) {
+			if (engine == AudioScene.ConvolutionEngine.AUTO) continue;
+			RuntimeStatsBenchmark benchmark = new RuntimeStatsBenchmark(TAG, engine.toString(), numSkips, numRuns);
+
+			engineSettings.convolutionEngine = engine;
+			scene.getInternalAudioBufferSettings(engineSettings, hrirs[0][0].length, internalSettings);
+			if (internalSettings.convolutionEngine != engine) {
+				result += engine + ": not applicable to filter length " + hrirs[0][0].length + "\n";
+				continue;
+			}
+			result += getSettingsString(internalSettings);
+			if (firFilter.create(hrirs, internalSettings, numSources) == -1) {
+				result += "FILTER SETUP ERROR\n";
+				continue;
+			}
+			if (!renderBlocks(internalSettings, benchmark)) {
+				result += "FILTER ERROR\n";
+				continue;
+			}
+
+			// background cpu time is counted for all blocks, including skipped ones
+			double backgroundTimePerBlock = (double) firFilter.getBackgroundCpuTime() / (double) (numSkips + numRuns);
+			result += benchmark.getStats();
+			if (backgroundTimePerBlock > 0.0) {
+				result += "background cpu time per block (ms): " + benchmark.nf.format(backgroundTimePerBlock / 1e6) + "\n";
+				result += "deadline misses: " + firFilter.getNumDeadlineMisses() + "\n";
+			}
+			result += "real-time factor: " + benchmark.nf.format(getRealtimeFactor(internalSettings,
+					benchmark.avgTimeNonSleep + backgroundTimePerBlock)) + "\n";
+		}
+
+		return result;
+	}
+
+	/**
+	 * Renders the same blocks with the native and the pure java filter backend, using the scene's buffer settings.
+	 * Leaves the filter set up with the java backend (and restores the backend selection), so it has to be set up
+	 * again before normal use.
+	 *
+	 * @return Stats for both backends, ready to be logged or mailed
+	 */
+	public String runBackendBenchmark(AudioScene scene, float[][][] hrirs, AudioScene.AudioBufferSettings bufferSettings) {
+		AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+		FirFilter.Backend previousBackend = firFilter.getBackend();
+		double[] timePerBlock = new double[FirFilter.Backend.values().length];	// 0 if failed
+		NumberFormat nf = null;
+
+		scene.getInternalAudioBufferSettings(bufferSettings, hrirs[0][0].length, internalSettings);
+		String result = getSettingsString(internalSettings);
+
+		for (FirFilter.Backend backend : FirFilter.Backend.values()) {
+			RuntimeStatsBenchmark benchmark = new RuntimeStatsBenchmark(TAG, backend + " BACKEND", numSkips, numRuns);
+			nf = benchmark.nf;
+
+			firFilter.setBackend(backend);
+			if (firFilter.create(hrirs, internalSettings, numSources) == -1) {
+				result += backend + ": FILTER SETUP ERROR\n";
+				continue;
+			}
+			if (!renderBlocks(internalSettings, benchmark)) {
+				result += backend + ": FILTER ERROR\n";
+				continue;
+			}
+
+			// background cpu time of the native tail worker counts, the java backend has none
+			double backgroundTimePerBlock = (double) firFilter.getBackgroundCpuTime() / (double) (numSkips + numRuns);
+			timePerBlock[backend.ordinal()] = benchmark.avgTimeNonSleep + backgroundTimePerBlock;
+			result += benchmark.getStats();
+			result += "real-time factor: " + benchmark.nf.format(getRealtimeFactor(internalSettings,
+					timePerBlock[backend.ordinal()])) + "\n";
+		}
+		firFilter.setBackend(previousBackend);
+
+		double nativeTime = timePerBlock[FirFilter.Backend.NATIVE.ordinal()];
+		double javaTime = timePerBlock[FirFilter.Backend.JAVA.ordinal()];
+		if (nativeTime > 0.0 && javaTime > 0.0)
+			result += "java / native time per block: " + nf.format(javaTime / nativeTime) + "\n";
+
+		return result;
+	}
+
+	/**
+	 * Renders the same blocks with 1, 2, ... maxNumWorkers parallel render workers (see ParallelRenderer), using the
+	 * scene's buffer settings and this benchmark's filter backend. Speedup is based on wall clock time per block,
+	 * since the work is spread over several threads.
+	 *
+	 * @return Stats for all worker counts, ready to be logged or mailed
+	 */
+	public String runParallelRenderingBenchmark(AudioScene scene, float[][][] hrirs,
+			AudioScene.AudioBufferSettings bufferSettings, int maxNumWorkers) {
+		AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+		int[] hrtfIndices = new int[numSources];
+		float[] sampleScalings = new float[numSources];
+		double singleWorkerTime = 0.0;
+
+		scene.getInternalAudioBufferSettings(bufferSettings, hrirs[0][0].length, internalSettings);
+		setupBuffers(internalSettings, numSources);
+		Arrays.fill(sampleScalings, 0.5f);
+		String result = getSettingsString(internalSettings);
+		result += "workers\tblock (ms)\tspeedup\treal-time factor\n";
+
+		for (int n = 1; n <= maxNumWorkers; n++) {
+			ParallelRenderer renderer = new ParallelRenderer(n);
+			RuntimeStatsBenchmark benchmark = new RuntimeStatsBenchmark(TAG, n + " WORKERS", numSkips, numRuns);
+
+			if (renderer.create(hrirs, internalSettings, numSources, firFilter.getBackend()) == -1)
+				return result + "FILTER SETUP ERROR\n";
+			if (renderer.getNumWorkers() < n) {	// not enough sources
+				renderer.destroy();
+				break;
+			}
+
+			boolean ok = true;
+			for (int run = 0; run < numSkips + numRuns && ok; run++) {
+				// let sources move around, so all hrtfs get used
+				for (int i = 0; i < numSources; i++)
+					hrtfIndices[i] = (run + i * 360 / numSources) % 360;
+				benchmark.startTimer();
+				ok = renderer.renderBlock(inputs, inputStarts, hrtfIndices, sampleScalings, true, output) != -1;
+				benchmark.stopTimer();
+			}
+			renderer.destroy();
+			if (!ok) return result + "FILTER ERROR\n";
+
+			if (n == 1) singleWorkerTime = benchmark.avgTime;
+			result += n + "\t" + benchmark.nf.format(benchmark.avgTime / 1e6)
+					+ "\t" + benchmark.nf.format(singleWorkerTime / benchmark.avgTime)
+					+ "\t" + benchmark.nf.format(getRealtimeFactor(internalSettings, benchmark.avgTime)) + "\n";
+		}
+
+		return result;
+	}
+
+	/**
+	 * Compares unpipelined rendering with pipelined rendering for all numbers of pipeline stages. Blocks are not
+	 * written to audio output, so the pipeline runs as fast as its slowest stage. Reports wall time per block and cpu
+	 * time the feeding (audio) thread spends per block, which is what is left on its critical path.
+	 */
+	public String runPipelinedRenderingBenchmark(AudioScene scene, float[][][] hrirs,
+			AudioScene.AudioBufferSettings bufferSettings) {
+		AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+		int[] hrtfIndices = new int[numSources];
+		float[] sampleScalings = new float[numSources];
+
+		scene.getInternalAudioBufferSettings(bufferSettings, hrirs[0][0].length, internalSettings);
+		setupBuffers(internalSettings, numSources);
+		Arrays.fill(sampleScalings, 0.5f);
+		String result = getSettingsString(internalSettings);
+		result += "render workers: " + Math.max(bufferSettings.numRenderWorkers, 1) + "\n";
+		result += "stages\tblock (ms)\taudio thread cpu (ms)\treal-time factor\n";
+
+		for (int numStages = 0; numStages <= PipelinedRenderer.MAX_NUM_STAGES; numStages++) {
+			RuntimeStatsBenchmark benchmark = new RuntimeStatsBenchmark(TAG, numStages + " STAGES", numSkips, numRuns);
+			boolean ok = true;
+
+			if (numStages == 0) {
+				// reference: whole block rendered in the feeding thread
+				ParallelRenderer renderer = new ParallelRenderer(bufferSettings.numRenderWorkers);
+				if (renderer.create(hrirs, internalSettings, numSources, firFilter.getBackend()) == -1)
+					return result + "FILTER SETUP ERROR\n";
+				for (int run = 0; run < numSkips + numRuns && ok; run++) {
+					for (int i = 0; i < numSources; i++)
+						hrtfIndices[i] = (run + i * 360 / numSources) % 360;
+					benchmark.startTimer();
+					ok = renderer.renderBlock(inputs, inputStarts, hrtfIndices, sampleScalings, true, output) != -1;
+					benchmark.stopTimer();
+				}
+				renderer.destroy();
+			} else {
+				PipelinedRenderer pipeline = new PipelinedRenderer(numStages);
+				if (pipeline.create(hrirs, internalSettings, numSources, firFilter.getBackend(),
+						bufferSettings.numRenderWorkers, null) == -1)
+					return result + "FILTER SETUP ERROR\n";
+				for (int run = 0; run < numSkips + numRuns; run++) {
+					benchmark.startTimer();
+					PipelinedRenderer.Block block = pipeline.acquireBlock();
+					for (int i = 0; i < numSources; i++) {
+						inputs[i].clear();
+						block.inputs[i].clear();
+						block.inputs[i].put(inputs[i]);
+						block.hrtfIndices[i] = (run + i * 360 / numSources) % 360;
+						block.sampleScalings[i] = 0.5f;
+					}
+					pipeline.submitBlock(block);
+					benchmark.stopTimer();
+				}
+				pipeline.drain();
+				ok = !pipeline.hasError();
+				pipeline.destroy();
+			}
+			if (!ok) return result + "FILTER ERROR\n";
+
+			result += numStages + "\t" + benchmark.nf.format(benchmark.avgTime / 1e6)
+					+ "\t" + benchmark.nf.format(benchmark.avgTimeNonSleep / 1e6)
+					+ "\t" + benchmark.nf.format(getRealtimeFactor(internalSettings, benchmark.avgTime)) + "\n";
+		}
+
+		return result;
+	}
+}
@@ -40,11 +40,11 @@ public class GlobalData {
 	public static final String PREFS_LAST_USED_RING_BUFFER_MULTIPLIER = "lastUsedRingBufferMultiplier";
 	public static final String PREFS_LAST_USED_PROCESSING_BLOCK_SIZE = "lastUsedProcessingBlockSize";
 
-	public static final String HRIRS_PATH = Environment.getExternalStorageDirectory().getPath() + "/AndroidDynamicBinauralSynthesis/HRIRs/";
+	public static final String HRIRS_PATH = getStoragePath() + "/AndroidDynamicBinauralSynthesis/HRIRs/";
 	public static final String HRIRS_FILENAME = "HRIRs.dat";
 	public static final String DEFAULT_HRIRS_NAME = "Anechoic (KEMAR 128) [default]/";
 
-	public static final String AUDIOSCENES_PATH = Environment.getExternalStorageDirectory().getPath() + "/AndroidDynamicBinauralSynthesis/Scenes/";
+	public static final String AUDIOSCENES_PATH = getStoragePath() + "/AndroidDynamicBinauralSynthesis/Scenes/";
 	public static final String AUDIOSCENES_SUFFIX_LOWERCASE = ".asd";
 	public static final String DEFAULT_AUDIOSCENE_NAME = "Radarfilm - Housigedark.asd";
 	
@@ -52,9 +52,23 @@ public class GlobalData {
 	public static final int DEFAULT_RING_BUFFER_MULTIPLIER = 5;
 	public static final float DEFAULT_PROCESSING_BLOCK_SIZE = 5.0f; // (in ms)
 	public static final int DEFAULT_SAMPLERATE = 44100;	// fixed at the moment
+	public static final AudioScene.ConvolutionEngine DEFAULT_CONVOLUTION_ENGINE = AudioScene.ConvolutionEngine.SINGLE_FFT;
+	public static final FirFilter.Backend DEFAULT_FIR_FILTER_BACKEND = FirFilter.Backend.NATIVE;
+	public static final int DEFAULT_NUM_RENDER_WORKERS = 1;	// > 1: sources are rendered on several cores
+	public static final int DEFAULT_NUM_PIPELINE_STAGES = 0;	// > 0: convolution/output run behind the audio thread, one block latency per stage
+	public static final boolean DEFAULT_ADAPTIVE_RING_BUFFER = false;	// ring buffer depth adapted to underruns and render times, the set size is the maximum
+	public static final boolean DEFAULT_PULL_RENDERING = false;	// render when the audio callback needs the next buffer instead of ahead of it (lowest latency)
+	public static final boolean DEFAULT_RENDER_AT_NATIVE_SAMPLERATE = false;	// hrirs and sources converted to the device's sample rate instead of resampling the output
+	public static final int DEFAULT_NUM_READ_AHEAD_BLOCKS = 4;	// source audio buffered ahead of the audio thread (in blocks)
+	public static final long SOURCE_CACHE_SIZE = 16 * 1024 * 1024;	// audio files kept in memory across scenes (in bytes)
+	public static final long SOURCE_CACHE_MAX_FILE_SIZE = 2 * 1024 * 1024;	// bigger audio files are streamed
+	public static final boolean USE_LOUDNESS_INDEX = true;	// sidecar files with source peak levels, lets silent audio be skipped unread (see LoudnessIndex)
+	public static final int SILENCE_THRESHOLD = 0;	// sources whose 16 bit samples stay at or below this are not filtered, 0: only digital silence
 
 	// audio engine benchmark
 	public static final boolean DO_AUDIO_ENGINE_BENCHMARK = false;
+	public static final boolean DO_FIR_FILTER_BENCHMARK = false; // offline, mails results and quits audio thread
+	public static final int FIR_FILTER_BENCHMARK_LONG_FILTER_LENGTH = 8192; // hrirs are zero padded to this for a second run
 
 	// output and system latency tests
 	public static final boolean DO_OUTPUT_LATENCY_TEST = false;
@@ -69,6 +83,8 @@ public class GlobalData {
 	// shared data
 	public static final AudioScene audioScene = new AudioScene(); // this instance of AudioScene is always reused
 	public static Handler playActivityMsgHandler = null;
+	public static final int AUDIOTHREAD_FIR_FILTER_ERROR_MSG = 2;	// messages from the audio thread to playActivityMsgHandler
+	public static final int AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG = 3;
 	public static Activity playActivity = null;
 	public static RazorAHRS razor = null;
 	public static Context applicationContext = null;
@@ -83,4 +99,13 @@ public class GlobalData {
 	});
 
 	public static float pixelScaling; // device dependent
+
+	// external storage, the working directory on a desktop jvm (see OfflineRenderer)
+	private static String getStoragePath() {
+		try {
+			return Environment.getExternalStorageDirectory().getPath();
+		} catch (Throwable e) {
+			return System.getProperty("user.dir");
+		}
+	}
 }
@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Recorded head orientation over time (e.g. a head tracker trace), used instead of live head tracking when
+ * rendering offline. Read from a text file with one "time azimuth" pair per line: time in seconds, ascending, and
+ * azimuth in degrees as the head tracker sets it on the Listener. Values are separated by whitespace or a comma,
+ * empty lines and lines starting with '#' are skipped.
+ * 
+ * @author Peter Bartz
+ */
+public class HeadTrajectory {
+	private final float[] times;
+	private final float[] azimuths;
+	private int cursor = 0;	// last segment used, queries are mostly ascending
+
+	public HeadTrajectory(float[] times, float[] azimuths) {
+		if (times.length == 0 || times.length != azimuths.length)
+			throw new IllegalArgumentException("trajectory needs the same number (> 0) of times and azimuths");
+		for (int i = 1; i < times.length; i++) {
+			if (times[i] < times[i-1])
+				throw new IllegalArgumentException("trajectory times have to be ascending");
+		}
+		this.times = times;
+		this.azimuths = azimuths;
+	}
+
+	public static HeadTrajectory load(String fileName) throws IOException {
+		ArrayList<float[]> points = new ArrayList<float[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				
+				String[] values = line.split("[\\s,]+");
+				if (values.length < 2)
+					throw new IOException(fileName + ":" + lineNumber + ": time and azimuth expected");
+				try {
+					points.add(new float[] {Float.parseFloat(values[0]), Float.parseFloat(values[1])});
+				} catch (NumberFormatException e) {
+					throw new IOException(fileName + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		float[] times = new float[points.size()];
+		float[] azimuths = new float[points.size()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = points.get(i)[0];
+			azimuths[i] = points.get(i)[1];
+		}
+		try {
+			return new HeadTrajectory(times, azimuths);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(fileName + ": " + e.getMessage());
+		}
+	}
+
+	// time of last trajectory point in seconds
+	public float getDuration() {
+		return times[times.length - 1];
+	}
+
+	/**
+	 * Returns azimuth in degrees at the given time, interpolated linearly along the shorter way round. Before the
+	 * first and after the last point, the azimuth of that point is held.
+	 */
+	public float getAzimuth(double time) {
+		int last = times.length - 1;
+		if (time <= times[0]) return azimuths[0];
+		if (time >= times[last]) return azimuths[last];
+		
+		// find segment [cursor, cursor + 1] containing time
+		if (time < times[cursor]) cursor = 0;
+		while (times[cursor + 1] < time)
+			cursor++;
+		
+		float t0 = times[cursor];
+		float t1 = times[cursor + 1];
+		if (t1 == t0) return azimuths[cursor + 1];
+		float delta = azimuths[cursor + 1] - azimuths[cursor];
+		delta -= 360.0f * Math.round(delta / 360.0f);	// -180..180
+		return azimuths[cursor] + delta * (float) ((time - t0) / (t1 - t0));
+	}
+}
@@ -22,16 +22,14 @@ SOFTWARE.
 
 package net.ptrbrtz.adbs;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import android.os.AsyncTask;
 
+/**
+ * Reads an HRIR file in the background (see HrirReader) and publishes the progress per angle
+ */
 public class HrirLoaderTask extends AsyncTask<String, Integer, float[][][]> {
 	private static final String TAG = "HrirLoaderTask";
 	
@@ -75,34 +73,6 @@ public class HrirLoaderTask extends AsyncTask<String, Integer, float[][][]> {
 		return Float.intBitsToFloat(intBits);
 	}
 	
-	private float[][][] readHrtfsBin(String hrirFileName) throws FileNotFoundException, IOException {
-		// get filter length and create arrays/buffers
-		File f = new File(hrirFileName);
-		int numHrirCoeffs = (int) (f.length() / 4 / 720); // div 4 for float, div 720 for one pair of HRIRs per degree
-		float[][][] hrirs = new float[2][360][numHrirCoeffs]; // dimensions: left/right, angle, coefficient
-		ByteBuffer hrirPairByteBuf = ByteBuffer.allocate(numHrirCoeffs * 4 * 2);
-		hrirPairByteBuf.order(ByteOrder.LITTLE_ENDIAN); // the reason we're doing this: fast reading of little-endian floats
-
-		FileInputStream fin = new FileInputStream(hrirFileName);
-		DataInputStream din = new DataInputStream(fin);
-
-		// read and reorder HRIR coefficients
-		for (int a = 0; a < 360; a++) {
-			hrirPairByteBuf.rewind();
-			din.readFully(hrirPairByteBuf.array());
-			for (int i = 0; i < numHrirCoeffs; i++) {
-				hrirs[0][a][i] = hrirPairByteBuf.getFloat();
-			}
-			for (int i = 0; i < numHrirCoeffs; i++) {
-				hrirs[1][a][i] = hrirPairByteBuf.getFloat();
-			}
-			publishProgress(a);
-		}
-		
-		din.close();
-		return hrirs;
-	}
-	
 //	private Vector<short[]> readHrtfsBin(String fileNamePrefixLeft, String fileNamePrefixRight, String fileNamePostfix) throws FileNotFoundException, IOException {
 //		Vector<short[]> hrirs = new Vector<short[]>(360);
 //		hrirs.setSize(360);
@@ -137,7 +107,12 @@ public class HrirLoaderTask extends AsyncTask<String, Integer, float[][][]> {
 	@Override
 	protected float[][][] doInBackground(String... params) {
 		try {
-			return readHrtfsBin(params[0]);
+			return HrirReader.readHrirs(params[0], new HrirReader.ProgressListener() {
+				@Override
+				public void onAngleRead(int angle) {
+					publishProgress(angle);
+				}
+			});
 		} catch (FileNotFoundException e) {
 			return null;
 		} catch (IOException e) {
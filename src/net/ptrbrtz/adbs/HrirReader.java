@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads HRIR files: 360 pairs of little-endian float HRIRs, one pair (left, then right) per degree. Plain java, used
+ * by HrirLoaderTask on a device and directly by OfflineRenderer and BatchRenderer on a desktop jvm.
+ * 
+ * @author Peter Bartz
+ */
+public class HrirReader {
+	/**
+	 * Called after each angle was read
+	 */
+	public interface ProgressListener {
+		public void onAngleRead(int angle);
+	}
+
+	/**
+	 * Reads an HRIR file without any progress reporting
+	 * 
+	 * @return HRIR coefficients, dimensions: left/right, angle, coefficient
+	 */
+	public static float[][][] readHrirs(String hrirFileName) throws FileNotFoundException, IOException {
+		return readHrirs(hrirFileName, null);
+	}
+
+	/**
+	 * Reads an HRIR file, progressListener may be null
+	 * 
+	 * @return HRIR coefficients, dimensions: left/right, angle, coefficient
+	 */
+	public static float[][][] readHrirs(String hrirFileName, ProgressListener progressListener)
+			throws FileNotFoundException, IOException {
+		// get filter length and create arrays/buffers
+		File f = new File(hrirFileName);
+		int numHrirCoeffs = (int) (f.length() / 4 / 720); // div 4 for float, div 720 for one pair of HRIRs per degree
+		float[][][] hrirs = new float[2][360][numHrirCoeffs]; // dimensions: left/right, angle, coefficient
+		ByteBuffer hrirPairByteBuf = ByteBuffer.allocate(numHrirCoeffs * 4 * 2);
+		hrirPairByteBuf.order(ByteOrder.LITTLE_ENDIAN); // the reason we're doing this: fast reading of little-endian floats
+
+		FileInputStream fin = new FileInputStream(hrirFileName);
+		DataInputStream din = new DataInputStream(fin);
+
+		// read and reorder HRIR coefficients
+		for (int a = 0; a < 360; a++) {
+			hrirPairByteBuf.rewind();
+			din.readFully(hrirPairByteBuf.array());
+			for (int i = 0; i < numHrirCoeffs; i++) {
+				hrirs[0][a][i] = hrirPairByteBuf.getFloat();
+			}
+			for (int i = 0; i < numHrirCoeffs; i++) {
+				hrirs[1][a][i] = hrirPairByteBuf.getFloat();
+			}
+			if (progressListener != null) progressListener.onAngleRead(a);
+		}
+		
+		din.close();
+		return hrirs;
+	}
+}
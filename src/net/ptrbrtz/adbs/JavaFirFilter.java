@@ -0,0 +1,369 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.ptrbrtz.adbs.android.utils.RealFft;
+
+/**
+ * Pure java filter backend with the same contract and buffer layout as the native one (see kissfftFloatWrapper.cpp),
+ * so it runs without libfirfilter.so, e.g. for profiling the engine on a desktop jvm.
+ * 
+ * All engines are done as uniformly partitioned overlap-save convolution: single fft is one partition as long as the
+ * filter, uniform partitioning uses one partition per processing block. Non-uniform partitioning is rendered like
+ * uniform partitioning over the whole filter (same buffer settings and output, but no tail worker). Each source's
+ * input is transformed once for both ears, so setSharedInputFft() has no effect here.
+ * 
+ * All buffers are allocated in create(), rendering a block does not allocate.
+ */
+class JavaFirFilter {
+	private int fftSize;
+	private int numFreqBins;
+	private int partitionSize;
+	private int numPartitions;
+	private int numChannels;
+	private RealFft fft;
+	private RealFft ifft;
+	private float[][][] firFreqRespL;	// [hrtf][partition][bin re/im]
+	private float[][][] firFreqRespR;
+	private float[][][] fdl;			// [source][slot][bin re/im], frequency-domain delay line of input spectra
+	private int[] fdlHead;				// per source: slot of newest input spectrum
+	private float[] accL;				// output spectra of one source
+	private float[] accR;
+	private float[] mixSpectrumL;
+	private float[] mixSpectrumR;
+	private boolean mixSpectrumUsed;
+	private boolean mixFinished;	// spectral mix is in the mixing buffers already
+	private float[] inFloat;
+	private float[] outFloatL;
+	private float[] outFloatR;
+	private float[] mixBufferL;
+	private float[] mixBufferR;
+	private float[] crossfadeSaveBufferL;
+	private float[] crossfadeSaveBufferR;
+	private float[] crossfadeInTable;
+	private float[] crossfadeOutTable;
+	private int inputLengthInSamples;
+	private int mixBufferLengthInSamples;
+	private int crossfadeLengthInSamples;
+	private boolean spectralMixing = true;
+
+	/**
+	 * @return -1 on error
+	 */
+	public int create(float[][][] hrirs, AudioScene.InternalAudioBufferSettings bufSettings, int numSources) {
+		int numHrirs = hrirs[0].length;
+		int numCoeffFrames = hrirs[0][0].length;
+
+		fftSize = bufSettings.monoFftBlockSizeInSamples;
+		partitionSize = bufSettings.monoFilterPartitionSizeInSamples;
+		if (fftSize < 2 || (fftSize & 1) != 0 || partitionSize < 1 || partitionSize > fftSize || numCoeffFrames < 1)
+			return -1;
+		numFreqBins = fftSize / 2 + 1;
+		numPartitions = (numCoeffFrames + partitionSize - 1) / partitionSize;
+
+		fft = new RealFft(fftSize, false);
+		ifft = new RealFft(fftSize, true);
+		float[] tmpBuf = new float[fftSize];
+		firFreqRespL = new float[numHrirs][][];
+		firFreqRespR = new float[numHrirs][][];
+		for (int i = 0; i < numHrirs; i++) {
+			firFreqRespL[i] = transformPartitions(hrirs[0][i], tmpBuf);
+			firFreqRespR[i] = transformPartitions(hrirs[1][i], tmpBuf);
+		}
+
+		allocateBuffers(numSources, fftSize - bufSettings.monoFftPaddingInSamples, bufSettings.monoCrossfadeOverlapInSamples);
+		return 0;
+	}
+
+	/**
+	 * Sets up the filter with the hrtf spectra of donor, which are only read while rendering, so both can be used
+	 * by different threads. Input history and buffers are this filter's own.
+	 * 
+	 * @return -1 on error
+	 */
+	public int createShared(JavaFirFilter donor, int numSources) {
+		if (donor.firFreqRespL == null) return -1;
+
+		fftSize = donor.fftSize;
+		numFreqBins = donor.numFreqBins;
+		partitionSize = donor.partitionSize;
+		numPartitions = donor.numPartitions;
+		fft = new RealFft(fftSize, false);	// has scratch buffers
+		ifft = new RealFft(fftSize, true);
+		firFreqRespL = donor.firFreqRespL;
+		firFreqRespR = donor.firFreqRespR;
+
+		allocateBuffers(numSources, donor.inputLengthInSamples, donor.crossfadeLengthInSamples);
+		return 0;
+	}
+
+	// per filter state: input history of all sources, mixing and crossfade buffers
+	private void allocateBuffers(int numSources, int inputLength, int crossfadeLength) {
+		// a single partition keeps no input history, so all sources can share one delay line
+		numChannels = (numPartitions == 1) ? 1 : Math.max(numSources, 1);
+		fdl = new float[numChannels][numPartitions][numFreqBins * 2];
+		fdlHead = new int[numChannels];
+		accL = new float[numFreqBins * 2];
+		accR = new float[numFreqBins * 2];
+		mixSpectrumL = new float[numFreqBins * 2];
+		mixSpectrumR = new float[numFreqBins * 2];
+		mixSpectrumUsed = false;
+
+		// input window as in the native filter, the fft padding at the end stays zero
+		inputLengthInSamples = inputLength;
+		mixBufferLengthInSamples = inputLengthInSamples - (partitionSize - 1);
+		crossfadeLengthInSamples = crossfadeLength;
+		inFloat = new float[fftSize];
+		outFloatL = new float[fftSize];
+		outFloatR = new float[fftSize];
+		mixBufferL = new float[mixBufferLengthInSamples];
+		mixBufferR = new float[mixBufferLengthInSamples];
+		crossfadeSaveBufferL = new float[crossfadeLengthInSamples];
+		crossfadeSaveBufferR = new float[crossfadeLengthInSamples];
+
+		// cosine crossfade
+		crossfadeInTable = new float[crossfadeLengthInSamples];
+		crossfadeOutTable = new float[crossfadeLengthInSamples];
+		for (int i = 0; i < crossfadeLengthInSamples; i++) {
+			crossfadeOutTable[i] = (float) Math.cos((float) i / (float) (crossfadeLengthInSamples - 1) * Math.PI) / 2.0f + 0.5f;
+			crossfadeInTable[i] = 1.0f - crossfadeOutTable[i];
+		}
+	}
+
+	// scaled spectra of all partitions of one impulse response, rotated like in kiss_fastfir, so the
+	// valid output samples start at index 0
+	private float[][] transformPartitions(float[] taps, float[] tmpBuf) {
+		float[][] result = new float[numPartitions][numFreqBins * 2];
+		float scale = 1.0f / fftSize;
+
+		for (int p = 0; p < numPartitions; p++) {
+			int offset = p * partitionSize;
+			int numTaps = Math.min(taps.length - offset, partitionSize);	// last partition might be shorter
+
+			Arrays.fill(tmpBuf, 0.0f);
+			if (numTaps == partitionSize) tmpBuf[0] = taps[offset + partitionSize - 1];
+			for (int i = 0; i < partitionSize - 1 && i < numTaps; i++)
+				tmpBuf[fftSize - partitionSize + 1 + i] = taps[offset + i];
+
+			fft.forward(tmpBuf, result[p]);
+			for (int i = 0; i < numFreqBins * 2; i++)
+				result[p][i] *= scale;
+		}
+
+		return result;
+	}
+
+	public int beginRenderingBlock() {
+		// save crossfade samples
+		System.arraycopy(mixBufferL, mixBufferLengthInSamples - crossfadeLengthInSamples, crossfadeSaveBufferL, 0, crossfadeLengthInSamples);
+		System.arraycopy(mixBufferR, mixBufferLengthInSamples - crossfadeLengthInSamples, crossfadeSaveBufferR, 0, crossfadeLengthInSamples);
+
+		// clear mixing buffers
+		Arrays.fill(mixBufferL, 0.0f);
+		Arrays.fill(mixBufferR, 0.0f);
+		if (mixSpectrumUsed) {
+			Arrays.fill(mixSpectrumL, 0.0f);
+			Arrays.fill(mixSpectrumR, 0.0f);
+			mixSpectrumUsed = false;
+		}
+		mixFinished = false;
+
+		return 0;
+	}
+
+	public int filter(ByteBuffer audioInput, int inputStart, int sourceIndex, int hrtfIndex, float sampleScaling) {
+		if (numPartitions > 1 && (sourceIndex < 0 || sourceIndex >= numChannels)) return -1;
+		if (hrtfIndex < 0 || hrtfIndex >= firFreqRespL.length) return -1;
+		if (audioInput.capacity() < inputLengthInSamples * FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES) return -1;
+		int inputBufferLength = audioInput.capacity() / FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES;
+		if (inputStart < 0 || inputStart >= inputBufferLength) return -1;
+		int channel = (numPartitions == 1) ? 0 : sourceIndex;
+
+		// copy float input (byte order is the buffer's, see FirFilter.allocateBuffer()),
+		// the window wraps around at the end of the circular input buffer
+		int firstSegmentLength = Math.min(inputLengthInSamples, inputBufferLength - inputStart);
+		for (int i = 0, j = inputStart * 4; i < firstSegmentLength; i++, j += 4)
+			inFloat[i] = audioInput.getFloat(j);
+		for (int i = firstSegmentLength, j = 0; i < inputLengthInSamples; i++, j += 4)
+			inFloat[i] = audioInput.getFloat(j);
+
+		convolve(channel, -1, hrtfIndex);
+		mix(sampleScaling);
+		return mixBufferLengthInSamples;
+	}
+
+	/**
+	 * Like filter(), for a source with the same input window as source fromSourceIndex, which was filtered right
+	 * before: its input spectrum is reused instead of reading and transforming the same input again.
+	 */
+	public int filterShared(int sourceIndex, int fromSourceIndex, int hrtfIndex, float sampleScaling) {
+		if (numPartitions > 1 && (sourceIndex < 0 || sourceIndex >= numChannels || fromSourceIndex < 0
+				|| fromSourceIndex >= numChannels)) return -1;
+		if (hrtfIndex < 0 || hrtfIndex >= firFreqRespL.length) return -1;
+		int channel = (numPartitions == 1) ? 0 : sourceIndex;
+		int fromChannel = (numPartitions == 1) ? 0 : fromSourceIndex;
+
+		convolve(channel, fromChannel, hrtfIndex);
+		mix(sampleScaling);
+		return mixBufferLengthInSamples;
+	}
+
+	// adds the output spectra of a convolved source to the mix
+	private void mix(float sampleScaling) {
+		if (spectralMixing) {
+			// output is transformed back in endRenderingBlock()
+			for (int i = 0; i < numFreqBins * 2; i++) {
+				mixSpectrumL[i] += accL[i] * sampleScaling;
+				mixSpectrumR[i] += accR[i] * sampleScaling;
+			}
+			mixSpectrumUsed = true;
+		} else {
+			ifft.inverse(accL, outFloatL);
+			ifft.inverse(accR, outFloatR);
+			mixOutput(sampleScaling);
+		}
+	}
+
+	// transforms input, pushes it into the source's delay line and leaves the output spectra in accL/accR.
+	// fromChannel >= 0: input is the same as that channel's newest input, its spectrum is copied instead.
+	private void convolve(int channel, int fromChannel, int hrtfIndex) {
+		final float[][] fdlChannel = fdl[channel];
+		final float[][] hl = firFreqRespL[hrtfIndex];
+		final float[][] hr = firFreqRespR[hrtfIndex];
+		final float[] accL = this.accL;
+		final float[] accR = this.accR;
+		final int n = numFreqBins * 2;
+
+		if (fromChannel < 0)
+			fft.forward(inFloat, pushSlot(channel));
+		else if (fromChannel != channel)
+			System.arraycopy(fdl[fromChannel][fdlHead[fromChannel]], 0, pushSlot(channel), 0, n);
+
+		// newest input spectrum with first partition, next older one with second partition, and so on
+		Arrays.fill(accL, 0.0f);
+		Arrays.fill(accR, 0.0f);
+		int slot = fdlHead[channel];
+		for (int p = 0; p < numPartitions; p++) {
+			final float[] x = fdlChannel[slot];
+			final float[] hlp = hl[p];
+			final float[] hrp = hr[p];
+			for (int i = 0; i < n; i += 2) {
+				float xr = x[i];
+				float xi = x[i+1];
+				accL[i] += xr * hlp[i] - xi * hlp[i+1];
+				accL[i+1] += xr * hlp[i+1] + xi * hlp[i];
+				accR[i] += xr * hrp[i] - xi * hrp[i+1];
+				accR[i+1] += xr * hrp[i+1] + xi * hrp[i];
+			}
+			if (--slot < 0) slot = numPartitions - 1;
+		}
+	}
+
+	// advances the delay line, the oldest spectrum gets overwritten
+	private float[] pushSlot(int channel) {
+		int head = fdlHead[channel] + 1;
+		if (head == numPartitions) head = 0;
+		fdlHead[channel] = head;
+		return fdl[channel][head];
+	}
+
+	private void mixOutput(float sampleScaling) {
+		for (int i = 0; i < mixBufferLengthInSamples; i++) {
+			mixBufferL[i] += outFloatL[i] * sampleScaling;
+			mixBufferR[i] += outFloatR[i] * sampleScaling;
+		}
+	}
+
+	public int skipSource(int sourceIndex) {
+		if (numPartitions == 1) return 0;
+		if (sourceIndex < 0 || sourceIndex >= numChannels) return -1;
+		Arrays.fill(pushSlot(sourceIndex), 0.0f);
+		return 0;
+	}
+
+	public int resetSources() {
+		for (int c = 0; c < numChannels; c++) {
+			for (int p = 0; p < numPartitions; p++)
+				Arrays.fill(fdl[c][p], 0.0f);
+			fdlHead[c] = 0;
+		}
+		return 0;
+	}
+
+	// completes the block's mix in the mixing buffers, only once per block
+	public int finishMix() {
+		if (mixFinished) return 0;
+
+		// one inverse fft per ear for all sources
+		if (mixSpectrumUsed) {
+			ifft.inverse(mixSpectrumL, outFloatL);
+			ifft.inverse(mixSpectrumR, outFloatR);
+			mixOutput(1.0f);
+		}
+
+		mixFinished = true;
+		return 0;
+	}
+
+	public int addMix(JavaFirFilter other) {
+		if (other.mixBufferLengthInSamples != mixBufferLengthInSamples) return -1;
+
+		other.finishMix();
+		for (int i = 0; i < mixBufferLengthInSamples; i++) {
+			mixBufferL[i] += other.mixBufferL[i];
+			mixBufferR[i] += other.mixBufferR[i];
+		}
+		return 0;
+	}
+
+	public int endRenderingBlock(boolean crossfade, ByteBuffer audioOutput) {
+		if (audioOutput.capacity() < (mixBufferLengthInSamples - crossfadeLengthInSamples) * 4) return -1;
+		finishMix();
+
+		if (crossfade) {
+			for (int i = 0; i < crossfadeLengthInSamples; i++) {
+				mixBufferL[i] = crossfadeInTable[i] * mixBufferL[i] + crossfadeOutTable[i] * crossfadeSaveBufferL[i];
+				mixBufferR[i] = crossfadeInTable[i] * mixBufferR[i] + crossfadeOutTable[i] * crossfadeSaveBufferR[i];
+			}
+		}
+
+		// convert to interleaved 16 bit, with clipping
+		for (int i = 0, j = 0; i < mixBufferLengthInSamples - crossfadeLengthInSamples; i++, j += 4) {
+			audioOutput.putShort(j, toShort(mixBufferL[i]));
+			audioOutput.putShort(j+2, toShort(mixBufferR[i]));
+		}
+
+		return 0;
+	}
+
+	private static short toShort(float sample) {
+		return (sample > Short.MAX_VALUE) ? Short.MAX_VALUE : ((sample < Short.MIN_VALUE) ? Short.MIN_VALUE : (short) sample);
+	}
+
+	public void setSpectralMixing(boolean enable) {
+		spectralMixing = enable;
+	}
+}
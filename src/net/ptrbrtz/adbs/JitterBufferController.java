@@ -0,0 +1,124 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+/**
+ * Adapts the number of output buffers rendered ahead of the audio callback (the depth of the jitter buffer) at
+ * runtime, so playback gets by with as little latency as the device allows. It starts with one buffer. The depth grows
+ * by one as soon as the output ran dry or a block took so long to render that the buffered audio nearly did not
+ * cover it. It shrinks by one after a stable period without underruns in which render times stayed well below what one
+ * buffer less would cover. The gap between both thresholds (hysteresis) keeps the depth from flapping.
+ * 
+ * Used by the audio thread only.
+ * 
+ * @author Peter Bartz
+ */
+class JitterBufferController {
+	// render time of one output buffer's worth of blocks, relative to the duration of the audio buffered ahead
+	private static final float GROW_THRESHOLD = 0.8f;
+	private static final float SHRINK_THRESHOLD = 0.4f;
+	private static final long STABLE_PERIOD_IN_NANOS = 10000000000L;	// before shrinking
+
+	private final int maxDepth;
+	private final long outputBufferDurationInNanos;
+	private final long blockDurationInNanos;
+	private int depth = 1;
+	private int numUnderruns = 0;	// as last seen
+	private long peakRenderTimeInNanos = 0;	// of one output buffer, since the last change
+	private long periodStartTime;	// of the stable period looked at before shrinking
+
+	/**
+	 * @param maxDepth in output buffers, at least 1
+	 * @param outputBufferDurationInNanos duration of one output buffer
+	 * @param blockDurationInNanos duration of one processing block
+	 */
+	JitterBufferController(int maxDepth, long outputBufferDurationInNanos, long blockDurationInNanos) {
+		this.maxDepth = Math.max(maxDepth, 1);
+		this.outputBufferDurationInNanos = outputBufferDurationInNanos;
+		this.blockDurationInNanos = blockDurationInNanos;
+		this.periodStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Number of full output buffers to keep ahead of the audio callback
+	 */
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Takes numUnderruns (output underruns so far) as seen, e.g. after starting or resuming, when the output runs dry
+	 * for reasons other than rendering too late
+	 */
+	void resetUnderruns(int numUnderruns) {
+		this.numUnderruns = numUnderruns;
+	}
+
+	/**
+	 * Call once per rendered block with the time it took to render it, the number of output underruns so far and the
+	 * current time (System.nanoTime()). Returns true if the depth changed.
+	 */
+	boolean update(long renderTimeInNanos, int numUnderruns, long now) {
+		boolean underrun = (numUnderruns != this.numUnderruns);
+		this.numUnderruns = numUnderruns;
+
+		// as if all blocks of one output buffer took as long as this one
+		long renderTime = renderTimeInNanos * outputBufferDurationInNanos / blockDurationInNanos;
+		if (renderTime > peakRenderTimeInNanos) peakRenderTimeInNanos = renderTime;
+
+		if (depth < maxDepth && (underrun || renderTime > GROW_THRESHOLD * depth * outputBufferDurationInNanos)) {
+			setDepth(depth + 1, now);
+			return true;
+		}
+		if (depth > 1 && now - periodStartTime > STABLE_PERIOD_IN_NANOS) {
+			if (peakRenderTimeInNanos < SHRINK_THRESHOLD * (depth - 1) * outputBufferDurationInNanos) {
+				setDepth(depth - 1, now);
+				return true;
+			}
+			
+			// start a new period, so an old peak does not keep the depth up forever
+			peakRenderTimeInNanos = 0;
+			periodStartTime = now;
+		}
+		return false;
+	}
+
+	private void setDepth(int depth, long now) {
+		this.depth = depth;
+		peakRenderTimeInNanos = 0;
+		periodStartTime = now;
+	}
+
+	/**
+	 * Output latency added by buffering at the current depth: the buffers ahead of the callback, the one it plays and
+	 * the block that is partly buffered (the device's own output latency comes on top)
+	 */
+	float getLatencyBudgetMillis() {
+		return getLatencyBudgetMillis(depth, outputBufferDurationInNanos, blockDurationInNanos);
+	}
+
+	static float getLatencyBudgetMillis(int depth, long outputBufferDurationInNanos, long blockDurationInNanos) {
+		return ((depth + 1) * outputBufferDurationInNanos + blockDurationInNanos) / 1000000.0f;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import net.ptrbrtz.adbs.android.utils.Log;
+import net.ptrbrtz.adbs.android.utils.WaveFileInfo;
+
+/**
+ * Peak and rms level of every BLOCK_SIZE samples of a wave file's audio data, kept in a small sidecar file next to it
+ * (the file name plus SUFFIX). It is written on first use (or beforehand, see main()) and mapped read only afterwards,
+ * so finding out whether a stretch of audio is silent takes a few reads instead of reading the audio itself.
+ * AudioFileBuffer uses it to skip reading and converting silent chunks. A sidecar is rebuilt if the length or
+ * modification time of its audio file changed. If it can not be written, the index is kept in memory.
+ * 
+ * Sidecar layout (little endian): magic, version, block size, number of samples (ints), length and modification time
+ * of the audio file (longs), then peak and rms of each block (shorts, absolute 16 bit sample values).
+ * 
+ * java net.ptrbrtz.adbs.LoudnessIndex file.wav [file.wav ...]
+ * 
+ * @author Peter Bartz
+ */
+public class LoudnessIndex {
+	private static final String TAG = "LoudnessIndex";
+
+	public static final String SUFFIX = ".loudness";
+	public static final int BLOCK_SIZE = 128;	// in samples
+
+	private static final int MAGIC = 0x4c534441;	// "ADSL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int ENTRY_SIZE = 4;
+
+	private final ByteBuffer data;	// header and entries, mapped or in memory, only read
+	private final int numSamples;
+	private final int numBlocks;
+
+	private LoudnessIndex(ByteBuffer data) {
+		this.data = data;
+		this.numSamples = data.getInt(12);
+		this.numBlocks = getNumBlocks(numSamples);
+	}
+
+	/**
+	 * Returns the index of a 16 bit pcm wave file, from its sidecar, which is built first if it is missing or outdated.
+	 * null: the audio file could not be read.
+	 */
+	public static LoudnessIndex get(String audioFileName) {
+		File audioFile = new File(audioFileName);
+		File indexFile = new File(audioFileName + SUFFIX);
+		try {
+			LoudnessIndex index = map(indexFile, audioFile.length(), audioFile.lastModified());
+			if (index != null) return index;
+
+			ByteBuffer data = build(audioFile);
+			if (write(data, indexFile)) {
+				index = map(indexFile, audioFile.length(), audioFile.lastModified());
+				if (index != null) return index;
+			}
+			return new LoudnessIndex(data);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not index '" + audioFileName + "': " + e.getMessage());
+			return null;
+		}
+	}
+
+	// maps indexFile if it is a valid index of an audio file with the given length and modification time, null if not
+	private static LoudnessIndex map(File indexFile, long audioFileLength, long audioFileLastModified) throws IOException {
+		if (indexFile.length() < HEADER_SIZE) return null;
+		FileInputStream in = new FileInputStream(indexFile);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != BLOCK_SIZE
+					|| data.getLong(16) != audioFileLength || data.getLong(24) != audioFileLastModified
+					|| data.capacity() != HEADER_SIZE + getNumBlocks(data.getInt(12)) * ENTRY_SIZE) {
+				return null;
+			}
+			return new LoudnessIndex(data);	// the mapping stays valid after closing the file
+		} finally {
+			in.close();
+		}
+	}
+
+	// reads the whole audio file once and returns the contents of its sidecar
+	private static ByteBuffer build(File audioFile) throws IOException {
+		long audioFileLength = audioFile.length();
+		long audioFileLastModified = audioFile.lastModified();
+		FileInputStream in = new FileInputStream(audioFile);
+		try {
+			WaveFileInfo info = new WaveFileInfo(in);
+			if (info.getFormat() != WaveFileInfo.FORMAT_PCM || info.getBitsPerSample() != 16)
+				throw new IOException("Not a 16 bit pcm wave file");
+			FileChannel channel = in.getChannel();
+			int numSamples = SharedAudioFile.getDataLength(channel, info) / 2;
+			ByteBuffer audioData = channel.map(FileChannel.MapMode.READ_ONLY, info.getFirstAudioByteIndex(),
+					numSamples * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+			int numBlocks = getNumBlocks(numSamples);
+			ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + numBlocks * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			data.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_SIZE).putInt(numSamples);
+			data.putLong(audioFileLength).putLong(audioFileLastModified);
+			for (int block = 0; block < numBlocks; block++) {
+				int start = block * BLOCK_SIZE;
+				int end = Math.min(start + BLOCK_SIZE, numSamples);
+				int peak = 0;
+				double sumOfSquares = 0.0;
+				for (int i = start; i < end; i++) {
+					int sample = Math.abs(audioData.getShort(2 * i));
+					if (sample > peak) peak = sample;
+					sumOfSquares += (double) sample * sample;
+				}
+				int rms = (int) Math.round(Math.sqrt(sumOfSquares / (end - start)));
+				data.putShort((short) Math.min(peak, Short.MAX_VALUE));
+				data.putShort((short) Math.min(rms, Short.MAX_VALUE));
+			}
+			data.clear();
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	// writes data to indexFile (via a temporary file, so no half written index is ever mapped), false if not possible
+	private static boolean write(ByteBuffer data, File indexFile) {
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				ByteBuffer source = data.duplicate();
+				while (source.hasRemaining()) out.getChannel().write(source);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(indexFile)) {
+				indexFile.delete();
+				if (!tempFile.renameTo(indexFile)) throw new IOException("Could not rename '" + tempFile + "'");
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write '" + indexFile + "', keeping it in memory: " + e.getMessage());
+			tempFile.delete();
+			return false;
+		}
+	}
+
+	private static int getNumBlocks(int numSamples) {
+		return (numSamples + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	/**
+	 * Highest absolute sample value of the blocks covering numSamples samples from sample start on (samples after the
+	 * end of the audio data count as silent)
+	 */
+	public int getPeak(int start, int numSamples) {
+		if (numSamples <= 0 || start >= this.numSamples) return 0;
+		int first = Math.max(start, 0) / BLOCK_SIZE;
+		int last = Math.min((start + numSamples - 1) / BLOCK_SIZE, numBlocks - 1);
+		int peak = 0;
+		for (int block = first; block <= last; block++) {
+			int blockPeak = data.getShort(HEADER_SIZE + block * ENTRY_SIZE);
+			if (blockPeak > peak) peak = blockPeak;
+		}
+		return peak;
+	}
+
+	public int getRms(int block) {
+		return data.getShort(HEADER_SIZE + block * ENTRY_SIZE + 2);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("usage: LoudnessIndex file.wav [file.wav ...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++) {
+			LoudnessIndex index = get(args[i]);
+			if (index == null) {
+				System.err.println(TAG + ": could not index '" + args[i] + "'");
+				continue;
+			}
+			int numSilentBlocks = 0;
+			for (int block = 0; block < index.getNumBlocks(); block++) {
+				if (index.getPeak(block * BLOCK_SIZE, BLOCK_SIZE) <= GlobalData.SILENCE_THRESHOLD) numSilentBlocks++;
+			}
+			System.out.println(String.format("%s: %d blocks, %.1f %% silent", args[i], index.getNumBlocks(),
+					100.0 * numSilentBlocks / Math.max(index.getNumBlocks(), 1)));
+		}
+	}
+}
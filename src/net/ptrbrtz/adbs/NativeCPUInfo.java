@@ -22,7 +22,7 @@ SOFTWARE.
 
 package net.ptrbrtz.adbs;
 
-import android.util.Log;
+import net.ptrbrtz.adbs.android.utils.Log;
 
 public class NativeCPUInfo {
 	private static final String TAG = "NativeCPUInfo";
@@ -32,11 +32,12 @@ public class NativeCPUInfo {
 		try {
 			System.loadLibrary("nativeCPUInfo");
 			Log.d(TAG, "library loaded...");
-		} catch (Exception e) {
+		} catch (Throwable e) {	// UnsatisfiedLinkError, e.g. on a desktop jvm
 			Log.e(TAG, "could not load library...");
 		}
 	}
 	
 	// native methods
 	public static native int getCpuId(); // get cpu number this thread is running on
+	public static native int setThreadAffinity(int cpu); // pin calling thread to one cpu, -1 on error
 }
@@ -0,0 +1,220 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import net.ptrbrtz.adbs.android.utils.WaveFileWriter;
+
+/**
+ * Renders an audio scene to a stereo wave file as fast as possible, without audio output. The listener's azimuth
+ * follows a recorded HeadTrajectory instead of the head tracker. Source buffering, source parameters and the fir
+ * filter are the same as in live playback, so a render sounds like the scene played live with that head movement.
+ * 
+ * Needs neither an Activity nor an audio device and falls back to the java fir filter backend if the native
+ * library is missing, so it also runs on a desktop jvm. The engine classes only need the sdk's android.jar, whose
+ * stubs throw when called: logging then goes to System.err (see android.utils.Log) and thread priorities stay as
+ * they are. GlobalData refers to the Razor AHRS library, so its sources are on the source path. From the project
+ * directory:
+ * 
+ * mkdir -p /tmp/adbs
+ * javac -encoding UTF-8 -cp $ANDROID_HOME/platforms/android-19/android.jar -sourcepath src:../RazorAHRS/src
+ *     -d /tmp/adbs src/net/ptrbrtz/adbs/OfflineRenderer.java src/net/ptrbrtz/adbs/BatchRenderer.java
+ * java -cp /tmp/adbs:$ANDROID_HOME/platforms/android-19/android.jar net.ptrbrtz.adbs.OfflineRenderer
+ *     scene.asd HRIRs.dat trajectory.txt out.wav [duration in s]
+ * 
+ * Add -Djava.library.path=... with libfirfilter.so built for the host to use the native backend.
+ * 
+ * @author Peter Bartz
+ */
+public class OfflineRenderer {
+	private static final String TAG = "OfflineRenderer";
+
+	private final AudioScene scene;
+	private final float[][][] hrirs;
+	private final AudioScene.AudioBufferSettings bufSettings;
+	private FirFilter spectraDonor = null;
+	private Map<String, SharedAudioFile> sharedAudioFiles = null;
+
+	public static class Stats {
+		public long numBlocks;
+		public long numSilentSourceBlocks;	// source blocks not filtered because the source was silent
+		public double renderedSeconds;	// duration of rendered audio
+		public double wallSeconds;		// time it took to render it
+		public double realtimeFactor;	// renderedSeconds / wallSeconds
+
+		@Override
+		public String toString() {
+			return String.format("%d blocks, %.2f s audio in %.2f s, real-time factor %.1f, %d silent source blocks skipped",
+					numBlocks, renderedSeconds, wallSeconds, realtimeFactor, numSilentSourceBlocks);
+		}
+	}
+
+	/**
+	 * @param scene loaded scene, must not be played live at the same time
+	 */
+	public OfflineRenderer(AudioScene scene, float[][][] hrirs, AudioScene.AudioBufferSettings bufSettings) {
+		this.scene = scene;
+		this.hrirs = hrirs;
+		this.bufSettings = bufSettings;
+	}
+
+	/**
+	 * Lets the filters of this renderer use the hrtf spectra of donor (created with the same hrirs and buffer settings)
+	 * instead of transforming hrirs themselves, see FirFilter.createShared(). null: own spectra.
+	 */
+	public void setSpectraDonor(FirFilter donor) {
+		spectraDonor = donor;
+	}
+
+	/**
+	 * Sources whose audio file name is a key of files read from that file's data in memory. null: stream all files.
+	 */
+	public void setSharedAudioFiles(Map<String, SharedAudioFile> files) {
+		sharedAudioFiles = files;
+	}
+
+	/**
+	 * Renders the scene from its beginning and streams it to a 16-bit stereo wave file.
+	 * 
+	 * @param duration seconds to render, 0: until all sources have ended and the filters have rung out
+	 */
+	public Stats render(HeadTrajectory trajectory, String outputFileName, float duration) throws Exception {
+		long startTime = System.nanoTime();
+		AudioScene.InternalAudioBufferSettings internalSettings = new AudioScene.InternalAudioBufferSettings();
+		scene.getInternalAudioBufferSettings(bufSettings, hrirs[0][0].length, internalSettings);
+		int blockSize = internalSettings.monoAudioOutBlockSizeInSamples;
+		int sampleRate = scene.getSampleRate();
+		long maxNumBlocks = duration > 0.0f ? (long) Math.ceil(duration * sampleRate / blockSize) : Long.MAX_VALUE;
+		int numTailBlocks = (internalSettings.monoNumFilterCoeffFrames + blockSize - 1) / blockSize;
+		int silenceSpan = AudioScene.getSilenceSpanInSamples(internalSettings);
+
+		int numSources = scene.getNumSoundSources();
+		ByteBuffer[] inputs = new ByteBuffer[numSources];
+		int[] inputStarts = new int[numSources];
+		int[] hrtfIndices = new int[numSources];
+		float[] sampleScalings = new float[numSources];
+		float[] sourceXY = new float[2];
+		ByteBuffer output = FirFilter.allocateBuffer(internalSettings.monoAudioOutBlockSizeInBytes * 2);	// stereo
+		float scaling = AudioScene.DEFAULT_SAMPLE_SCALING * scene.getVolume() / 100.0f;
+
+		FirFilter.Backend backend = getAvailableBackend(bufSettings.firFilterBackend);
+		ParallelRenderer renderer = new ParallelRenderer(bufSettings.numRenderWorkers);
+		WaveFileWriter writer = null;
+		Stats stats = new Stats();
+		try {
+			if (renderer.create(hrirs, internalSettings, numSources, backend, spectraDonor) == -1)
+				throw new Exception("Could not init FFT.");
+			scene.setupSoundSourcesIO(internalSettings, false, sharedAudioFiles);
+			writer = new WaveFileWriter(outputFileName, 2, sampleRate);
+
+			int remainingTailBlocks = numTailBlocks + 1;	// block with the last samples, then the filter tail
+			while (stats.numBlocks < maxNumBlocks && remainingTailBlocks > 0) {
+				float azimuth = trajectory.getAzimuth((double) stats.numBlocks * blockSize / sampleRate);
+
+				boolean allEndOfStream = true;
+				for (int i = 0; i < numSources; i++) {
+					SoundSource soundSource = scene.getSoundSource(i);
+					inputs[i] = soundSource.getAudioFileBuffer().getBuffer();
+					inputStarts[i] = soundSource.getAudioFileBuffer().getWindowStart();
+					if (soundSource.isMuted()) {
+						hrtfIndices[i] = -1;
+					} else if (soundSource.getAudioFileBuffer().isSilent(silenceSpan)) {
+						hrtfIndices[i] = -1;	// skipped, the output stays the same
+						stats.numSilentSourceBlocks++;
+					} else {
+						soundSource.getXY(sourceXY);
+						hrtfIndices[i] = AudioScene.getHrtfIndex(sourceXY, azimuth);
+						sampleScalings[i] = AudioScene.getSampleScaling(sourceXY, scaling) * soundSource.getFilterGain();
+					}
+
+					int bufferStatus = soundSource.getAudioFileBuffer().getStatus();
+					if (bufferStatus == AudioFileBuffer.STATUS_ERROR_QUIT)
+						throw new IOException("Could not read audio file '" + soundSource.getAudioFileName() + "'");
+					else if (bufferStatus != AudioFileBuffer.STATUS_OK_END_OF_STREAM)
+						allEndOfStream = false;
+				}
+				if (allEndOfStream && duration <= 0.0f) remainingTailBlocks--;
+
+				if (renderer.renderBlock(inputs, inputStarts, hrtfIndices, sampleScalings, true, output) == -1)
+					throw new Exception("Error during rendering");
+				for (int i = 0; i < numSources; i++) {
+					if (scene.getSoundSourceIOOwner(i) != i) continue;	// plays from another source's buffer
+					
+					// overlap-save + cross-fade overlap save
+					scene.getSoundSource(i).getAudioFileBuffer().advanceWindow();
+					
+					// buffer next chunk of audio file in background
+					scene.getSoundSource(i).getAudioFileBuffer().bufferNextChunk();
+				}
+
+				output.clear();
+				writer.write(output);
+				stats.numBlocks++;
+			}
+		} finally {
+			if (writer != null) writer.close();
+			renderer.destroy();
+			scene.shutdownIO();
+		}
+
+		stats.renderedSeconds = (double) stats.numBlocks * blockSize / sampleRate;
+		stats.wallSeconds = (System.nanoTime() - startTime) / 1e9;
+		stats.realtimeFactor = stats.renderedSeconds / stats.wallSeconds;
+		return stats;
+	}
+
+	// falls back to the java backend if the native library is missing
+	static FirFilter.Backend getAvailableBackend(FirFilter.Backend backend) {
+		if (backend == FirFilter.Backend.NATIVE && !FirFilter.isNativeLibraryLoaded())
+			return FirFilter.Backend.JAVA;
+		return backend;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("usage: OfflineRenderer scene.asd HRIRs.dat trajectory.txt out.wav [duration in s]");
+			System.exit(1);
+		}
+
+		// source file names are relative to the scene file's directory
+		String sceneFileName = new File(args[0]).getAbsolutePath();
+		AudioScene scene = new AudioScene();
+		if (!new AudioSceneLoader().loadScene(sceneFileName, scene))
+			throw new Exception("Could not load scene '" + args[0] + "'");
+		float[][][] hrirs = HrirReader.readHrirs(args[1]);
+		HeadTrajectory trajectory = HeadTrajectory.load(args[2]);
+		float duration = args.length > 4 ? Float.parseFloat(args[4]) : 0.0f;
+
+		AudioScene.AudioBufferSettings bufSettings = new AudioScene.AudioBufferSettings();
+		bufSettings.processingBlockSize = GlobalData.DEFAULT_PROCESSING_BLOCK_SIZE;
+		bufSettings.crossfadeOverlapSize = GlobalData.DEFAULT_CROSSFADE_OVERLAP_SIZE;
+		bufSettings.numRenderWorkers = Runtime.getRuntime().availableProcessors();
+
+		Stats stats = new OfflineRenderer(scene, hrirs, bufSettings).render(trajectory, args[3], duration);
+		System.out.println(TAG + ": " + args[3] + ": " + stats);
+	}
+}
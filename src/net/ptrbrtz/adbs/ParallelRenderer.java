@@ -0,0 +1,257 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+import net.ptrbrtz.adbs.android.utils.Log;
+
+/**
+ * Renders the sources of a block on several cores. Sources are assigned to workers round robin (source i to worker
+ * i % numWorkers). Each worker has its own FirFilter holding the input history of its sources and a private stereo
+ * mix. The calling (audio) thread is worker 0, the other workers are threads pinned to one cpu each. When all
+ * workers are done, their mixes are added to worker 0's mix, which is then crossfaded and converted as usual.
+ * 
+ * Workers are released and collected with a barrier of two atomic counters, so the hot path neither locks nor
+ * allocates. Waiting threads spin for a short while and then park until they are unparked.
+ */
+class ParallelRenderer {
+	private static final String TAG = "ParallelRenderer";
+	private static final int MAX_SPINS = 2000;	// volatile reads before a waiting thread parks
+
+	private final int maxNumWorkers;
+	private int numWorkers = 0;
+	private FirFilter[] filters;		// [worker]
+	private int[][] workerSources;		// [worker][local source index] -> source index
+	private Worker[] workers;			// [worker], null for worker 0 (calling thread)
+
+	// barrier: generation is incremented to release a block, pending counts workers still rendering it
+	private final AtomicInteger generation = new AtomicInteger(0);
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private volatile Thread renderingThread = null;
+	private volatile boolean quit = false;
+	private volatile boolean workerError = false;
+
+	// parameters of the current block, published by the generation increment
+	private ByteBuffer[] blockInputs;
+	private int[] blockInputStarts;
+	private int[] blockHrtfIndices;
+	private float[] blockSampleScalings;
+
+	public ParallelRenderer(int maxNumWorkers) {
+		this.maxNumWorkers = Math.max(maxNumWorkers, 1);
+	}
+
+	/**
+	 * Sets up one filter per worker and starts the worker threads. Never uses more workers than sources. All filters
+	 * share the hrtf spectra of worker 0's filter.
+	 * 
+	 * @return -1 on error
+	 */
+	public int create(float[][][] hrirs, AudioScene.InternalAudioBufferSettings bufSettings, int numSources,
+			FirFilter.Backend backend) {
+		return create(hrirs, bufSettings, numSources, backend, null);
+	}
+
+	/**
+	 * Same as above, but if spectraDonor is not null, all filters share its hrtf spectra (it has to be created with
+	 * the same hrirs and bufSettings), so hrirs are not transformed again.
+	 * 
+	 * @return -1 on error
+	 */
+	public int create(float[][][] hrirs, AudioScene.InternalAudioBufferSettings bufSettings, int numSources,
+			FirFilter.Backend backend, FirFilter spectraDonor) {
+		destroy();
+
+		numWorkers = Math.max(1, Math.min(maxNumWorkers, numSources));
+		filters = new FirFilter[numWorkers];
+		workerSources = new int[numWorkers][];
+		for (int w = 0; w < numWorkers; w++) {
+			workerSources[w] = new int[(numSources - w + numWorkers - 1) / numWorkers];
+			for (int j = 0; j < workerSources[w].length; j++)
+				workerSources[w][j] = w + j * numWorkers;
+
+			filters[w] = new FirFilter();
+			filters[w].setBackend(backend);
+			int result;
+			if (spectraDonor != null)
+				result = filters[w].createShared(spectraDonor, workerSources[w].length);
+			else if (w > 0)
+				result = filters[w].createShared(filters[0], workerSources[w].length);
+			else
+				result = filters[w].create(hrirs, bufSettings, workerSources[w].length);
+			if (result == -1) {
+				destroy();
+				return -1;
+			}
+		}
+
+		quit = false;
+		workers = new Worker[numWorkers];
+		for (int w = 1; w < numWorkers; w++) {
+			workers[w] = new Worker(w, generation.get());
+			workers[w].start();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Stops the worker threads and frees all filters. Safe to call more than once.
+	 */
+	public void destroy() {
+		if (workers != null) {
+			quit = true;
+			generation.incrementAndGet();
+			for (int w = 1; w < workers.length; w++)
+				LockSupport.unpark(workers[w]);
+			for (int w = 1; w < workers.length; w++) {
+				try {
+					workers[w].join();
+				} catch (InterruptedException e) {}
+			}
+			workers = null;
+		}
+		if (filters != null) {
+			for (int w = 0; w < filters.length; w++) {
+				if (filters[w] != null) filters[w].destroy();
+			}
+			filters = null;
+		}
+		numWorkers = 0;
+	}
+
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Renders one block of all sources and writes the stereo output. Source i's window starts at sample
+	 * inputStarts[i] of its circular input buffer (see FirFilter). A negative hrtf index marks a muted source
+	 * (skipped, but its filter state is kept in sync). The arrays must not be changed until this returns.
+	 * 
+	 * @return -1 on error
+	 */
+	public int renderBlock(ByteBuffer[] inputs, int[] inputStarts, int[] hrtfIndices, float[] sampleScalings,
+			boolean crossfade, ByteBuffer audioOutput) {
+		if (numWorkers == 0) return -1;
+
+		// release workers
+		blockInputs = inputs;
+		blockInputStarts = inputStarts;
+		blockHrtfIndices = hrtfIndices;
+		blockSampleScalings = sampleScalings;
+		workerError = false;
+		renderingThread = Thread.currentThread();
+		pending.set(numWorkers - 1);
+		generation.incrementAndGet();
+		for (int w = 1; w < numWorkers; w++)
+			LockSupport.unpark(workers[w]);
+
+		// render own share, then wait for the others (also if it throws, they must be done before the next block)
+		boolean ok;
+		try {
+			ok = renderSources(0);
+		} finally {
+			int spins = 0;
+			while (pending.get() != 0) {
+				if (++spins > MAX_SPINS) LockSupport.park(this);
+			}
+		}
+		if (!ok || workerError) return -1;
+
+		// sum partial mixes
+		for (int w = 1; w < numWorkers; w++) {
+			if (filters[0].addMix(filters[w]) == -1) return -1;
+		}
+
+		return filters[0].endRenderingBlock(crossfade, audioOutput);
+	}
+
+	// clears input history of all sources, e.g. after rewind. not while rendering a block.
+	public int resetSources() {
+		int result = 0;
+		for (int w = 0; w < numWorkers; w++) {
+			if (filters[w].resetSources() == -1) result = -1;
+		}
+		return result;
+	}
+
+	// all of the worker's sources in one call into the filter, which also finishes the mix
+	// (endRenderingBlock() does not do that again for worker 0)
+	private boolean renderSources(int worker) {
+		return filters[worker].renderSources(blockInputs, blockInputStarts, workerSources[worker], blockHrtfIndices,
+				blockSampleScalings) != -1;
+	}
+
+	private class Worker extends Thread {
+		private final int index;
+		private int seenGeneration;
+
+		public Worker(int index, int generation) {
+			super("ParallelRenderer-" + index);
+			this.index = index;
+			this.seenGeneration = generation;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			} catch (Exception e) {
+				Log.e(TAG, "Could not set thread priority: " + e.getMessage());
+			}
+			// worker 0 is the audio thread, which is not pinned, so start with the next cpu
+			int cpu = index % Runtime.getRuntime().availableProcessors();
+			try {
+				if (NativeCPUInfo.setThreadAffinity(cpu) == -1)
+					Log.w(TAG, "Could not pin worker " + index + " to cpu " + cpu);
+			} catch (UnsatisfiedLinkError e) {	// no native library, e.g. offline rendering on a desktop jvm
+				Log.w(TAG, "Could not pin worker " + index + " (no native library)");
+			}
+
+			while (true) {
+				int gen;
+				int spins = 0;
+				while ((gen = generation.get()) == seenGeneration) {
+					if (++spins > MAX_SPINS) LockSupport.park(this);
+				}
+				seenGeneration = gen;
+				if (quit) return;
+
+				// the worker has to count down and stay alive whatever happens, or renderBlock() would wait forever
+				try {
+					if (!renderSources(index)) workerError = true;
+				} catch (Throwable e) {
+					Log.e(TAG, "Worker " + index + " failed to render", e);
+					workerError = true;
+				} finally {
+					if (pending.decrementAndGet() == 0) LockSupport.unpark(renderingThread);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+
+import net.ptrbrtz.adbs.android.utils.Log;
+import net.ptrbrtz.adbs.android.utils.SpscQueue;
+import android.os.Process;
+
+/**
+ * Runs rendering as a pipeline of stages on separate threads. The audio thread stays the first stage: it reads the
+ * buffered source audio, computes the source parameters and handles transport, then hands a block over. The
+ * following stages convolve and mix the block (on one or more cores, see ParallelRenderer) and write it to the audio
+ * output. Stages are connected by single-producer/single-consumer queues of preallocated blocks, so nothing is
+ * locked or allocated while playing.
+ * 
+ * Every stage behind the audio thread adds one block of latency. With one stage, convolution and output share a
+ * thread; with two, they get one thread each. Transport changes travel with the blocks: a block carries its fade
+ * and whether the filter input history has to be reset before it is rendered.
+ */
+class PipelinedRenderer {
+	private static final String TAG = "PipelinedRenderer";
+	public static final int MAX_NUM_STAGES = 2;
+
+	/**
+	 * One processing block on its way through the pipeline. Filled by the audio thread between acquireBlock() and
+	 * submitBlock(), not touched by it afterwards.
+	 */
+	public static class Block {
+		public final ByteBuffer[] inputs;		// [source], copies of the circular input buffers (shared by sources of one file)
+		public final int[] inputStarts;			// [source], window start in inputs
+		public final int[] hrtfIndices;			// [source], -1 means muted
+		public final float[] sampleScalings;	// [source]
+		public final ByteBuffer output;			// stereo 16 bit
+		public boolean crossfade;
+		public boolean resetSources;			// forget filter input history before rendering (rewind)
+		public int fadeDirection;				// 1: fade in, -1: fade out, 0: no fade
+
+		private Block(int numSources, int inputSizeInBytes, int outputSizeInBytes) {
+			inputs = new ByteBuffer[numSources];
+			for (int i = 0; i < numSources; i++)
+				inputs[i] = FirFilter.allocateBuffer(inputSizeInBytes);
+			inputStarts = new int[numSources];
+			hrtfIndices = new int[numSources];
+			sampleScalings = new float[numSources];
+			output = FirFilter.allocateBuffer(outputSizeInBytes);
+		}
+	}
+
+	private final int numStages;
+	private ParallelRenderer renderer = null;
+	private SuperpoweredAudioIO audioIO;	// null: blocks are rendered but not played (benchmarking)
+	private int outputBlockSizeInSamples;
+	private int numBlocks = 0;
+
+	// free blocks -> audio thread -> renderQueue -> render stage -> outputQueue -> output stage -> freeQueue
+	private SpscQueue<Block> freeQueue;
+	private SpscQueue<Block> renderQueue;
+	private SpscQueue<Block> outputQueue;
+	private Stage[] stages;
+	private volatile boolean error = false;
+
+	/**
+	 * @param numStages number of stages behind the audio thread (1 or 2), equals the added latency in blocks
+	 */
+	public PipelinedRenderer(int numStages) {
+		this.numStages = Math.max(1, Math.min(numStages, MAX_NUM_STAGES));
+	}
+
+	/**
+	 * Sets up filters and blocks and starts the stage threads.
+	 * 
+	 * @return -1 on error
+	 */
+	public int create(float[][][] hrirs, AudioScene.InternalAudioBufferSettings bufSettings, int numSources,
+			FirFilter.Backend backend, int numRenderWorkers, SuperpoweredAudioIO audioIO) {
+		destroy();
+
+		renderer = new ParallelRenderer(numRenderWorkers);
+		if (renderer.create(hrirs, bufSettings, numSources, backend) == -1) {
+			renderer = null;
+			return -1;
+		}
+		this.audioIO = audioIO;
+		outputBlockSizeInSamples = bufSettings.monoAudioOutBlockSizeInSamples;
+
+		// one block per stage plus the one the audio thread is filling
+		numBlocks = numStages + 1;
+		freeQueue = new SpscQueue<Block>(numBlocks);
+		renderQueue = new SpscQueue<Block>(numBlocks);
+		outputQueue = new SpscQueue<Block>(numBlocks);
+		for (int b = 0; b < numBlocks; b++) {
+			freeQueue.offer(new Block(numSources, FirFilter.getInputSizeInBytes(bufSettings),
+					bufSettings.monoAudioOutBlockSizeInBytes * 2));
+		}
+
+		error = false;
+		if (numStages == 1) {
+			stages = new Stage[] { new Stage("PipelinedRenderer-render+output", true, true) };
+		} else {
+			stages = new Stage[] { new Stage("PipelinedRenderer-render", true, false),
+					new Stage("PipelinedRenderer-output", false, true) };
+		}
+		for (int s = 0; s < stages.length; s++)
+			stages[s].start();
+
+		return 0;
+	}
+
+	/**
+	 * Stops the stage threads and frees all filters. Blocks still in the pipeline are dropped, so drain() first to
+	 * play them. Safe to call more than once.
+	 */
+	public void destroy() {
+		if (stages != null) {
+			for (int s = 0; s < stages.length; s++)
+				stages[s].interrupt();
+			for (int s = 0; s < stages.length; s++) {
+				try {
+					stages[s].join();
+				} catch (InterruptedException e) {}
+			}
+			stages = null;
+		}
+		if (renderer != null) {
+			renderer.destroy();
+			renderer = null;
+		}
+		numBlocks = 0;
+	}
+
+	public int getNumStages() {
+		return numStages;
+	}
+
+	public int getNumRenderWorkers() {
+		return renderer == null ? 0 : renderer.getNumWorkers();
+	}
+
+	// true if a stage failed to render or write a block since create()
+	public boolean hasError() {
+		return error;
+	}
+
+	/**
+	 * Returns a free block to be filled by the audio thread, waiting if all blocks are in the pipeline. The block's
+	 * flags are cleared.
+	 * 
+	 * @return null if interrupted
+	 */
+	public Block acquireBlock() {
+		Block block;
+		try {
+			block = freeQueue.take();
+		} catch (InterruptedException e) {
+			return null;
+		}
+		block.crossfade = true;
+		block.resetSources = false;
+		block.fadeDirection = 0;
+		return block;
+	}
+
+	/**
+	 * Hands a filled block to the render stage. Never waits, there is always room for all blocks.
+	 */
+	public void submitBlock(Block block) {
+		renderQueue.offer(block);
+	}
+
+	/**
+	 * Waits until all submitted blocks are rendered and written, e.g. before flushing audio output on pause.
+	 * 
+	 * @return false if interrupted
+	 */
+	public boolean drain() {
+		try {
+			freeQueue.awaitSize(numBlocks);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private void render(Block block) {
+		if (block.resetSources && renderer.resetSources() == -1) error = true;
+		if (renderer.renderBlock(block.inputs, block.inputStarts, block.hrtfIndices, block.sampleScalings, block.crossfade,
+				block.output) == -1)
+			error = true;
+		if (block.fadeDirection != 0 && audioIO != null)
+			audioIO.linearFade(block.output, outputBlockSizeInSamples, block.fadeDirection);
+	}
+
+	private void output(Block block) throws InterruptedException {
+		if (audioIO != null && !audioIO.write(block.output)) {
+			Log.d(TAG, "Error during write()");
+			error = true;
+		}
+	}
+
+	private class Stage extends Thread {
+		private final boolean doRender;
+		private final boolean doOutput;
+
+		public Stage(String name, boolean doRender, boolean doOutput) {
+			super(name);
+			this.doRender = doRender;
+			this.doOutput = doOutput;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			} catch (Exception e) {
+				Log.e(TAG, "Could not set thread priority: " + e.getMessage());
+			}
+
+			SpscQueue<Block> in = doRender ? renderQueue : outputQueue;
+			SpscQueue<Block> out = doOutput ? freeQueue : outputQueue;
+			try {
+				while (true) {
+					Block block = in.take();
+					
+					// a failed block is passed on all the same, or the pipeline would run out of blocks
+					try {
+						if (doRender) render(block);
+						if (doOutput) output(block);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable e) {
+						Log.e(TAG, getName() + " failed on a block", e);
+						error = true;
+					}
+					out.offer(block);	// never full, queues can hold all blocks
+				}
+			} catch (InterruptedException e) {
+				// destroy()
+			}
+		}
+	}
+}
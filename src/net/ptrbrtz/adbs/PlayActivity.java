@@ -74,9 +74,7 @@ public class PlayActivity extends Activity implements SensorEventListener {
 	private static final String TAG = "PlayActivity";
 	
 	// message ids
-	private static final int TIMED_INVALIDATE_MSG = 1;
-	public static final int AUDIOTHREAD_FIR_FILTER_ERROR_MSG = 2;
-	public static final int AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG = 3;
+	private static final int TIMED_INVALIDATE_MSG = 1;	// messages from the audio thread: see GlobalData
 		
 	private ImageButton zoomOutButton;
 	private ImageButton zoomInButton;
@@ -171,7 +169,7 @@ public class PlayActivity extends Activity implements SensorEventListener {
 				// request redraw of sources view
 				sourcesView.invalidate();
 				break;
-			case AUDIOTHREAD_FIR_FILTER_ERROR_MSG: // error in fir filter
+			case GlobalData.AUDIOTHREAD_FIR_FILTER_ERROR_MSG: // error in fir filter
 				// show dialog
 				DialogHelper.showOneButtonDialog(PlayActivity.this, "Error", "Sorry, an error occured while filtering audio. This should not happen. Please report.", "Quit", new DialogInterface.OnClickListener() {
 					@Override
@@ -180,7 +178,7 @@ public class PlayActivity extends Activity implements SensorEventListener {
 					}
 				});
 				break;
-			case AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG: // error while buffering audio file
+			case GlobalData.AUDIOTHREAD_AUDIO_FILE_BUFFERING_ERROR_MSG: // error while buffering audio file
 				// show dialog
 				DialogHelper.showOneButtonDialog(PlayActivity.this, "Error", "Sorry, an error occured while buffering audio from files.", "Quit", new DialogInterface.OnClickListener() {
 					@Override
@@ -341,7 +339,8 @@ public class PlayActivity extends Activity implements SensorEventListener {
     	crossfadeOverlapSizeSeekBar.setExpMax(25.0f);
     	crossfadeOverlapSizeSeekBar.setExpValue(prefs.getFloat(GlobalData.PREFS_LAST_USED_CROSSFADE_OVERLAP_SIZE, GlobalData.DEFAULT_CROSSFADE_OVERLAP_SIZE));
     	updateAudioSettingsTextViews();
-		processingSamplerateTextView.setText(String.valueOf(GlobalData.DEFAULT_SAMPLERATE) + " Hz");
+		processingSamplerateTextView.setText(String.valueOf(GlobalData.DEFAULT_RENDER_AT_NATIVE_SAMPLERATE
+				? AudioScene.getNativeSamplerate(this) : GlobalData.DEFAULT_SAMPLERATE) + " Hz");
 		openSLBlockSizeTextView.setText(String.valueOf(AudioScene.getNativeBufferSize(this)) + " Samples");
 		openSLSamplerateTextView.setText(String.valueOf(AudioScene.getNativeSamplerate(this)) + " Hz");
 
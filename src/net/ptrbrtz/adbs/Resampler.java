@@ -0,0 +1,246 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Streaming sample rate converter with a polyphase windowed sinc filter. The output rate is L/M times the input rate
+ * (the ratio reduced): each output sample is one of the filter's L phases applied to the last input samples, then the
+ * phase moves M steps on, taking in a new input sample each time it wraps around. The filter is low pass at the lower
+ * of both nyquist frequencies, so downsampling does not alias.
+ * The input history and the phase are kept between calls, so a stream can be converted piece by piece, in any sizes
+ * (see AudioFileBuffer). Nothing is allocated after construction. An instance converts one stream at a time.
+ * The filter depends on the ratio only, its table is computed once per ratio and shared by all instances converting
+ * at that ratio, e.g. by all sources of a scene whose files are at 48 kHz.
+ * 
+ * @author Peter Bartz
+ */
+public class Resampler {
+	private static final int NUM_TAPS = 32;	// per phase when upsampling, more when downsampling (lower cutoff)
+	private static final int MAX_NUM_PHASES = 1024;	// ratios needing more are not supported
+	private static final float CUTOFF = 0.9f;	// relative to the lower nyquist frequency, leaves room for the transition
+	
+	// (numPhases << 32 | step) -> coefficients, never changed once computed
+	private static final HashMap<Long, float[]> coeffCache = new HashMap<Long, float[]>();
+
+	private final int inputSampleRate;
+	private final int outputSampleRate;
+	private final int numPhases;	// L
+	private final int step;	// M
+	private final int numTaps;
+	private final float[] coeffs;	// phase p from p * numTaps on, applied to the oldest input sample first
+	private final float[] history;	// the last numTaps input samples, twice in a row, so they can be read unwrapped
+	private int historyPosition;	// of the oldest input sample
+	private int phase;	// of the next output sample
+	private int numInputSamplesNeeded;	// before the next output sample
+	private int numConsumed;	// by the last process()
+	private float peak;	// of the output of the last process()
+
+	/**
+	 * @throws IllegalArgumentException if the rates are not positive or their ratio needs too many filter phases
+	 */
+	public Resampler(int inputSampleRate, int outputSampleRate) {
+		if (inputSampleRate <= 0 || outputSampleRate <= 0)
+			throw new IllegalArgumentException("Invalid sample rates " + inputSampleRate + "/" + outputSampleRate + " Hz");
+		int gcd = getGcd(inputSampleRate, outputSampleRate);
+		this.inputSampleRate = inputSampleRate;
+		this.outputSampleRate = outputSampleRate;
+		this.numPhases = outputSampleRate / gcd;
+		this.step = inputSampleRate / gcd;
+		if (numPhases > MAX_NUM_PHASES)
+			throw new IllegalArgumentException("Conversion from " + inputSampleRate + " Hz to " + outputSampleRate
+					+ " Hz is not supported");
+
+		// cutoff and filter length in input samples
+		float cutoff = CUTOFF * Math.min(1.0f, (float) numPhases / step);
+		int numTaps = (int) Math.ceil(NUM_TAPS * CUTOFF / cutoff);
+		this.numTaps = numTaps + (numTaps & 1);
+		this.coeffs = getCoeffs(numPhases, step, this.numTaps, cutoff);
+		this.history = new float[2 * this.numTaps];
+		reset();
+	}
+
+	private static float[] getCoeffs(int numPhases, int step, int numTaps, float cutoff) {
+		Long key = Long.valueOf((long) numPhases << 32 | step);
+		synchronized (coeffCache) {
+			float[] coeffs = coeffCache.get(key);
+			if (coeffs == null) {
+				coeffs = createCoeffs(numPhases, numTaps, cutoff);
+				coeffCache.put(key, coeffs);
+			}
+			return coeffs;
+		}
+	}
+
+	// windowed sinc, one phase per fraction p / numPhases of an input sample the output sample lies after the center
+	// of the input history. each phase is normalized to unity gain at dc, so no phase adds ripple.
+	private static float[] createCoeffs(int numPhases, int numTaps, float cutoff) {
+		float[] coeffs = new float[numPhases * numTaps];
+		int halfNumTaps = numTaps / 2;
+		for (int p = 0; p < numPhases; p++) {
+			double sum = 0.0;
+			for (int k = 0; k < numTaps; k++) {
+				double t = (numTaps - 1 - k) - halfNumTaps + (double) p / numPhases;	// from the output sample, in input samples
+				double x = Math.PI * cutoff * t;
+				double sinc = (x == 0.0) ? 1.0 : Math.sin(x) / x;
+				double w = Math.PI * t / halfNumTaps;	// blackman window
+				double c = cutoff * sinc * (0.42 + 0.5 * Math.cos(w) + 0.08 * Math.cos(2.0 * w));
+				coeffs[p * numTaps + k] = (float) c;
+				sum += c;
+			}
+			for (int k = 0; k < numTaps; k++) {
+				coeffs[p * numTaps + k] /= (float) sum;
+			}
+		}
+		return coeffs;
+	}
+
+	private static int getGcd(int a, int b) {
+		while (b != 0) {
+			int r = a % b;
+			a = b;
+			b = r;
+		}
+		return a;
+	}
+
+	public int getInputSampleRate() {
+		return inputSampleRate;
+	}
+
+	public int getOutputSampleRate() {
+		return outputSampleRate;
+	}
+
+	/**
+	 * Input samples the filter looks ahead of the output sample being computed: a stream's last output samples are
+	 * complete only after that many samples of silence after its end
+	 */
+	public int getLookahead() {
+		return numTaps / 2;
+	}
+
+	/**
+	 * Forgets the input so far, the next input sample is the first of a new stream and is at the time of the first
+	 * output sample
+	 */
+	public void reset() {
+		for (int i = 0; i < history.length; i++) {
+			history[i] = 0.0f;
+		}
+		historyPosition = 0;
+		phase = 0;
+		numInputSamplesNeeded = numTaps / 2 + 1;	// up to the first sample the filter looks ahead to
+		numConsumed = 0;
+		peak = 0.0f;
+	}
+
+	/**
+	 * Converts little endian 16 bit samples to float samples, with gain applied. Takes up to numInputSamples from input
+	 * (absolute byte offset inputOffset on, null: silence) and writes up to maxNumOutputSamples to output (absolute byte
+	 * offset outputOffset on, wrapping around its capacity). Stops when either is reached, input samples not consumed
+	 * (see getNumConsumed()) are to be passed again. Returns the number of output samples written.
+	 */
+	public int process(ByteBuffer input, int inputOffset, int numInputSamples, ByteBuffer output, int outputOffset,
+			int maxNumOutputSamples, float gain) {
+		int capacity = output.capacity();
+		int numOutputSamples = 0;
+		float peak = 0.0f;
+		numConsumed = 0;
+		while (numOutputSamples < maxNumOutputSamples) {
+			if (numInputSamplesNeeded > 0) {
+				if (numConsumed == numInputSamples) break;
+				push((input != null) ? input.getShort(inputOffset + 2 * numConsumed) : 0.0f);
+				numConsumed++;
+				continue;
+			}
+			
+			float sample = computeSample();
+			output.putFloat(outputOffset, sample * gain);
+			if (sample > peak) peak = sample;
+			else if (-sample > peak) peak = -sample;
+			outputOffset += 4;
+			if (outputOffset == capacity) outputOffset = 0;
+			numOutputSamples++;
+		}
+		this.peak = peak;
+		return numOutputSamples;
+	}
+
+	/**
+	 * Number of input samples the last process() took
+	 */
+	public int getNumConsumed() {
+		return numConsumed;
+	}
+
+	/**
+	 * Highest absolute value of the samples the last process() wrote, before gain (in 16 bit sample units)
+	 */
+	public float getPeak() {
+		return peak;
+	}
+
+	/**
+	 * Converts a whole signal, e.g. an impulse response, as a new stream (resets this resampler). The result holds the
+	 * converted length of samples (rounded up), scale is applied to it.
+	 */
+	public float[] convert(float[] samples, float scale) {
+		reset();
+		int length = (int) (((long) samples.length * outputSampleRate + inputSampleRate - 1) / inputSampleRate);
+		float[] result = new float[length];
+		int i = 0;
+		for (int k = 0; k < length; k++) {
+			while (numInputSamplesNeeded > 0) {
+				push((i < samples.length) ? samples[i++] : 0.0f);
+			}
+			result[k] = computeSample() * scale;
+		}
+		return result;
+	}
+
+	private void push(float sample) {
+		history[historyPosition] = sample;
+		history[historyPosition + numTaps] = sample;
+		historyPosition++;
+		if (historyPosition == numTaps) historyPosition = 0;
+		numInputSamplesNeeded--;
+	}
+
+	// applies the current phase to the history and moves on to the next output sample
+	private float computeSample() {
+		float sum = 0.0f;
+		int c = phase * numTaps;
+		int h = historyPosition;
+		for (int k = 0; k < numTaps; k++) {
+			sum += coeffs[c + k] * history[h + k];
+		}
+		phase += step;
+		numInputSamplesNeeded = phase / numPhases;
+		phase %= numPhases;
+		return sum;
+	}
+}
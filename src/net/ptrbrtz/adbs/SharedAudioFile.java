@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import net.ptrbrtz.adbs.android.utils.WaveFileInfo;
+
+/**
+ * Audio data of a wave file, read into memory once and then only read, so sound sources of several scenes rendered
+ * at the same time can use it without each of them streaming the file (see AudioFileBuffer).
+ * 
+ * @author Peter Bartz
+ */
+public class SharedAudioFile {
+	private final String fileName;
+	private final WaveFileInfo info;
+	private final byte[] data;	// contents of the data chunk
+
+	private SharedAudioFile(String fileName, WaveFileInfo info, byte[] data) {
+		this.fileName = fileName;
+		this.info = info;
+		this.data = data;
+	}
+
+	public static SharedAudioFile load(String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		try {
+			WaveFileInfo info = new WaveFileInfo(in);
+
+			int length = getDataLength(in.getChannel(), info);
+			byte[] data = new byte[length];
+			in.getChannel().position(info.getFirstAudioByteIndex());
+			int numRead = 0;
+			while (numRead < length) {
+				int read = in.read(data, numRead, length - numRead);
+				if (read == -1) throw new IOException("Unexpected end of file '" + fileName + "'");
+				numRead += read;
+			}
+
+			return new SharedAudioFile(fileName, info, data);
+		} finally {
+			in.close();
+		}
+	}
+
+	// length of the data chunk, as far as it is in the file
+	static int getDataLength(FileChannel channel, WaveFileInfo info) throws IOException {
+		// data chunk size might be wrong, e.g. if the file was not closed properly while recording
+		long available = channel.size() - info.getFirstAudioByteIndex();
+		return (int) Math.max(0, Math.min(info.getNumAudioBytes() & 0xffffffffL, available));
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public WaveFileInfo getInfo() {
+		return info;
+	}
+
+	// must not be written to
+	public byte[] getData() {
+		return data;
+	}
+
+	// little endian view of the data for one reader (see AudioFileBuffer)
+	public ByteBuffer getDataBuffer() {
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
@@ -25,6 +25,7 @@ package net.ptrbrtz.adbs;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -33,14 +34,14 @@ import net.ptrbrtz.adbs.android.utils.WaveFileInfo;
 public class SoundSource extends Entity {
 	protected static final String TAG = "SoundSource";
 	protected static final float SOURCE_RADIUS = 8f;
-	protected static final float SOURCE_HALO_RADIUS = SourcesView.SOURCE_SELECT_RADIUS;
+	protected static final float SOURCE_HALO_RADIUS = 50f;	// also the radius a source can be selected in, see SourcesView
 	
 	// static fields for drawing
 	protected static Paint paint = null;
 	
 	protected String name;
 	protected String audioFileName;
-	protected float volume;
+	protected float volume; // in dB, like the volume attribute of asdf sources
 	protected float level;
 	protected float normalizedLevel; // [-60dB, 12dB] -> [0.0, 1.0] 
 	protected boolean muted;
@@ -51,6 +52,8 @@ public class SoundSource extends Entity {
 	private FileInputStream audioFileStream;
 	private WaveFileInfo audioFileInfo;
 	private AudioFileBuffer audioFileBuffer;
+	private SoundSource audioFileBufferOwner;	// source whose buffer this one plays from, null if it is its own
+	private boolean audioFileBufferShared;	// by several sources, see shareIO()
 
 	public SoundSource() {
 		super();
@@ -100,6 +103,22 @@ public class SoundSource extends Entity {
 
 	public void setVolume(float volume) {
 		this.volume = volume;
+		if (audioFileBuffer != null && !audioFileBufferShared) audioFileBuffer.setGain(getGain());
+	}
+	
+	// linear gain of volume, applied by the audio file buffer
+	public float getGain() {
+		return (float) Math.pow(10.0, volume / 20.0);
+	}
+	
+	// gain to be applied when filtering, as it is not applied by a shared audio file buffer (1 otherwise)
+	public float getFilterGain() {
+		return audioFileBufferShared ? getGain() : 1.0f;
+	}
+	
+	// gain applied by the audio file buffer
+	private float getBufferGain() {
+		return audioFileBufferShared ? 1.0f : getGain();
 	}
 
 	public float getLevel() {
@@ -184,20 +203,98 @@ public class SoundSource extends Entity {
 		canvas.restore();
 	}
 
-	public void setupIO(byte[] buffer, int bufferOffset) throws FileNotFoundException, IOException {
+	public void setupIO(ByteBuffer buffer, int bufferOffset, int chunkSize) throws FileNotFoundException, IOException {
+		setupIO(buffer, bufferOffset, chunkSize, true);
+	}
+	
+	public void setupIO(ByteBuffer buffer, int bufferOffset, int chunkSize, boolean loop) throws FileNotFoundException, IOException {
+		setupIO(buffer, bufferOffset, chunkSize, loop, null);
+	}
+	
+	/**
+	 * Buffers from sharedFile's audio data in memory instead of opening the audio file, if not null.
+	 */
+	public void setupIO(ByteBuffer buffer, int bufferOffset, int chunkSize, boolean loop, SharedAudioFile sharedFile)
+			throws FileNotFoundException, IOException {
+		setupIO(buffer, bufferOffset, chunkSize, loop, sharedFile, 0);
+	}
+	
+	/**
+	 * Same as above, but buffers at sampleRate, converting the audio file's sample rate if it differs (0: no conversion).
+	 */
+	public void setupIO(ByteBuffer buffer, int bufferOffset, int chunkSize, boolean loop, SharedAudioFile sharedFile,
+			int sampleRate) throws FileNotFoundException, IOException {
+		audioFileBufferOwner = null;
+		if (sharedFile != null) {
+			audioFileInfo = sharedFile.getInfo();
+			audioFileBuffer = new AudioFileBuffer(buffer, bufferOffset, chunkSize, sharedFile.getDataBuffer(), getBufferGain(),
+					createResampler(sampleRate));
+			audioFileBuffer.setLoop(loop);
+			setupLoudnessIndex();
+			return;
+		}
+		
 		// open file stream
 		audioFileStream = new FileInputStream(getAudioFileName());
 		
 		// read file info
 		audioFileInfo = new WaveFileInfo(audioFileStream);
 		
-		// set up buffer and fill it
-		audioFileBuffer = new AudioFileBuffer(buffer, bufferOffset, audioFileStream, audioFileInfo.getFirstAudioByteIndex());
-		audioFileBuffer.setLoop(true);
-		audioFileBuffer.bufferNextChunk();
+		// set up buffer and fill it, from the mapped file if possible
+		ByteBuffer mappedAudioData = AudioFileBuffer.mapAudioData(audioFileStream, audioFileInfo);
+		if (mappedAudioData != null)
+			audioFileBuffer = new AudioFileBuffer(buffer, bufferOffset, chunkSize, mappedAudioData, getBufferGain(),
+					createResampler(sampleRate));
+		else
+			audioFileBuffer = new AudioFileBuffer(buffer, bufferOffset, chunkSize, audioFileStream, audioFileInfo.getFirstAudioByteIndex(),
+					getBufferGain(), createResampler(sampleRate));
+		audioFileBuffer.setLoop(loop);
+		setupLoudnessIndex();
+	}
+	
+	// converts from the audio file's sample rate to sampleRate, null if they are the same (or sampleRate is 0)
+	private Resampler createResampler(int sampleRate) {
+		if (sampleRate == 0 || sampleRate == audioFileInfo.getSampleRate()) return null;
+		return new Resampler(audioFileInfo.getSampleRate(), sampleRate);
+	}
+	
+	// silent stretches of the audio file are skipped unread (the index is built on first use, see LoudnessIndex)
+	private void setupLoudnessIndex() {
+		if (GlobalData.USE_LOUDNESS_INDEX)
+			audioFileBuffer.setLoudnessIndex(LoudnessIndex.get(getAudioFileName()));
+	}
+	
+	/**
+	 * Has the next setupIO() buffer without gain, as other sources will play from the buffer too (see shareIO()).
+	 * Each source's gain is applied when filtering then (see getFilterGain()). Reset by shutdownIO().
+	 */
+	public void setAudioFileBufferShared() {
+		audioFileBufferShared = true;
+	}
+	
+	/**
+	 * Plays from owner's audio file buffer (set up by setupIO() after setAudioFileBufferShared()) instead of
+	 * buffering the same file again, e.g. for several sources of one file in a scene. Only owner advances, refills,
+	 * rewinds and shuts down the buffer.
+	 */
+	public void shareIO(SoundSource owner) {
+		audioFileInfo = owner.audioFileInfo;
+		audioFileBuffer = owner.audioFileBuffer;
+		audioFileBufferOwner = owner;
+		audioFileBufferShared = true;
+	}
+	
+	// false if this source plays from another source's buffer (see shareIO())
+	public boolean ownsAudioFileBuffer() {
+		return audioFileBuffer != null && audioFileBufferOwner == null;
 	}
 	
 	public void shutdownIO() {
+		if (audioFileBufferOwner != null) {
+			audioFileBuffer = null;
+			audioFileBufferOwner = null;
+		}
+		audioFileBufferShared = false;
 		if (audioFileBuffer != null) {
 			audioFileBuffer.dispose();
 			audioFileBuffer = null;
@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.ptrbrtz.adbs.android.utils.Log;
+
+/**
+ * Keeps the audio data of small source files (loops, test signals) in memory, so they are read from the sd card once
+ * instead of being streamed for every scene that uses them. Sources of the same file share one SharedAudioFile and
+ * are buffered from it in the audio thread, without the AudioIOScheduler (see AudioFileBuffer). Files are kept across
+ * scene reloads until the memory budget is exceeded, then the least recently used ones are dropped. A dropped file
+ * stays in memory as long as sources still play it.
+ * 
+ * @author Peter Bartz
+ */
+class SourceCache {
+	private static final String TAG = "SourceCache";
+
+	private static SourceCache instance = null;
+
+	private final long maxSize;	// in bytes of audio data
+	private final long maxFileSize;
+	private long size = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);	// lru order
+
+	private static class Entry {
+		final SharedAudioFile file;
+		final long fileLength;	// to notice changed files
+		final long lastModified;
+
+		Entry(SharedAudioFile file, long fileLength, long lastModified) {
+			this.file = file;
+			this.fileLength = fileLength;
+			this.lastModified = lastModified;
+		}
+	}
+
+	SourceCache(long maxSize, long maxFileSize) {
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxFileSize, maxSize);
+	}
+
+	static synchronized SourceCache getInstance() {
+		if (instance == null)
+			instance = new SourceCache(GlobalData.SOURCE_CACHE_SIZE, GlobalData.SOURCE_CACHE_MAX_FILE_SIZE);
+		return instance;
+	}
+
+	/**
+	 * Returns the audio data of fileName from memory, loads it if it is not cached yet. null: file is too big to be
+	 * cached or could not be read, it should be streamed instead.
+	 */
+	synchronized SharedAudioFile get(String fileName) {
+		File file = new File(fileName);
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		
+		Entry entry = entries.get(fileName);
+		if (entry != null) {
+			if (entry.fileLength == fileLength && entry.lastModified == lastModified) return entry.file;
+			remove(fileName);
+		}
+		if (fileLength == 0 || fileLength > maxFileSize) return null;	// missing or too big
+		
+		try {
+			entry = new Entry(SharedAudioFile.load(fileName), fileLength, lastModified);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not load '" + fileName + "': " + e.getMessage());
+			return null;
+		}
+		entries.put(fileName, entry);
+		size += entry.file.getData().length;
+		
+		// drop least recently used files (never the new one, it fits)
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			if (eldest.getValue() == entry) break;
+			size -= eldest.getValue().file.getData().length;
+			it.remove();
+		}
+		return entry.file;
+	}
+
+	private void remove(String fileName) {
+		Entry entry = entries.remove(fileName);
+		if (entry != null) size -= entry.file.getData().length;
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	// in bytes of audio data
+	synchronized long getSize() {
+		return size;
+	}
+}
@@ -44,7 +44,7 @@ public class SourcesView extends View implements OnGestureListener, OnDoubleTapL
 	private static final String TAG = "SourcesView";
 
 	// source won't be select if touch point outside this radius (in pixels)
-	public static final float SOURCE_SELECT_RADIUS = 50f;
+	public static final float SOURCE_SELECT_RADIUS = SoundSource.SOURCE_HALO_RADIUS;
 	// border when calculation "fit scene into screen"
 	private static final float FIT_SCENE_PIXEL_BORDER = 50f;
 	private static final float FIT_SCENE_PIXEL_BORDER_2 = 2.0f * FIT_SCENE_PIXEL_BORDER;
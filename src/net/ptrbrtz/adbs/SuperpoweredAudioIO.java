@@ -22,21 +22,31 @@ SOFTWARE.
 
 package net.ptrbrtz.adbs;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.ptrbrtz.adbs.android.utils.Log;
 
 /**
  * Right now functionality is limited to stereo 16-bit pcm output,
  * because that's all we need. But it could become more flexible.
- * Written audio will be put to a ring buffer/buffer queue on the
- * native side . Samplerate conversion happens (if needed) 
- * before writing to the ring buffer.
+ * Written audio will be put to a ring buffer on the native side,
+ * which the audio callback reads without ever blocking (if it runs
+ * dry, silence is played, see getNumUnderruns()). Samplerate
+ * conversion happens (if needed) before writing to the ring buffer.
  * The ring buffer has to be big enough to hold at least one output
  * block (multiplier >= 1).
  * 
  * A stereo pair of samples is referred to as having "length of 1".  
+ * 
+ * Audio data is passed in direct buffers (see FirFilter.allocateBuffer()),
+ * native code reads and writes them in place.
  */
 public class SuperpoweredAudioIO {
 	private static final String TAG = "SuperpoweredAudioIO";
+	
+	// pull rendering: one buffer waiting to be played, one being filled
+	public static final int PULL_RENDERING_RING_BUFFER_SIZE_MULTIPLIER = 2;
 
 	public int internalSamplerate;
 	public int outputSamplerate;
@@ -46,7 +56,7 @@ public class SuperpoweredAudioIO {
 	public float samplerateScalingFactor;
 	public boolean resample;
 	public int maxInternalResampledBufSizeInFrames;
-	public byte[] internalResampledBuf;
+	public ByteBuffer internalResampledBuf;
 	public boolean initialized = false;
 	
 	private byte[] outBuf;
@@ -74,7 +84,7 @@ public class SuperpoweredAudioIO {
 		
 		outBuf = new byte[outputBufSizeInFrames * 4];
 		outBufMarkInFrames = 0;
-		internalResampledBuf = new byte[maxInternalResampledBufSizeInFrames * 4];
+		internalResampledBuf = ByteBuffer.allocateDirect(maxInternalResampledBufSizeInFrames * 4).order(ByteOrder.LITTLE_ENDIAN);
 		
 		return true;
 	}
@@ -99,20 +109,20 @@ public class SuperpoweredAudioIO {
 	}
 	
 	// possibly blocking, if all buffers are full
-	public boolean write(byte[] audioData) throws InterruptedException {
+	public boolean write(ByteBuffer audioData) throws InterruptedException {
 		if (!initialized) {
 			Log.d(TAG, "can't write() - not initialized");
 			return false;
 		}
 		
 		// check buffer size
-		if (audioData.length < internalBufSizeInFrames * 4) {
+		if (!audioData.isDirect() || audioData.capacity() < internalBufSizeInFrames * 4) {
 			Log.d(TAG, "received too short buffer in write()");
 			return false;
 		}
 
 		// resample
-		byte [] finalBuf = audioData;
+		ByteBuffer finalBuf = audioData;
 		int numOutputFrames = internalBufSizeInFrames;
 		if (resample) {
 			finalBuf = internalResampledBuf;
@@ -138,6 +148,21 @@ public class SuperpoweredAudioIO {
 		nativePlay(true);
 	}
 	
+	/**
+	 * Pull rendering: blocks until less than numOutputBuffers full output buffers are left to play, i.e. until the
+	 * audio callback has taken enough of them. Rendering the next block right after this, with the freshest
+	 * parameters, keeps the latency at about numOutputBuffers output buffers (the ring buffer needs one more, see
+	 * PULL_RENDERING_RING_BUFFER_SIZE_MULTIPLIER for 1). Returns right away while paused.
+	 */
+	public void waitForRenderRequest(int numOutputBuffers) {
+		if (!initialized) {
+			Log.d(TAG, "can't waitForRenderRequest() - not initialized");
+			return;
+		}
+		
+		nativeWaitForRenderRequest(numOutputBuffers * outputBufSizeInFrames);
+	}
+	
 	// pause as soon as possible, not playing pending buffers
 	public void pause() {
 		if (!initialized) {
@@ -162,12 +187,14 @@ public class SuperpoweredAudioIO {
 	private native boolean setupSuperpowered(int internalBufSizeInFrames, int resampledInternalBufSizeInFrames, 
 			int outputBufSizeInFrames, int internalSamplerate, int outputSamplerate, int ringBufferSizeMultiplier);
 	private native void shutdownSuperpowered(); 
-	private native int resample(byte[] inputData, byte[] outputData);
+	private native int resample(ByteBuffer inputData, ByteBuffer outputData);
 	private native void nativePlay(boolean resetRingBuf);
 	private native void nativePause();
 	private native void nativeFlushAndPause();
-	public native void linearFade(byte[] buf, int length, int sign);
-	private native void enqueueSamples(byte[] buf, int numFrames);
+	private native void nativeWaitForRenderRequest(int maxNumBufferedFrames);
+	public native void linearFade(ByteBuffer buf, int length, int sign);
+	public native int getNumUnderruns();	// output buffers played as silence because the ring buffer was empty
+	private native void enqueueSamples(ByteBuffer buf, int numFrames);
 
 	// load shared lib
 	static {
@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs.android.utils;
+
+/**
+ * Drop-in for android.util.Log in the audio engine, so the engine also runs on a desktop jvm (see OfflineRenderer).
+ * Logs through android.util.Log on a device. If that class is missing, or is android.jar's stub that throws, all
+ * further messages go to System.err instead.
+ * 
+ * @author Peter Bartz
+ */
+public class Log {
+	private static volatile boolean useStdErr = false;	// set once android.util.Log failed
+
+	public static int d(String tag, String msg) {
+		if (!useStdErr) {
+			try {
+				return android.util.Log.d(tag, msg);
+			} catch (Throwable e) {
+				useStdErr = true;
+			}
+		}
+		return printToStdErr("D", tag, msg, null);
+	}
+
+	public static int i(String tag, String msg) {
+		if (!useStdErr) {
+			try {
+				return android.util.Log.i(tag, msg);
+			} catch (Throwable e) {
+				useStdErr = true;
+			}
+		}
+		return printToStdErr("I", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg) {
+		if (!useStdErr) {
+			try {
+				return android.util.Log.w(tag, msg);
+			} catch (Throwable e) {
+				useStdErr = true;
+			}
+		}
+		return printToStdErr("W", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg) {
+		return e(tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		if (!useStdErr) {
+			try {
+				return android.util.Log.e(tag, msg, tr);
+			} catch (Throwable e) {
+				useStdErr = true;
+			}
+		}
+		return printToStdErr("E", tag, msg, tr);
+	}
+
+	private static int printToStdErr(String priority, String tag, String msg, Throwable tr) {
+		System.err.println(priority + "/" + tag + ": " + msg);
+		if (tr != null) tr.printStackTrace();
+		return 0;
+	}
+}
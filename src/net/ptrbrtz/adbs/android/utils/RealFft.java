@@ -0,0 +1,392 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs.android.utils;
+
+/**
+ * Real-input fft in pure java, a port of kiss_fft/kiss_fftr (see jni/kissfft_floatingpoint, BSD licensed,
+ * Copyright (c) 2003-2010 Mark Borgerding) for float arrays. Same mixed radix algorithm (radix 4, 2, 3, 5 and
+ * generic), same unscaled results.
+ * 
+ * Twiddles, factorization and scratch buffers are set up in the constructor, transforms don't allocate. Complex
+ * values are stored interleaved (re, im, re, im, ...), a spectrum has nfft / 2 + 1 bins, so nfft + 2 floats.
+ * An instance transforms in one direction only and must not be used by more than one thread at a time.
+ */
+public class RealFft {
+	private final int nfft;		// number of real samples
+	private final int ncfft;	// size of the complex fft doing the work, nfft / 2
+	private final boolean inverse;
+	private final float[] twiddles;			// ncfft complex values
+	private final float[] superTwiddles;	// ncfft / 2 complex values, for splitting/packing the real spectrum
+	private final int[] factors;			// radix p and remaining length m for each stage: p1, m1, p2, m2, ...
+	private final float[] tmpBuf;			// complex spectrum of the ncfft sized fft
+	private final float[] scratch;			// for generic butterflies
+
+	public RealFft(int nfft, boolean inverse) {
+		if (nfft < 2 || (nfft & 1) != 0)
+			throw new IllegalArgumentException("Real fft size must be even");
+
+		this.nfft = nfft;
+		this.ncfft = nfft / 2;
+		this.inverse = inverse;
+
+		twiddles = new float[ncfft * 2];
+		for (int i = 0; i < ncfft; i++) {
+			double phase = -2.0 * Math.PI * i / ncfft;
+			if (inverse) phase = -phase;
+			twiddles[2*i] = (float) Math.cos(phase);
+			twiddles[2*i+1] = (float) Math.sin(phase);
+		}
+
+		superTwiddles = new float[(ncfft / 2) * 2];
+		for (int i = 0; i < ncfft / 2; i++) {
+			double phase = -Math.PI * ((double) (i + 1) / ncfft + 0.5);
+			if (inverse) phase = -phase;
+			superTwiddles[2*i] = (float) Math.cos(phase);
+			superTwiddles[2*i+1] = (float) Math.sin(phase);
+		}
+
+		factors = factor(ncfft);
+		int maxRadix = 0;
+		for (int i = 0; i < factors.length; i += 2)
+			maxRadix = Math.max(maxRadix, factors[i]);
+		scratch = new float[maxRadix * 2];
+		tmpBuf = new float[ncfft * 2];
+	}
+
+	public int getSize() {
+		return nfft;
+	}
+
+	public boolean isInverse() {
+		return inverse;
+	}
+
+	/**
+	 * Transforms nfft real samples to nfft / 2 + 1 complex bins. Forward instances only.
+	 */
+	public void forward(float[] timeData, float[] freqData) {
+		if (inverse) throw new IllegalStateException("Inverse fft used for forward transform");
+
+		// parallel fft of even and odd samples, packed in real and imaginary part
+		work(tmpBuf, 0, timeData, 0, 1, 0);
+
+		float tdcR = tmpBuf[0];
+		float tdcI = tmpBuf[1];
+		freqData[0] = tdcR + tdcI;
+		freqData[1] = 0.0f;
+		freqData[2*ncfft] = tdcR - tdcI;
+		freqData[2*ncfft+1] = 0.0f;
+
+		for (int k = 1; k <= ncfft / 2; k++) {
+			float fpkR = tmpBuf[2*k];
+			float fpkI = tmpBuf[2*k+1];
+			float fpnkR = tmpBuf[2*(ncfft-k)];
+			float fpnkI = -tmpBuf[2*(ncfft-k)+1];
+
+			float f1kR = fpkR + fpnkR;
+			float f1kI = fpkI + fpnkI;
+			float f2kR = fpkR - fpnkR;
+			float f2kI = fpkI - fpnkI;
+			float twR = superTwiddles[2*(k-1)];
+			float twI = superTwiddles[2*(k-1)+1];
+			float tR = f2kR * twR - f2kI * twI;
+			float tI = f2kR * twI + f2kI * twR;
+
+			freqData[2*k] = 0.5f * (f1kR + tR);
+			freqData[2*k+1] = 0.5f * (f1kI + tI);
+			freqData[2*(ncfft-k)] = 0.5f * (f1kR - tR);
+			freqData[2*(ncfft-k)+1] = 0.5f * (tI - f1kI);
+		}
+	}
+
+	/**
+	 * Transforms nfft / 2 + 1 complex bins back to nfft real samples (unscaled, so nfft times the original
+	 * signal). Inverse instances only.
+	 */
+	public void inverse(float[] freqData, float[] timeData) {
+		if (!inverse) throw new IllegalStateException("Forward fft used for inverse transform");
+
+		tmpBuf[0] = freqData[0] + freqData[2*ncfft];
+		tmpBuf[1] = freqData[0] - freqData[2*ncfft];
+
+		for (int k = 1; k <= ncfft / 2; k++) {
+			float fkR = freqData[2*k];
+			float fkI = freqData[2*k+1];
+			float fnkcR = freqData[2*(ncfft-k)];
+			float fnkcI = -freqData[2*(ncfft-k)+1];
+
+			float fekR = fkR + fnkcR;
+			float fekI = fkI + fnkcI;
+			float tmpR = fkR - fnkcR;
+			float tmpI = fkI - fnkcI;
+			float twR = superTwiddles[2*(k-1)];
+			float twI = superTwiddles[2*(k-1)+1];
+			float fokR = tmpR * twR - tmpI * twI;
+			float fokI = tmpR * twI + tmpI * twR;
+
+			tmpBuf[2*k] = fekR + fokR;
+			tmpBuf[2*k+1] = fekI + fokI;
+			tmpBuf[2*(ncfft-k)] = fekR - fokR;
+			tmpBuf[2*(ncfft-k)+1] = -(fekI - fokI);
+		}
+
+		// the real output is read as ncfft complex values
+		work(timeData, 0, tmpBuf, 0, 1, 0);
+	}
+
+	// factors out powers of 4, powers of 2, then any remaining primes (same order as kiss_fft)
+	private static int[] factor(int n) {
+		int[] buf = new int[64];
+		int len = 0;
+		int p = 4;
+		double floorSqrt = Math.floor(Math.sqrt((double) n));
+
+		do {
+			while (n % p != 0) {
+				switch (p) {
+					case 4: p = 2; break;
+					case 2: p = 3; break;
+					default: p += 2; break;
+				}
+				if (p > floorSqrt)
+					p = n;	// no more factors, skip to end
+			}
+			n /= p;
+			buf[len++] = p;
+			buf[len++] = n;
+		} while (n > 1);
+
+		int[] result = new int[len];
+		System.arraycopy(buf, 0, result, 0, len);
+		return result;
+	}
+
+	// indices are in complex values, out and in must not be the same array
+	private void work(float[] out, int outIdx, float[] in, int inIdx, int fstride, int factorIdx) {
+		final int p = factors[factorIdx];		// radix
+		final int m = factors[factorIdx + 1];	// stage's fft length / p
+		final int outEnd = outIdx + p * m;
+
+		if (m == 1) {
+			for (int o = outIdx; o < outEnd; o++) {
+				out[2*o] = in[2*inIdx];
+				out[2*o+1] = in[2*inIdx+1];
+				inIdx += fstride;
+			}
+		} else {
+			// dft of size m * p is done as p dfts of size m, each one taking a decimated version of the input
+			for (int o = outIdx; o < outEnd; o += m) {
+				work(out, o, in, inIdx, fstride * p, factorIdx + 2);
+				inIdx += fstride;
+			}
+		}
+
+		// recombine the p smaller dfts
+		switch (p) {
+			case 2: butterfly2(out, outIdx, fstride, m); break;
+			case 3: butterfly3(out, outIdx, fstride, m); break;
+			case 4: butterfly4(out, outIdx, fstride, m); break;
+			case 5: butterfly5(out, outIdx, fstride, m); break;
+			default: butterflyGeneric(out, outIdx, fstride, m, p); break;
+		}
+	}
+
+	private void butterfly2(float[] f, int idx, int fstride, int m) {
+		final float[] tw = twiddles;
+		for (int k = 0; k < m; k++) {
+			int a = 2 * (idx + k);
+			int b = 2 * (idx + k + m);
+			int t = 2 * k * fstride;
+			float tR = f[b] * tw[t] - f[b+1] * tw[t+1];
+			float tI = f[b] * tw[t+1] + f[b+1] * tw[t];
+			f[b] = f[a] - tR;
+			f[b+1] = f[a+1] - tI;
+			f[a] += tR;
+			f[a+1] += tI;
+		}
+	}
+
+	private void butterfly3(float[] f, int idx, int fstride, int m) {
+		final float[] tw = twiddles;
+		final float epi3I = tw[2*fstride*m+1];
+		for (int k = 0; k < m; k++) {
+			int a0 = 2 * (idx + k);
+			int a1 = a0 + 2 * m;
+			int a2 = a1 + 2 * m;
+			int t1 = 2 * k * fstride;
+			int t2 = 2 * t1;
+
+			float s1R = f[a1] * tw[t1] - f[a1+1] * tw[t1+1];
+			float s1I = f[a1] * tw[t1+1] + f[a1+1] * tw[t1];
+			float s2R = f[a2] * tw[t2] - f[a2+1] * tw[t2+1];
+			float s2I = f[a2] * tw[t2+1] + f[a2+1] * tw[t2];
+			float s3R = s1R + s2R;
+			float s3I = s1I + s2I;
+			float s0R = (s1R - s2R) * epi3I;
+			float s0I = (s1I - s2I) * epi3I;
+
+			float f1R = f[a0] - 0.5f * s3R;
+			float f1I = f[a0+1] - 0.5f * s3I;
+			f[a0] += s3R;
+			f[a0+1] += s3I;
+			f[a2] = f1R + s0I;
+			f[a2+1] = f1I - s0R;
+			f[a1] = f1R - s0I;
+			f[a1+1] = f1I + s0R;
+		}
+	}
+
+	private void butterfly4(float[] f, int idx, int fstride, int m) {
+		final float[] tw = twiddles;
+		for (int k = 0; k < m; k++) {
+			int a0 = 2 * (idx + k);
+			int a1 = a0 + 2 * m;
+			int a2 = a1 + 2 * m;
+			int a3 = a2 + 2 * m;
+			int t1 = 2 * k * fstride;
+			int t2 = 2 * t1;
+			int t3 = 3 * t1;
+
+			float s0R = f[a1] * tw[t1] - f[a1+1] * tw[t1+1];
+			float s0I = f[a1] * tw[t1+1] + f[a1+1] * tw[t1];
+			float s1R = f[a2] * tw[t2] - f[a2+1] * tw[t2+1];
+			float s1I = f[a2] * tw[t2+1] + f[a2+1] * tw[t2];
+			float s2R = f[a3] * tw[t3] - f[a3+1] * tw[t3+1];
+			float s2I = f[a3] * tw[t3+1] + f[a3+1] * tw[t3];
+
+			float s5R = f[a0] - s1R;
+			float s5I = f[a0+1] - s1I;
+			float f0R = f[a0] + s1R;
+			float f0I = f[a0+1] + s1I;
+			float s3R = s0R + s2R;
+			float s3I = s0I + s2I;
+			float s4R = s0R - s2R;
+			float s4I = s0I - s2I;
+
+			f[a2] = f0R - s3R;
+			f[a2+1] = f0I - s3I;
+			f[a0] = f0R + s3R;
+			f[a0+1] = f0I + s3I;
+			if (inverse) {
+				f[a1] = s5R - s4I;
+				f[a1+1] = s5I + s4R;
+				f[a3] = s5R + s4I;
+				f[a3+1] = s5I - s4R;
+			} else {
+				f[a1] = s5R + s4I;
+				f[a1+1] = s5I - s4R;
+				f[a3] = s5R - s4I;
+				f[a3+1] = s5I + s4R;
+			}
+		}
+	}
+
+	private void butterfly5(float[] f, int idx, int fstride, int m) {
+		final float[] tw = twiddles;
+		final float yaR = tw[2*fstride*m];
+		final float yaI = tw[2*fstride*m+1];
+		final float ybR = tw[2*fstride*2*m];
+		final float ybI = tw[2*fstride*2*m+1];
+		for (int u = 0; u < m; u++) {
+			int a0 = 2 * (idx + u);
+			int a1 = a0 + 2 * m;
+			int a2 = a1 + 2 * m;
+			int a3 = a2 + 2 * m;
+			int a4 = a3 + 2 * m;
+			int t1 = 2 * u * fstride;
+			int t2 = 2 * t1;
+			int t3 = 3 * t1;
+			int t4 = 4 * t1;
+
+			float s0R = f[a0];
+			float s0I = f[a0+1];
+			float s1R = f[a1] * tw[t1] - f[a1+1] * tw[t1+1];
+			float s1I = f[a1] * tw[t1+1] + f[a1+1] * tw[t1];
+			float s2R = f[a2] * tw[t2] - f[a2+1] * tw[t2+1];
+			float s2I = f[a2] * tw[t2+1] + f[a2+1] * tw[t2];
+			float s3R = f[a3] * tw[t3] - f[a3+1] * tw[t3+1];
+			float s3I = f[a3] * tw[t3+1] + f[a3+1] * tw[t3];
+			float s4R = f[a4] * tw[t4] - f[a4+1] * tw[t4+1];
+			float s4I = f[a4] * tw[t4+1] + f[a4+1] * tw[t4];
+
+			float s7R = s1R + s4R;
+			float s7I = s1I + s4I;
+			float s10R = s1R - s4R;
+			float s10I = s1I - s4I;
+			float s8R = s2R + s3R;
+			float s8I = s2I + s3I;
+			float s9R = s2R - s3R;
+			float s9I = s2I - s3I;
+
+			f[a0] = s0R + s7R + s8R;
+			f[a0+1] = s0I + s7I + s8I;
+
+			float s5R = s0R + s7R * yaR + s8R * ybR;
+			float s5I = s0I + s7I * yaR + s8I * ybR;
+			float s6R = s10I * yaI + s9I * ybI;
+			float s6I = -s10R * yaI - s9R * ybI;
+			f[a1] = s5R - s6R;
+			f[a1+1] = s5I - s6I;
+			f[a4] = s5R + s6R;
+			f[a4+1] = s5I + s6I;
+
+			float s11R = s0R + s7R * ybR + s8R * yaR;
+			float s11I = s0I + s7I * ybR + s8I * yaR;
+			float s12R = -s10I * ybI + s9I * yaI;
+			float s12I = s10R * ybI - s9R * yaI;
+			f[a2] = s11R + s12R;
+			f[a2+1] = s11I + s12I;
+			f[a3] = s11R - s12R;
+			f[a3+1] = s11I - s12I;
+		}
+	}
+
+	private void butterflyGeneric(float[] f, int idx, int fstride, int m, int p) {
+		final float[] tw = twiddles;
+		final float[] s = scratch;
+		for (int u = 0; u < m; u++) {
+			int k = u;
+			for (int q1 = 0; q1 < p; q1++) {
+				s[2*q1] = f[2*(idx+k)];
+				s[2*q1+1] = f[2*(idx+k)+1];
+				k += m;
+			}
+
+			k = u;
+			for (int q1 = 0; q1 < p; q1++) {
+				int twIdx = 0;
+				float accR = s[0];
+				float accI = s[1];
+				for (int q = 1; q < p; q++) {
+					twIdx += fstride * k;
+					if (twIdx >= ncfft) twIdx -= ncfft;
+					accR += s[2*q] * tw[2*twIdx] - s[2*q+1] * tw[2*twIdx+1];
+					accI += s[2*q] * tw[2*twIdx+1] + s[2*q+1] * tw[2*twIdx];
+				}
+				f[2*(idx+k)] = accR;
+				f[2*(idx+k)+1] = accI;
+				k += m;
+			}
+		}
+	}
+}
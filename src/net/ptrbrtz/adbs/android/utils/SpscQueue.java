@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs.android.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. Never allocates after construction, so it can be used to hand
+ * preallocated buffers between real-time threads.
+ * 
+ * Blocking calls spin for a short while and then park until the other side
+ * unparks them, so a waiting thread does not burn a whole core.
+ *
+ * @param <T> Type of queued objects
+ */
+public class SpscQueue<T> {
+	private static final int MAX_SPINS = 2000;	// volatile reads before a waiting thread parks
+
+	private final Object[] items;
+	private final int capacity;
+	private volatile long head = 0;		// next item to take, only written by consumer
+	private volatile long tail = 0;		// next free position, only written by producer
+	private volatile Thread waitingConsumer = null;
+	private volatile Thread waitingProducer = null;
+
+	/**
+	 * @param capacity Maximum number of queued objects
+	 */
+	public SpscQueue(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity has to be >= 1");
+		this.capacity = capacity;
+		items = new Object[capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of queued objects. Exact only when called by producer or consumer
+	 * while the other side is idle.
+	 */
+	public int size() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Enqueues an object without blocking. Producer only.
+	 * 
+	 * @return false if queue is full
+	 */
+	public boolean offer(T item) {
+		long t = tail;
+		if (t - head == capacity) return false;
+		items[(int) (t % capacity)] = item;
+		tail = t + 1;	// publishes item
+		Thread consumer = waitingConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/**
+	 * Dequeues an object without blocking. Consumer only.
+	 * 
+	 * @return null if queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long h = head;
+		if (h == tail) return null;
+		int index = (int) (h % capacity);
+		T item = (T) items[index];
+		items[index] = null;
+		head = h + 1;	// frees position
+		Thread producer = waitingProducer;
+		if (producer != null) LockSupport.unpark(producer);
+		return item;
+	}
+
+	/**
+	 * Enqueues an object, waiting for free space if needed. Producer only.
+	 */
+	public void put(T item) throws InterruptedException {
+		int spins = 0;
+		while (!offer(item)) {
+			if (++spins > MAX_SPINS) {
+				waitingProducer = Thread.currentThread();
+				if (tail - head == capacity) LockSupport.park(this);	// re-check after announcing
+				waitingProducer = null;
+			}
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Dequeues an object, waiting for one if needed. Consumer only.
+	 */
+	public T take() throws InterruptedException {
+		awaitSize(1);
+		return poll();
+	}
+
+	/**
+	 * Waits until at least minSize objects are queued. Consumer only.
+	 */
+	public void awaitSize(int minSize) throws InterruptedException {
+		int spins = 0;
+		while (tail - head < minSize) {
+			if (++spins > MAX_SPINS) {
+				waitingConsumer = Thread.currentThread();
+				if (tail - head < minSize) LockSupport.park(this);	// re-check after announcing
+				waitingConsumer = null;
+			}
+			if (Thread.interrupted()) throw new InterruptedException();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs.android.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams 16-bit pcm audio to a wave file. The header is written with empty
+ * sizes first and completed by close(), so audio of unknown length never has
+ * to be held in memory.
+ */
+public class WaveFileWriter {
+	private static final int HEADER_SIZE = 44;
+
+	private final String fileName;
+	private final short numChannels;
+	private final int sampleRate;
+	private OutputStream out;
+	private long numAudioBytes = 0;
+	private byte[] copyBuffer = new byte[0];	// for buffers without accessible array
+
+	public WaveFileWriter(String fileName, int numChannels, int sampleRate) throws IOException {
+		this.fileName = fileName;
+		this.numChannels = (short) numChannels;
+		this.sampleRate = sampleRate;
+		out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16);
+		out.write(getHeader(0));
+	}
+
+	/**
+	 * Appends interleaved little-endian 16-bit samples.
+	 */
+	public void write(byte[] audioData, int offset, int length) throws IOException {
+		out.write(audioData, offset, length);
+		numAudioBytes += length;
+	}
+
+	/**
+	 * Appends the remaining bytes of audioData (interleaved little-endian 16-bit samples) and leaves its position
+	 * at its limit.
+	 */
+	public void write(ByteBuffer audioData) throws IOException {
+		int length = audioData.remaining();
+		if (audioData.hasArray()) {
+			write(audioData.array(), audioData.arrayOffset() + audioData.position(), length);
+			audioData.position(audioData.limit());
+			return;
+		}
+		if (copyBuffer.length < length) copyBuffer = new byte[length];
+		audioData.get(copyBuffer, 0, length);
+		write(copyBuffer, 0, length);
+	}
+
+	public long getNumAudioBytes() {
+		return numAudioBytes;
+	}
+
+	/**
+	 * Flushes pending audio and writes final chunk sizes to the header.
+	 */
+	public void close() throws IOException {
+		if (out == null) return;
+		out.close();
+		out = null;
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try {
+			file.seek(0);
+			file.write(getHeader(numAudioBytes));
+		} finally {
+			file.close();
+		}
+	}
+
+	private byte[] getHeader(long numAudioBytes) throws IOException {
+		if (numAudioBytes > 0xffffffffL - (HEADER_SIZE - 8))
+			throw new IOException("wave file too big");
+
+		byte[] header = new byte[HEADER_SIZE];
+		int pos = 0;
+		pos = putString(header, pos, "RIFF");
+		pos = putInt(header, pos, (int) (numAudioBytes + HEADER_SIZE - 8));
+		pos = putString(header, pos, "WAVE");
+		pos = putString(header, pos, "fmt ");
+		pos = putInt(header, pos, 16);
+		pos = putShort(header, pos, WaveFileInfo.FORMAT_PCM);
+		pos = putShort(header, pos, numChannels);
+		pos = putInt(header, pos, sampleRate);
+		pos = putInt(header, pos, sampleRate * numChannels * 2);	// byte rate
+		pos = putShort(header, pos, (short) (numChannels * 2));		// block align
+		pos = putShort(header, pos, (short) 16);					// bits per sample
+		pos = putString(header, pos, "data");
+		putInt(header, pos, (int) numAudioBytes);
+		return header;
+	}
+
+	private static int putString(byte[] buf, int pos, String str) {
+		for (int i = 0; i < str.length(); i++)
+			buf[pos++] = (byte) str.charAt(i);
+		return pos;
+	}
+
+	private static int putInt(byte[] buf, int pos, int value) {
+		buf[pos++] = (byte) value;
+		buf[pos++] = (byte) (value >> 8);
+		buf[pos++] = (byte) (value >> 16);
+		buf[pos++] = (byte) (value >> 24);
+		return pos;
+	}
+
+	private static int putShort(byte[] buf, int pos, short value) {
+		buf[pos++] = (byte) value;
+		buf[pos++] = (byte) (value >> 8);
+		return pos;
+	}
+}
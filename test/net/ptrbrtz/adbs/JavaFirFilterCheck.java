@@ -0,0 +1,167 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Renders blocks of random input with FirFilter's java backend (see JavaFirFilter) and compares the output with a
+ * direct time-domain convolution, for a filter in a single partition and for filters split into several partitions
+ * (with a mixed radix fft). Three sources are mixed, two of them read the same input window, so the reused input
+ * spectrum is checked too, with and without spectral mixing. Runs without the native library. Plain JVM, not part of
+ * the android build; FirFilter refers to AudioScene, so it compiles like OfflineRenderer (see there):
+ * 
+ * mkdir -p /tmp/jff
+ * javac -encoding UTF-8 -cp $ANDROID_HOME/platforms/android-19/android.jar -sourcepath src:../RazorAHRS/src
+ *     -d /tmp/jff test/net/ptrbrtz/adbs/JavaFirFilterCheck.java
+ * java -cp /tmp/jff net.ptrbrtz.adbs.JavaFirFilterCheck
+ * 
+ * @author Peter Bartz
+ */
+public class JavaFirFilterCheck {
+	private static final int NUM_BLOCKS = 12;
+	private static final int NUM_HRTFS = 2;
+	private static final int[] SOURCE_INPUTS = { 0, 1, 0 };	// sources 0 and 2 share an input buffer
+	private static final int[] SOURCE_HRTFS = { 0, 1, 1 };
+	private static final float[] SOURCE_SCALINGS = { 1.0f, 0.5f, 0.25f };
+	private static final float MAX_INPUT = 10000.0f;
+	private static final float MAX_COEFF = 0.02f;
+
+	public static void main(String[] args) {
+		// filter length, block size, crossfade, fft size
+		checkConvolution(50, 64, 8, 128, true);	// single partition
+		checkConvolution(200, 48, 8, 128, false);	// 5 partitions, the last one shorter
+		checkConvolution(100, 40, 4, 96, false);	// 3 partitions, fft of 3 x 32
+		System.out.println("JavaFirFilter: all checks passed");
+	}
+
+	private static void checkConvolution(int filterLength, int blockSize, int crossfadeSize, int fftSize,
+			boolean singlePartition) {
+		for (int spectralMixing = 0; spectralMixing < 2; spectralMixing++) {
+			checkConvolution(filterLength, blockSize, crossfadeSize, fftSize, singlePartition, spectralMixing == 1);
+		}
+	}
+
+	private static void checkConvolution(int filterLength, int blockSize, int crossfadeSize, int fftSize,
+			boolean singlePartition, boolean spectralMixing) {
+		String what = filterLength + " taps, " + (singlePartition ? "single partition" : "partitions of " + blockSize)
+				+ (spectralMixing ? ", spectral mixing" : "");
+		Random random = new Random(filterLength);
+		
+		// buffer settings as AudioScene.getInternalAudioBufferSettings() sets them up
+		AudioScene.InternalAudioBufferSettings bufSettings = new AudioScene.InternalAudioBufferSettings();
+		bufSettings.monoAudioOutBlockSizeInSamples = blockSize;
+		bufSettings.monoFilterPartitionSizeInSamples = singlePartition ? filterLength : blockSize;
+		bufSettings.monoCrossfadeOverlapInSamples = crossfadeSize;
+		bufSettings.minMonoFftBlockSizeInSamples = blockSize + bufSettings.monoFilterPartitionSizeInSamples - 1
+				+ crossfadeSize;
+		bufSettings.monoFftBlockSizeInSamples = fftSize;
+		bufSettings.monoFftPaddingInSamples = fftSize - bufSettings.minMonoFftBlockSizeInSamples;
+		check(bufSettings.monoFftPaddingInSamples >= 0, "fft size fits the input window");
+		int windowSize = bufSettings.minMonoFftBlockSizeInSamples;
+		
+		float[][][] hrirs = new float[2][NUM_HRTFS][filterLength];
+		for (int ch = 0; ch < 2; ch++) {
+			for (int h = 0; h < NUM_HRTFS; h++) {
+				for (int i = 0; i < filterLength; i++)
+					hrirs[ch][h][i] = (random.nextFloat() * 2.0f - 1.0f) * MAX_COEFF;
+			}
+		}
+		
+		FirFilter filter = new FirFilter();
+		filter.setBackend(FirFilter.Backend.JAVA);
+		filter.setSpectralMixing(spectralMixing);
+		check(filter.create(hrirs, bufSettings, SOURCE_INPUTS.length) == 0, "filter created, " + what);
+		
+		// circular input buffers, not a multiple of the block size long, so windows wrap around at varying offsets
+		int numInputs = 2;
+		int inputBufferLength = windowSize + blockSize + 7;
+		int streamLength = NUM_BLOCKS * blockSize + windowSize;
+		float[][] streams = new float[numInputs][streamLength];
+		ByteBuffer[] inputBuffers = new ByteBuffer[numInputs];
+		// the filter takes the windows before the first one as silent, like at the start of a source, so the part
+		// of the stream they overlap is silent
+		int silenceLength = windowSize - blockSize;
+		for (int in = 0; in < numInputs; in++) {
+			for (int i = silenceLength; i < streamLength; i++)
+				streams[in][i] = (random.nextFloat() * 2.0f - 1.0f) * MAX_INPUT;
+			inputBuffers[in] = FirFilter.allocateBuffer(inputBufferLength * FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES);
+		}
+		ByteBuffer[] inputs = new ByteBuffer[SOURCE_INPUTS.length];
+		for (int s = 0; s < SOURCE_INPUTS.length; s++)
+			inputs[s] = inputBuffers[SOURCE_INPUTS[s]];
+		int[] inputStarts = new int[SOURCE_INPUTS.length];
+		ByteBuffer output = FirFilter.allocateBuffer(blockSize * 4);
+		
+		int numWritten = 0;
+		for (int block = 0; block < NUM_BLOCKS; block++) {
+			// window of block k starts at stream sample k * blockSize
+			int windowStart = block * blockSize;
+			for (; numWritten < windowStart + windowSize; numWritten++) {
+				for (int in = 0; in < numInputs; in++) {
+					inputBuffers[in].putFloat((numWritten % inputBufferLength) * FirFilter.INPUT_SAMPLE_SIZE_IN_BYTES,
+							streams[in][numWritten]);
+				}
+			}
+			for (int s = 0; s < SOURCE_INPUTS.length; s++)
+				inputStarts[s] = windowStart % inputBufferLength;
+			
+			// the hrtfs stay the same, so crossfading into the next block must not change the output (except for
+			// the first block, which has nothing to crossfade from)
+			check(filter.renderBlock(inputs, inputStarts, SOURCE_HRTFS, SOURCE_SCALINGS, block > 0, output) != -1,
+					"block " + block + " rendered, " + what);
+			
+			// output sample i is the convolution at stream sample windowStart + partition size - 1 + i
+			for (int i = 0; i < blockSize; i++) {
+				int n = windowStart + bufSettings.monoFilterPartitionSizeInSamples - 1 + i;
+				for (int ch = 0; ch < 2; ch++) {
+					double expected = 0.0;
+					for (int s = 0; s < SOURCE_INPUTS.length; s++)
+						expected += SOURCE_SCALINGS[s] * convolve(streams[SOURCE_INPUTS[s]], hrirs[ch][SOURCE_HRTFS[s]], n);
+					int actual = output.getShort((i * 2 + ch) * 2);
+					check(Math.abs(actual - toShort(expected)) <= 1, "block " + block + ", sample " + i + ", channel "
+							+ ch + ": " + actual + " instead of " + toShort(expected) + ", " + what);
+				}
+			}
+		}
+		filter.destroy();
+	}
+
+	// filter output at stream sample n, input before the stream's start is silent
+	private static double convolve(float[] stream, float[] taps, int n) {
+		double result = 0.0;
+		for (int t = 0; t < taps.length && t <= n; t++)
+			result += (double) taps[t] * stream[n - t];
+		return result;
+	}
+
+	// like the filter's conversion to 16 bit: truncated and clipped
+	private static int toShort(double sample) {
+		return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package net.ptrbrtz.adbs;
+
+/**
+ * Drives JitterBufferController.update() with made-up render times, underruns and clock and checks when the depth
+ * grows and shrinks. Plain JVM, not part of the android build:
+ * 
+ * mkdir -p /tmp/jbc && javac -d /tmp/jbc src/net/ptrbrtz/adbs/JitterBufferController.java test/net/ptrbrtz/adbs/JitterBufferControllerCheck.java
+ * java -cp /tmp/jbc net.ptrbrtz.adbs.JitterBufferControllerCheck
+ * 
+ * @author Peter Bartz
+ */
+public class JitterBufferControllerCheck {
+	private static final long MILLIS = 1000000L;
+	private static final long OUTPUT_BUFFER_DURATION = 10 * MILLIS;
+	private static final long BLOCK_DURATION = 5 * MILLIS;	// two blocks per output buffer
+	private static final long STABLE_PERIOD = 10000 * MILLIS;	// JitterBufferController.STABLE_PERIOD_IN_NANOS
+	private static final int MAX_DEPTH = 4;
+
+	public static void main(String[] args) {
+		checkGrowsOnUnderrun();
+		checkGrowsOnRenderTime();
+		checkShrinksAfterStablePeriod();
+		checkStopsAtLimits();
+		System.out.println("JitterBufferController: all checks passed");
+	}
+
+	private static void checkGrowsOnUnderrun() {
+		long now = System.nanoTime();
+		JitterBufferController controller = new JitterBufferController(MAX_DEPTH, OUTPUT_BUFFER_DURATION, BLOCK_DURATION);
+		check(controller.getDepth() == 1, "starts at depth 1");
+		check(!controller.update(0, 0, now), "no change without underrun");
+		check(controller.update(0, 1, now), "underrun grows the depth");
+		check(controller.getDepth() == 2, "depth 2 after an underrun");
+		check(!controller.update(0, 1, now), "the same underrun is not counted twice");
+		
+		// underruns seen before (e.g. when resuming) do not count
+		controller.resetUnderruns(5);
+		check(!controller.update(0, 5, now), "reset underruns do not grow the depth");
+		check(controller.getDepth() == 2, "still depth 2");
+	}
+
+	private static void checkGrowsOnRenderTime() {
+		long now = System.nanoTime();
+		JitterBufferController controller = new JitterBufferController(MAX_DEPTH, OUTPUT_BUFFER_DURATION, BLOCK_DURATION);
+		
+		// depth 1: grows above 0.8 output buffers of render time (0.4 per block)
+		check(!controller.update(4 * MILLIS, 0, now), "render time at 0.8 x depth does not grow the depth");
+		check(controller.update(4 * MILLIS + 100000, 0, now), "render time above 0.8 x depth grows the depth");
+		check(controller.getDepth() == 2, "depth 2 after a long block");
+		
+		// depth 2: threshold is twice as high
+		check(!controller.update(8 * MILLIS, 0, now), "render time at 0.8 x depth 2 does not grow the depth");
+		check(controller.update(8 * MILLIS + 100000, 0, now), "render time above 0.8 x depth 2 grows the depth");
+		check(controller.getDepth() == 3, "depth 3 after a longer block");
+	}
+
+	private static void checkShrinksAfterStablePeriod() {
+		long now = System.nanoTime();
+		JitterBufferController controller = new JitterBufferController(MAX_DEPTH, OUTPUT_BUFFER_DURATION, BLOCK_DURATION);
+		controller.update(0, 1, now);
+		controller.update(0, 2, now);
+		check(controller.getDepth() == 3, "depth 3 after two underruns");
+		long start = now;
+		
+		// peak below 0.4 x (depth - 1) = 8 ms per output buffer (4 ms per block), but the period is not over yet
+		for (now = start; now - start <= STABLE_PERIOD; now += BLOCK_DURATION) {
+			check(!controller.update(3 * MILLIS, 2, now), "no shrinking before the stable period is over");
+		}
+		check(controller.update(3 * MILLIS, 2, now), "shrinks after a stable period with a low peak");
+		check(controller.getDepth() == 2, "depth 2 after shrinking");
+		
+		// depth 2: a peak at 0.4 x (depth - 1) = 4 ms per output buffer in the period keeps the depth
+		start = now;
+		controller.update(2 * MILLIS, 2, now);
+		for (now += BLOCK_DURATION; now - start <= STABLE_PERIOD; now += BLOCK_DURATION) {
+			controller.update(1 * MILLIS, 2, now);
+		}
+		check(!controller.update(1 * MILLIS, 2, now), "a peak at the shrink threshold keeps the depth");
+		check(controller.getDepth() == 2, "still depth 2");
+		
+		// the next period starts without the old peak
+		start = now;
+		for (now += BLOCK_DURATION; now - start <= STABLE_PERIOD; now += BLOCK_DURATION) {
+			check(!controller.update(1 * MILLIS, 2, now), "no shrinking before the next period is over");
+		}
+		check(controller.update(1 * MILLIS, 2, now), "shrinks after the next period");
+		check(controller.getDepth() == 1, "depth 1 after shrinking again");
+	}
+
+	private static void checkStopsAtLimits() {
+		long now = System.nanoTime();
+		JitterBufferController controller = new JitterBufferController(MAX_DEPTH, OUTPUT_BUFFER_DURATION, BLOCK_DURATION);
+		for (int i = 1; i <= 2 * MAX_DEPTH; i++) {
+			controller.update(100 * MILLIS, i, now);
+		}
+		check(controller.getDepth() == MAX_DEPTH, "stops at the maximum depth");
+		check(!controller.update(100 * MILLIS, 2 * MAX_DEPTH + 1, now), "no change at the maximum depth");
+		
+		// idle for a long time: shrinks one step per stable period, down to 1
+		for (int i = 0; i < 4 * MAX_DEPTH; i++) {
+			now += STABLE_PERIOD + 1;
+			controller.update(0, 2 * MAX_DEPTH + 1, now);
+		}
+		check(controller.getDepth() == 1, "stops at depth 1");
+		now += STABLE_PERIOD + 1;
+		check(!controller.update(0, 2 * MAX_DEPTH + 1, now), "no change at depth 1");
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2016 Peter Bartz
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package net.ptrbrtz.adbs.android.utils;
+
+import java.util.Random;
+
+/**
+ * Checks RealFft against a direct dft and that inverse(forward(x)) gives back nfft * x, for power of two, mixed
+ * radix (3, 5) and generic radix sizes. Plain JVM, not part of the android build:
+ * 
+ * mkdir -p /tmp/fft && javac -d /tmp/fft src/net/ptrbrtz/adbs/android/utils/RealFft.java test/net/ptrbrtz/adbs/android/utils/RealFftCheck.java
+ * java -cp /tmp/fft net.ptrbrtz.adbs.android.utils.RealFftCheck
+ * 
+ * @author Peter Bartz
+ */
+public class RealFftCheck {
+	private static final int[] SIZES = { 2, 4, 8, 64, 96, 120, 128, 160, 384, 1024, 154 };	// 154: radix 7 and 11
+	private static final double MAX_RELATIVE_ERROR = 1e-5;	// of the spectrum's or signal's largest magnitude
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		for (int nfft : SIZES) {
+			float[] timeData = new float[nfft];
+			for (int i = 0; i < nfft; i++)
+				timeData[i] = random.nextFloat() * 2.0f - 1.0f;
+			checkForward(timeData);
+			checkRoundTrip(timeData);
+		}
+		checkWrongDirection();
+		System.out.println("RealFft: all checks passed");
+	}
+
+	private static void checkForward(float[] timeData) {
+		int nfft = timeData.length;
+		float[] freqData = new float[nfft + 2];
+		new RealFft(nfft, false).forward(timeData, freqData);
+		
+		// direct dft of the nfft / 2 + 1 non-negative frequencies
+		double[] expected = new double[nfft + 2];
+		double maxMagnitude = 0.0;
+		for (int k = 0; k <= nfft / 2; k++) {
+			double re = 0.0;
+			double im = 0.0;
+			for (int n = 0; n < nfft; n++) {
+				double phase = -2.0 * Math.PI * k * n / nfft;
+				re += timeData[n] * Math.cos(phase);
+				im += timeData[n] * Math.sin(phase);
+			}
+			expected[2*k] = re;
+			expected[2*k+1] = im;
+			maxMagnitude = Math.max(maxMagnitude, Math.hypot(re, im));
+		}
+		for (int i = 0; i < nfft + 2; i++) {
+			check(Math.abs(freqData[i] - expected[i]) <= MAX_RELATIVE_ERROR * maxMagnitude,
+					"forward fft of size " + nfft + " matches the dft at " + i);
+		}
+	}
+
+	private static void checkRoundTrip(float[] timeData) {
+		int nfft = timeData.length;
+		float[] freqData = new float[nfft + 2];
+		float[] result = new float[nfft];
+		new RealFft(nfft, false).forward(timeData, freqData);
+		new RealFft(nfft, true).inverse(freqData, result);
+		
+		// unscaled: nfft times the input
+		for (int i = 0; i < nfft; i++) {
+			check(Math.abs(result[i] / nfft - timeData[i]) <= MAX_RELATIVE_ERROR,
+					"inverse of forward fft of size " + nfft + " gives the input back at " + i);
+		}
+	}
+
+	private static void checkWrongDirection() {
+		boolean thrown = false;
+		try {
+			new RealFft(8, true).forward(new float[8], new float[10]);
+		} catch (IllegalStateException e) {
+			thrown = true;
+		}
+		check(thrown, "an inverse instance refuses forward transforms");
+		
+		thrown = false;
+		try {
+			new RealFft(7, false);
+		} catch (IllegalArgumentException e) {
+			thrown = true;
+		}
+		check(thrown, "odd sizes are refused");
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) throw new AssertionError(what);
+	}
+}